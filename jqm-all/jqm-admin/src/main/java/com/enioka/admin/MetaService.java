@@ -35,6 +35,8 @@ import com.enioka.jqm.model.JobDefParameter;
 import com.enioka.jqm.model.Node;
 import com.enioka.jqm.model.Queue;
 import com.enioka.jqm.model.RRole;
+import com.enioka.jqm.model.RateBucket;
+import com.enioka.jqm.model.RunningCounter;
 import com.enioka.jqm.model.ScheduledJob;
 import com.enioka.jqm.model.JobDef.PathType;
 
@@ -85,9 +87,12 @@ public class MetaService
         cnx.runUpdate("sjprm_delete_all");
         cnx.runUpdate("sj_delete_all");
         cnx.runUpdate("jdprm_delete_all");
+        cnx.runUpdate("warm_delete_all");
         cnx.runUpdate("node_delete_all");
         cnx.runUpdate("jd_delete_all");
         cnx.runUpdate("q_delete_all");
+        cnx.runUpdate("rb_delete_all");
+        cnx.runUpdate("rc_delete_all");
         cnx.runUpdate("jndiprm_delete_all");
         cnx.runUpdate("jndi_delete_all");
         cnx.runUpdate("pki_delete_all"); // No corresponding DTO.
@@ -109,6 +114,8 @@ public class MetaService
         cnx.runUpdate("message_delete_all");
         cnx.runUpdate("history_delete_all");
         cnx.runUpdate("jiprm_delete_all");
+        cnx.runUpdate("hl_delete_all");
+        cnx.runUpdate("rc_update_reset_all");
         cnx.runUpdate("ji_delete_all");
     }
 
@@ -434,12 +441,14 @@ public class MetaService
         }
 
         cnx.runUpdate("jdprm_delete_all_for_jd", id);
+        cnx.runUpdate("warm_delete_for_jd", id);
         QueryResult qr = cnx.runUpdate("jd_delete_by_id", id);
         if (qr.nbUpdated != 1)
         {
             cnx.setRollbackOnly();
             throw new JqmAdminApiUserException("no item with ID " + id);
         }
+        RunningCounter.sync(cnx);
     }
 
     private static JobDefDto mapJobDef(ResultSet rs, int colShift)
@@ -465,6 +474,9 @@ public class MetaService
             tmp.setReasonableRuntimeLimitMinute(rs.getInt(15 + colShift));
             tmp.setModule(rs.getString(16 + colShift));
             tmp.setQueueId(rs.getInt(18 + colShift) > 0 ? rs.getInt(18 + colShift) : null);
+            tmp.setMaxRunning(rs.getInt(20 + colShift) > 0 ? rs.getInt(20 + colShift) : null);
+            tmp.setBatchSize(rs.getInt(21 + colShift) > 0 ? rs.getInt(21 + colShift) : null);
+            tmp.setWarmPoolSize(rs.getInt(22 + colShift) > 0 ? rs.getInt(22 + colShift) : null);
         }
         catch (SQLException e)
         {
@@ -602,7 +614,9 @@ public class MetaService
             cnx.runUpdate("jd_update_all_fields_by_id", dto.getApplication(), dto.getApplicationName(), dto.getDescription(),
                     dto.isEnabled(), false, dto.isHighlander(), dto.getJarPath(), dto.getJavaClassName(), null, dto.getKeyword1(),
                     dto.getKeyword2(), dto.getKeyword3(), dto.getReasonableRuntimeLimitMinute(), dto.getModule(), PathType.FS,
-                    dto.getClassLoaderId(), dto.getQueueId(), dto.getId());
+                    dto.getClassLoaderId(), dto.getQueueId(), dto.getMaxRunning(), dto.getBatchSize(),
+                    dto.getWarmPoolSize(), dto.getId());
+            RunningCounter.sync(cnx);
 
             // Parameter sync is trivial for now: delete and recreate.
             cnx.runUpdate("jdprm_delete_all_for_jd", dto.getId());
@@ -687,10 +701,26 @@ public class MetaService
         }
         else
         {
-            int i = JobDef.create(cnx, dto.getDescription(), dto.getJavaClassName(), dto.getParameters(), dto.getJarPath(),
-                    dto.getQueueId(), dto.getReasonableRuntimeLimitMinute(), dto.getApplicationName(), dto.getApplication(),
-                    dto.getModule(), dto.getKeyword1(), dto.getKeyword2(), dto.getKeyword3(), dto.isHighlander(), dto.getClassLoaderId(),
-                    PathType.FS);
+            JobDef jd = new JobDef();
+            jd.setDescription(dto.getDescription());
+            jd.setJavaClassName(dto.getJavaClassName());
+            jd.setJarPath(dto.getJarPath());
+            jd.setQueue(dto.getQueueId());
+            jd.setMaxTimeRunning(dto.getReasonableRuntimeLimitMinute());
+            jd.setApplicationName(dto.getApplicationName());
+            jd.setApplication(dto.getApplication());
+            jd.setModule(dto.getModule());
+            jd.setKeyword1(dto.getKeyword1());
+            jd.setKeyword2(dto.getKeyword2());
+            jd.setKeyword3(dto.getKeyword3());
+            jd.setHighlander(dto.isHighlander());
+            jd.setClassLoader(dto.getClassLoaderId());
+            jd.setPathType(PathType.FS);
+            jd.setMaxRunning(dto.getMaxRunning());
+            jd.setBatchSize(dto.getBatchSize());
+            jd.setWarmPoolSize(dto.getWarmPoolSize());
+            jd.update(cnx, dto.getParameters());
+            int i = jd.getId();
 
             // Sync the schedules too.
             for (com.enioka.api.admin.ScheduledJob sjdto : dto.getSchedules())
@@ -758,6 +788,7 @@ public class MetaService
         }
 
         cnx.runUpdate("dp_delete_for_node", id);
+        cnx.runUpdate("warm_delete_for_node", id);
         QueryResult qr = cnx.runUpdate("node_delete_by_id", id);
         if (qr.nbUpdated != 1)
         {
@@ -913,6 +944,8 @@ public class MetaService
             cnx.setRollbackOnly();
             throw new JqmAdminApiUserException("no item with ID " + id);
         }
+        RateBucket.sync(cnx);
+        RunningCounter.sync(cnx);
     }
 
     private static QueueDto mapQueue(ResultSet rs, int colShift)
@@ -925,6 +958,9 @@ public class MetaService
             tmp.setDefaultQueue(rs.getBoolean(2 + colShift));
             tmp.setDescription(rs.getString(3 + colShift));
             tmp.setName(rs.getString(4 + colShift));
+            tmp.setVirtualThreads(rs.getBoolean(5 + colShift));
+            tmp.setMaxRunning(rs.getInt(6 + colShift) > 0 ? rs.getInt(6 + colShift) : null);
+            tmp.setMaxRate(rs.getDouble(7 + colShift) > 0 ? rs.getDouble(7 + colShift) : null);
 
             return tmp;
         }
@@ -980,12 +1016,17 @@ public class MetaService
     {
         if (dto.getId() != null)
         {
-            cnx.runUpdate("q_update_changed_by_id", dto.isDefaultQueue(), dto.getDescription(), dto.getName(), dto.getId(),
-                    dto.isDefaultQueue(), dto.getDescription(), dto.getName());
+            cnx.runUpdate("q_update_changed_by_id", dto.isDefaultQueue(), dto.getDescription(), dto.getName(), dto.isVirtualThreads(),
+                    dto.getMaxRunning(), dto.getMaxRate(), dto.getId(), dto.isDefaultQueue(), dto.getDescription(), dto.getName(),
+                    dto.isVirtualThreads(), dto.getMaxRunning() == null ? 0 : dto.getMaxRunning(),
+                    dto.getMaxRate() == null ? 0d : dto.getMaxRate());
+            RateBucket.sync(cnx);
+            RunningCounter.sync(cnx);
         }
         else
         {
-            Queue.create(cnx, dto.getName(), dto.getDescription(), dto.isDefaultQueue());
+            Queue.create(cnx, dto.getName(), dto.getDescription(), dto.isDefaultQueue(), dto.isVirtualThreads(), dto.getMaxRunning(),
+                    dto.getMaxRate());
         }
     }
 
@@ -1044,6 +1085,7 @@ public class MetaService
             tmp.setQueueId(rs.getInt(7 + colShift));
             tmp.setNodeName(rs.getString(8 + colShift));
             tmp.setQueueName(rs.getString(9 + colShift));
+            tmp.setPrefetch(rs.getInt(10 + colShift));
 
             return tmp;
         }
@@ -1100,12 +1142,13 @@ public class MetaService
         if (dto.getId() != null)
         {
             cnx.runUpdate("dp_update_changed_by_id", dto.getEnabled(), dto.getNbThread(), dto.getPollingInterval(), dto.getNodeId(),
-                    dto.getQueueId(), dto.getId(), dto.getEnabled(), dto.getNbThread(), dto.getPollingInterval(), dto.getNodeId(),
-                    dto.getQueueId());
+                    dto.getQueueId(), dto.getPrefetch(), dto.getId(), dto.getEnabled(), dto.getNbThread(), dto.getPollingInterval(),
+                    dto.getNodeId(), dto.getQueueId(), dto.getPrefetch());
         }
         else
         {
-            DeploymentParameter.create(cnx, dto.getNodeId(), dto.getNbThread(), dto.getPollingInterval(), dto.getQueueId());
+            DeploymentParameter.create(cnx, dto.getNodeId(), dto.getNbThread(), dto.getPollingInterval(), dto.getQueueId(),
+                    dto.getPrefetch());
         }
     }
 
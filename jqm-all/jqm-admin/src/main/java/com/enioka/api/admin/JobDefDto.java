@@ -50,6 +50,9 @@ public class JobDefDto implements Serializable
     private String jarPath;
     private Integer reasonableRuntimeLimitMinute;
     private Integer classLoaderId;
+    private Integer maxRunning;
+    private Integer batchSize;
+    private Integer warmPoolSize;
 
     @XmlElementWrapper(name = "parameters")
     @XmlElement(name = "parameter")
@@ -237,6 +240,36 @@ public class JobDefDto implements Serializable
         this.classLoaderId = classLoaderId;
     }
 
+    public Integer getMaxRunning()
+    {
+        return maxRunning;
+    }
+
+    public void setMaxRunning(Integer maxRunning)
+    {
+        this.maxRunning = maxRunning;
+    }
+
+    public Integer getBatchSize()
+    {
+        return batchSize;
+    }
+
+    public void setBatchSize(Integer batchSize)
+    {
+        this.batchSize = batchSize;
+    }
+
+    public Integer getWarmPoolSize()
+    {
+        return warmPoolSize;
+    }
+
+    public void setWarmPoolSize(Integer warmPoolSize)
+    {
+        this.warmPoolSize = warmPoolSize;
+    }
+
     public JobDefDto addSchedule(ScheduledJob sj)
     {
         this.schedules.add(sj);
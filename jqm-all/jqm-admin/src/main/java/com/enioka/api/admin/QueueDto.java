@@ -28,6 +28,9 @@ public class QueueDto implements Serializable
     private String name;
     private String description;
     private boolean defaultQueue;
+    private boolean virtualThreads;
+    private Integer maxRunning;
+    private Double maxRate;
 
     public Integer getId()
     {
@@ -68,4 +71,34 @@ public class QueueDto implements Serializable
     {
         this.defaultQueue = defaultQueue;
     }
+
+    public boolean isVirtualThreads()
+    {
+        return virtualThreads;
+    }
+
+    public void setVirtualThreads(boolean virtualThreads)
+    {
+        this.virtualThreads = virtualThreads;
+    }
+
+    public Integer getMaxRunning()
+    {
+        return maxRunning;
+    }
+
+    public void setMaxRunning(Integer maxRunning)
+    {
+        this.maxRunning = maxRunning;
+    }
+
+    public Double getMaxRate()
+    {
+        return maxRate;
+    }
+
+    public void setMaxRate(Double maxRate)
+    {
+        this.maxRate = maxRate;
+    }
 }
@@ -31,6 +31,7 @@ public class QueueMappingDto implements Serializable
     private Integer nodeId;
     private Integer nbThread;
     private Integer pollingInterval;
+    private Integer prefetch = 0;
     private Integer queueId;
     private String nodeName, queueName;
     private Boolean enabled = true;
@@ -75,6 +76,16 @@ public class QueueMappingDto implements Serializable
         this.pollingInterval = pollingInterval;
     }
 
+    public Integer getPrefetch()
+    {
+        return prefetch;
+    }
+
+    public void setPrefetch(Integer prefetch)
+    {
+        this.prefetch = prefetch;
+    }
+
     public Integer getQueueId()
     {
         return queueId;
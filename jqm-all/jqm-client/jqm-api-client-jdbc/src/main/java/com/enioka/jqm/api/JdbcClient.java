@@ -1226,6 +1226,8 @@ final class JdbcClient implements JqmClient
                 wh += getCalendarPredicate("ji.DATE_START", query.getBeganRunningAfter(), ">=", prms);
                 wh += getCalendarPredicate("ji.DATE_START", query.getBeganRunningBefore(), "<=", prms);
 
+                // This query keeps its joins and does not use the MetadataCache: it is filtered, sorted and paginated on the columns of
+                // the job definitions, queues and nodes, and is unioned with the history which holds these columns.
                 q1 = "SELECT ji.ID, jd.APPLICATION AS JD_APPLICATION, jd.JD_KEY, ji.DATE_ATTRIBUTION, "
                         + "ji.EMAIL, NULL AS DATE_END, ji.DATE_ENQUEUE, ji.DATE_START, "
                         + "ji.HIGHLANDER, ji.APPLICATION AS INSTANCE_APPLICATION, ji.KEYWORD1 AS INSTANCE_KEYWORD1, "
@@ -7,9 +7,13 @@ import java.net.URLClassLoader;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.naming.NamingException;
 import javax.naming.spi.NamingManager;
@@ -22,6 +26,7 @@ import com.enioka.jqm.jdbc.DbConn;
 import com.enioka.jqm.model.Cl;
 import com.enioka.jqm.model.GlobalParameter;
 import com.enioka.jqm.model.JobDef;
+import com.enioka.jqm.model.JobDef.PathType;
 import com.enioka.jqm.model.JobInstance;
 
 /**
@@ -54,6 +59,13 @@ class ClassloaderManager
      */
     private Map<Integer, JarClassLoader> persistentClassLoaders = new HashMap<Integer, JarClassLoader>();
 
+    /**
+     * The job definitions whose class path was already built by this engine: their libraries are cached (inside the library resolver or
+     * the local Maven repository), and their class loader may even be reused. Published by the {@link InternalPoller} for locality-aware
+     * claims.
+     */
+    private final Set<Integer> warmJobDefs = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
     /**
      * The different runners which may be involved inside the class loaders. Simple class names.
      */
@@ -67,10 +79,16 @@ class ClassloaderManager
     private final LibraryResolverFS fsResolver;
     private final LibraryResolverMaven mavenResolver;
 
+    /**
+     * Class loaders prepared in advance for the job definitions with a {@link JobDef#getWarmPoolSize()}.
+     */
+    private final WarmClassLoaderPool warmPool;
+
     ClassloaderManager()
     {
         this.fsResolver = new LibraryResolverFS();
         this.mavenResolver = new LibraryResolverMaven();
+        this.warmPool = new WarmClassLoaderPool(this);
     }
 
     void setIsolationDefault(DbConn cnx)
@@ -83,6 +101,10 @@ class ClassloaderManager
             runnerClasses.add(s);
             jqmlogger.info("Detected a job instance runner named " + s);
         }
+        this.warmPool.setIdleSeconds(GlobalParameter.getParameter(cnx, "warmPoolIdleSeconds", 600));
+
+        // So that library resolution does not need the database later.
+        LibraryResolverMaven.loadConfiguration(cnx);
     }
 
     JarClassLoader getClassloader(JobInstance ji, DbConn cnx) throws MalformedURLException, JqmPayloadException, RuntimeException
@@ -90,8 +112,19 @@ class ClassloaderManager
         final JarClassLoader jobClassLoader;
         JobDef jd = ji.getJD();
 
+        // A class loader prepared in advance is exactly the new isolated CL which would be created below.
+        if (isWarmPoolable(jd))
+        {
+            JarClassLoader pooled = warmPool.take(ji);
+            if (pooled != null)
+            {
+                warmJobDefs.add(jd.getId());
+                return pooled;
+            }
+        }
+
         // Extract the jar actual path
-        File jarFile = new File(FilenameUtils.concat(new File(ji.getNode().getRepo()).getAbsolutePath(), jd.getJarPath()));
+        File jarFile = getJarFile(ji);
 
         // The parent class loader is normally the CL with EXT on its CL. But if no lib load, user current one (happens for external
         // payloads)
@@ -116,12 +149,7 @@ class ClassloaderManager
             else
             {
                 jqmlogger.info("Creating a new specific isolation context: " + clSharingKey);
-                jobClassLoader = new JarClassLoader(parent);
-                jobClassLoader.setReferenceJobDefName(jd.getApplicationName());
-                jobClassLoader.mayBeShared(cldef.isPersistent());
-                jobClassLoader.setHiddenJavaClasses(cldef.getHiddenClasses());
-                jobClassLoader.setTracing(cldef.isTracingEnabled());
-                jobClassLoader.setChildFirstClassLoader(cldef.isChildFirst());
+                jobClassLoader = newSpecificClassLoader(cldef, jd, parent);
 
                 if (cldef.isPersistent())
                 {
@@ -182,9 +210,61 @@ class ClassloaderManager
             jqmlogger.trace("       - " + url.toString());
         }
 
+        if (jd.getPathType() != PathType.MEMORY)
+        {
+            warmJobDefs.add(jd.getId());
+        }
         return jobClassLoader;
     }
 
+    private JarClassLoader newSpecificClassLoader(Cl cldef, JobDef jd, ClassLoader parent)
+    {
+        JarClassLoader res = new JarClassLoader(parent);
+        res.setReferenceJobDefName(jd.getApplicationName());
+        res.mayBeShared(cldef.isPersistent());
+        res.setHiddenJavaClasses(cldef.getHiddenClasses());
+        res.setTracing(cldef.isTracingEnabled());
+        res.setChildFirstClassLoader(cldef.isChildFirst());
+        return res;
+    }
+
+    /**
+     * Only job definitions which would get a new transient class loader for each launch can use a warm pool: pooling a shared class loader
+     * would make no sense.
+     */
+    private boolean isWarmPoolable(JobDef jd)
+    {
+        if (jd.getWarmPoolSize() == null || jd.getWarmPoolSize() <= 0 || jd.getPathType() == PathType.MEMORY)
+        {
+            return false;
+        }
+        Cl cldef = jd.getClassLoader();
+        if (cldef != null)
+        {
+            return !cldef.isPersistent();
+        }
+        return !"Shared".equals(launchIsolationDefault) && !"SharedJar".equals(launchIsolationDefault);
+    }
+
+    /**
+     * Creates a transient class loader for the job definition of the given job instance, with its full class path. Used by the
+     * {@link WarmClassLoaderPool}, once the libraries of the job definition are cached (so no database access is needed).
+     */
+    JarClassLoader createIsolatedClassloader(JobInstance ji) throws MalformedURLException, JqmPayloadException
+    {
+        JobDef jd = ji.getJD();
+        ClassLoader parent = getParentClassLoader(ji);
+        JarClassLoader res = jd.getClassLoader() != null ? newSpecificClassLoader(jd.getClassLoader(), jd, parent)
+                : new JarClassLoader(parent);
+        res.extendUrls(getJarFile(ji).toURI().toURL(), getClasspath(ji, null));
+        return res;
+    }
+
+    private File getJarFile(JobInstance ji)
+    {
+        return new File(FilenameUtils.concat(new File(ji.getNode().getRepo()).getAbsolutePath(), ji.getJD().getJarPath()));
+    }
+
     private ClassLoader getExtensionCLassloader()
     {
         ClassLoader extLoader = null;
@@ -284,4 +364,50 @@ class ClassloaderManager
         }
         return pluginClassLoader;
     }
+
+    int getSharedJarClassLoaderCount()
+    {
+        return this.sharedJarClassLoader.size();
+    }
+
+    int getPersistentClassLoaderCount()
+    {
+        return this.persistentClassLoaders.size();
+    }
+
+    int getLibraryCacheSize()
+    {
+        return this.fsResolver.getCacheSize();
+    }
+
+    /**
+     * A copy of the IDs of the job definitions which are warm on this engine.
+     */
+    Set<Integer> getWarmJobDefs()
+    {
+        return new HashSet<Integer>(this.warmJobDefs);
+    }
+
+    long getWarmPoolWarmStartCount()
+    {
+        return this.warmPool.getWarmStartCount();
+    }
+
+    long getWarmPoolColdStartCount()
+    {
+        return this.warmPool.getColdStartCount();
+    }
+
+    int getWarmPoolReadyCount()
+    {
+        return this.warmPool.getReadyCount();
+    }
+
+    /**
+     * Drops the class loaders prepared in advance. Called on engine stop.
+     */
+    void stop()
+    {
+        this.warmPool.stop();
+    }
 }
@@ -40,9 +40,9 @@ class CronScheduler implements Runnable, TaskCollector
         this.node = e.getNode();
 
         DbConn cnx = Helpers.getNewDbSession();
-        this.schedulerKeepAlive = Integer.parseInt(GlobalParameter.getParameter(cnx, "schedulerKeepAlive", "30000"));
+        this.schedulerKeepAlive = GlobalParameter.getParameter(cnx, "schedulerKeepAlive", 30000);
 
-        boolean shouldStart = !Boolean.parseBoolean(GlobalParameter.getParameter(cnx, "disableScheduler", "false"));
+        boolean shouldStart = !GlobalParameter.getParameter(cnx, "disableScheduler", false);
         if (!shouldStart)
         {
             jqmlogger.info("Scheduling functions are disabled");
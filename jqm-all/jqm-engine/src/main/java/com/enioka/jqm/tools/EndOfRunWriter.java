@@ -0,0 +1,275 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.tools;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.enioka.jqm.jdbc.DbConn;
+import com.enioka.jqm.model.RunningCounter;
+
+/**
+ * Write-behind for the end of run of job instances: the History creation and the removal of the job instance are not done by the payload
+ * thread but by this node-level thread, which stores the results of many job instances in a single transaction (using JDBC batches). A
+ * batch is written as soon as it contains <code>endOfRunBatchSize</code> job instances, or <code>endOfRunBatchDelayMs</code> after its first
+ * job instance has ended.<br>
+ * Job instances are written in the order they have ended, and all the writes of a job instance are inside the same transaction. The queue
+ * is bounded: when it is full, ending payload threads wait (their slot is already released).<br>
+ * When the database is unavailable, the job instances of the failed batch go to the usual delayed finalization of the engine.
+ */
+class EndOfRunWriter implements Runnable
+{
+    private static Logger jqmlogger = LoggerFactory.getLogger(EndOfRunWriter.class);
+    private static final int IDLE_POLL_MS = 100;
+
+    private final int batchSize;
+    private final int maxDelayMs;
+    private final BlockingQueue<Loader> queue;
+    private final ReadWriteLock endLock = new ReentrantReadWriteLock();
+    private volatile boolean run = true;
+    private boolean ended = false;
+    private volatile Thread localThread = null;
+
+    private final AtomicLong batchCount = new AtomicLong(0);
+    private final AtomicLong writtenCount = new AtomicLong(0);
+
+    EndOfRunWriter(int batchSize, int maxDelayMs)
+    {
+        this.batchSize = Math.max(1, batchSize);
+        this.maxDelayMs = Math.max(0, maxDelayMs);
+        this.queue = new LinkedBlockingQueue<Loader>(this.batchSize * 10);
+    }
+
+    /**
+     * Hands over the end of run of a loader. Blocks while the queue is full.
+     *
+     * @return false if the writer has stopped - the caller should then store the results itself.
+     */
+    boolean submit(Loader l)
+    {
+        while (true)
+        {
+            endLock.readLock().lock();
+            try
+            {
+                if (ended)
+                {
+                    return false;
+                }
+                if (queue.offer(l, IDLE_POLL_MS, TimeUnit.MILLISECONDS))
+                {
+                    return true;
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            finally
+            {
+                endLock.readLock().unlock();
+            }
+            jqmlogger.debug("End of run writer queue is full - loader " + l.getId() + " waits");
+        }
+    }
+
+    void start()
+    {
+        this.localThread = new Thread(this);
+        this.localThread.start();
+    }
+
+    /**
+     * Stops the writer after all the pending end of runs have been written. Blocks until then.
+     */
+    void stop()
+    {
+        jqmlogger.debug("End of run writer has received a stop request");
+        this.run = false;
+        Thread t = this.localThread;
+        if (t != null && t != Thread.currentThread())
+        {
+            try
+            {
+                t.join();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        Thread.currentThread().setName("END_OF_RUN_WRITER;writing;");
+        jqmlogger.debug("End of run writer has started - batches of " + batchSize + " job instances or " + maxDelayMs + "ms");
+
+        List<Loader> batch = new ArrayList<Loader>(batchSize);
+        while (true)
+        {
+            try
+            {
+                Loader l = queue.poll(IDLE_POLL_MS, TimeUnit.MILLISECONDS);
+                if (l == null)
+                {
+                    if (!run)
+                    {
+                        break;
+                    }
+                    continue;
+                }
+
+                // Group commit: wait a little for other job instances to end.
+                batch.add(l);
+                long deadline = System.currentTimeMillis() + maxDelayMs;
+                while (batch.size() < batchSize)
+                {
+                    long wait = deadline - System.currentTimeMillis();
+                    l = wait > 0 ? queue.poll(wait, TimeUnit.MILLISECONDS) : queue.poll();
+                    if (l == null)
+                    {
+                        break;
+                    }
+                    batch.add(l);
+                }
+            }
+            catch (InterruptedException e)
+            {
+                // Only stop() ends the writer, as pending results must not be lost.
+                jqmlogger.debug("interrupted wait in end of run writer");
+            }
+
+            write(batch);
+            batch.clear();
+        }
+
+        // From now on, loaders store their results by themselves.
+        endLock.writeLock().lock();
+        try
+        {
+            ended = true;
+            queue.drainTo(batch);
+        }
+        finally
+        {
+            endLock.writeLock().unlock();
+        }
+        write(batch);
+
+        jqmlogger.debug("End of run writer has ended after " + writtenCount + " job instances in " + batchCount + " batches");
+    }
+
+    private void write(List<Loader> batch)
+    {
+        if (batch.isEmpty())
+        {
+            return;
+        }
+
+        List<Object[]> histories = new ArrayList<Object[]>(batch.size());
+        List<Object[]> ids = new ArrayList<Object[]>(batch.size());
+        List<int[]> counters = new ArrayList<int[]>(batch.size());
+        List<Object[]> highlanders = new ArrayList<Object[]>();
+        for (Loader l : batch)
+        {
+            histories.add(l.getHistoryParameters());
+            ids.add(new Object[] { l.getId() });
+            counters.add(l.getRunningCounterKey());
+            if (l.isHighlander())
+            {
+                highlanders.add(new Object[] { l.getId() });
+            }
+        }
+
+        DbConn cnx = null;
+        try
+        {
+            cnx = Helpers.getNewDbSession();
+            cnx.runBatchUpdate("history_insert_with_end_date", histories);
+            if (!highlanders.isEmpty())
+            {
+                cnx.runBatchUpdate("hl_delete_by_ji", highlanders);
+            }
+            cnx.runBatchUpdate("ji_delete_by_id", ids);
+            RunningCounter.release(cnx, counters);
+            cnx.commit();
+
+            batchCount.incrementAndGet();
+            writtenCount.addAndGet(batch.size());
+            for (Loader l : batch)
+            {
+                l.resultsStored();
+            }
+            jqmlogger.trace("Results of {} job instances were stored in a single transaction", batch.size());
+        }
+        catch (RuntimeException e)
+        {
+            Helpers.closeQuietly(cnx);
+            cnx = null;
+            if (Helpers.testDbFailure(e))
+            {
+                jqmlogger.error("connection to database lost - " + batch.size() + " job instances will need delayed finalization");
+                jqmlogger.trace("connection error was:", e);
+                for (Loader l : batch)
+                {
+                    l.endOfRunDbDelayed();
+                }
+            }
+            else
+            {
+                // Do not let a single faulty job instance prevent the others from being stored.
+                jqmlogger.warn("Results of " + batch.size() + " job instances could not be stored at once - they will be stored one by one", e);
+                for (Loader l : batch)
+                {
+                    try
+                    {
+                        l.endOfRunDb();
+                    }
+                    catch (RuntimeException e2)
+                    {
+                        jqmlogger.error("Results of job instance " + l.getId() + " could not be stored", e2);
+                    }
+                }
+            }
+        }
+        finally
+        {
+            Helpers.closeQuietly(cnx);
+        }
+    }
+
+    long getBatchCount()
+    {
+        return batchCount.get();
+    }
+
+    long getWrittenCount()
+    {
+        return writtenCount.get();
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.tools;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.enioka.jqm.jdbc.DbConn;
+import com.enioka.jqm.jdbc.EnqueueListener;
+import com.enioka.jqm.model.GlobalParameter;
+
+/**
+ * Wakes up the queue pollers as soon as new job instances are enqueued, so that they do not have to wait for the end of their polling
+ * interval. The polling interval is only a safety net when this works. Two channels are used:
+ * <ul>
+ * <li>an in-JVM signal, for instances enqueued by a client running inside the engine JVM (including payloads)</li>
+ * <li>the database notification system when there is one (PostgreSQL LISTEN/NOTIFY)</li>
+ * </ul>
+ * Other databases are not polled for new instances: this would cost a query per node every period, and the queue pollers already poll
+ * them, ever faster while their queues are busy.
+ */
+class EnqueueWatcher implements Runnable, EnqueueListener
+{
+    private static Logger jqmlogger = LoggerFactory.getLogger(EnqueueWatcher.class);
+
+    private JqmEngine engine;
+    private int period;
+    private boolean run = true;
+    private Thread localThread = null;
+
+    EnqueueWatcher(JqmEngine engine, DbConn cnx)
+    {
+        this.engine = engine;
+        this.period = Integer.parseInt(GlobalParameter.getParameter(cnx, "enqueueWatchPeriodMs", "1000"));
+    }
+
+    @Override
+    public void onEnqueue(int queueId)
+    {
+        this.engine.wakeUpPollers(queueId);
+    }
+
+    void stop()
+    {
+        jqmlogger.debug("Enqueue watcher has received a stop request");
+        this.run = false;
+        if (this.localThread != null)
+        {
+            this.localThread.interrupt();
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        Thread.currentThread().setName("ENQUEUE_WATCHER;polling;");
+        this.localThread = Thread.currentThread();
+        if (this.period <= 0)
+        {
+            jqmlogger.info("Database enqueue watch is disabled - only in-JVM enqueues will wake up the queue pollers");
+            return;
+        }
+
+        DbConn cnx = null;
+        while (run)
+        {
+            try
+            {
+                if (cnx == null)
+                {
+                    cnx = Helpers.getNewDbSession();
+                    if (!cnx.listenEnqueueNotifications())
+                    {
+                        jqmlogger.debug("Database has no notification system - only in-JVM enqueues will wake up the queue pollers");
+                        break;
+                    }
+                    jqmlogger.debug("Listening to database enqueue notifications");
+                }
+
+                // Dedicated session - it is kept open.
+                for (int queueId : cnx.readEnqueueNotifications(period))
+                {
+                    this.engine.wakeUpPollers(queueId);
+                }
+            }
+            catch (RuntimeException e)
+            {
+                // Notifications are only a hint: on failure (usually the database being down), pollers simply wait for their interval.
+                if (Helpers.testDbFailure(e))
+                {
+                    jqmlogger.debug("Enqueue watcher has lost its database connection - will retry");
+                }
+                else
+                {
+                    jqmlogger.warn("Enqueue watcher has failed - will retry", e);
+                }
+                Helpers.closeQuietly(cnx);
+                cnx = null;
+                try
+                {
+                    Thread.sleep(period);
+                }
+                catch (InterruptedException e1)
+                {
+                    break;
+                }
+            }
+        }
+
+        Helpers.closeQuietly(cnx);
+        this.localThread = null;
+        jqmlogger.debug("Enqueue watcher has ended");
+    }
+}
@@ -71,6 +71,9 @@ final class Helpers
     // The one and only Database context in the engine.
     private static Db _db;
 
+    // Time (in microseconds) needed to get a session. Common to all the engines of the JVM, as the Db is.
+    static final JobMetrics.Histogram dbSessionAcquisition = new JobMetrics.Histogram();
+
     // Resource file contains at least the jqm jdbc connection definition. Static because JNDI root context is common to the whole JVM.
     static String resourceFile = "resources.xml";
 
@@ -87,7 +90,10 @@ final class Helpers
     static DbConn getNewDbSession()
     {
         getDb();
-        return _db.getConn();
+        long start = System.nanoTime();
+        DbConn res = _db.getConn();
+        dbSessionAcquisition.record((System.nanoTime() - start) / 1000);
+        return res;
     }
 
     static void setDb(Db db)
@@ -376,7 +382,17 @@ final class Helpers
         initSingleParam(Constants.GP_DEFAULT_CONNECTION_KEY, Constants.GP_JQM_CONNECTION_ALIAS, cnx);
         initSingleParam("logFilePerLaunch", "true", cnx);
         initSingleParam("internalPollingPeriodMs", "60000", cnx);
+        initSingleParam("enqueueWatchPeriodMs", "1000", cnx);
+        initSingleParam("instructionPeriodMs", "1000", cnx);
+        initSingleParam("messageFlushPeriodMs", "1000", cnx);
+        initSingleParam("disableJmxJobInstances", "false", cnx);
+        initSingleParam("pollingIntervalMinMs", "1000", cnx);
+        initSingleParam("prefetchLeaseMs", "60000", cnx);
+        initSingleParam("warmHeadStartSeconds", "2", cnx);
+        initSingleParam("endOfRunBatchSize", "50", cnx);
+        initSingleParam("endOfRunBatchDelayMs", "5", cnx);
         initSingleParam("disableWsApi", "false", cnx);
+        initSingleParam("disableWsApiMetrics", "false", cnx);
         initSingleParam("enableWsApiSsl", "false", cnx);
         initSingleParam("enableWsApiAuth", "true", cnx);
         initSingleParam("enableInternalPki", "true", cnx);
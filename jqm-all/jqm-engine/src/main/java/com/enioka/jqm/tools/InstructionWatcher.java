@@ -0,0 +1,253 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.tools;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.enioka.jqm.jdbc.DatabaseException;
+import com.enioka.jqm.jdbc.DbConn;
+import com.enioka.jqm.model.GlobalParameter;
+import com.enioka.jqm.model.Instruction;
+
+/**
+ * Reads the instructions (KILL, PAUSE, RUN) of all the job instances running on the node with a single query every
+ * <code>instructionPeriodMs</code>, and hands them over to the {@link JobManagerHandler} of each job instance. Payloads therefore
+ * never query the database to learn that nothing has changed.<br>
+ * Only instructions which are not RUN are read: a running job instance which is not inside the result has the RUN instruction. No query
+ * at all is done when nothing is running.<br>
+ * It also wakes up the payloads of the node waiting for job instances which have ended on other nodes (see {@link JobEndWaiters}), with at
+ * most two queries whatever the count of waiting payloads.
+ */
+class InstructionWatcher implements Runnable
+{
+    private static Logger jqmlogger = LoggerFactory.getLogger(InstructionWatcher.class);
+
+    private final int nodeId;
+    private final int period;
+    private final ConcurrentMap<Integer, JobManagerHandler> handlers = new ConcurrentHashMap<Integer, JobManagerHandler>();
+    private final Semaphore loop = new Semaphore(0);
+    private volatile boolean run = true;
+    private volatile Thread localThread = null;
+
+    InstructionWatcher(JqmEngine engine, DbConn cnx)
+    {
+        this.nodeId = engine.getNode().getId();
+        this.period = Math.max(10, Integer.parseInt(GlobalParameter.getParameter(cnx, "instructionPeriodMs", "1000")));
+    }
+
+    /**
+     * The job instance will receive its instructions from now on. Its handler starts with the instruction read when it was claimed.
+     */
+    void register(int jobInstanceId, JobManagerHandler handler)
+    {
+        handlers.put(jobInstanceId, handler);
+    }
+
+    void unregister(int jobInstanceId)
+    {
+        handlers.remove(jobInstanceId);
+    }
+
+    /**
+     * Reads the instructions right now instead of waiting for the end of the period.
+     */
+    void forceLoop()
+    {
+        this.loop.release(1);
+    }
+
+    void start()
+    {
+        Thread t = new Thread(this);
+        this.localThread = t;
+        t.start();
+    }
+
+    void stop()
+    {
+        jqmlogger.debug("Instruction watcher has received a stop request");
+        this.run = false;
+        Thread t = this.localThread;
+        if (t != null)
+        {
+            t.interrupt();
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        Thread.currentThread().setName("INSTRUCTION_WATCHER;polling;");
+        jqmlogger.debug("Instruction watcher has started - period is " + period + "ms");
+
+        while (run)
+        {
+            try
+            {
+                loop.tryAcquire(period, TimeUnit.MILLISECONDS);
+                loop.drainPermits();
+            }
+            catch (InterruptedException e)
+            {
+                break;
+            }
+            if (!run)
+            {
+                break;
+            }
+            if (handlers.isEmpty())
+            {
+                continue;
+            }
+
+            DbConn cnx = null;
+            try
+            {
+                cnx = Helpers.getNewDbSession();
+                dispatch(readInstructions(cnx));
+                checkWaits(cnx);
+            }
+            catch (RuntimeException e)
+            {
+                // Job instances simply keep their latest instruction until the database is back.
+                if (Helpers.testDbFailure(e))
+                {
+                    jqmlogger.debug("Instruction watcher has lost its database connection - will retry");
+                }
+                else
+                {
+                    jqmlogger.warn("Instruction watcher has failed - will retry", e);
+                }
+            }
+            finally
+            {
+                Helpers.closeQuietly(cnx);
+            }
+        }
+
+        this.localThread = null;
+        jqmlogger.debug("Instruction watcher has ended");
+    }
+
+    private Map<Integer, Instruction> readInstructions(DbConn cnx)
+    {
+        Map<Integer, Instruction> res = new HashMap<Integer, Instruction>();
+        ResultSet rs = cnx.runSelect("ji_select_instructions_for_node", nodeId);
+        try
+        {
+            while (rs.next())
+            {
+                res.put(rs.getInt(1), Instruction.valueOf(rs.getString(2)));
+            }
+        }
+        catch (SQLException e)
+        {
+            throw new DatabaseException(e);
+        }
+        finally
+        {
+            cnx.closeQuietly(rs);
+        }
+        return res;
+    }
+
+    private void checkWaits(DbConn cnx)
+    {
+        List<JobEndWaiters.Wait> waits = JobEndWaiters.getWaits(this);
+        if (waits.isEmpty())
+        {
+            return;
+        }
+
+        List<Integer> jobInstances = new ArrayList<Integer>();
+        List<Integer> parents = new ArrayList<Integer>();
+        for (JobEndWaiters.Wait w : waits)
+        {
+            if (w.children)
+            {
+                parents.add(w.id);
+            }
+            else
+            {
+                jobInstances.add(w.id);
+            }
+        }
+        Set<Integer> stillThere = new HashSet<Integer>();
+        if (!jobInstances.isEmpty())
+        {
+            stillThere.addAll(selectIds(cnx, "ji_select_id_by_id_list", jobInstances));
+        }
+        Set<Integer> stillParents = new HashSet<Integer>();
+        if (!parents.isEmpty())
+        {
+            stillParents.addAll(selectIds(cnx, "ji_select_parent_by_parent_list", parents));
+        }
+
+        for (JobEndWaiters.Wait w : waits)
+        {
+            boolean ended = w.children ? !stillParents.contains(w.id) : !stillThere.contains(w.id);
+            if (ended)
+            {
+                w.handler.wake();
+            }
+        }
+    }
+
+    private List<Integer> selectIds(DbConn cnx, String queryKey, List<Integer> ids)
+    {
+        List<Integer> res = new ArrayList<Integer>();
+        ResultSet rs = cnx.runSelect(queryKey, ids);
+        try
+        {
+            while (rs.next())
+            {
+                res.add(rs.getInt(1));
+            }
+        }
+        catch (SQLException e)
+        {
+            throw new DatabaseException(e);
+        }
+        finally
+        {
+            cnx.closeQuietly(rs);
+        }
+        return res;
+    }
+
+    private void dispatch(Map<Integer, Instruction> instructions)
+    {
+        for (Map.Entry<Integer, JobManagerHandler> e : handlers.entrySet())
+        {
+            Instruction i = instructions.get(e.getKey());
+            e.getValue().setInstruction(i == null ? Instruction.RUN : i);
+        }
+    }
+}
@@ -15,7 +15,14 @@
  */
 package com.enioka.jqm.tools;
 
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
@@ -24,25 +31,42 @@ import javax.naming.spi.NamingManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.enioka.jqm.jdbc.DatabaseException;
 import com.enioka.jqm.jdbc.DbConn;
 import com.enioka.jqm.jdbc.NoResultException;
 import com.enioka.jqm.model.GlobalParameter;
 import com.enioka.jqm.model.Node;
+import com.enioka.jqm.model.RunningCounter;
 
 /**
  * The internal poller is responsible for doing all the repetitive tasks of an engine (excluding polling queues). Namely: check if
  * {@link Node#isStop()} has become true (stop order) and update {@link Node#setLastSeenAlive(java.util.Calendar)} to make visible to the
- * whole cluster that the engine is still alive and that no other engine should start with the same node name.
+ * whole cluster that the engine is still alive and that no other engine should start with the same node name.<br>
+ * It also checks the configuration version (incremented by each transaction modifying the configuration, including the node and its
+ * deployment parameters) and only when it has changed reloads the configuration and pushes the new parameters to the
+ * {@link QueuePoller}s.<br>
+ * Finally, it publishes the job definitions which have become warm on the node (see {@link ClassloaderManager}), so that the claims of
+ * other nodes leave their new instances to this node for a short while, and cleans up after the nodes which are not alive anymore (warm
+ * job definitions, instances they had claimed but not started).
  */
 class InternalPoller implements Runnable
 {
     private static Logger jqmlogger = LoggerFactory.getLogger(InternalPoller.class);
+
+    /**
+     * A node which has not updated its last seen alive date for this count of polling periods is considered dead.
+     */
+    private static final int DEAD_NODE_POLLING_PERIODS = 3;
+
     private boolean run = true;
     private JqmEngine engine = null;
     private Thread localThread = null;
     private long step;
     private Node node = null;
     private Semaphore loop = new Semaphore(0);
+    private String configVersion = null;
+    private volatile boolean forceRefresh = false;
+    private Set<Integer> publishedWarmJobDefs = null;
 
     InternalPoller(JqmEngine e)
     {
@@ -51,7 +75,7 @@ class InternalPoller implements Runnable
 
         // Get configuration data
         this.node = this.engine.getNode();
-        this.step = Long.parseLong(GlobalParameter.getParameter(cnx, "internalPollingPeriodMs", "60000"));
+        this.step = GlobalParameter.getParameter(cnx, "internalPollingPeriodMs", 60000L);
         cnx.close();
     }
 
@@ -70,8 +94,12 @@ class InternalPoller implements Runnable
         }
     }
 
+    /**
+     * Makes the poller loop at once, reloading the configuration even if it has not changed.
+     */
     void forceLoop()
     {
+        this.forceRefresh = true;
         this.loop.release(1);
     }
 
@@ -105,16 +133,42 @@ class InternalPoller implements Runnable
                 // Get session
                 cnx = Helpers.getNewDbSession();
 
-                // Check if stop order
+                // Check if stop order, and if configuration has changed - in a single cheap query.
+                String version = null;
+                boolean stop = true;
+                ResultSet rs = cnx.runSelect("node_select_config_version", node.getId());
                 try
                 {
-                    node = Node.select_single(cnx, "node_select_by_id", node.getId());
+                    if (rs.next())
+                    {
+                        stop = rs.getBoolean(1);
+                        version = String.valueOf(rs.getInt(2));
+                    }
                 }
-                catch (NoResultException e)
+                catch (SQLException e)
                 {
-                    node = null;
+                    throw new DatabaseException(e);
                 }
-                if (node == null || node.isStop())
+                finally
+                {
+                    cnx.closeQuietly(rs);
+                }
+                boolean changed = !stop && (forceRefresh || !version.equals(configVersion));
+                if (changed)
+                {
+                    // Configuration is only reloaded when it has changed, and then pushed to the pollers.
+                    forceRefresh = false;
+                    jqmlogger.debug("Node configuration has changed - reloading it");
+                    try
+                    {
+                        node = Node.select_single(cnx, "node_select_by_id", node.getId());
+                    }
+                    catch (NoResultException e)
+                    {
+                        stop = true;
+                    }
+                }
+                if (stop)
                 {
                     jqmlogger.info("Node has received a stop order from the database or was removed from the database");
                     jqmlogger.trace(
@@ -124,18 +178,32 @@ class InternalPoller implements Runnable
                     break;
                 }
 
-                // Engine handler is allowed to do changes on configuration changes.
-                if (this.engine.getHandler() != null)
-                {
-                    this.engine.getHandler().onConfigurationChanged(node);
-                }
-
                 // I am alive
                 cnx.runUpdate("node_update_alive_by_id", node.getId());
                 cnx.commit();
 
-                // Have queue bindings changed, or is engine disabled?
-                this.engine.syncPollers(cnx, node);
+                // Have global parameters or metadata (job definitions, queues...) been modified by another process?
+                cnx.refreshCaches();
+
+                // Let the other nodes know which job definitions can start faster here, and forget the ones of dead nodes.
+                publishWarmJobDefs(cnx);
+                purgeDeadWarmJobDefs(cnx);
+
+                // Dead nodes will never start or give back what they had prefetched.
+                releaseDeadNodesPrefetched(cnx);
+
+                if (changed)
+                {
+                    // Engine handler is allowed to do changes on configuration changes.
+                    if (this.engine.getHandler() != null)
+                    {
+                        this.engine.getHandler().onConfigurationChanged(node);
+                    }
+
+                    // Have queue bindings or their parameters changed, or is engine disabled?
+                    this.engine.syncPollers(cnx, node);
+                    configVersion = version;
+                }
 
                 // Should JNDI cache be purged?
                 Calendar bflkpm = Calendar.getInstance();
@@ -179,4 +247,115 @@ class InternalPoller implements Runnable
 
         jqmlogger.info("End of the internal poller");
     }
+
+    /**
+     * How long a node may not update its last seen alive date before being considered dead.
+     */
+    private int getDeadNodeSeconds()
+    {
+        return (int) Math.max(1, this.step * DEAD_NODE_POLLING_PERIODS / 1000);
+    }
+
+    /**
+     * Removes the warm job definitions of the nodes which have not been seen alive for {@link #DEAD_NODE_POLLING_PERIODS} internal polling
+     * periods. Nodes remove their own when they stop, but a crashed node would otherwise keep a head start on its job definitions forever.
+     */
+    private void purgeDeadWarmJobDefs(DbConn cnx)
+    {
+        int purged = cnx.runUpdate("warm_delete_for_dead_nodes", getDeadNodeSeconds()).nbUpdated;
+        cnx.commit();
+        if (purged > 0)
+        {
+            jqmlogger.info("{} warm job definition(s) of nodes which are not alive anymore were removed", purged);
+        }
+    }
+
+    /**
+     * Gives back to their queue the job instances attributed to dead nodes (see {@link #purgeDeadWarmJobDefs(DbConn)}) for longer than the
+     * prefetch lease. A live node gives back its own prefetched instances when their lease ends, and a node gives back all of them when it
+     * restarts, but a node which never restarts would otherwise keep them forever.<br>
+     * One transaction per instance, as the nodes all do this concurrently: only the node which actually changes the instance state frees
+     * its running counters and highlander lock.
+     */
+    private void releaseDeadNodesPrefetched(DbConn cnx)
+    {
+        int leaseSeconds = (int) Math.max(1, GlobalParameter.getParameter(cnx, "prefetchLeaseMs", 60000L) / 1000);
+        List<int[]> expired = new ArrayList<int[]>();
+        ResultSet rs = cnx.runSelect("ji_select_attributed_on_dead_nodes", leaseSeconds, getDeadNodeSeconds());
+        try
+        {
+            while (rs.next())
+            {
+                expired.add(new int[] { rs.getInt(1), rs.getInt(2), rs.getInt(3), rs.getInt(4) });
+            }
+        }
+        catch (SQLException e)
+        {
+            throw new DatabaseException(e);
+        }
+        finally
+        {
+            cnx.closeQuietly(rs);
+        }
+
+        for (int[] ji : expired)
+        {
+            if (cnx.runUpdate("ji_update_release_by_id_list", ji[3], Collections.singletonList(ji[0])).nbUpdated == 0)
+            {
+                // Given back meanwhile by another node.
+                cnx.rollback();
+                continue;
+            }
+            RunningCounter.release(cnx, Collections.singletonList(new int[] { ji[1], ji[2] }));
+            cnx.runUpdate("hl_delete_by_ji", ji[0]);
+            cnx.notifyEnqueue(ji[2]);
+            cnx.commit();
+            jqmlogger.info("Job instance {} was attributed to node {} which is not alive anymore - it was given back to its queue", ji[0],
+                    ji[3]);
+        }
+    }
+
+    /**
+     * Inserts the job definitions which have become warm since the previous call. The engine removes them all when it starts or stops.
+     */
+    private void publishWarmJobDefs(DbConn cnx)
+    {
+        if (publishedWarmJobDefs == null)
+        {
+            // This poller may replace one stopped by a database failure.
+            publishedWarmJobDefs = new HashSet<Integer>();
+            ResultSet rs = cnx.runSelect("warm_select_jd_for_node", node.getId());
+            try
+            {
+                while (rs.next())
+                {
+                    publishedWarmJobDefs.add(rs.getInt(1));
+                }
+            }
+            catch (SQLException e)
+            {
+                throw new DatabaseException(e);
+            }
+            finally
+            {
+                cnx.closeQuietly(rs);
+            }
+        }
+
+        Set<Integer> warm = this.engine.getClassloaderManager().getWarmJobDefs();
+        warm.removeAll(publishedWarmJobDefs);
+        if (warm.isEmpty())
+        {
+            return;
+        }
+        List<Object[]> prms = new ArrayList<Object[]>(warm.size());
+        for (Integer jdId : warm)
+        {
+            prms.add(new Object[] { node.getId(), jdId });
+        }
+        cnx.runBatchUpdate("warm_insert", prms);
+        cnx.commit();
+        publishedWarmJobDefs.addAll(warm);
+        jqmlogger.debug("{} job definition(s) are now warm on this node", warm.size());
+    }
 }
@@ -35,6 +35,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.enioka.jqm.model.ClHandler;
+import com.enioka.jqm.model.JobDef;
 import com.enioka.jqm.model.JobInstance;
 
 /**
@@ -58,6 +59,9 @@ class JarClassLoader extends URLClassLoader
 
     private boolean mayBeShared = false;
 
+    // Payload class and runner resolved in advance by a warm pool (see #prepare). Used by the next launch only.
+    private ResolvedPayload prepared = null;
+
     JarClassLoader(ClassLoader parent)
     {
         super(new URL[0], parent);
@@ -108,34 +112,131 @@ class JarClassLoader extends URLClassLoader
         Map<String, String> metaprms = new HashMap<String, String>();
         metaprms.put("mayBeShared", "" + this.mayBeShared);
 
-        // 3 - Load the target class inside the context class loader
+        // 3 - Load the target class inside the context class loader and determine which job runner should take the job (unless a warm
+        // pool has already done it)
         String classQualifiedName = job.getJD().getJavaClassName();
-        jqmlogger.debug("Will now load class: " + classQualifiedName);
+        ResolvedPayload payload = takePrepared(classQualifiedName);
+        if (payload == null)
+        {
+            jqmlogger.debug("Will now load class: " + classQualifiedName);
+            Class c = null;
+            try
+            {
+                // using payload CL, i.e. this very object
+                c = loadClass(classQualifiedName);
+            }
+            catch (Exception e)
+            {
+                throw new JqmEngineException("could not load class " + classQualifiedName, e);
+            }
+            jqmlogger.trace("Class " + classQualifiedName + " was correctly loaded");
+            payload = resolveRunner(c, job.getJD(), clm);
+        }
+        Class c = payload.payloadClass;
+
+        // 4 - We are ready to actually run the job instance. Time for all event handlers.
+        if (job.getJD().getClassLoader() != null)
+        {
+            for (ClHandler handler : job.getJD().getClassLoader().getHandlers())
+            {
+                String handlerClass = handler.getClassName();
+                Map<String, String> handlerPrms = new HashMap<String, String>();
+                for (Map.Entry<String, String> hprm : handler.getParameters().entrySet())
+                {
+                    handlerPrms.put(hprm.getKey(), hprm.getValue());
+                }
+
+                try
+                {
+                    Method handlerRun = loadClass(handlerClass).getMethod("run", Class.class, injInt, Map.class);
+                    Object handlerInstance = loadClass(handlerClass).newInstance();
+                    handlerRun.invoke(handlerInstance, c, proxy, handlerPrms);
+                }
+                catch (Exception e)
+                {
+                    throw new JqmEngineException("event handler could not be loaded or run: " + handlerClass, e);
+                }
+            }
+        }
+
+        // Go for real.
+        try
+        {
+            payload.run.invoke(payload.runner, c, metaprms, parameters, proxy);
+        }
+        catch (InvocationTargetException e)
+        {
+            if (e.getCause() instanceof RuntimeException)
+            {
+                // it may be a Kill order, or whatever exception...
+                throw (RuntimeException) e.getCause();
+            }
+            else
+            {
+                throw new JqmEngineException("Payload has failed", e);
+            }
+        }
+        catch (Exception e)
+        {
+            throw new JqmEngineException("Could not launch a job instance (engine issue, not a payload issue", e);
+        }
+    }
 
+    /**
+     * Loads and initialises (static initialisers are run) the payload class of the given job definition, and resolves its runner, so
+     * that {@link #launchJar(JobInstance, Map, ClassloaderManager, JobManagerHandler)} only has to run it. Used by warm pools, in the
+     * background. The class loader must not be used by anything else meanwhile.
+     */
+    void prepare(JobDef jd, ClassloaderManager clm) throws JqmEngineException
+    {
         Class c = null;
+        ClassLoader previous = Thread.currentThread().getContextClassLoader();
+        Thread.currentThread().setContextClassLoader(this);
         try
         {
-            // using payload CL, i.e. this very object
-            c = loadClass(classQualifiedName);
+            c = Class.forName(jd.getJavaClassName(), true, this);
         }
         catch (Exception e)
         {
-            throw new JqmEngineException("could not load class " + classQualifiedName, e);
+            throw new JqmEngineException("could not load class " + jd.getJavaClassName(), e);
+        }
+        catch (LinkageError e)
+        {
+            throw new JqmEngineException("could not initialise class " + jd.getJavaClassName(), e);
+        }
+        finally
+        {
+            Thread.currentThread().setContextClassLoader(previous);
+        }
+        ResolvedPayload payload = resolveRunner(c, jd, clm);
+        synchronized (this)
+        {
+            this.prepared = payload;
         }
-        jqmlogger.trace("Class " + classQualifiedName + " was correctly loaded");
+    }
 
-        // 4 - Determine which job runner should take the job and launch!
+    private synchronized ResolvedPayload takePrepared(String classQualifiedName)
+    {
+        ResolvedPayload res = this.prepared;
+        this.prepared = null;
+        return res != null && res.payloadClass.getName().equals(classQualifiedName) ? res : null;
+    }
+
+    /**
+     * Finds the first allowed runner which can run the payload class, and its run method.
+     */
+    private ResolvedPayload resolveRunner(Class c, JobDef jd, ClassloaderManager clm) throws JqmEngineException
+    {
         List<String> allowedRunners = clm.getJobRunnerClasses();
-        if (job.getJD().getClassLoader() != null && job.getJD().getClassLoader().getAllowedRunners() != null
-                && !job.getJD().getClassLoader().getAllowedRunners().isEmpty())
+        if (jd.getClassLoader() != null && jd.getClassLoader().getAllowedRunners() != null
+                && !jd.getClassLoader().getAllowedRunners().isEmpty())
         {
-            allowedRunners = Arrays.asList(job.getJD().getClassLoader().getAllowedRunners().split(","));
+            allowedRunners = Arrays.asList(jd.getClassLoader().getAllowedRunners().split(","));
         }
         for (String runnerClassName : allowedRunners)
         {
             Boolean canRun = false;
             Class runnerClass = null;
-            Method run;
             Object runner;
             try
             {
@@ -173,63 +274,18 @@ class JarClassLoader extends URLClassLoader
             if (canRun)
             {
                 jqmlogger.trace("Payload is of type: " + runnerClassName);
-
+                ResolvedPayload res = new ResolvedPayload();
+                res.payloadClass = c;
+                res.runner = runner;
                 try
                 {
-                    run = runnerClass.getMethod("run", Class.class, Map.class, Map.class, Object.class);
+                    res.run = runnerClass.getMethod("run", Class.class, Map.class, Map.class, Object.class);
                 }
                 catch (Exception e)
                 {
                     throw new JqmEngineException("could not find run method for runner plugin " + runnerClassName, e);
                 }
-
-                // We are ready to actually run the job instance. Time for all event handlers.
-                if (job.getJD().getClassLoader() != null)
-                {
-                    for (ClHandler handler : job.getJD().getClassLoader().getHandlers())
-                    {
-                        String handlerClass = handler.getClassName();
-                        Map<String, String> handlerPrms = new HashMap<String, String>();
-                        for (Map.Entry<String, String> hprm : handler.getParameters().entrySet())
-                        {
-                            handlerPrms.put(hprm.getKey(), hprm.getValue());
-                        }
-
-                        try
-                        {
-                            Method handlerRun = loadClass(handlerClass).getMethod("run", Class.class, injInt, Map.class);
-                            Object handlerInstance = loadClass(handlerClass).newInstance();
-                            handlerRun.invoke(handlerInstance, c, proxy, handlerPrms);
-                        }
-                        catch (Exception e)
-                        {
-                            throw new JqmEngineException("event handler could not be loaded or run: " + handlerClass, e);
-                        }
-                    }
-                }
-
-                // Go for real.
-                try
-                {
-                    run.invoke(runner, c, metaprms, parameters, proxy);
-                    return;
-                }
-                catch (InvocationTargetException e)
-                {
-                    if (e.getCause() instanceof RuntimeException)
-                    {
-                        // it may be a Kill order, or whatever exception...
-                        throw (RuntimeException) e.getCause();
-                    }
-                    else
-                    {
-                        throw new JqmEngineException("Payload has failed", e);
-                    }
-                }
-                catch (Exception e)
-                {
-                    throw new JqmEngineException("Could not launch a job instance (engine issue, not a payload issue", e);
-                }
+                return res;
             }
         }
 
@@ -370,4 +426,11 @@ class JarClassLoader extends URLClassLoader
     {
         this.mayBeShared = val;
     }
+
+    private static class ResolvedPayload
+    {
+        private Class payloadClass;
+        private Object runner;
+        private Method run;
+    }
 }
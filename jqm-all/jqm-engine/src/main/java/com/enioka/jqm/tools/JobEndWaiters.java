@@ -0,0 +1,108 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.tools;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * The payloads currently waiting for the end of a job instance (<code>JobManager.waitChild</code>) or of all the children of a job
+ * instance (<code>JobManager.waitChildren</code>). They are woken up:
+ * <ul>
+ * <li>at once when the awaited job instance has ended inside this JVM and its results are stored (see {@link Loader})</li>
+ * <li>by the {@link InstructionWatcher} of their node, which checks with a single query if the job instances awaited by all the waiting
+ * payloads of the node have ended elsewhere</li>
+ * </ul>
+ * Waking up only means the payload should check again - it never means the job instance has actually ended.
+ */
+final class JobEndWaiters
+{
+    private static final Set<Wait> waits = new CopyOnWriteArraySet<Wait>();
+
+    private JobEndWaiters()
+    {
+
+    }
+
+    /**
+     * One payload waiting for one job instance (or for all the children of one job instance).
+     */
+    static final class Wait
+    {
+        final int id;
+        final boolean children;
+        final JobManagerHandler handler;
+        final InstructionWatcher watcher;
+
+        private Wait(int id, boolean children, JobManagerHandler handler, InstructionWatcher watcher)
+        {
+            this.id = id;
+            this.children = children;
+            this.handler = handler;
+            this.watcher = watcher;
+        }
+    }
+
+    /**
+     * @param children
+     *            if true, wait for the end of all the children of the given job instance. Otherwise, wait for the job instance itself.
+     * @param watcher
+     *            the instruction watcher of the node of the waiting payload, if any.
+     */
+    static Wait register(int id, boolean children, JobManagerHandler handler, InstructionWatcher watcher)
+    {
+        Wait w = new Wait(id, children, handler, watcher);
+        waits.add(w);
+        return w;
+    }
+
+    static void unregister(Wait w)
+    {
+        waits.remove(w);
+    }
+
+    /**
+     * The results of a job instance were just stored inside the database.
+     */
+    static void jobEnded(int id, Integer parentId)
+    {
+        for (Wait w : waits)
+        {
+            if ((!w.children && w.id == id) || (w.children && parentId != null && w.id == parentId))
+            {
+                w.handler.wake();
+            }
+        }
+    }
+
+    /**
+     * The waits of the payloads running on the node of the given watcher.
+     */
+    static List<Wait> getWaits(InstructionWatcher watcher)
+    {
+        List<Wait> res = new ArrayList<Wait>();
+        for (Wait w : waits)
+        {
+            if (w.watcher == watcher)
+            {
+                res.add(w);
+            }
+        }
+        return res;
+    }
+}
@@ -22,6 +22,10 @@ import java.lang.reflect.Method;
 import java.util.Calendar;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.naming.NamingException;
 import javax.naming.spi.NamingManager;
@@ -35,7 +39,6 @@ import org.slf4j.LoggerFactory;
 import com.enioka.jqm.api.JobRequest;
 import com.enioka.jqm.api.JqmClient;
 import com.enioka.jqm.api.JqmClientFactory;
-import com.enioka.jqm.api.Query;
 import com.enioka.jqm.jdbc.DbConn;
 import com.enioka.jqm.jdbc.NoResultException;
 import com.enioka.jqm.model.GlobalParameter;
@@ -51,14 +54,95 @@ class JobManagerHandler implements InvocationHandler
 {
     private static Logger jqmlogger = LoggerFactory.getLogger(JobManagerHandler.class);
 
+    // Waiting for children only relies on wake ups (in-JVM or node watcher). This is only a safety net.
+    private static final long WAIT_SAFETY_NET_MS = 60000;
+
     private JobInstance ji;
     private Map<String, String> params = null;
     private Calendar lastPeek = null;
 
-    JobManagerHandler(JobInstance ji, Map<String, String> prms)
+    // Instructions pushed by the node instruction watcher (if any - otherwise the handler reads them itself).
+    private final InstructionWatcher watcher;
+    // Progress and messages are buffered by the node (if any - otherwise the handler writes them itself).
+    private final ProgressMessageWriter messageWriter;
+    private volatile Instruction instruction = Instruction.RUN;
+    private final Lock instructionLock = new ReentrantLock();
+    private final Condition instructionChanged = instructionLock.newCondition();
+    private boolean woken = false;
+
+    /**
+     * @param engine
+     *            the engine running the job instance. Null when there is no engine (single runner).
+     */
+    JobManagerHandler(JobInstance ji, Map<String, String> prms, JqmEngine engine)
     {
         this.ji = ji;
         params = prms;
+        this.watcher = engine == null ? null : engine.getInstructionWatcher();
+        this.messageWriter = engine == null ? null : engine.getProgressMessageWriter();
+        if (watcher != null && ji.getInstruction() != null)
+        {
+            // Instruction as read when the job instance was claimed - the watcher takes over from there.
+            this.instruction = ji.getInstruction();
+        }
+    }
+
+    /**
+     * Called by the {@link InstructionWatcher} with the current instruction of the job instance. Wakes up the payload if it is paused.
+     */
+    void setInstruction(Instruction i)
+    {
+        if (i == this.instruction)
+        {
+            return;
+        }
+        instructionLock.lock();
+        try
+        {
+            this.instruction = i;
+            instructionChanged.signalAll();
+        }
+        finally
+        {
+            instructionLock.unlock();
+        }
+    }
+
+    /**
+     * Called by {@link JobEndWaiters} when a job instance awaited by this payload may have ended.
+     */
+    void wake()
+    {
+        instructionLock.lock();
+        try
+        {
+            woken = true;
+            instructionChanged.signalAll();
+        }
+        finally
+        {
+            instructionLock.unlock();
+        }
+    }
+
+    /**
+     * Waits until {@link #wake()} is called, the instruction is not RUN anymore or the given time has elapsed.
+     */
+    private void awaitWakeUp(long maxMs) throws InterruptedException
+    {
+        instructionLock.lock();
+        try
+        {
+            if (!woken && this.instruction.equals(Instruction.RUN))
+            {
+                instructionChanged.await(maxMs, TimeUnit.MILLISECONDS);
+            }
+            woken = false;
+        }
+        finally
+        {
+            instructionLock.unlock();
+        }
     }
 
     private JqmClient getJqmClient()
@@ -220,6 +304,12 @@ class JobManagerHandler implements InvocationHandler
 
     private void handleInstructions()
     {
+        if (watcher != null)
+        {
+            handleWatchedInstructions();
+            return;
+        }
+
         // Throttle: only peek once every 1 second.
         if (lastPeek != null && Calendar.getInstance().getTimeInMillis() - lastPeek.getTimeInMillis() < 1000L)
         {
@@ -245,6 +335,9 @@ class JobManagerHandler implements InvocationHandler
 
                 while (s.equals(Instruction.PAUSE))
                 {
+                    // Do not keep a connection during the pause: there may be many paused payloads (e.g. on virtual threads).
+                    Helpers.closeQuietly(cnx);
+                    cnx = null;
                     try
                     {
                         Thread.sleep(1000);
@@ -253,6 +346,7 @@ class JobManagerHandler implements InvocationHandler
                     {
                         throw new RuntimeException("job thread was interrupted");
                     }
+                    cnx = Helpers.getNewDbSession();
                     s = Instruction.valueOf(cnx.runSelectSingle("ji_select_instruction_by_id", String.class, ji.getId()));
                 }
                 jqmlogger.info("Job instance is resuming");
@@ -266,6 +360,50 @@ class JobManagerHandler implements InvocationHandler
         }
     }
 
+    /**
+     * Same as {@link #handleInstructions()}, but using the instruction pushed by the node watcher: no database access unless something has
+     * to be done. A paused payload waits until the watcher sees another instruction.
+     */
+    private void handleWatchedInstructions()
+    {
+        Instruction s = this.instruction;
+        if (s.equals(Instruction.PAUSE))
+        {
+            jqmlogger.info("Job will be paused at the request of a user");
+            sendMsg("Pause is beginning");
+
+            instructionLock.lock();
+            try
+            {
+                while (this.instruction.equals(Instruction.PAUSE))
+                {
+                    instructionChanged.await();
+                }
+            }
+            catch (InterruptedException e)
+            {
+                throw new RuntimeException("job thread was interrupted");
+            }
+            finally
+            {
+                instructionLock.unlock();
+            }
+            s = this.instruction;
+            if (s.equals(Instruction.RUN))
+            {
+                jqmlogger.info("Job instance is resuming");
+                sendMsg("Job instance is resuming");
+            }
+        }
+
+        if (s.equals(Instruction.KILL))
+        {
+            jqmlogger.info("Job will be killed at the request of a user");
+            Thread.currentThread().interrupt();
+            throw new JqmKillException("This job" + "(ID: " + ji.getId() + ")" + " has been killed by a user");
+        }
+    }
+
     /**
      * Create a {@link com.enioka.jqm.model.Message} with the given message. The {@link com.enioka.jqm.model.History} to link to is deduced
      * from the context.
@@ -275,6 +413,10 @@ class JobManagerHandler implements InvocationHandler
      */
     private void sendMsg(String msg)
     {
+        if (messageWriter != null && messageWriter.sendMsg(ji.getId(), msg))
+        {
+            return;
+        }
         DbConn cnx = Helpers.getNewDbSession();
 
         try
@@ -296,6 +438,11 @@ class JobManagerHandler implements InvocationHandler
      */
     private void sendProgress(Integer msg)
     {
+        if (messageWriter != null && messageWriter.sendProgress(ji.getId(), msg))
+        {
+            this.ji.setProgress(msg); // Not persisted, but useful to the Loader.
+            return;
+        }
         DbConn cnx = Helpers.getNewDbSession();
         try
         {
@@ -341,41 +488,43 @@ class JobManagerHandler implements InvocationHandler
 
     private void waitChild(int id)
     {
-        JqmClient c = getJqmClient();
-        Query q = Query.create().setQueryHistoryInstances(false).setQueryLiveInstances(true).setJobInstanceId(id);
-
-        while (!c.getJobs(q).isEmpty())
+        JobEndWaiters.Wait w = JobEndWaiters.register(id, false, this, watcher);
+        try
         {
-            try
+            while (!hasEnded(id))
             {
-                Thread.sleep(1000);
+                awaitWakeUp(watcher == null ? 1000 : WAIT_SAFETY_NET_MS);
                 handleInstructions();
             }
-            catch (InterruptedException e)
-            {
-                Thread.currentThread().interrupt();
-                break;
-            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            JobEndWaiters.unregister(w);
         }
     }
 
     private void waitChildren()
     {
-        JqmClient c = getJqmClient();
-        Query q = Query.create().setQueryHistoryInstances(false).setQueryLiveInstances(true).setParentId(ji.getId());
-
-        while (!c.getJobs(q).isEmpty())
+        JobEndWaiters.Wait w = JobEndWaiters.register(ji.getId(), true, this, watcher);
+        try
         {
-            try
+            while (hasChildren(ji.getId()))
             {
-                Thread.sleep(1000);
+                awaitWakeUp(watcher == null ? 1000 : WAIT_SAFETY_NET_MS);
                 handleInstructions();
             }
-            catch (InterruptedException e)
-            {
-                Thread.currentThread().interrupt();
-                break;
-            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            JobEndWaiters.unregister(w);
         }
     }
 
@@ -457,6 +606,19 @@ class JobManagerHandler implements InvocationHandler
         }
     }
 
+    private boolean hasChildren(int parentId)
+    {
+        DbConn cnx = Helpers.getNewDbSession();
+        try
+        {
+            return cnx.runSelectSingle("ji_select_count_by_parent", Integer.class, parentId) > 0;
+        }
+        finally
+        {
+            Helpers.closeQuietly(cnx);
+        }
+    }
+
     private Boolean hasSucceeded(int requestId)
     {
         DbConn cnx = Helpers.getNewDbSession();
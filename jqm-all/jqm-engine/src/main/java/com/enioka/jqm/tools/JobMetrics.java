@@ -0,0 +1,336 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.tools;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.enioka.jqm.model.State;
+
+/**
+ * In-memory execution metrics of a poller (or of a whole engine), so that monitoring never needs the database. Everything is lock-free:
+ * values are recorded by the payload threads themselves.<br>
+ * Throughput is computed on sliding windows of 1, 5 and 15 minutes. Durations (time waited inside the queue, run time, time between the
+ * end of the run and the storage of its results) are kept in histograms over the last five minutes.<br>
+ * Values may be very slightly off when a recording happens at the exact moment a time slice is recycled - this is accepted as the price of
+ * not taking any lock.
+ */
+class JobMetrics
+{
+    private final JobMetrics parent;
+
+    private final AtomicLong endedCount = new AtomicLong(0);
+    private final ConcurrentMap<State, AtomicLong> endedByState = new ConcurrentHashMap<State, AtomicLong>();
+    private final Counter ended = new Counter(15 * 60);
+    private final Histogram queueWait = new Histogram();
+    private final Histogram runTime = new Histogram();
+    private final Histogram endOfRunLatency = new Histogram();
+
+    /**
+     * @param parent
+     *            if not null, all values are also recorded inside these metrics (engine-wide metrics).
+     */
+    JobMetrics(JobMetrics parent)
+    {
+        this.parent = parent;
+    }
+
+    /**
+     * A job instance is starting after waiting for the given time since its creation.
+     */
+    void jobStarted(long queueWaitMs)
+    {
+        queueWait.record(queueWaitMs);
+        if (parent != null)
+        {
+            parent.jobStarted(queueWaitMs);
+        }
+    }
+
+    /**
+     * A job instance has ended. Must be called before its slot is released, so that running + ended counts stay consistent.
+     * 
+     * @param state
+     *            the final state of the job instance. Null if unknown (external payloads).
+     */
+    void jobEnded(long runTimeMs, State state)
+    {
+        endedCount.incrementAndGet();
+        ended.increment();
+        runTime.record(runTimeMs);
+        if (state != null)
+        {
+            AtomicLong c = endedByState.get(state);
+            if (c == null)
+            {
+                endedByState.putIfAbsent(state, new AtomicLong(0));
+                c = endedByState.get(state);
+            }
+            c.incrementAndGet();
+        }
+        if (parent != null)
+        {
+            parent.jobEnded(runTimeMs, state);
+        }
+    }
+
+    /**
+     * The results of an ended job instance were stored inside the database after the given time.
+     */
+    void jobStored(long latencyMs)
+    {
+        endOfRunLatency.record(latencyMs);
+        if (parent != null)
+        {
+            parent.jobStored(latencyMs);
+        }
+    }
+
+    long getEndedCount()
+    {
+        return endedCount.get();
+    }
+
+    /**
+     * Count of ended job instances by final state, for job instances whose state is known.
+     */
+    Map<State, AtomicLong> getEndedByState()
+    {
+        return endedByState;
+    }
+
+    float getEndedPerSecond(int minutes)
+    {
+        return ended.sum(minutes * 60) / (minutes * 60f);
+    }
+
+    Histogram getQueueWait()
+    {
+        return queueWait;
+    }
+
+    Histogram getRunTime()
+    {
+        return runTime;
+    }
+
+    Histogram getEndOfRunLatency()
+    {
+        return endOfRunLatency;
+    }
+
+    private static long now()
+    {
+        return System.currentTimeMillis() / 1000;
+    }
+
+    /**
+     * Event counts in one second slices, on a ring of slices. A slice is recycled when a new second uses it.
+     */
+    static class Counter
+    {
+        private final int size;
+        private final AtomicLongArray stamps;
+        private final AtomicLongArray counts;
+
+        Counter(int seconds)
+        {
+            this.size = seconds;
+            this.stamps = new AtomicLongArray(seconds);
+            this.counts = new AtomicLongArray(seconds);
+        }
+
+        void increment()
+        {
+            long second = now();
+            int i = (int) (second % size);
+            long stamp = stamps.get(i);
+            if (stamp != second && stamps.compareAndSet(i, stamp, second))
+            {
+                counts.set(i, 0);
+            }
+            counts.incrementAndGet(i);
+        }
+
+        /**
+         * The count of events during the last <code>seconds</code> seconds (current second included).
+         */
+        long sum(int seconds)
+        {
+            long second = now();
+            long res = 0;
+            for (int j = 0; j < Math.min(seconds, size); j++)
+            {
+                int i = (int) ((second - j) % size);
+                if (stamps.get(i) == second - j)
+                {
+                    res += counts.get(i);
+                }
+            }
+            return res;
+        }
+    }
+
+    /**
+     * Durations (usually in milliseconds), in power of two buckets, on a ring of one minute slices. Percentiles are therefore approximate
+     * (upper bound of their bucket) but averages and maximums are exact. A total count and sum since creation are also kept.
+     */
+    static class Histogram
+    {
+        private static final int SLICES = 5;
+        private static final int SLICE_S = 60;
+        private static final int BUCKETS = 40;
+
+        private final AtomicLongArray stamps = new AtomicLongArray(SLICES);
+        private final AtomicLongArray buckets = new AtomicLongArray(SLICES * BUCKETS);
+        private final AtomicLongArray counts = new AtomicLongArray(SLICES);
+        private final AtomicLongArray sums = new AtomicLongArray(SLICES);
+        private final AtomicLongArray maxs = new AtomicLongArray(SLICES);
+        private final AtomicLong totalCount = new AtomicLong(0);
+        private final AtomicLong totalSum = new AtomicLong(0);
+
+        void record(long v)
+        {
+            long value = Math.max(0, v);
+            totalCount.incrementAndGet();
+            totalSum.addAndGet(value);
+
+            long slice = now() / SLICE_S;
+            int i = (int) (slice % SLICES);
+            long stamp = stamps.get(i);
+            if (stamp != slice && stamps.compareAndSet(i, stamp, slice))
+            {
+                for (int b = 0; b < BUCKETS; b++)
+                {
+                    buckets.set(i * BUCKETS + b, 0);
+                }
+                counts.set(i, 0);
+                sums.set(i, 0);
+                maxs.set(i, 0);
+            }
+
+            buckets.incrementAndGet(i * BUCKETS + Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value)));
+            counts.incrementAndGet(i);
+            sums.addAndGet(i, value);
+            long max = maxs.get(i);
+            while (value > max && !maxs.compareAndSet(i, max, value))
+            {
+                max = maxs.get(i);
+            }
+        }
+
+        long getTotalCount()
+        {
+            return totalCount.get();
+        }
+
+        long getTotalSum()
+        {
+            return totalSum.get();
+        }
+
+        private boolean isLive(int i, long slice)
+        {
+            return slice - stamps.get(i) < SLICES;
+        }
+
+        long getCount()
+        {
+            long slice = now() / SLICE_S;
+            long res = 0;
+            for (int i = 0; i < SLICES; i++)
+            {
+                if (isLive(i, slice))
+                {
+                    res += counts.get(i);
+                }
+            }
+            return res;
+        }
+
+        long getAverage()
+        {
+            long slice = now() / SLICE_S;
+            long count = 0, sum = 0;
+            for (int i = 0; i < SLICES; i++)
+            {
+                if (isLive(i, slice))
+                {
+                    count += counts.get(i);
+                    sum += sums.get(i);
+                }
+            }
+            return count == 0 ? 0 : sum / count;
+        }
+
+        long getMax()
+        {
+            long slice = now() / SLICE_S;
+            long res = 0;
+            for (int i = 0; i < SLICES; i++)
+            {
+                if (isLive(i, slice))
+                {
+                    res = Math.max(res, maxs.get(i));
+                }
+            }
+            return res;
+        }
+
+        /**
+         * @param percentile
+         *            between 0 and 100.
+         */
+        long getPercentile(double percentile)
+        {
+            long slice = now() / SLICE_S;
+            long[] total = new long[BUCKETS];
+            long count = 0;
+            for (int i = 0; i < SLICES; i++)
+            {
+                if (isLive(i, slice))
+                {
+                    for (int b = 0; b < BUCKETS; b++)
+                    {
+                        long c = buckets.get(i * BUCKETS + b);
+                        total[b] += c;
+                        count += c;
+                    }
+                }
+            }
+            if (count == 0)
+            {
+                return 0;
+            }
+
+            long rank = (long) Math.ceil(count * percentile / 100.0);
+            long seen = 0;
+            for (int b = 0; b < BUCKETS; b++)
+            {
+                seen += total[b];
+                if (seen >= Math.max(1, rank))
+                {
+                    // Bucket b holds values from 2^(b-1) to 2^b - 1. Never answer more than the actual maximum.
+                    return Math.min(b == 0 ? 0 : (1L << b) - 1, getMax());
+                }
+            }
+            return getMax();
+        }
+    }
+}
@@ -19,14 +19,18 @@
 package com.enioka.jqm.tools;
 
 import java.lang.management.ManagementFactory;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Semaphore;
-import java.util.concurrent.atomic.AtomicLong;
 
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
@@ -34,16 +38,15 @@ import javax.management.ObjectName;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.enioka.jqm.jdbc.Db;
+import com.enioka.jqm.jdbc.DatabaseException;
 import com.enioka.jqm.jdbc.DbConn;
 import com.enioka.jqm.jdbc.NoResultException;
 import com.enioka.jqm.jdbc.QueryResult;
 import com.enioka.jqm.model.DeploymentParameter;
 import com.enioka.jqm.model.GlobalParameter;
-import com.enioka.jqm.model.History;
-import com.enioka.jqm.model.JobInstance;
-import com.enioka.jqm.model.Message;
 import com.enioka.jqm.model.Node;
-import com.enioka.jqm.model.State;
+import com.enioka.jqm.model.RunningCounter;
 
 /**
  * The engine itself. Everything starts in this class.
@@ -52,6 +55,7 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
 {
     private static Logger jqmlogger = LoggerFactory.getLogger(JqmEngine.class);
     static String latestNodeStartedName = "";
+    private static Map<String, JqmEngine> runningEngines = new ConcurrentHashMap<String, JqmEngine>();
 
     // Callbacks
     JqmEngineHandler handler = null;
@@ -66,18 +70,26 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
     private final ClassloaderManager clManager = new ClassloaderManager();
 
     // Threads that together constitute the engine
-    private Map<Integer, QueuePoller> pollers = new HashMap<Integer, QueuePoller>();
+    private Map<Integer, QueuePoller> pollers = new ConcurrentHashMap<Integer, QueuePoller>();
+    private QueueDispatcher dispatcher = null;
     private InternalPoller intPoller = null;
+    private EnqueueWatcher enqueueWatcher = null;
+    private EndOfRunWriter endOfRunWriter = null;
+    private InstructionWatcher instructionWatcher = null;
+    private ProgressMessageWriter progressMessageWriter = null;
     private CronScheduler scheduler = null;
 
     // Misc data
     private Calendar startTime = Calendar.getInstance();
     private Thread killHook = null;
     boolean loadJmxBeans = true;
-    private AtomicLong endedInstances = new AtomicLong(0);
+    boolean loadJmxJobInstanceBeans = true;
+    private final RunningJobInstances runningJobInstances = new RunningJobInstances();
+    private ObjectName runningJobInstancesName;
+    private final JobMetrics metrics = new JobMetrics(null);
 
     // DB connection resilience data
-    private volatile Queue<QueuePoller> qpToRestart = new LinkedBlockingQueue<QueuePoller>();
+    private volatile boolean dispatcherToRestart = false;
     private volatile Queue<Loader> loaderToFinalize = new LinkedBlockingQueue<Loader>();
     private volatile Queue<Loader> loaderToRestart = new LinkedBlockingQueue<Loader>();
     private volatile Thread qpRestarter = null;
@@ -132,7 +144,7 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
         }
 
         // Check if double-start
-        long toWait = (long) (1.1 * Long.parseLong(GlobalParameter.getParameter(cnx, "internalPollingPeriodMs", "60000")));
+        long toWait = (long) (1.1 * GlobalParameter.getParameter(cnx, "internalPollingPeriodMs", 60000L));
         if (node.getLastSeenAlive() != null
                 && Calendar.getInstance().getTimeInMillis() - node.getLastSeenAlive().getTimeInMillis() <= toWait)
         {
@@ -157,6 +169,9 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
         // Log parameters
         Helpers.dumpParameters(cnx, node);
 
+        // From now on, the engine can be found by the components of the node (such as the metrics endpoint of the web server)
+        runningEngines.put(node.getName(), this);
+
         // The handler may take any actions it wishes here - such as setting log levels, starting Jetty...
         if (this.handler != null)
         {
@@ -183,11 +198,14 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
                 MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
                 name = new ObjectName("com.enioka.jqm:type=Node,name=" + this.node.getName());
                 mbs.registerMBean(this, name);
+                runningJobInstancesName = new ObjectName("com.enioka.jqm:type=Node.RunningJobInstances,name=" + this.node.getName());
+                mbs.registerMBean(runningJobInstances, runningJobInstancesName);
             }
             catch (Exception e)
             {
                 throw new JqmInitError("Could not create JMX beans", e);
             }
+            loadJmxJobInstanceBeans = !Boolean.parseBoolean(GlobalParameter.getParameter(cnx, "disableJmxJobInstances", "false"));
             jqmlogger.info("JMX management bean for the engine was registered");
         }
         else
@@ -208,14 +226,46 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
 
         // Cleanup
         purgeDeadJobInstances(cnx, this.node);
+        cnx.runUpdate("warm_delete_for_node", this.node.getId()); // This JVM has no warm class loader yet.
+        cnx.commit();
+
+        // End of run writer (must be ready before the first job instance ends). A batch size of one means synchronous writes.
+        int endOfRunBatchSize = Integer.parseInt(GlobalParameter.getParameter(cnx, "endOfRunBatchSize", "50"));
+        if (endOfRunBatchSize > 1)
+        {
+            endOfRunWriter = new EndOfRunWriter(endOfRunBatchSize,
+                    Integer.parseInt(GlobalParameter.getParameter(cnx, "endOfRunBatchDelayMs", "5")));
+            endOfRunWriter.start();
+        }
+
+        // Progress and messages sent by payloads. A period of zero means synchronous writes.
+        int messageFlushPeriodMs = Integer.parseInt(GlobalParameter.getParameter(cnx, "messageFlushPeriodMs", "1000"));
+        if (messageFlushPeriodMs > 0)
+        {
+            progressMessageWriter = new ProgressMessageWriter(messageFlushPeriodMs);
+            progressMessageWriter.start();
+        }
+
+        // Instructions (kill, pause) of the running job instances, read for the whole node at once
+        instructionWatcher = new InstructionWatcher(this, cnx);
+        instructionWatcher.start();
 
         // Pollers
+        dispatcher = new QueueDispatcher(this);
         syncPollers(cnx, this.node);
+        Thread t = new Thread(dispatcher);
+        t.start();
         jqmlogger.info("All required queues are now polled");
 
         // Internal poller (stop notifications, keep alive)
         intPoller = new InternalPoller(this);
-        Thread t = new Thread(intPoller);
+        t = new Thread(intPoller);
+        t.start();
+
+        // Enqueue notifications (wake up pollers without waiting for their polling interval)
+        enqueueWatcher = new EnqueueWatcher(this, cnx);
+        Db.addEnqueueListener(enqueueWatcher);
+        t = new Thread(enqueueWatcher);
         t.start();
 
         // Kill notifications
@@ -297,18 +347,30 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
             List<DeploymentParameter> dps = DeploymentParameter.select(cnx, "dp_select_for_node", node.getId());
 
             QueuePoller p = null;
+            Integer minPollingInterval = null;
+            long prefetchLeaseMs = 60000;
             for (DeploymentParameter i : dps)
             {
                 if (pollers.containsKey(i.getId()))
                 {
-                    // Nothing to do - the poller updates its own parameters.
+                    // Push the current parameters (the poller only applies them if they have changed).
+                    p = pollers.get(i.getId());
+                    if (p.isPolling())
+                    {
+                        p.refreshDeploymentParameter(i);
+                    }
                 }
                 else
                 {
-                    p = new QueuePoller(this, com.enioka.jqm.model.Queue.select(cnx, "q_select_by_id", i.getQueue()).get(0), i);
+                    if (minPollingInterval == null)
+                    {
+                        minPollingInterval = Integer.parseInt(GlobalParameter.getParameter(cnx, "pollingIntervalMinMs", "1000"));
+                        prefetchLeaseMs = Long.parseLong(GlobalParameter.getParameter(cnx, "prefetchLeaseMs", "60000"));
+                    }
+                    p = new QueuePoller(this, com.enioka.jqm.model.Queue.select(cnx, "q_select_by_id", i.getQueue()).get(0), i,
+                            minPollingInterval, prefetchLeaseMs);
                     pollers.put(i.getId(), p);
-                    Thread t = new Thread(p);
-                    t.start();
+                    dispatcher.addPoller(p);
                 }
             }
 
@@ -365,9 +427,25 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
         {
             handler.onNodeStopped();
         }
+        runningEngines.remove(node.getName());
 
-        // Also stop the internal poller
+        // Also stop the internal poller and the dispatcher
         this.intPoller.stop();
+        this.dispatcher.stop();
+        Db.removeEnqueueListener(this.enqueueWatcher);
+        this.enqueueWatcher.stop();
+        this.instructionWatcher.stop();
+        this.clManager.stop();
+
+        // Store the pending messages and results (the last ending job instances may still store theirs by themselves)
+        if (this.progressMessageWriter != null)
+        {
+            this.progressMessageWriter.stop();
+        }
+        if (this.endOfRunWriter != null)
+        {
+            this.endOfRunWriter.stop();
+        }
 
         // Reset the stop counter - we may want to restart one day
         DbConn cnx = null;
@@ -375,6 +453,7 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
         {
             cnx = Helpers.getNewDbSession();
             cnx.runUpdate("node_update_has_stopped_by_id", node.getId());
+            cnx.runUpdate("warm_delete_for_node", node.getId());
             cnx.commit();
         }
         catch (Exception e)
@@ -393,6 +472,7 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
             {
                 MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
                 mbs.unregisterMBean(name);
+                mbs.unregisterMBean(runningJobInstancesName);
                 jqmlogger.trace("unregistered bean " + name);
             }
             catch (Exception e)
@@ -409,40 +489,143 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
     }
 
     /**
-     * To be called at node startup - it purges all job instances associated to this node.
+     * To be called at node startup - it purges all job instances associated to this node. Instances which were only attributed (and never
+     * started - i.e. prefetched) are given back to their queue.
      * 
      * @param cnx
      * @param node
      */
     private void purgeDeadJobInstances(DbConn cnx, Node node)
     {
-        for (JobInstance ji : JobInstance.select(cnx, "ji_select_by_node", node.getId()))
+        List<int[]> counters = selectRunningCounters(cnx, node, "ATTRIBUTED");
+        cnx.runUpdate("hl_delete_attributed_for_node", node.getId());
+        int released = cnx.runUpdate("ji_update_release_for_node", node.getId()).nbUpdated;
+        RunningCounter.release(cnx, counters);
+        cnx.commit();
+        if (released > 0)
         {
-            try
+            jqmlogger.info("{} job instance(s) attributed to this node but not started were given back to their queue", released);
+        }
+
+        // Job instances still running on this node have crashed. Set-based, as there may be many of them after a crash.
+        long start = System.currentTimeMillis();
+        List<Integer> purged = new ArrayList<Integer>();
+        List<Integer> crashed = new ArrayList<Integer>();
+        List<Object[]> messages = new ArrayList<Object[]>();
+        ResultSet rs = cnx.runSelect("ji_select_id_history_by_node", node.getId());
+        try
+        {
+            while (rs.next())
             {
-                cnx.runSelectSingle("history_select_state_by_id", String.class, ji.getId());
+                purged.add(rs.getInt(1));
+                rs.getInt(2);
+                if (rs.wasNull())
+                {
+                    crashed.add(rs.getInt(1));
+                    messages.add(new Object[] { rs.getInt(1),
+                            "Job was supposed to be running at server startup - usually means it was killed along a server by an admin or a crash" });
+                }
             }
-            catch (NoResultException e)
+        }
+        catch (SQLException e)
+        {
+            throw new DatabaseException(e);
+        }
+        finally
+        {
+            cnx.closeQuietly(rs);
+        }
+
+        if (!purged.isEmpty())
+        {
+            if (!crashed.isEmpty())
             {
-                History.create(cnx, ji, State.CRASHED, Calendar.getInstance());
-                Message.create(cnx,
-                        "Job was supposed to be running at server startup - usually means it was killed along a server by an admin or a crash",
-                        ji.getId());
+                cnx.runBatchUpdate("message_insert", messages);
+                cnx.runUpdate("history_insert_crashed_by_ji_list", crashed);
             }
+            counters = selectRunningCounters(cnx, node, "RUNNING");
+            cnx.runUpdate("hl_delete_by_ji_list", purged);
+            cnx.runUpdate("ji_delete_by_id_list", purged);
+            RunningCounter.release(cnx, counters);
+            cnx.commit();
+            jqmlogger.info("{} job instance(s) were still running on this node and were purged ({} marked as crashed) in {}ms", purged.size(),
+                    crashed.size(), System.currentTimeMillis() - start);
+        }
 
-            cnx.runUpdate("ji_delete_by_id", ji.getId());
+        recoverHighlanderLocks(cnx);
+    }
+
+    /**
+     * What identifies the slots taken inside the running counters (concurrency limits) by the instances of this node in the given state
+     * (see {@link RunningCounter#release(DbConn, List)}). Counters are updated after the instances, as inside the claim.
+     */
+    private List<int[]> selectRunningCounters(DbConn cnx, Node node, String status)
+    {
+        List<int[]> counters = new ArrayList<int[]>();
+        ResultSet rs = cnx.runSelect("rc_select_held_for_node", node.getId(), status);
+        try
+        {
+            while (rs.next())
+            {
+                counters.add(new int[] { rs.getInt(1), rs.getInt(2) });
+            }
+        }
+        catch (SQLException e)
+        {
+            throw new DatabaseException(e);
+        }
+        finally
+        {
+            cnx.closeQuietly(rs);
+        }
+        return counters;
+    }
+
+    /**
+     * Highlander locks should be maintained along the job instance life cycle, but instances may have been removed or changed outside of
+     * the engines (database restore, manual purge, dead node never restarted...). So at startup the locks are made consistent again with
+     * the attributed and running instances of the whole cluster.
+     */
+    private void recoverHighlanderLocks(DbConn cnx)
+    {
+        int removed = cnx.runUpdate("hl_delete_orphans").nbUpdated;
+
+        Map<Integer, Integer> missing = new HashMap<Integer, Integer>();
+        ResultSet rs = cnx.runSelect("hl_select_missing");
+        try
+        {
+            while (rs.next())
+            {
+                missing.put(rs.getInt(1), rs.getInt(2));
+            }
+        }
+        catch (SQLException e)
+        {
+            throw new DatabaseException(e);
+        }
+        finally
+        {
+            cnx.closeQuietly(rs);
+        }
+        for (Map.Entry<Integer, Integer> e : missing.entrySet())
+        {
+            cnx.runUpdate("hl_insert", e.getKey(), e.getValue());
         }
         cnx.commit();
+
+        if (removed > 0 || !missing.isEmpty())
+        {
+            jqmlogger.warn("Highlander locks were inconsistent and have been fixed: " + removed + " removed, " + missing.size() + " added");
+        }
     }
 
     /**
-     * A poller should call this method when it encounters a database connection issue, and then should stop.<br>
-     * This will ensure the poller is restarted when database connectivity is restored.<br>
-     * Only pollers which have called this method are restarted, other are deemed not to have crashed.
+     * The dispatcher should call this method when it encounters a database connection issue, and then should stop.<br>
+     * This will ensure the dispatcher is restarted when database connectivity is restored.
      */
-    void pollerRestartNeeded(QueuePoller qp)
+    void dispatcherRestartNeeded()
     {
-        qpToRestart.add(qp);
+        dispatcherToRestart = true;
         startDbRestarter();
     }
 
@@ -522,21 +705,20 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
                     }
                 }
 
-                // Restart pollers
-                QueuePoller qp = qpToRestart.poll();
-                while (qp != null)
+                // Restart dispatcher
+                Thread t;
+                if (dispatcherToRestart)
                 {
-                    jqmlogger.warn("resetting poller on queue " + qp.getQueue().getName());
-                    qp.reset();
-                    Thread t = new Thread(qp);
+                    jqmlogger.warn("restarting queue dispatcher");
+                    dispatcherToRestart = false;
+                    t = new Thread(dispatcher);
                     t.start();
-                    qp = qpToRestart.poll();
                 }
 
                 // Always restart internal poller
                 intPoller.stop();
                 ee.intPoller = new InternalPoller(ee);
-                Thread t = new Thread(ee.intPoller);
+                t = new Thread(ee.intPoller);
                 t.start();
 
                 // Finalize loaders that could not store their result inside the database
@@ -568,9 +750,12 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
         return this.clManager;
     }
 
-    void signalEndOfRun()
+    /**
+     * The engine-wide metrics. Pollers record inside it through their own metrics.
+     */
+    JobMetrics getMetrics()
     {
-        this.endedInstances.incrementAndGet();
+        return this.metrics;
     }
 
     JqmEngineHandler getHandler()
@@ -578,6 +763,44 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
         return this.handler;
     }
 
+    QueueDispatcher getDispatcher()
+    {
+        return this.dispatcher;
+    }
+
+    /**
+     * The started (and not yet stopped) engine of a node inside this JVM, or null.
+     */
+    static JqmEngine getRunningEngine(String nodeName)
+    {
+        return runningEngines.get(nodeName);
+    }
+
+    Collection<QueuePoller> getPollers()
+    {
+        return this.pollers.values();
+    }
+
+    EndOfRunWriter getEndOfRunWriter()
+    {
+        return this.endOfRunWriter;
+    }
+
+    RunningJobInstances getRunningJobInstances()
+    {
+        return this.runningJobInstances;
+    }
+
+    InstructionWatcher getInstructionWatcher()
+    {
+        return this.instructionWatcher;
+    }
+
+    ProgressMessageWriter getProgressMessageWriter()
+    {
+        return this.progressMessageWriter;
+    }
+
     // //////////////////////////////////////////////////////////////////////////
     // JMX stat methods (they get their own connection to be thread safe)
     // //////////////////////////////////////////////////////////////////////////
@@ -585,7 +808,75 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
     @Override
     public long getCumulativeJobInstancesCount()
     {
-        return this.endedInstances.get();
+        return this.metrics.getEndedCount();
+    }
+
+    @Override
+    public float getJobsFinishedPerSecondLastMinute()
+    {
+        return this.metrics.getEndedPerSecond(1);
+    }
+
+    @Override
+    public float getJobsFinishedPerSecondLastFiveMinutes()
+    {
+        return this.metrics.getEndedPerSecond(5);
+    }
+
+    @Override
+    public float getJobsFinishedPerSecondLastFifteenMinutes()
+    {
+        return this.metrics.getEndedPerSecond(15);
+    }
+
+    @Override
+    public long getAverageQueueWaitMilliseconds()
+    {
+        return this.metrics.getQueueWait().getAverage();
+    }
+
+    @Override
+    public long getQueueWaitMilliseconds95thPercentile()
+    {
+        return this.metrics.getQueueWait().getPercentile(95);
+    }
+
+    @Override
+    public long getAverageRunTimeMilliseconds()
+    {
+        return this.metrics.getRunTime().getAverage();
+    }
+
+    @Override
+    public long getRunTimeMilliseconds95thPercentile()
+    {
+        return this.metrics.getRunTime().getPercentile(95);
+    }
+
+    @Override
+    public long getAverageEndOfRunLatencyMilliseconds()
+    {
+        return this.metrics.getEndOfRunLatency().getAverage();
+    }
+
+    @Override
+    public long getEndOfRunLatencyMilliseconds95thPercentile()
+    {
+        return this.metrics.getEndOfRunLatency().getPercentile(95);
+    }
+
+    /**
+     * Called when new job instances are available inside a queue. The pollers of this queue will poll at once.
+     */
+    void wakeUpPollers(int queueId)
+    {
+        for (QueuePoller p : this.pollers.values())
+        {
+            if (p.getQueue().getId() == queueId)
+            {
+                p.wakeUp();
+            }
+        }
     }
 
     @Override
@@ -648,6 +939,30 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
         return (Calendar.getInstance().getTimeInMillis() - this.startTime.getTimeInMillis()) / 1000;
     }
 
+    @Override
+    public long getGlobalParameterCacheHits()
+    {
+        return GlobalParameter.getCacheHits(Helpers.getDb());
+    }
+
+    @Override
+    public long getGlobalParameterCacheMisses()
+    {
+        return GlobalParameter.getCacheMisses(Helpers.getDb());
+    }
+
+    @Override
+    public long getWarmPoolWarmStarts()
+    {
+        return this.clManager.getWarmPoolWarmStartCount();
+    }
+
+    @Override
+    public long getWarmPoolColdStarts()
+    {
+        return this.clManager.getWarmPoolColdStartCount();
+    }
+
     @Override
     public String getVersion()
     {
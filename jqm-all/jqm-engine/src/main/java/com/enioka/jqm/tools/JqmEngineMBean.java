@@ -48,6 +48,55 @@ public interface JqmEngineMBean
      */
     long getCumulativeJobInstancesCount();
 
+    /**
+     * On all queues, the number of job instances that ended in the last minute divided by 60.
+     */
+    float getJobsFinishedPerSecondLastMinute();
+
+    /**
+     * On all queues, the number of job instances that ended in the last five minutes divided by 300.
+     */
+    float getJobsFinishedPerSecondLastFiveMinutes();
+
+    /**
+     * On all queues, the number of job instances that ended in the last fifteen minutes divided by 900.
+     */
+    float getJobsFinishedPerSecondLastFifteenMinutes();
+
+    /**
+     * Average time between the creation of a job instance and the start of its run, for job instances started during the last five
+     * minutes.
+     */
+    long getAverageQueueWaitMilliseconds();
+
+    /**
+     * 95th percentile of the time between the creation of a job instance and the start of its run, for job instances started during the
+     * last five minutes. Approximate: the upper bound of a power of two range.
+     */
+    long getQueueWaitMilliseconds95thPercentile();
+
+    /**
+     * Average run time of the job instances that ended during the last five minutes.
+     */
+    long getAverageRunTimeMilliseconds();
+
+    /**
+     * 95th percentile of the run time of the job instances that ended during the last five minutes. Approximate: the upper bound of a
+     * power of two range.
+     */
+    long getRunTimeMilliseconds95thPercentile();
+
+    /**
+     * Average time between the end of a run and the storage of its results inside the database, during the last five minutes.
+     */
+    long getAverageEndOfRunLatencyMilliseconds();
+
+    /**
+     * 95th percentile of the time between the end of a run and the storage of its results inside the database, during the last five
+     * minutes. Approximate: the upper bound of a power of two range.
+     */
+    long getEndOfRunLatencyMilliseconds95thPercentile();
+
     /**
      * The number of currently running job instances
      */
@@ -72,6 +121,26 @@ public interface JqmEngineMBean
      * The package version, in x.x.x form.
      */
     String getVersion();
+
+    /**
+     * The number of global parameter reads answered from the cache of the engine database since JVM startup.
+     */
+    long getGlobalParameterCacheHits();
+
+    /**
+     * The number of global parameter reads which had to query the database since JVM startup.
+     */
+    long getGlobalParameterCacheMisses();
+
+    /**
+     * The number of job instances which have started with a class loader prepared in advance by the warm pool of their job definition.
+     */
+    long getWarmPoolWarmStarts();
+
+    /**
+     * The number of job instances of job definitions with a warm pool which have found it empty and have built their class loader.
+     */
+    long getWarmPoolColdStarts();
     
     /**
      * The count, for all pollers, of running jobs that have run for more than their maxTimeRunning time.
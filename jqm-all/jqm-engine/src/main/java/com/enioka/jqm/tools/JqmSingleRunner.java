@@ -75,7 +75,7 @@ public class JqmSingleRunner
         // Create run container
         ClassloaderManager clm = new ClassloaderManager();
         clm.setIsolationDefault(cnx);
-        final Loader l = new Loader(job, (JqmEngine) null, (QueuePoller) null, clm);
+        final Loader l = new Loader(job, (JqmEngine) null, (QueuePoller) null, clm, null);
 
         // Kill signal handler
         final Thread mainT = Thread.currentThread();
@@ -69,6 +69,11 @@ class LibraryResolverFS
      *            a DbConn that will be used only if not in cache, to fetch the Maven repository list from the database.
      * @throws JqmPayloadException
      */
+    synchronized int getCacheSize()
+    {
+        return cache.size();
+    }
+
     synchronized URL[] getLibraries(Node n, JobDef jd, DbConn cnx) throws JqmPayloadException
     {
         if (shouldLoad(n, jd))
@@ -45,9 +45,12 @@ public class LibraryResolverMaven
 
     }
 
-    static ConfigurableMavenResolverSystem getMavenResolver(DbConn cnx)
+    /**
+     * Reads the resolver configuration from the database. This is done only once, at the latest on the first resolution. Engines do it on
+     * startup, so that the resolution does not need a database session afterwards.
+     */
+    static void loadConfiguration(DbConn cnx)
     {
-        // Retrieve resolver configuration
         if (REPO_LIST == null)
         {
             List<GlobalParameter> repolist = GlobalParameter.select(cnx, "globalprm_select_by_key", "mavenRepo");
@@ -60,6 +63,12 @@ public class LibraryResolverMaven
             MAVEN_SETTINGS_CL = GlobalParameter.getParameter(cnx, "mavenSettingsCL", null);
             MAVEN_SETTINGS_FILE = GlobalParameter.getParameter(cnx, "mavenSettingsFile", null);
         }
+    }
+
+    static ConfigurableMavenResolverSystem getMavenResolver(DbConn cnx)
+    {
+        // Retrieve resolver configuration
+        loadConfiguration(cnx);
 
         boolean withCentral = false;
         String withCustomSettings = null;
@@ -22,8 +22,10 @@ import java.io.File;
 import java.lang.management.ManagementFactory;
 import java.net.MalformedURLException;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
@@ -42,6 +44,7 @@ import com.enioka.jqm.jdbc.QueryResult;
 import com.enioka.jqm.model.History;
 import com.enioka.jqm.model.JobInstance;
 import com.enioka.jqm.model.Node;
+import com.enioka.jqm.model.RunningCounter;
 import com.enioka.jqm.model.RuntimeParameter;
 import com.enioka.jqm.model.State;
 
@@ -59,6 +62,14 @@ class Loader implements Runnable, LoaderMBean
     private final QueuePoller p;
     private final JqmEngine engine;
     private final ClassloaderManager clm;
+    private final Map<String, String> preparedParams;
+
+    // Batches (see QueuePoller#startBatch): the loaders of a batch run one after the other on the same payload thread, which holds a single
+    // slot. They reuse the class loader of the previous member, and only the last one cleans the class loader and the thread.
+    private final boolean batched;
+    private boolean lastOfBatch = true;
+    private JarClassLoader batchClassLoader = null;
+    private JarClassLoader usedClassLoader = null;
 
     private ObjectName name = null;
     private ClassLoader classLoaderToRestoreAtEnd = null;
@@ -69,31 +80,90 @@ class Loader implements Runnable, LoaderMBean
     private Calendar endDate = null;
     private State resultStatus = State.ATTRIBUTED;
 
-    Loader(JobInstance job, JqmEngine engine, QueuePoller p, ClassloaderManager clm)
+    /**
+     * @param preparedParams
+     *            if not null, the dispatcher has already loaded the parameters (this map) and the class loader definition of the job instance
+     *            and marked it as running: the loader then needs no database session before the payload starts. Members of batches are
+     *            still marked as running by their loader.
+     */
+    Loader(JobInstance job, JqmEngine engine, QueuePoller p, ClassloaderManager clm, Map<String, String> preparedParams)
+    {
+        this(job, engine, p, clm, preparedParams, false);
+    }
+
+    /**
+     * @param batched
+     *            true if the loader is a member of a batch. It then neither frees the slot of its poller nor has a dedicated JMX bean.
+     */
+    Loader(JobInstance job, JqmEngine engine, QueuePoller p, ClassloaderManager clm, Map<String, String> preparedParams, boolean batched)
     {
         this.p = p;
         this.engine = engine;
         this.clm = clm;
         this.job = job;
+        this.preparedParams = preparedParams;
+        this.batched = batched;
         this.threadName = this.job.getJD().getApplicationName() + ";payload;" + this.job.getId();
 
         // JMX
-        if (p != null && this.p.getEngine().loadJmxBeans)
+        if (p != null)
         {
-            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
-            try
-            {
-                name = new ObjectName("com.enioka.jqm:type=Node.Queue.JobInstance,Node=" + this.p.getEngine().getNode().getName()
-                        + ",Queue=" + this.p.getQueue().getName() + ",name=" + this.job.getId());
-                mbs.registerMBean(this, name);
-            }
-            catch (Exception e)
+            this.p.getEngine().getRunningJobInstances().add(this);
+            if (this.p.getEngine().loadJmxBeans && this.p.getEngine().loadJmxJobInstanceBeans)
             {
-                throw new JqmInitError("Could not create JMX bean for running job instance", e);
+                registerMBean();
             }
         }
     }
 
+    /**
+     * Registers the dedicated JMX bean of this job instance, if not already done.
+     */
+    synchronized void registerMBean()
+    {
+        if (name != null || p == null || isDone || batched)
+        {
+            return;
+        }
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        try
+        {
+            name = new ObjectName("com.enioka.jqm:type=Node.Queue.JobInstance,Node=" + this.p.getEngine().getNode().getName() + ",Queue="
+                    + this.p.getQueue().getName() + ",name=" + this.job.getId());
+            mbs.registerMBean(this, name);
+        }
+        catch (Exception e)
+        {
+            name = null;
+            throw new JqmInitError("Could not create JMX bean for running job instance", e);
+        }
+    }
+
+    /**
+     * The job instance is not running anymore: remove it from JMX.
+     */
+    private synchronized void unregisterMBeans()
+    {
+        if (p != null)
+        {
+            this.p.getEngine().getRunningJobInstances().remove(this);
+        }
+        if (name == null)
+        {
+            return;
+        }
+        try
+        {
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            mbs.unregisterMBean(name);
+        }
+        catch (Exception e)
+        {
+            jqmlogger.error("Could not unregister JobInstance JMX bean", e);
+        }
+        name = null;
+    }
+
     @Override
     public void run()
     {
@@ -107,7 +177,10 @@ class Loader implements Runnable, LoaderMBean
         }
     }
 
-    private void runPayload()
+    /**
+     * The run itself. Batches call it directly rather than {@link #run()}, in order to handle the failures of each of their members.
+     */
+    void runPayload()
     {
         // Set thread name
         Thread.currentThread().setName(threadName);
@@ -135,11 +208,12 @@ class Loader implements Runnable, LoaderMBean
         final JobManagerHandler handler;
         this.node = this.job.getNode();
 
-        // Block needing the database
+        // Block needing the database (unless the instance was prepared by the dispatcher - batch members still mark themselves as running)
+        final boolean markRunning = this.preparedParams == null || this.batched;
         DbConn cnx = null;
         try
         {
-            cnx = Helpers.getNewDbSession();
+            cnx = markRunning ? Helpers.getNewDbSession() : null;
 
             // Disabled
             if (!this.job.getJD().isEnabled())
@@ -153,31 +227,49 @@ class Loader implements Runnable, LoaderMBean
 
             // Parameters
             params = new HashMap<String, String>();
-            for (Map.Entry<String, String> jp : RuntimeParameter.select_map(cnx, "jiprm_select_by_ji", job.getId()).entrySet())
+            Map<String, String> jiParams = this.preparedParams != null ? this.preparedParams
+                    : RuntimeParameter.select_map(cnx, "jiprm_select_by_ji", job.getId());
+            for (Map.Entry<String, String> jp : jiParams.entrySet())
             {
                 jqmlogger.trace("Parameter " + jp.getKey() + " - " + jp.getValue());
                 params.put(jp.getKey(), jp.getValue());
             }
 
             // Cache heating
-            this.job.getJD().getClassLoader(cnx);
-            jobClassLoader = this.clm.getClassloader(job, cnx);
-            handler = new JobManagerHandler(job, params);
+            if (this.preparedParams == null)
+            {
+                this.job.getJD().getClassLoader(cnx);
+            }
+            jobClassLoader = this.batchClassLoader != null ? this.batchClassLoader : this.clm.getClassloader(job, cnx);
+            this.usedClassLoader = jobClassLoader;
+            handler = new JobManagerHandler(job, params, this.engine);
 
             // Update of the job status, dates & co
             this.job.setExecutionDate(Calendar.getInstance()); // For use in JMX
-            QueryResult qr = cnx.runUpdate("jj_update_run_by_id", job.getId());
-            if (qr.nbUpdated == 0)
+            QueryResult qr = markRunning ? cnx.runUpdate("jj_update_run_by_id", job.getId()) : null;
+            if (qr != null && qr.nbUpdated == 0)
             {
                 // This means the JI has been killed or has disappeared.
                 jqmlogger.warn("Trying to run a job which disappeared or is not in ATTRIBUTED state (likely killed) " + job.getId());
-                if (p != null)
+                if (job.isHighlander())
+                {
+                    cnx.runUpdate("hl_delete_by_ji", job.getId());
+                }
+                RunningCounter.release(cnx, Collections.singletonList(getRunningCounterKey()));
+                cnx.commit();
+                releaseSlot();
+                unregisterMBeans();
+                if (this.engine != null && this.engine.getHandler() != null)
                 {
-                    p.decreaseNbThread(job.getId());
+                    // Threads are pooled: the thread must not keep this job's log files.
+                    this.engine.getHandler().onJobInstanceDone(job);
                 }
                 return;
             }
-            cnx.commit();
+            if (cnx != null)
+            {
+                cnx.commit();
+            }
         }
         catch (JqmPayloadException e)
         {
@@ -221,6 +313,10 @@ class Loader implements Runnable, LoaderMBean
         }
 
         // Go! (launches the main function in the startup class designated in the manifest)
+        if (this.engine != null && this.engine.getInstructionWatcher() != null)
+        {
+            this.engine.getInstructionWatcher().register(job.getId(), handler);
+        }
         try
         {
             jobClassLoader.launchJar(job, params, clm, handler);
@@ -236,6 +332,13 @@ class Loader implements Runnable, LoaderMBean
             jqmlogger.info("Job instance " + job.getId() + " has crashed. Exception was:", e);
             this.resultStatus = State.CRASHED;
         }
+        finally
+        {
+            if (this.engine != null && this.engine.getInstructionWatcher() != null)
+            {
+                this.engine.getInstructionWatcher().unregister(job.getId());
+            }
+        }
 
         // Job instance has now ended its run
         try
@@ -250,6 +353,44 @@ class Loader implements Runnable, LoaderMBean
         jqmlogger.debug("End of loader for JobInstance " + this.job.getId() + ". Thread will now end");
     }
 
+    /**
+     * Frees the slot of the job instance inside its poller. A batch holds a single slot, freed by the batch itself once all its members
+     * have run.
+     */
+    private void releaseSlot()
+    {
+        if (p == null)
+        {
+            return;
+        }
+        if (batched)
+        {
+            p.batchedJobInstanceEnded(this.job.getId());
+        }
+        else
+        {
+            p.decreaseNbThread(this.job.getId());
+        }
+    }
+
+    /**
+     * Batches only: tells the loader if it is the last member of its batch, and gives it the class loader used by the previous member (null
+     * if none).
+     */
+    void setBatchContext(boolean lastOfBatch, JarClassLoader previousClassLoader)
+    {
+        this.lastOfBatch = lastOfBatch;
+        this.batchClassLoader = previousClassLoader;
+    }
+
+    /**
+     * The class loader the payload was run with. Null if the run has not gone that far.
+     */
+    JarClassLoader getUsedClassLoader()
+    {
+        return this.usedClassLoader;
+    }
+
     /**
      * For external payloads. This is used to force the end of run.
      */
@@ -280,7 +421,10 @@ class Loader implements Runnable, LoaderMBean
         // Release the slot so as to allow other job instances to run (first op!)
         if (p != null)
         {
-            p.decreaseNbThread(this.job.getId());
+            p.getMetrics().jobEnded(
+                    this.job.getExecutionDate() == null ? 0 : endDate.getTimeInMillis() - this.job.getExecutionDate().getTimeInMillis(),
+                    this.resultStatus);
+            releaseSlot();
         }
 
         // Send e-mail before releasing the slot - it may be long
@@ -296,11 +440,12 @@ class Loader implements Runnable, LoaderMBean
             }
         }
 
-        // Clean class loader
-        ClassLoaderLeakCleaner.clean(Thread.currentThread().getContextClassLoader());
-
-        // Clean JDBC connections
-        ClassLoaderLeakCleaner.cleanJdbc(Thread.currentThread());
+        // Clean class loader and JDBC connections (once per batch, as its members share them)
+        if (!batched || lastOfBatch)
+        {
+            ClassLoaderLeakCleaner.clean(Thread.currentThread().getContextClassLoader());
+            ClassLoaderLeakCleaner.cleanJdbc(Thread.currentThread());
+        }
 
         // Restore class loader
         if (this.classLoaderToRestoreAtEnd != null)
@@ -332,18 +477,7 @@ class Loader implements Runnable, LoaderMBean
         }
 
         // Unregister MBean
-        if (p != null && this.p.getEngine().loadJmxBeans)
-        {
-            try
-            {
-                MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
-                mbs.unregisterMBean(name);
-            }
-            catch (Exception e)
-            {
-                jqmlogger.error("Could not unregister JobInstance JMX bean", e);
-            }
-        }
+        unregisterMBeans();
 
         // Unregister logger
         if (this.engine != null && this.engine.getHandler() != null)
@@ -351,8 +485,18 @@ class Loader implements Runnable, LoaderMBean
             this.engine.getHandler().onJobInstanceDone(job);
         }
 
-        // Part needing DB connection with specific failure handling code.
-        endOfRunDb();
+        // Messages sent by the payload must be stored before its results
+        if (this.engine != null && this.engine.getProgressMessageWriter() != null)
+        {
+            this.engine.getProgressMessageWriter().jobInstanceEnded(this.job.getId());
+        }
+
+        // Part needing DB connection with specific failure handling code. Usually handed over to the node writer, which batches it.
+        EndOfRunWriter writer = this.engine != null ? this.engine.getEndOfRunWriter() : null;
+        if (writer == null || !writer.submit(this))
+        {
+            endOfRunDb();
+        }
     }
 
     /**
@@ -369,8 +513,14 @@ class Loader implements Runnable, LoaderMBean
             // Done: put inside history & remove instance from queue.
             History.create(cnx, job, this.resultStatus, endDate);
             jqmlogger.trace("An History was just created for job instance " + this.job.getId());
+            if (this.job.isHighlander())
+            {
+                cnx.runUpdate("hl_delete_by_ji", this.job.getId());
+            }
             cnx.runUpdate("ji_delete_by_id", this.job.getId());
+            RunningCounter.release(cnx, Collections.singletonList(getRunningCounterKey()));
             cnx.commit();
+            resultsStored();
         }
         catch (RuntimeException e)
         {
@@ -382,6 +532,49 @@ class Loader implements Runnable, LoaderMBean
         }
     }
 
+    /**
+     * Called when the results of this loader could not be stored because the database is unavailable. The engine will call
+     * {@link #endOfRunDb()} once it is back.
+     */
+    void endOfRunDbDelayed()
+    {
+        this.engine.loaderFinalizationNeeded(this);
+        this.isDelayed = true;
+    }
+
+    /**
+     * The parameters of the History creation for this job instance. Only meaningful once the run has ended.
+     */
+    Object[] getHistoryParameters()
+    {
+        return History.createParameters(this.job, this.resultStatus, this.endDate);
+    }
+
+    boolean isHighlander()
+    {
+        return this.job.isHighlander();
+    }
+
+    /**
+     * What identifies the slot of this job instance inside the running counters (see {@link RunningCounter#release(DbConn, List)}).
+     */
+    int[] getRunningCounterKey()
+    {
+        return new int[] { this.job.getJdId(), this.job.getQueue() };
+    }
+
+    /**
+     * Called once the results of this loader are inside the database.
+     */
+    void resultsStored()
+    {
+        if (this.p != null && this.endDate != null)
+        {
+            this.p.getMetrics().jobStored(System.currentTimeMillis() - this.endDate.getTimeInMillis());
+        }
+        JobEndWaiters.jobEnded(this.job.getId(), this.job.getParentId());
+    }
+
     private void firstBlockDbFailureAnalysis(Exception e)
     {
         if (Helpers.testDbFailure(e))
@@ -410,8 +603,7 @@ class Loader implements Runnable, LoaderMBean
         {
             jqmlogger.error("connection to database lost - loader " + this.getId() + " will need delayed finalization");
             jqmlogger.trace("connection error was:", e.getCause());
-            this.engine.loaderFinalizationNeeded(this);
-            this.isDelayed = true;
+            endOfRunDbDelayed();
         }
         else
         {
@@ -430,6 +622,10 @@ class Loader implements Runnable, LoaderMBean
         Properties props = new Properties();
         props.put("com.enioka.jqm.jdbc.contextobject", Helpers.getDb());
         JqmClientFactory.getClient("uncached", props, false).killJob(this.job.getId());
+        if (this.engine != null && this.engine.getInstructionWatcher() != null)
+        {
+            this.engine.getInstructionWatcher().forceLoop();
+        }
     }
 
     @Override
@@ -486,6 +682,19 @@ class Loader implements Runnable, LoaderMBean
         return this.job.getId();
     }
 
+    String getQueueName()
+    {
+        return p == null ? null : p.getQueue().getName();
+    }
+
+    /**
+     * The start of the run, without any database access (null if not yet started).
+     */
+    Calendar getExecutionDate()
+    {
+        return this.job.getExecutionDate();
+    }
+
     @Override
     public Long getRunTimeSeconds()
     {
@@ -35,7 +35,7 @@ class LoaderExternal implements Runnable
         opts = job.getJD().getJavaOpts() == null
                 ? GlobalParameter.getParameter(cnx, "defaultExternalOpts", "-Xms32m -Xmx128m -XX:MaxPermSize=64m")
                 : job.getJD().getJavaOpts();
-        killCheckPeriodMs = Integer.parseInt(GlobalParameter.getParameter(cnx, "internalPollingPeriodMs", "1000"));
+        killCheckPeriodMs = GlobalParameter.getParameter(cnx, "internalPollingPeriodMs", 1000);
 
         logFile = "./logs";
         logFile = FilenameUtils.concat(logFile, StringUtils.leftPad("" + jobId, 10, "0") + ".log");
@@ -54,6 +54,7 @@ class LoaderExternal implements Runnable
         args.add("-s");
         args.add("" + this.jobId);
 
+        long start = System.currentTimeMillis();
         ProcessBuilder pb = new ProcessBuilder(args);
         pb.redirectErrorStream(true);
         pb.environment().put("CLASSPATH", System.getProperty("java.class.path"));
@@ -67,6 +68,7 @@ class LoaderExternal implements Runnable
         catch (IOException e)
         {
             jqmlogger.error("Could not launch an external payload", e);
+            qp.getMetrics().jobEnded(0, null);
             qp.decreaseNbThread(this.jobId);
             return;
         }
@@ -125,6 +127,7 @@ class LoaderExternal implements Runnable
             IOUtils.closeQuietly(f);
             IOUtils.closeQuietly(isr);
 
+            qp.getMetrics().jobEnded(System.currentTimeMillis() - start, null);
             qp.decreaseNbThread(this.jobId);
         }
 
@@ -0,0 +1,226 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.tools;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.enioka.jqm.model.GlobalParameter;
+import com.enioka.jqm.model.State;
+
+/**
+ * Renders the in-memory metrics of an engine in the Prometheus text exposition format (version 0.0.4), for the <code>/metrics</code>
+ * endpoint of the node web server. Nothing here uses the database, so scraping often has no impact on it.<br>
+ * Durations are summaries: quantiles are computed on the last five minutes, while sums and counts are totals since the engine has
+ * started.
+ */
+final class MetricsExporter
+{
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final double[] QUANTILES = { 0.5, 0.95, 0.99 };
+
+    private MetricsExporter()
+    {
+
+    }
+
+    /**
+     * @return the metrics of the given node. Only the JVM metrics if the node is not running inside this JVM.
+     */
+    static String export(String nodeName)
+    {
+        StringBuilder sb = new StringBuilder(8192);
+        JqmEngine engine = JqmEngine.getRunningEngine(nodeName);
+        String node = "node=\"" + escape(nodeName) + "\"";
+
+        if (engine != null)
+        {
+            exportEngine(sb, engine, node);
+        }
+        exportJvm(sb);
+
+        return sb.toString();
+    }
+
+    private static void exportEngine(StringBuilder sb, JqmEngine engine, String node)
+    {
+        header(sb, "jqm_engine_uptime_seconds", "gauge", "Time since the engine has started.");
+        sample(sb, "jqm_engine_uptime_seconds", node, engine.getUptime());
+
+        // Queues
+        header(sb, "jqm_queue_running_job_instances", "gauge", "Job instances currently running on this node for the queue.");
+        for (QueuePoller p : engine.getPollers())
+        {
+            sample(sb, "jqm_queue_running_job_instances", queueLabels(node, p), p.getCurrentActiveThreadCount());
+        }
+        header(sb, "jqm_queue_slots", "gauge", "Maximum count of job instances running at the same time on this node for the queue.");
+        for (QueuePoller p : engine.getPollers())
+        {
+            sample(sb, "jqm_queue_slots", queueLabels(node, p), p.getMaxConcurrentJobInstanceCount());
+        }
+        header(sb, "jqm_queue_free_slots", "gauge", "Slots of the queue currently free on this node.");
+        for (QueuePoller p : engine.getPollers())
+        {
+            sample(sb, "jqm_queue_free_slots", queueLabels(node, p),
+                    Math.max(0, p.getMaxConcurrentJobInstanceCount() - p.getCurrentActiveThreadCount()));
+        }
+        header(sb, "jqm_queue_prefetched_job_instances", "gauge", "Job instances claimed in advance, waiting for a free slot.");
+        for (QueuePoller p : engine.getPollers())
+        {
+            sample(sb, "jqm_queue_prefetched_job_instances", queueLabels(node, p), p.getPrefetchedJobInstanceCount());
+        }
+        header(sb, "jqm_queue_poll_hit_ratio", "gauge", "Ratio of the polls with free slots which have found job instances to run.");
+        for (QueuePoller p : engine.getPollers())
+        {
+            sample(sb, "jqm_queue_poll_hit_ratio", queueLabels(node, p), p.getPollHitRatio());
+        }
+        header(sb, "jqm_queue_job_instances_ended_total", "counter", "Job instances ended since the poller has started, by final state.");
+        for (QueuePoller p : engine.getPollers())
+        {
+            for (Map.Entry<State, AtomicLong> e : p.getMetrics().getEndedByState().entrySet())
+            {
+                sample(sb, "jqm_queue_job_instances_ended_total", queueLabels(node, p) + ",state=\"" + e.getKey() + "\"",
+                        e.getValue().get());
+            }
+        }
+        header(sb, "jqm_queue_wait_seconds", "summary", "Time between the creation of a job instance and the start of its run.");
+        for (QueuePoller p : engine.getPollers())
+        {
+            summary(sb, "jqm_queue_wait_seconds", queueLabels(node, p), p.getMetrics().getQueueWait(), 1000);
+        }
+        header(sb, "jqm_queue_run_seconds", "summary", "Run time of the job instances.");
+        for (QueuePoller p : engine.getPollers())
+        {
+            summary(sb, "jqm_queue_run_seconds", queueLabels(node, p), p.getMetrics().getRunTime(), 1000);
+        }
+
+        // Engine internals
+        header(sb, "jqm_end_of_run_latency_seconds", "summary", "Time between the end of a run and the storage of its results.");
+        summary(sb, "jqm_end_of_run_latency_seconds", node, engine.getMetrics().getEndOfRunLatency(), 1000);
+        if (engine.getDispatcher() != null)
+        {
+            header(sb, "jqm_claim_latency_seconds", "summary", "Time taken by the claim of job instances for all the due queues.");
+            summary(sb, "jqm_claim_latency_seconds", node, engine.getDispatcher().getClaimLatency(), 1000000);
+        }
+        header(sb, "jqm_db_session_acquisition_seconds", "summary", "Time needed to get a database session (whole JVM).");
+        summary(sb, "jqm_db_session_acquisition_seconds", node, Helpers.dbSessionAcquisition, 1000000);
+
+        ClassloaderManager clm = engine.getClassloaderManager();
+        header(sb, "jqm_classloader_cache_entries", "gauge", "Entries inside the class loader and library caches of the engine.");
+        sample(sb, "jqm_classloader_cache_entries", node + ",cache=\"shared_jar\"", clm.getSharedJarClassLoaderCount());
+        sample(sb, "jqm_classloader_cache_entries", node + ",cache=\"specific\"", clm.getPersistentClassLoaderCount());
+        sample(sb, "jqm_classloader_cache_entries", node + ",cache=\"libraries\"", clm.getLibraryCacheSize());
+        sample(sb, "jqm_classloader_cache_entries", node + ",cache=\"warm_pool\"", clm.getWarmPoolReadyCount());
+        header(sb, "jqm_classloader_warm_pool_starts_total", "counter",
+                "Launches of job definitions with a warm pool, by class loader origin (warm: taken from the pool, cold: built on launch).");
+        sample(sb, "jqm_classloader_warm_pool_starts_total", node + ",start=\"warm\"", clm.getWarmPoolWarmStartCount());
+        sample(sb, "jqm_classloader_warm_pool_starts_total", node + ",start=\"cold\"", clm.getWarmPoolColdStartCount());
+
+        header(sb, "jqm_global_parameter_cache_reads_total", "counter", "Global parameter reads since JVM startup, by cache result.");
+        sample(sb, "jqm_global_parameter_cache_reads_total", node + ",result=\"hit\"", GlobalParameter.getCacheHits(Helpers.getDb()));
+        sample(sb, "jqm_global_parameter_cache_reads_total", node + ",result=\"miss\"", GlobalParameter.getCacheMisses(Helpers.getDb()));
+    }
+
+    private static void exportJvm(StringBuilder sb)
+    {
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        MemoryUsage nonHeap = ManagementFactory.getMemoryMXBean().getNonHeapMemoryUsage();
+        header(sb, "jvm_memory_bytes_used", "gauge", "Used bytes of a given JVM memory area.");
+        sample(sb, "jvm_memory_bytes_used", "area=\"heap\"", heap.getUsed());
+        sample(sb, "jvm_memory_bytes_used", "area=\"nonheap\"", nonHeap.getUsed());
+        header(sb, "jvm_memory_bytes_committed", "gauge", "Committed bytes of a given JVM memory area.");
+        sample(sb, "jvm_memory_bytes_committed", "area=\"heap\"", heap.getCommitted());
+        sample(sb, "jvm_memory_bytes_committed", "area=\"nonheap\"", nonHeap.getCommitted());
+        header(sb, "jvm_memory_bytes_max", "gauge", "Max bytes of a given JVM memory area (-1 if undefined).");
+        sample(sb, "jvm_memory_bytes_max", "area=\"heap\"", heap.getMax());
+        sample(sb, "jvm_memory_bytes_max", "area=\"nonheap\"", nonHeap.getMax());
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        header(sb, "jvm_threads_current", "gauge", "Current thread count of the JVM.");
+        sample(sb, "jvm_threads_current", null, threads.getThreadCount());
+        header(sb, "jvm_threads_daemon", "gauge", "Daemon thread count of the JVM.");
+        sample(sb, "jvm_threads_daemon", null, threads.getDaemonThreadCount());
+
+        header(sb, "jvm_classes_loaded", "gauge", "Classes currently loaded inside the JVM.");
+        sample(sb, "jvm_classes_loaded", null, ManagementFactory.getClassLoadingMXBean().getLoadedClassCount());
+
+        header(sb, "jvm_gc_collection_seconds", "summary", "Time spent in a given JVM garbage collector.");
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+        {
+            String labels = "gc=\"" + escape(gc.getName()) + "\"";
+            sample(sb, "jvm_gc_collection_seconds_count", labels, gc.getCollectionCount());
+            sample(sb, "jvm_gc_collection_seconds_sum", labels, gc.getCollectionTime() / 1000.0);
+        }
+
+        header(sb, "process_uptime_seconds", "gauge", "Time since the JVM has started.");
+        sample(sb, "process_uptime_seconds", null, ManagementFactory.getRuntimeMXBean().getUptime() / 1000.0);
+    }
+
+    private static String queueLabels(String node, QueuePoller p)
+    {
+        return node + ",queue=\"" + escape(p.getQueue().getName()) + "\"";
+    }
+
+    private static void header(StringBuilder sb, String name, String type, String help)
+    {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels, Number value)
+    {
+        sb.append(name);
+        if (labels != null)
+        {
+            sb.append('{').append(labels).append('}');
+        }
+        sb.append(' ');
+        if (value instanceof Double || value instanceof Float)
+        {
+            sb.append(String.format(Locale.ROOT, "%.6f", value.doubleValue()));
+        }
+        else
+        {
+            sb.append(value);
+        }
+        sb.append('\n');
+    }
+
+    /**
+     * @param unitsPerSecond
+     *            how many units of the histogram values make a second.
+     */
+    private static void summary(StringBuilder sb, String name, String labels, JobMetrics.Histogram h, double unitsPerSecond)
+    {
+        for (double q : QUANTILES)
+        {
+            sample(sb, name, labels + ",quantile=\"" + q + "\"", h.getPercentile(q * 100) / unitsPerSecond);
+        }
+        sample(sb, name + "_sum", labels, h.getTotalSum() / unitsPerSecond);
+        sample(sb, name + "_count", labels, h.getTotalCount());
+    }
+
+    private static String escape(String labelValue)
+    {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
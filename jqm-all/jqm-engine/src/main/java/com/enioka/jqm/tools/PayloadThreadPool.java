@@ -0,0 +1,262 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.tools;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The threads running the payloads of a {@link QueuePoller}. Threads are reused from one job instance to the next, so everything a payload
+ * may have changed on its thread (context class loader, priority, name, thread locals, interruption flag) is reset after each run.<br>
+ * The pool is sized from the deployment parameter: as a job instance releases its slot before its thread is actually free (history
+ * creation...), it holds up to twice as many threads as there are slots. A payload finding all of them busy waits for the first free one
+ * rather than getting a thread of its own.<br>
+ * For queues using virtual threads (when the JVM supports them), there is no actual pool: each payload gets a new virtual thread, as
+ * these are cheap and should never be pooled. Neither is there a pool when the thread locals cannot be reset (JVMs which do not allow
+ * reflection on the JDK): each payload then gets a new thread, as before pooling, so that no thread local is inherited.
+ */
+class PayloadThreadPool
+{
+    private static Logger jqmlogger = LoggerFactory.getLogger(PayloadThreadPool.class);
+    private static final long KEEP_ALIVE_S = 60;
+
+    private static Field threadLocalsField = null, inheritableThreadLocalsField = null;
+    private static ThreadFactory virtualThreadFactory = null;
+    static
+    {
+        try
+        {
+            // Java 21+ only. Thread.ofVirtual().factory()
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            virtualThreadFactory = (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        }
+        catch (Exception e)
+        {
+            jqmlogger.debug("This JVM does not support virtual threads");
+            virtualThreadFactory = null;
+        }
+
+        try
+        {
+            threadLocalsField = Thread.class.getDeclaredField("threadLocals");
+            threadLocalsField.setAccessible(true);
+            inheritableThreadLocalsField = Thread.class.getDeclaredField("inheritableThreadLocals");
+            inheritableThreadLocalsField.setAccessible(true);
+        }
+        catch (Exception e)
+        {
+            // This JVM does not allow it (Java 16+ without --add-opens java.base/java.lang=ALL-UNNAMED).
+            jqmlogger.warn("Thread locals of payload threads cannot be reset on this JVM - payload threads will not be reused. "
+                    + "Add --add-opens=java.base/java.lang=ALL-UNNAMED to JAVA_OPTS to reuse them");
+            jqmlogger.debug("Reflection error was:", e);
+            threadLocalsField = null;
+            inheritableThreadLocalsField = null;
+        }
+    }
+
+    private final String name;
+    private final ThreadPoolExecutor executor;
+    private final ThreadFactory platformThreads;
+    private final ThreadFactory virtualThreads;
+    private final ClassLoader defaultClassLoader;
+    private boolean shutdown = false;
+
+    private final AtomicInteger threadCounter = new AtomicInteger(0);
+    private final AtomicInteger activeCount = new AtomicInteger(0);
+    private final AtomicLong handoffCount = new AtomicLong(0);
+    private final AtomicLong handoffTotalNs = new AtomicLong(0);
+
+    PayloadThreadPool(String queueName, int size, boolean useVirtualThreads)
+    {
+        this.name = "QUEUE_PAYLOAD;" + queueName + ";";
+        this.defaultClassLoader = Thread.currentThread().getContextClassLoader();
+
+        if (useVirtualThreads && virtualThreadFactory == null)
+        {
+            jqmlogger.warn("Queue " + queueName + " should use virtual threads but this JVM does not support them - using usual threads");
+        }
+        this.virtualThreads = useVirtualThreads ? virtualThreadFactory : null;
+        this.platformThreads = new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, name + threadCounter.incrementAndGet());
+                t.setDaemon(false);
+                t.setPriority(Thread.NORM_PRIORITY);
+                t.setContextClassLoader(defaultClassLoader);
+                return t;
+            }
+        };
+        if (this.virtualThreads != null || threadLocalsField == null)
+        {
+            this.executor = null;
+            return;
+        }
+
+        int max = Math.max(1, size) * 2;
+        this.executor = new ThreadPoolExecutor(max, max, KEEP_ALIVE_S, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                this.platformThreads);
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Runs the given payload (usually a {@link Loader}) on a pooled thread.
+     */
+    void run(final Runnable payload)
+    {
+        final long submittedAt = System.nanoTime();
+        Runnable r = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                handoffTotalNs.addAndGet(System.nanoTime() - submittedAt);
+                handoffCount.incrementAndGet();
+                activeCount.incrementAndGet();
+                String threadName = Thread.currentThread().getName();
+                try
+                {
+                    payload.run();
+                }
+                finally
+                {
+                    activeCount.decrementAndGet();
+                    if (executor != null)
+                    {
+                        resetThread(Thread.currentThread(), threadName);
+                    }
+                }
+            }
+        };
+
+        if (this.virtualThreads != null)
+        {
+            Thread t = this.virtualThreads.newThread(r);
+            t.setName(this.name + threadCounter.incrementAndGet());
+            t.setContextClassLoader(this.defaultClassLoader);
+            t.start();
+        }
+        else if (this.executor == null)
+        {
+            this.platformThreads.newThread(r).start();
+        }
+        else
+        {
+            this.executor.execute(r);
+        }
+    }
+
+    /**
+     * Makes the current thread ready for the next payload. Note the payload itself (through its loader) is responsible for releasing the
+     * resources it has acquired - this only ensures nothing is inherited by the next payload.
+     */
+    private void resetThread(Thread t, String threadName)
+    {
+        // Clearing the flag.
+        Thread.interrupted();
+
+        if (t.getContextClassLoader() != defaultClassLoader)
+        {
+            // Only on abnormal loader ends - otherwise the loader has restored it.
+            ClassLoaderLeakCleaner.cleanJdbc(t);
+            t.setContextClassLoader(defaultClassLoader);
+        }
+        t.setPriority(Thread.NORM_PRIORITY);
+        t.setName(threadName);
+
+        try
+        {
+            threadLocalsField.set(t, null);
+            inheritableThreadLocalsField.set(t, null);
+        }
+        catch (Exception e)
+        {
+            // Should not happen once the fields are accessible. The thread must not be reused: the pool ends it.
+            throw new IllegalStateException("Could not reset the thread locals of a payload thread - it is discarded", e);
+        }
+    }
+
+    void setSize(int size)
+    {
+        if (this.executor == null)
+        {
+            return;
+        }
+        int max = Math.max(1, size) * 2;
+        if (max > this.executor.getMaximumPoolSize())
+        {
+            this.executor.setMaximumPoolSize(max);
+            this.executor.setCorePoolSize(max);
+        }
+        else
+        {
+            this.executor.setCorePoolSize(max);
+            this.executor.setMaximumPoolSize(max);
+        }
+    }
+
+    /**
+     * Running payloads are not interrupted - the threads end after their payload.
+     */
+    void shutdown()
+    {
+        this.shutdown = true;
+        if (this.executor != null)
+        {
+            this.executor.shutdown();
+        }
+    }
+
+    boolean isShutdown()
+    {
+        return this.shutdown;
+    }
+
+    boolean isVirtual()
+    {
+        return this.virtualThreads != null;
+    }
+
+    int getPoolSize()
+    {
+        return this.executor != null ? this.executor.getPoolSize() : this.activeCount.get();
+    }
+
+    int getActiveCount()
+    {
+        return this.activeCount.get();
+    }
+
+    long getCreatedThreadCount()
+    {
+        return this.threadCounter.get();
+    }
+
+    long getAverageHandoffLatencyMicroseconds()
+    {
+        long count = this.handoffCount.get();
+        return count == 0 ? 0 : this.handoffTotalNs.get() / count / 1000;
+    }
+}
@@ -0,0 +1,341 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.tools;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.enioka.jqm.jdbc.DbConn;
+import com.enioka.jqm.model.Message;
+import com.enioka.jqm.model.ValidationException;
+
+/**
+ * Write-behind for the progress and messages sent by running payloads (<code>JobManager.sendProgress</code> and
+ * <code>JobManager.sendMsg</code>). Only the latest progress of each job instance is kept, and all the pending values are written by a
+ * node-level thread every <code>messageFlushPeriodMs</code> in a single transaction.<br>
+ * Messages are always written in the order they were sent. The messages of a job instance are written before its end of run (see
+ * {@link Loader}), so they are inside the database when its History is created.
+ */
+class ProgressMessageWriter implements Runnable
+{
+    private static Logger jqmlogger = LoggerFactory.getLogger(ProgressMessageWriter.class);
+
+    private final int period;
+    private volatile boolean run = true;
+    private volatile Thread localThread = null;
+    private volatile boolean databaseUnavailable = false;
+
+    // Pending values. Guarded by this.
+    private Map<Integer, Integer> progress = new LinkedHashMap<Integer, Integer>();
+    private List<Object[]> messages = new ArrayList<Object[]>();
+    private Set<Integer> withMessages = new HashSet<Integer>();
+
+    // Only one flush at a time, so that a flush requested at end of run waits for the one in progress.
+    private final Object flushLock = new Object();
+
+    ProgressMessageWriter(int period)
+    {
+        this.period = period;
+    }
+
+    /**
+     * @return false if the value was not accepted as the database is known to be unavailable - the caller should write it by itself (and
+     *         receive the database error, as it would without this writer).
+     */
+    boolean sendProgress(int jobInstanceId, Integer value)
+    {
+        if (databaseUnavailable)
+        {
+            return false;
+        }
+        synchronized (this)
+        {
+            progress.put(jobInstanceId, value);
+        }
+        flushIfStopped();
+        return true;
+    }
+
+    /**
+     * @return same as {@link #sendProgress(int, Integer)}.
+     * @throws ValidationException
+     *             if the message cannot be stored. Checked here, as the caller would never know once the write is deferred.
+     */
+    boolean sendMsg(int jobInstanceId, String msg)
+    {
+        Message.validate(msg);
+        if (databaseUnavailable)
+        {
+            return false;
+        }
+        synchronized (this)
+        {
+            messages.add(new Object[] { jobInstanceId, msg });
+            withMessages.add(jobInstanceId);
+        }
+        flushIfStopped();
+        return true;
+    }
+
+    /**
+     * Payloads may still run a little after the writer has stopped: their values are then written at once.
+     */
+    private void flushIfStopped()
+    {
+        if (!run && localThread == null)
+        {
+            flush();
+        }
+    }
+
+    /**
+     * To be called when a job instance has ended, before its results are stored. Its pending messages are written at once (with all the
+     * other pending values). Its pending progress is simply forgotten, as the History takes it from the job instance itself.
+     */
+    void jobInstanceEnded(int jobInstanceId)
+    {
+        boolean mustFlush;
+        synchronized (this)
+        {
+            progress.remove(jobInstanceId);
+            mustFlush = withMessages.contains(jobInstanceId);
+        }
+        if (mustFlush)
+        {
+            flush();
+            return;
+        }
+
+        // Its messages may be inside a flush in progress: wait for it.
+        synchronized (flushLock)
+        {
+            jqmlogger.trace("No pending messages for job instance {}", jobInstanceId);
+        }
+    }
+
+    void start()
+    {
+        Thread t = new Thread(this);
+        this.localThread = t;
+        t.start();
+    }
+
+    /**
+     * Stops the writer after all the pending values have been written.
+     */
+    void stop()
+    {
+        jqmlogger.debug("Progress and message writer has received a stop request");
+        this.run = false;
+        Thread t = this.localThread;
+        if (t != null)
+        {
+            t.interrupt();
+            try
+            {
+                t.join();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
+    }
+
+    @Override
+    public void run()
+    {
+        Thread.currentThread().setName("MESSAGE_WRITER;writing;");
+        jqmlogger.debug("Progress and message writer has started - period is " + period + "ms");
+
+        while (run)
+        {
+            try
+            {
+                Thread.sleep(period);
+            }
+            catch (InterruptedException e)
+            {
+                // Only stop() interrupts the writer.
+            }
+            flush();
+        }
+
+        this.localThread = null;
+        jqmlogger.debug("Progress and message writer has ended");
+    }
+
+    /**
+     * Writes all the pending values. If the database is unavailable, they are kept for the next flush (which also checks if the database
+     * is back even if nothing is pending).
+     */
+    void flush()
+    {
+        synchronized (flushLock)
+        {
+            Map<Integer, Integer> p;
+            List<Object[]> m;
+            synchronized (this)
+            {
+                if (progress.isEmpty() && messages.isEmpty() && !databaseUnavailable)
+                {
+                    return;
+                }
+                p = progress;
+                m = messages;
+                progress = new LinkedHashMap<Integer, Integer>();
+                messages = new ArrayList<Object[]>();
+                withMessages = new HashSet<Integer>();
+            }
+
+            List<Object[]> progressPrms = new ArrayList<Object[]>(p.size());
+            for (Map.Entry<Integer, Integer> e : p.entrySet())
+            {
+                progressPrms.add(new Object[] { e.getValue(), e.getKey() });
+            }
+
+            boolean oneByOne = false;
+            DbConn cnx = null;
+            try
+            {
+                cnx = Helpers.getNewDbSession();
+                if (!m.isEmpty())
+                {
+                    cnx.runBatchUpdate("message_insert", m);
+                }
+                if (!progressPrms.isEmpty())
+                {
+                    cnx.runBatchUpdate("jj_update_progress_by_id", progressPrms);
+                }
+                cnx.commit();
+                databaseUnavailable = false;
+                jqmlogger.trace("{} messages and {} progress values were written in a single transaction", m.size(), p.size());
+            }
+            catch (RuntimeException e)
+            {
+                if (Helpers.testDbFailure(e))
+                {
+                    jqmlogger.warn("connection to database lost - messages and progress will be written later");
+                    databaseUnavailable = true;
+                    requeue(p, m);
+                }
+                else
+                {
+                    // Do not let a single faulty value prevent the others from being written.
+                    jqmlogger.warn(m.size() + " messages and " + p.size()
+                            + " progress values could not be written at once - they will be written one by one", e);
+                    oneByOne = true;
+                }
+            }
+            finally
+            {
+                Helpers.closeQuietly(cnx);
+            }
+
+            if (oneByOne)
+            {
+                writeOneByOne(p, m);
+            }
+        }
+    }
+
+    /**
+     * Writes the given values with one transaction each, so that only the faulty ones are lost. If the database becomes unavailable, the
+     * values not written yet are kept for the next flush.
+     */
+    private void writeOneByOne(Map<Integer, Integer> p, List<Object[]> m)
+    {
+        DbConn cnx = null;
+        try
+        {
+            cnx = Helpers.getNewDbSession();
+            for (Iterator<Object[]> it = m.iterator(); it.hasNext();)
+            {
+                Object[] msg = it.next();
+                writeOne(cnx, "message_insert", (Integer) msg[0], msg);
+                it.remove();
+            }
+            for (Iterator<Map.Entry<Integer, Integer>> it = p.entrySet().iterator(); it.hasNext();)
+            {
+                Map.Entry<Integer, Integer> e = it.next();
+                writeOne(cnx, "jj_update_progress_by_id", e.getKey(), e.getValue(), e.getKey());
+                it.remove();
+            }
+        }
+        catch (RuntimeException e)
+        {
+            jqmlogger.warn("connection to database lost - messages and progress will be written later");
+            jqmlogger.trace("connection error was:", e);
+            databaseUnavailable = true;
+            requeue(p, m);
+        }
+        finally
+        {
+            Helpers.closeQuietly(cnx);
+        }
+    }
+
+    /**
+     * @throws RuntimeException
+     *             only if the database is unavailable. Other errors are logged, and the value is lost.
+     */
+    private void writeOne(DbConn cnx, String queryKey, int jobInstanceId, Object... prms)
+    {
+        try
+        {
+            cnx.runUpdate(queryKey, prms);
+            cnx.commit();
+        }
+        catch (RuntimeException e)
+        {
+            if (Helpers.testDbFailure(e))
+            {
+                throw e;
+            }
+            cnx.rollback();
+            jqmlogger.error("A message or progress value of job instance " + jobInstanceId + " could not be written and is lost", e);
+        }
+    }
+
+    /**
+     * Puts back values which could not be written, without overwriting more recent progress values and keeping the message order.
+     */
+    private synchronized void requeue(Map<Integer, Integer> p, List<Object[]> m)
+    {
+        for (Map.Entry<Integer, Integer> e : p.entrySet())
+        {
+            if (!progress.containsKey(e.getKey()))
+            {
+                progress.put(e.getKey(), e.getValue());
+            }
+        }
+        m.addAll(messages);
+        messages = m;
+        for (Object[] msg : m)
+        {
+            withMessages.add((Integer) msg[0]);
+        }
+    }
+}
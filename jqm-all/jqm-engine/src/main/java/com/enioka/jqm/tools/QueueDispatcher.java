@@ -0,0 +1,478 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.tools;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.enioka.jqm.jdbc.DbConn;
+import com.enioka.jqm.model.GlobalParameter;
+import com.enioka.jqm.model.JobDef;
+import com.enioka.jqm.model.JobInstance;
+import com.enioka.jqm.model.RunningCounter;
+import com.enioka.jqm.model.RuntimeParameter;
+
+/**
+ * The single thread polling all the queues of a node. On each loop, for all the {@link QueuePoller}s which are due (polling interval
+ * elapsed, or woken up by a new job instance or a freed slot), it claims job instances in a single query, whatever the number of
+ * queues. Poller parameters are pushed by the {@link InternalPoller} when they change. Claimed instances are then handed to their poller,
+ * which runs them on its own payload threads.
+ */
+class QueueDispatcher implements Runnable
+{
+    private static Logger jqmlogger = LoggerFactory.getLogger(QueueDispatcher.class);
+    private static final long MAX_WAIT_MS = 10000;
+    private static final long STOPPING_WAIT_MS = 1000;
+
+    private JqmEngine engine;
+    private List<QueuePoller> pollers = new CopyOnWriteArrayList<QueuePoller>();
+
+    private volatile boolean run = true;
+    private Semaphore loop = new Semaphore(0);
+    private final JobMetrics.Histogram claimLatency = new JobMetrics.Histogram();
+
+    QueueDispatcher(JqmEngine engine)
+    {
+        this.engine = engine;
+    }
+
+    /**
+     * Adds a poller to the dispatch. It will be polled at once. It is removed once it has received a stop order and has ended.
+     */
+    void addPoller(QueuePoller p)
+    {
+        this.pollers.add(p);
+        wakeUp();
+    }
+
+    /**
+     * Makes the dispatcher loop at once instead of waiting for the next due poller. Signals are not cumulated.
+     */
+    void wakeUp()
+    {
+        if (loop.availablePermits() == 0)
+        {
+            loop.release(1);
+        }
+    }
+
+    void stop()
+    {
+        jqmlogger.debug("Queue dispatcher has received a stop request");
+        this.run = false;
+        wakeUp();
+    }
+
+    @Override
+    public synchronized void run() // sync: avoid race condition on run when restarting after failure.
+    {
+        Thread.currentThread().setName("QUEUE_DISPATCHER;polling;" + this.engine.getNode().getName());
+
+        while (run)
+        {
+            jqmlogger.trace("dispatcher loop");
+            long now = System.currentTimeMillis();
+
+            List<QueuePoller> due = new ArrayList<QueuePoller>();
+            Map<QueuePoller, List<JobInstance>> releases = new HashMap<QueuePoller, List<JobInstance>>();
+            for (QueuePoller p : this.pollers)
+            {
+                if (p.isDue(now))
+                {
+                    due.add(p);
+                }
+                List<JobInstance> released = p.takeReleasablePrefetched(now);
+                if (!released.isEmpty())
+                {
+                    releases.put(p, released);
+                }
+            }
+
+            if (!due.isEmpty() || !releases.isEmpty())
+            {
+                DbConn cnx = null;
+                try
+                {
+                    cnx = Helpers.getNewDbSession();
+                    release(cnx, releases);
+                    if (!due.isEmpty())
+                    {
+                        dispatch(cnx, due);
+                    }
+                }
+                catch (RuntimeException e)
+                {
+                    if (Helpers.testDbFailure(e))
+                    {
+                        jqmlogger.error("connection to database lost - stopping queue dispatcher");
+                        jqmlogger.trace("connection error was:", e.getCause());
+                        this.engine.dispatcherRestartNeeded();
+                        break;
+                    }
+                    else
+                    {
+                        // Do not stop: this would stop all the queues of the node. Just wait for the next polling interval.
+                        jqmlogger.error("Queue dispatcher loop has failed", e);
+                        for (QueuePoller p : due)
+                        {
+                            p.startPoll();
+                        }
+                    }
+                }
+                finally
+                {
+                    // Reset the connection on each loop.
+                    Helpers.closeQuietly(cnx);
+                }
+            }
+
+            // End the pollers which have received a stop order.
+            boolean stopping = false;
+            for (QueuePoller p : this.pollers)
+            {
+                if (!p.isPolling())
+                {
+                    if (p.tryEnd())
+                    {
+                        this.pollers.remove(p);
+                    }
+                    else
+                    {
+                        stopping = true;
+                    }
+                }
+            }
+
+            // Wait for the next due poller, or a signal.
+            try
+            {
+                loop.tryAcquire(getWaitTime(stopping), TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e)
+            {
+                break;
+            }
+        }
+
+        jqmlogger.debug("Queue dispatcher has ended");
+    }
+
+    /**
+     * Gives back to their queue the prefetched job instances which could not be started in time, so that other nodes can run them. This
+     * also frees their slot inside the running counters (concurrency limits). If this fails, the instances are put back inside the
+     * prefetch buffer of their poller, as they are still attributed to this node.
+     */
+    private void release(DbConn cnx, Map<QueuePoller, List<JobInstance>> releases)
+    {
+        if (releases.isEmpty())
+        {
+            return;
+        }
+        try
+        {
+            List<int[]> counters = new ArrayList<int[]>();
+            for (Map.Entry<QueuePoller, List<JobInstance>> e : releases.entrySet())
+            {
+                jqmlogger.debug("Giving back {} prefetched JI to queue {}", e.getValue().size(), e.getKey().getQueue().getName());
+                List<Integer> ids = new ArrayList<Integer>(e.getValue().size());
+                for (JobInstance ji : e.getValue())
+                {
+                    ids.add(ji.getId());
+                    counters.add(new int[] { ji.getJdId(), ji.getQueue() });
+                }
+                cnx.runUpdate("hl_delete_by_ji_list", ids);
+                cnx.runUpdate("ji_update_release_by_id_list", this.engine.getNode().getId(), ids);
+                cnx.notifyEnqueue(e.getKey().getQueue().getId());
+            }
+            RunningCounter.release(cnx, counters);
+            cnx.commit();
+        }
+        catch (RuntimeException e)
+        {
+            for (Map.Entry<QueuePoller, List<JobInstance>> r : releases.entrySet())
+            {
+                r.getKey().restorePrefetched(r.getValue());
+            }
+            if (Helpers.testDbFailure(e))
+            {
+                throw e;
+            }
+            cnx.rollback();
+            jqmlogger.error("Prefetched job instances could not be given back to their queue - this will be retried after a new lease", e);
+        }
+    }
+
+    /**
+     * Claims job instances for all the given pollers at once, then gives each poller its share.
+     */
+    private void dispatch(DbConn cnx, List<QueuePoller> due)
+    {
+        // Free room?
+        Map<Integer, Integer> slotsByQueue = new HashMap<Integer, Integer>();
+        Map<QueuePoller, Integer> slotsByPoller = new HashMap<QueuePoller, Integer>();
+        for (QueuePoller p : due)
+        {
+            int slots = p.startPoll();
+            if (slots > 0)
+            {
+                int queueId = p.getQueue().getId();
+                slotsByQueue.put(queueId, (slotsByQueue.containsKey(queueId) ? slotsByQueue.get(queueId) : 0) + slots);
+                slotsByPoller.put(p, slots);
+            }
+        }
+        if (slotsByQueue.isEmpty())
+        {
+            return;
+        }
+
+        // Atomically mark as many JI as there are free slots (and prefetch room) as attributed to this node, then load them. New instances
+        // of job definitions warm on other nodes are left to them for a while.
+        long claimStart = System.nanoTime();
+        List<Integer> claimed = JobInstance.claim(cnx, this.engine.getNode().getId(), slotsByQueue,
+                GlobalParameter.getParameter(cnx, "warmHeadStartSeconds", 2));
+        claimLatency.record((System.nanoTime() - claimStart) / 1000);
+        List<JobInstance> newInstances = claimed.isEmpty() ? new ArrayList<JobInstance>()
+                : JobInstance.select(cnx, "ji_select_by_id_list", claimed);
+        if (!claimed.isEmpty())
+        {
+            jqmlogger.debug("Dispatcher has found {} JI to run", claimed.size());
+        }
+
+        // Give each instance to a poller of its queue.
+        Map<QueuePoller, Integer> launched = new HashMap<QueuePoller, Integer>();
+        Map<QueuePoller, List<JobInstance>> instancesByPoller = new HashMap<QueuePoller, List<JobInstance>>();
+        for (JobInstance ji : newInstances)
+        {
+            QueuePoller target = null;
+            for (Map.Entry<QueuePoller, Integer> e : slotsByPoller.entrySet())
+            {
+                int alreadyLaunched = launched.containsKey(e.getKey()) ? launched.get(e.getKey()) : 0;
+                if (e.getKey().getQueue().getId() == ji.getQueue() && alreadyLaunched < e.getValue())
+                {
+                    target = e.getKey();
+                    launched.put(target, alreadyLaunched + 1);
+                    break;
+                }
+            }
+            if (target == null)
+            {
+                // Cannot happen: the claim is limited by the slots of each queue.
+                jqmlogger.error("Job instance " + ji.getId() + " was claimed for queue " + ji.getQueue() + " which has no free slot");
+                continue;
+            }
+            if (!instancesByPoller.containsKey(target))
+            {
+                instancesByPoller.put(target, new ArrayList<JobInstance>());
+            }
+            instancesByPoller.get(target).add(ji);
+        }
+
+        // Instances which can start right now are prepared in bulk inside the claim transaction. The others are prefetched. Instances of
+        // job definitions with a batch size share a slot, and the batches which start are filled up to their size with a second claim.
+        Map<QueuePoller, Integer> reserved = new HashMap<QueuePoller, Integer>();
+        Map<QueuePoller, List<List<JobInstance>>> batchesByPoller = new HashMap<QueuePoller, List<List<JobInstance>>>();
+        List<JobInstance> toStart = new ArrayList<JobInstance>();
+        List<JobInstance> toStartBatched = new ArrayList<JobInstance>();
+        Map<Integer, Map<String, String>> params;
+        try
+        {
+            for (Map.Entry<QueuePoller, List<JobInstance>> e : instancesByPoller.entrySet())
+            {
+                List<List<JobInstance>> batches = makeBatches(e.getValue());
+                batchesByPoller.put(e.getKey(), batches);
+                int slots = e.getKey().reserveSlots(batches.size());
+                reserved.put(e.getKey(), slots);
+                for (List<JobInstance> batch : batches.subList(0, slots))
+                {
+                    fillBatch(cnx, e.getKey(), batch);
+                    (batch.size() > 1 ? toStartBatched : toStart).addAll(batch);
+                }
+            }
+            params = prepareStart(cnx, toStart, toStartBatched);
+            cnx.commit();
+        }
+        catch (RuntimeException e)
+        {
+            for (Map.Entry<QueuePoller, Integer> r : reserved.entrySet())
+            {
+                r.getKey().releaseSlots(r.getValue());
+            }
+            throw e;
+        }
+
+        for (Map.Entry<QueuePoller, List<List<JobInstance>>> e : batchesByPoller.entrySet())
+        {
+            int slots = reserved.get(e.getKey());
+            for (int i = 0; i < e.getValue().size(); i++)
+            {
+                List<JobInstance> batch = e.getValue().get(i);
+                if (i < slots && batch.size() > 1)
+                {
+                    e.getKey().startBatch(batch, params);
+                }
+                else if (i < slots)
+                {
+                    JobInstance ji = batch.get(0);
+                    Map<String, String> prms = params.get(ji.getId());
+                    e.getKey().start(cnx, ji, ji.getJD().isExternal() ? null : (prms != null ? prms : new HashMap<String, String>()));
+                }
+                else
+                {
+                    for (JobInstance ji : batch)
+                    {
+                        e.getKey().prefetch(ji);
+                    }
+                }
+            }
+        }
+
+        // Let the pollers adapt their polling interval
+        for (Map.Entry<QueuePoller, Integer> e : slotsByPoller.entrySet())
+        {
+            e.getKey().endPoll(e.getValue(), launched.containsKey(e.getKey()) ? launched.get(e.getKey()) : 0);
+        }
+    }
+
+    /**
+     * Groups claimed instances by slot: instances of a job definition with a batch size (see {@link JobDef#getBatchSize()}) are put
+     * together, at most batch size per group. Other instances each have their own group. The claim order is kept.
+     */
+    private List<List<JobInstance>> makeBatches(List<JobInstance> instances)
+    {
+        List<List<JobInstance>> res = new ArrayList<List<JobInstance>>(instances.size());
+        Map<Integer, List<JobInstance>> openBatches = new HashMap<Integer, List<JobInstance>>();
+        for (JobInstance ji : instances)
+        {
+            int batchSize = getBatchSize(ji.getJD());
+            List<JobInstance> batch = openBatches.get(ji.getJdId());
+            if (batchSize > 1 && batch != null && batch.size() < batchSize)
+            {
+                batch.add(ji);
+                continue;
+            }
+
+            batch = new ArrayList<JobInstance>(batchSize);
+            batch.add(ji);
+            res.add(batch);
+            if (batchSize > 1)
+            {
+                openBatches.put(ji.getJdId(), batch);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Claims more waiting instances of the job definition of a batch which is about to start, up to its batch size. Done inside the claim
+     * transaction. Single instances of job definitions without batch size are left alone.
+     */
+    private void fillBatch(DbConn cnx, QueuePoller p, List<JobInstance> batch)
+    {
+        JobDef jd = batch.get(0).getJD();
+        int missing = getBatchSize(jd) - batch.size();
+        if (missing <= 0)
+        {
+            return;
+        }
+
+        List<Integer> claimed = JobInstance.claimBatch(cnx, this.engine.getNode().getId(), p.getQueue().getId(), jd.getId(), missing);
+        if (!claimed.isEmpty())
+        {
+            jqmlogger.debug("Dispatcher has added {} JI to a batch of job definition {}", claimed.size(), jd.getApplicationName());
+            batch.addAll(JobInstance.select(cnx, "ji_select_by_id_list", claimed));
+        }
+    }
+
+    /**
+     * The batch size of a job definition. 1 (no batching) for job definitions which cannot be batched: highlander (never more than one
+     * running instance) and external ones (one JVM each).
+     */
+    private static int getBatchSize(JobDef jd)
+    {
+        if (jd.getBatchSize() == null || jd.isHighlander() || jd.isExternal())
+        {
+            return 1;
+        }
+        return Math.max(1, jd.getBatchSize());
+    }
+
+    /**
+     * Loads what the given instances need to start (parameters - the class loader definitions come with their cached job definition) and
+     * marks them as running, with one query each whatever the number of instances, so that their loaders need no database access before
+     * the payload starts. External instances are left alone, as their own JVM does all this.<br>
+     * Members of batches only get their parameters: they run one after the other, so each of them is marked as running by its own loader
+     * when it actually starts.
+     * 
+     * @return the parameters of the instances (key: job instance ID). Instances without parameters are absent.
+     */
+    private Map<Integer, Map<String, String>> prepareStart(DbConn cnx, List<JobInstance> toStart, List<JobInstance> toStartBatched)
+    {
+        List<Integer> ids = new ArrayList<Integer>();
+        for (JobInstance ji : toStart)
+        {
+            if (!ji.getJD().isExternal())
+            {
+                ids.add(ji.getId());
+            }
+        }
+        List<Integer> allIds = new ArrayList<Integer>(ids);
+        for (JobInstance ji : toStartBatched)
+        {
+            allIds.add(ji.getId());
+        }
+        if (allIds.isEmpty())
+        {
+            return new HashMap<Integer, Map<String, String>>();
+        }
+
+        Map<Integer, Map<String, String>> res = RuntimeParameter.select_maps(cnx, "jiprm_select_by_ji_list", allIds);
+        if (!ids.isEmpty())
+        {
+            cnx.runUpdate("jj_update_run_by_id_list", ids);
+        }
+        return res;
+    }
+
+    private long getWaitTime(boolean stopping)
+    {
+        long now = System.currentTimeMillis();
+        long res = stopping ? STOPPING_WAIT_MS : MAX_WAIT_MS;
+        for (QueuePoller p : this.pollers)
+        {
+            if (p.isPolling())
+            {
+                res = Math.min(res, p.getNextPollTime() - now);
+            }
+        }
+        return Math.max(res, 0);
+    }
+
+    /**
+     * Time (in microseconds) taken by the claim query of each poll having free slots.
+     */
+    JobMetrics.Histogram getClaimLatency()
+    {
+        return this.claimLatency;
+    }
+}
@@ -19,14 +19,16 @@
 package com.enioka.jqm.tools;
 
 import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.management.InstanceNotFoundException;
 import javax.management.MBeanServer;
@@ -36,96 +38,108 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.enioka.jqm.jdbc.DbConn;
-import com.enioka.jqm.jdbc.QueryResult;
 import com.enioka.jqm.model.DeploymentParameter;
 import com.enioka.jqm.model.JobInstance;
 import com.enioka.jqm.model.Queue;
+import com.enioka.jqm.model.State;
 
 /**
- * A thread that polls a queue according to the parameters defined inside a {@link DeploymentParameter}.
+ * The polling of a queue according to the parameters defined inside a {@link DeploymentParameter}: free slots, running job instances,
+ * parameters and JMX bean. There is no thread per poller - the actual polling of all the queues of a node is done by its
+ * {@link QueueDispatcher}, which claims job instances for all the pollers at once.
  */
-class QueuePoller implements Runnable, QueuePollerMBean
+class QueuePoller implements QueuePollerMBean
 {
     private static Logger jqmlogger = LoggerFactory.getLogger(QueuePoller.class);
+    static final long STOP_TIMEOUT_MS = 60L * 1000;
 
     private Queue queue = null;
     private JqmEngine engine;
-    private int maxNbThread = 10;
-    private int pollingInterval = 10000;
+    private volatile int maxNbThread = 10;
+    private volatile int pollingInterval = 10000;
+    private int minPollingInterval = 1000;
+    private volatile int effectivePollingInterval = 10000;
     private int dpId;
+    private volatile int prefetch = 0;
+    private long prefetchLeaseMs = 60000;
 
-    private boolean run = true;
+    private volatile boolean run = true;
     private AtomicInteger actualNbThread = new AtomicInteger(0);
-    private boolean hasStopped = true;
-    private Calendar lastLoop = null;
+    private volatile boolean hasStopped = false;
+    private volatile boolean pollNow = true;
+    private volatile Calendar lastLoop = null;
+    private long stopTime = 0;
     private Map<Integer, Date> peremption = new ConcurrentHashMap<Integer, Date>();
+    private AtomicLong pollCount = new AtomicLong(0);
+    private AtomicLong hitCount = new AtomicLong(0);
+    private LinkedBlockingDeque<JobInstance> prefetched = new LinkedBlockingDeque<JobInstance>();
+    private Map<Integer, Long> prefetchLeaseEnd = new ConcurrentHashMap<Integer, Long>();
+    private volatile boolean prefetchPaused = false;
+    private final JobMetrics metrics;
 
     private ObjectName name = null;
 
-    private Thread localThread = null;
-    private Semaphore loop;
+    private PayloadThreadPool payloadThreads = null;
 
     @Override
     public void stop()
     {
         jqmlogger.info("Poller " + queue.getName() + " has received a stop order");
         run = false;
-        if (localThread != null)
-        {
-            localThread.interrupt();
-        }
+        this.engine.getDispatcher().wakeUp();
     }
 
     /**
-     * Will make the thread ready to run once again after it has stopped.
+     * @param minPollingInterval
+     *            the lowest polling interval the poller may adapt to. The deployment parameter interval is the highest.
+     * @param prefetchLeaseMs
+     *            how long a prefetched job instance may wait for a free slot before being given back to the queue.
      */
-    void reset()
-    {
-        if (!hasStopped)
-        {
-            throw new IllegalStateException("cannot reset a non stopped queue poller");
-        }
-        hasStopped = false;
-        run = true;
-        lastLoop = null;
-        loop = new Semaphore(0);
-    }
-
-    QueuePoller(JqmEngine engine, Queue q, DeploymentParameter dp)
+    QueuePoller(JqmEngine engine, Queue q, DeploymentParameter dp, int minPollingInterval, long prefetchLeaseMs)
     {
         this.engine = engine;
         this.queue = q;
+        this.minPollingInterval = minPollingInterval;
+        this.prefetchLeaseMs = prefetchLeaseMs;
+        this.metrics = new JobMetrics(engine.getMetrics());
         applyDeploymentParameter(dp);
+        this.payloadThreads = new PayloadThreadPool(queue.getName(), maxNbThread, queue.isVirtualThreads());
 
-        reset();
         registerMBean();
     }
 
     void applyDeploymentParameter(DeploymentParameter dp)
     {
         this.pollingInterval = dp.getPollingInterval();
+        this.effectivePollingInterval = this.pollingInterval;
         this.maxNbThread = dp.getEnabled() ? dp.getNbThread() : 0;
+        this.prefetch = dp.getEnabled() ? dp.getPrefetch() : 0;
         this.dpId = dp.getId();
+        if (this.payloadThreads != null)
+        {
+            this.payloadThreads.setSize(this.maxNbThread);
+        }
 
         jqmlogger.info("Engine {}" + " will poll JobInstances on queue {} every {} s with {} threads for concurrent instances",
                 engine.getNode().getName(), queue.getName(), pollingInterval / 1000, maxNbThread);
     }
 
     /**
-     * Called at the beginning of the main loop to check if the poller config is up to date (nbThread, pause...)
+     * Called by the engine when the node configuration has changed, to update the poller config (nbThread, pause...)
+     * 
+     * @param p
+     *            the current version of the deployment parameter of this poller. Null if it does not exist anymore.
      */
-    private void refreshDeploymentParameter(DbConn cnx)
+    void refreshDeploymentParameter(DeploymentParameter p)
     {
-        List<DeploymentParameter> prms = DeploymentParameter.select(cnx, "dp_select_by_id", this.dpId);
-        if (prms.size() != 1)
+        if (p == null)
         {
             this.stop();
             return;
         }
 
-        DeploymentParameter p = prms.get(0);
         if (p.getPollingInterval() != this.pollingInterval || (this.maxNbThread > 0 && !p.getEnabled())
-                || (this.maxNbThread == 0 && p.getEnabled()))
+                || (this.maxNbThread == 0 && p.getEnabled()) || (p.getEnabled() && p.getPrefetch() != this.prefetch))
         {
             applyDeploymentParameter(p);
         }
@@ -161,172 +175,375 @@ class QueuePoller implements Runnable, QueuePollerMBean
         }
     }
 
-    protected List<JobInstance> dequeue(DbConn cnx, int level)
+    /**
+     * True if the poller should be polled by the dispatcher: either its polling interval has elapsed or it was woken up.
+     */
+    boolean isDue(long now)
+    {
+        return run && (pollNow || lastLoop == null || now - lastLoop.getTimeInMillis() >= effectivePollingInterval);
+    }
+
+    /**
+     * When the dispatcher should poll this poller at the latest (System.currentTimeMillis() reference).
+     */
+    long getNextPollTime()
+    {
+        return (pollNow || lastLoop == null) ? 0 : lastLoop.getTimeInMillis() + effectivePollingInterval;
+    }
+
+    /**
+     * Called by the dispatcher when it polls on behalf of the poller.
+     * 
+     * @return the count of job instances which can be started right now, plus the room inside the prefetch buffer. (zero if full or
+     *         paused)
+     */
+    int startPoll()
+    {
+        // Reset the signal before the poll - a signal received from now on will trigger a new poll.
+        pollNow = false;
+        lastLoop = Calendar.getInstance();
+        if (!run || maxNbThread == 0)
+        {
+            return 0;
+        }
+        int room = prefetchPaused ? 0 : Math.max(0, prefetch - prefetched.size());
+        return Math.max(0, maxNbThread - actualNbThread.get()) + room;
+    }
+
+    /**
+     * Called by the dispatcher after a poll which had free slots. The effective polling interval is adapted between its bounds: doubled if
+     * nothing was found, back to the minimum if all the free slots were filled (there are likely more instances waiting).
+     * 
+     * @param freeSlots
+     *            the count returned by {@link #startPoll()}. Strictly positive.
+     * @param found
+     *            the count of job instances claimed for this poller.
+     */
+    void endPoll(int freeSlots, int found)
     {
-        // Free room?
-        int usedSlots = actualNbThread.get();
-        if (usedSlots >= maxNbThread)
+        pollCount.incrementAndGet();
+        if (found > 0)
         {
-            return null;
+            hitCount.incrementAndGet();
         }
 
-        // Get the list of all jobInstance within the defined queue, ordered by position
-        QueryResult qr = cnx.runUpdate("ji_update_poll", this.engine.getNode().getId(), queue.getId(), maxNbThread - usedSlots);
-        if (qr.nbUpdated > 0)
+        int bottom = Math.min(minPollingInterval, pollingInterval);
+        if (found == 0)
         {
-            jqmlogger.debug("Poller has found {} JI to run", qr.nbUpdated);
+            effectivePollingInterval = (int) Math.min((long) effectivePollingInterval * 2, pollingInterval);
         }
-        if (qr.nbUpdated > 0)
+        else if (found >= freeSlots)
         {
-            List<JobInstance> res = JobInstance.select(cnx, "ji_select_to_run", this.engine.getNode().getId(), queue.getId());
-            if (res.size() == qr.nbUpdated)
-            {
-                cnx.commit();
-                return res;
-            }
-            else if (level <= 3)
-            {
-                // Try again. This means the jobs marked for exec on previous loop have not already started.
-                // So they were still in the SELECT WHERE STATE='ATTRIBUTED'.
-                // Happens when loop interval is too low (ms and not s), so only happens during tests.
-                jqmlogger.trace("Polling interval seems too low");
-                cnx.rollback();
-                Thread.yield();
-                return dequeue(cnx, level + 1);
-            }
-            else
+            effectivePollingInterval = bottom;
+        }
+        if (effectivePollingInterval < bottom)
+        {
+            effectivePollingInterval = bottom;
+        }
+    }
+
+    /**
+     * Called by the dispatcher before starting the job instances it has claimed for this poller. The reserved slots are taken at once, and
+     * must be either used by {@link #start(DbConn, JobInstance, Map)} or given back with {@link #releaseSlots(int)}.
+     * 
+     * @return the count of reserved slots, at most <code>wanted</code>. Claimed instances beyond this count should be prefetched.
+     */
+    synchronized int reserveSlots(int wanted)
+    {
+        if (!run)
+        {
+            return 0;
+        }
+        int res = Math.min(wanted, Math.max(0, maxNbThread - actualNbThread.get()));
+        actualNbThread.addAndGet(res);
+        return res;
+    }
+
+    /**
+     * See {@link #reserveSlots(int)}.
+     */
+    void releaseSlots(int count)
+    {
+        actualNbThread.addAndGet(-count);
+    }
+
+    /**
+     * Called by the dispatcher for the claimed job instances which cannot start right now. They wait inside the prefetch buffer for a
+     * running instance to end.
+     */
+    synchronized void prefetch(JobInstance ji)
+    {
+        jqmlogger.trace("JI number {} is prefetched on {}", ji.getId(), this.queue.getName());
+        prefetchLeaseEnd.put(ji.getId(), System.currentTimeMillis() + prefetchLeaseMs);
+        prefetched.add(ji);
+    }
+
+    /**
+     * Starts the next prefetched job instance if there is a free slot. Called when a job instance ends, so this does not wait for the next
+     * poll.
+     */
+    private synchronized void launchPrefetched()
+    {
+        if (!run || actualNbThread.get() >= maxNbThread)
+        {
+            return;
+        }
+        JobInstance ji = prefetched.poll();
+        if (ji == null)
+        {
+            return;
+        }
+
+        DbConn cnx = null;
+        try
+        {
+            // Only external launches need a session.
+            cnx = ji.getJD().isExternal() ? Helpers.getNewDbSession() : null;
+            prefetchLeaseEnd.remove(ji.getId());
+            launch(cnx, ji);
+        }
+        catch (RuntimeException e)
+        {
+            jqmlogger.warn("Could not start prefetched job instance " + ji.getId() + " - it will be retried", e);
+            prefetched.addFirst(ji);
+        }
+        finally
+        {
+            Helpers.closeQuietly(cnx);
+        }
+    }
+
+    /**
+     * Removes from the prefetch buffer the job instances which should go back to the queue: those which have waited for more than their
+     * lease, or all of them if the poller is stopping, paused or does not prefetch anymore. The caller is responsible for actually giving
+     * them back inside the database.
+     * 
+     * @return the removed job instances. Empty if none.
+     */
+    List<JobInstance> takeReleasablePrefetched(long now)
+    {
+        List<JobInstance> res = new ArrayList<JobInstance>();
+        if (prefetched.isEmpty())
+        {
+            return res;
+        }
+
+        boolean all = !run || maxNbThread == 0 || prefetch == 0;
+        for (JobInstance ji : prefetched)
+        {
+            Long leaseEnd = prefetchLeaseEnd.get(ji.getId());
+            if ((all || leaseEnd == null || leaseEnd <= now) && prefetched.remove(ji))
             {
-                // Simply give up. The engine is under such a heavy load that we should first deal with the backlog.
-                return null;
+                prefetchLeaseEnd.remove(ji.getId());
+                res.add(ji);
             }
         }
-        else
+        if (!res.isEmpty() && !all)
         {
-            return null;
+            // Running instances are long: stop prefetching until one ends, or the instances would just go round.
+            prefetchPaused = true;
         }
+        return res;
     }
 
-    @Override
-    public synchronized void run() // sync: avoid race condition on run when restarting after failure.
+    /**
+     * Puts back at the head of the prefetch buffer job instances removed by {@link #takeReleasablePrefetched(long)} which could not be
+     * given back to the queue, as they are still attributed to this node. They get a new lease: they may still start here, or will be
+     * given back when it ends.
+     */
+    synchronized void restorePrefetched(List<JobInstance> jis)
     {
-        this.localThread = Thread.currentThread();
-        this.localThread.setName("QUEUE_POLLER;polling;" + this.queue.getName());
-        DbConn cnx = null;
+        long leaseEnd = System.currentTimeMillis() + prefetchLeaseMs;
+        for (int i = jis.size() - 1; i >= 0; i--)
+        {
+            prefetchLeaseEnd.put(jis.get(i).getId(), leaseEnd);
+            prefetched.addFirst(jis.get(i));
+        }
+    }
 
-        while (true)
+    /**
+     * Takes a slot and starts a job instance which was not prepared by the dispatcher.
+     */
+    private void launch(DbConn cnx, JobInstance ji)
+    {
+        actualNbThread.incrementAndGet();
+        try
         {
-            lastLoop = Calendar.getInstance();
-            jqmlogger.trace("poller loop");
+            start(cnx, ji, null);
+        }
+        catch (RuntimeException e)
+        {
+            actualNbThread.decrementAndGet();
+            throw e;
+        }
+    }
 
-            try
+    /**
+     * Starts a job instance inside a slot previously reserved with {@link #reserveSlots(int)}.
+     * 
+     * @param cnx
+     *            only used by external job instances.
+     * @param params
+     *            the parameters of the instance if the dispatcher has already loaded them and marked the instance as running. If null, the
+     *            loader does it.
+     */
+    void start(DbConn cnx, JobInstance ji, Map<String, String> params)
+    {
+        // We will run this JI!
+        jqmlogger.trace("JI number {} will be run by this poller this loop (already {}/{} on {})", ji.getId(), actualNbThread, maxNbThread,
+                this.queue.getName());
+        jobInstanceStarting(ji);
+
+        // Run it
+        if (!ji.getJD().isExternal())
+        {
+            payloadThreads.run(new Loader(ji, this.engine, this, this.engine.getClassloaderManager(), params));
+        }
+        else
+        {
+            payloadThreads.run(new LoaderExternal(cnx, ji, this));
+        }
+    }
+
+    /**
+     * Starts a batch of job instances of the same job definition inside a single slot previously reserved with {@link #reserveSlots(int)}.
+     * The instances run one after the other on the same payload thread and with the same class loader, but each of them has its own loader
+     * and therefore its own history, messages and status. Each of them is marked as running (and its maximum run time starts) only when its
+     * own turn comes, and a failure of one of them does not prevent the next ones from running. The slot is freed once the last one has
+     * ended.
+     * 
+     * @param batch
+     *            the job instances, with their parameters loaded but not marked as running by the dispatcher. Never external.
+     * @param params
+     *            the parameters of the instances (key: job instance ID). Instances without parameters may be absent.
+     */
+    void startBatch(final List<JobInstance> batch, Map<Integer, Map<String, String>> params)
+    {
+        jqmlogger.trace("{} JI of job definition {} will be run as a batch by this poller this loop (already {}/{} on {})", batch.size(),
+                batch.get(0).getJD().getApplicationName(), actualNbThread, maxNbThread, this.queue.getName());
+        final List<Loader> loaders = new ArrayList<Loader>(batch.size());
+        for (JobInstance ji : batch)
+        {
+            Map<String, String> prms = params.get(ji.getId());
+            loaders.add(new Loader(ji, this.engine, this, this.engine.getClassloaderManager(),
+                    prms != null ? prms : new HashMap<String, String>(), true));
+        }
+        final int lastId = batch.get(batch.size() - 1).getId();
+
+        payloadThreads.run(new Runnable()
+        {
+            @Override
+            public void run()
             {
-                // Get a JI to run
-                cnx = Helpers.getNewDbSession();
-                refreshDeploymentParameter(cnx);
-                List<JobInstance> newInstances = dequeue(cnx, 1);
-                if (newInstances != null)
+                try
                 {
-                    for (JobInstance ji : newInstances)
+                    JarClassLoader previous = null;
+                    for (int i = 0; i < loaders.size(); i++)
                     {
-                        // We will run this JI!
-                        jqmlogger.trace("JI number {} will be run by this poller this loop (already {}/{} on {})", ji.getId(),
-                                actualNbThread, maxNbThread, this.queue.getName());
-                        actualNbThread.incrementAndGet();
-                        if (ji.getJD().getMaxTimeRunning() != null)
-                        {
-                            this.peremption.put(ji.getId(), new Date((new Date()).getTime() + ji.getJD().getMaxTimeRunning() * 60 * 1000));
-                        }
-
-                        // Run it
-                        if (!ji.getJD().isExternal())
+                        Loader l = loaders.get(i);
+                        try
                         {
-                            (new Thread(new Loader(ji, this.engine, this, this.engine.getClassloaderManager()))).start();
+                            jobInstanceStarting(batch.get(i));
+                            l.setBatchContext(i == loaders.size() - 1, previous);
+                            l.runPayload();
                         }
-                        else
+                        catch (Throwable t)
                         {
-                            (new Thread(new LoaderExternal(cnx, ji, this))).start();
+                            batchMemberFailed(l, t);
                         }
+                        previous = l.getUsedClassLoader() != null ? l.getUsedClassLoader() : previous;
                     }
                 }
-            }
-            catch (RuntimeException e)
-            {
-                if (Helpers.testDbFailure(e))
-                {
-                    jqmlogger.error("connection to database lost - stopping poller");
-                    jqmlogger.trace("connection error was:", e.getCause());
-                    this.hasStopped = true;
-                    this.engine.pollerRestartNeeded(this);
-                    break;
-                }
-                else
+                finally
                 {
-                    jqmlogger.error("Queue poller has failed! It will stop.", e);
-                    this.run = false;
-                    this.hasStopped = true;
-                    break;
+                    decreaseNbThread(lastId);
                 }
             }
-            finally
-            {
-                // Reset the connection on each loop.
-                Helpers.closeQuietly(cnx);
-            }
+        });
+    }
 
-            // Wait according to the deploymentParameter
-            try
-            {
-                loop.tryAcquire(this.pollingInterval, TimeUnit.MILLISECONDS);
-            }
-            catch (InterruptedException e)
-            {
-                run = false;
-                break;
-            }
+    /**
+     * Only this member of the batch fails: it is ended as crashed if it had not gone that far, and the batch goes on with the next one.
+     */
+    private void batchMemberFailed(Loader l, Throwable t)
+    {
+        jqmlogger.error("An unexpected error has occurred while running job instance " + l.getId()
+                + " inside a batch - the next job instances of the batch will run nevertheless", t);
+        try
+        {
+            l.endOfRun(State.CRASHED);
+        }
+        catch (RuntimeException e)
+        {
+            jqmlogger.error("Could not end job instance " + l.getId() + " after its failure", e);
+        }
+    }
 
-            // Exit if asked to
-            if (!run)
-            {
-                break;
-            }
+    private void jobInstanceStarting(JobInstance ji)
+    {
+        if (ji.getCreationDate() != null)
+        {
+            this.metrics.jobStarted(System.currentTimeMillis() - ji.getCreationDate().getTimeInMillis());
         }
+        if (ji.getJD().getMaxTimeRunning() != null)
+        {
+            this.peremption.put(ji.getId(), new Date((new Date()).getTime() + ji.getJD().getMaxTimeRunning() * 60 * 1000));
+        }
+    }
 
-        if (!run)
+    /**
+     * Called by the dispatcher on each of its loops once the poller has received a stop order. The poller actually ends when all its job
+     * instances are done or after a one minute timeout.
+     * 
+     * @return true if the poller has ended.
+     */
+    boolean tryEnd()
+    {
+        if (hasStopped)
         {
-            // Run is true only if the loop has exited abnormally, in which case the engine should try to restart the poller
-            // So only do the graceful shutdown procedure if normal shutdown.
+            return true;
+        }
 
+        long now = System.currentTimeMillis();
+        if (stopTime == 0)
+        {
+            stopTime = now;
             jqmlogger
                     .info("Poller loop on queue " + this.queue.getName() + " is stopping [engine " + this.engine.getNode().getName() + "]");
-            waitForAllThreads(60L * 1000);
-
-            // JMX
-            if (this.engine.loadJmxBeans)
+            if (actualNbThread.get() > 0)
             {
-                try
-                {
-                    ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
-                }
-                catch (Exception e)
-                {
-                    jqmlogger.error("Could not unregister JMX beans", e);
-                }
+                jqmlogger.info("Waiting for the end of {} jobs on queue {} - timeout is {} ms", actualNbThread, this.queue.getName(),
+                        STOP_TIMEOUT_MS);
             }
-
-            // Let the engine decide if it should stop completely
-            this.hasStopped = true; // BEFORE check
-            jqmlogger.info("Poller on queue " + this.queue.getName() + " has ended normally");
-            this.engine.checkEngineEnd();
         }
-        else
+        if (actualNbThread.get() > 0)
+        {
+            if (now - stopTime <= STOP_TIMEOUT_MS)
+            {
+                return false;
+            }
+            jqmlogger.warn("Some job instances did not finish in time - they will be killed for the poller to be able to stop");
+        }
+        payloadThreads.shutdown();
+
+        // JMX
+        if (this.engine.loadJmxBeans)
         {
-            // else => Abnormal stop (DB failure only). Set booleans to reflect this.
-            jqmlogger.error("Poller on queue " + this.queue.getName() + " has ended abnormally");
-            this.run = false;
-            this.hasStopped = true;
-            // Do not check for engine end - we do not want to shut down the engine on a poller failure.
+            try
+            {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            }
+            catch (Exception e)
+            {
+                jqmlogger.error("Could not unregister JMX beans", e);
+            }
         }
-        localThread = null;
+
+        // Let the engine decide if it should stop completely
+        this.hasStopped = true; // BEFORE check
+        jqmlogger.info("Poller on queue " + this.queue.getName() + " has ended normally");
+        this.engine.checkEngineEnd();
+        return true;
     }
 
     @Override
@@ -342,8 +559,32 @@ class QueuePoller implements Runnable, QueuePollerMBean
     {
         this.peremption.remove(jobId);
         this.actualNbThread.decrementAndGet();
-        loop.release(1);
-        this.engine.signalEndOfRun();
+        this.prefetchPaused = false;
+        launchPrefetched();
+        wakeUp();
+    }
+
+    /**
+     * Called when a member of a batch (see {@link #startBatch(List, Map)}) has ended. The slot stays taken by the rest of the batch.
+     */
+    void batchedJobInstanceEnded(int jobId)
+    {
+        this.peremption.remove(jobId);
+    }
+
+    /**
+     * Called when new job instances may be waiting inside the polled queue. The poller will be polled at once instead of waiting for the
+     * end of its polling interval. Signals are not cumulated.
+     */
+    void wakeUp()
+    {
+        this.pollNow = true;
+        this.engine.getDispatcher().wakeUp();
+    }
+
+    JobMetrics getMetrics()
+    {
+        return this.metrics;
     }
 
     boolean isRunning()
@@ -351,40 +592,12 @@ class QueuePoller implements Runnable, QueuePollerMBean
         return !this.hasStopped;
     }
 
-    private void waitForAllThreads(long timeOutMs)
+    /**
+     * False once the poller has received a stop order - it will not take any new job instance.
+     */
+    boolean isPolling()
     {
-        long timeWaitedMs = 0;
-        long stepMs = 1000;
-        while (timeWaitedMs <= timeOutMs)
-        {
-            jqmlogger.trace("Waiting the end of {} job(s)", actualNbThread);
-
-            if (actualNbThread.get() == 0)
-            {
-                break;
-            }
-            if (timeWaitedMs == 0)
-            {
-                jqmlogger.info("Waiting for the end of {} jobs on queue {} - timeout is {} ms", actualNbThread, this.queue.getName(),
-                        timeOutMs);
-            }
-            try
-            {
-                Thread.sleep(stepMs);
-            }
-            catch (InterruptedException e)
-            {
-                // Interruption => stop right now
-                jqmlogger.warn("Some job instances did not finish in time - wait was interrupted");
-                Thread.currentThread().interrupt();
-                return;
-            }
-            timeWaitedMs += stepMs;
-        }
-        if (timeWaitedMs > timeOutMs)
-        {
-            jqmlogger.warn("Some job instances did not finish in time - they will be killed for the poller to be able to stop");
-        }
+        return this.run;
     }
 
     Queue getQueue()
@@ -397,6 +610,11 @@ class QueuePoller implements Runnable, QueuePollerMBean
         return this.engine;
     }
 
+    int getDeploymentParameterId()
+    {
+        return this.dpId;
+    }
+
     void setMaxThreads(int max)
     {
         if (this.maxNbThread > 0 && max == 0)
@@ -408,11 +626,13 @@ class QueuePoller implements Runnable, QueuePollerMBean
             jqmlogger.info("Poller is being resumed");
         }
         this.maxNbThread = max;
+        this.payloadThreads.setSize(max);
     }
 
     void setPollingInterval(int ms)
     {
         this.pollingInterval = ms;
+        this.effectivePollingInterval = ms;
     }
 
     // //////////////////////////////////////////////////////////
@@ -422,30 +642,61 @@ class QueuePoller implements Runnable, QueuePollerMBean
     @Override
     public long getCumulativeJobInstancesCount()
     {
-        DbConn em2 = Helpers.getNewDbSession();
-        try
-        {
-            return em2.runSelectSingle("history_select_count_for_poller", Long.class, this.queue.getId(), this.engine.getNode().getId());
-        }
-        finally
-        {
-            Helpers.closeQuietly(em2);
-        }
+        return this.metrics.getEndedCount();
     }
 
     @Override
     public float getJobsFinishedPerSecondLastMinute()
     {
-        DbConn em2 = Helpers.getNewDbSession();
-        try
-        {
-            return em2.runSelectSingle("history_select_count_last_mn_for_poller", Float.class, this.queue.getId(),
-                    this.engine.getNode().getId());
-        }
-        finally
-        {
-            Helpers.closeQuietly(em2);
-        }
+        return this.metrics.getEndedPerSecond(1);
+    }
+
+    @Override
+    public float getJobsFinishedPerSecondLastFiveMinutes()
+    {
+        return this.metrics.getEndedPerSecond(5);
+    }
+
+    @Override
+    public float getJobsFinishedPerSecondLastFifteenMinutes()
+    {
+        return this.metrics.getEndedPerSecond(15);
+    }
+
+    @Override
+    public long getAverageQueueWaitMilliseconds()
+    {
+        return this.metrics.getQueueWait().getAverage();
+    }
+
+    @Override
+    public long getQueueWaitMilliseconds95thPercentile()
+    {
+        return this.metrics.getQueueWait().getPercentile(95);
+    }
+
+    @Override
+    public long getAverageRunTimeMilliseconds()
+    {
+        return this.metrics.getRunTime().getAverage();
+    }
+
+    @Override
+    public long getRunTimeMilliseconds95thPercentile()
+    {
+        return this.metrics.getRunTime().getPercentile(95);
+    }
+
+    @Override
+    public long getAverageEndOfRunLatencyMilliseconds()
+    {
+        return this.metrics.getEndOfRunLatency().getAverage();
+    }
+
+    @Override
+    public long getEndOfRunLatencyMilliseconds95thPercentile()
+    {
+        return this.metrics.getEndOfRunLatency().getPercentile(95);
     }
 
     @Override
@@ -460,17 +711,61 @@ class QueuePoller implements Runnable, QueuePollerMBean
         return this.pollingInterval;
     }
 
+    @Override
+    public Integer getEffectivePollingIntervalMilliseconds()
+    {
+        return this.effectivePollingInterval;
+    }
+
+    @Override
+    public float getPollHitRatio()
+    {
+        long polls = this.pollCount.get();
+        return polls == 0 ? 0 : (float) this.hitCount.get() / polls;
+    }
+
+    @Override
+    public int getPrefetchedJobInstanceCount()
+    {
+        return this.prefetched.size();
+    }
+
     @Override
     public Integer getMaxConcurrentJobInstanceCount()
     {
         return this.maxNbThread;
     }
 
+    @Override
+    public int getPayloadThreadPoolSize()
+    {
+        return this.payloadThreads.getPoolSize();
+    }
+
+    @Override
+    public int getPayloadThreadPoolActiveCount()
+    {
+        return this.payloadThreads.getActiveCount();
+    }
+
+    @Override
+    public long getPayloadThreadCreatedCount()
+    {
+        return this.payloadThreads.getCreatedThreadCount();
+    }
+
+    @Override
+    public long getAveragePayloadHandoffLatencyMicroseconds()
+    {
+        return this.payloadThreads.getAverageHandoffLatencyMicroseconds();
+    }
+
     @Override
     public boolean isActuallyPolling()
     {
         // 1000ms is a rough estimate of the time taken to do the actual poll. If it's more, there is a huge issue elsewhere.
-        return (Calendar.getInstance().getTimeInMillis() - this.lastLoop.getTimeInMillis()) <= pollingInterval + 1000;
+        Calendar last = this.lastLoop;
+        return last != null && (Calendar.getInstance().getTimeInMillis() - last.getTimeInMillis()) <= pollingInterval + 1000;
     }
 
     @Override
@@ -35,27 +35,107 @@ public interface QueuePollerMBean
      */
     Integer getPollingIntervalMilliseconds();
 
+    /**
+     * The polling interval currently used. It adapts to the activity of the queue, between a global minimum and
+     * {@link #getPollingIntervalMilliseconds()}.
+     */
+    Integer getEffectivePollingIntervalMilliseconds();
+
+    /**
+     * The ratio of polls which have found at least one job instance to run, among the polls made while the poller had free slots.
+     */
+    float getPollHitRatio();
+
+    /**
+     * The number of job instances claimed in advance, waiting for a free slot.
+     */
+    int getPrefetchedJobInstanceCount();
+
     /**
      * Max number of simultaneously running job instances on this queue on this engine
      */
     Integer getMaxConcurrentJobInstanceCount();
 
     /**
-     * The total number of job instances that were run on this node/queue since the last history purge.
+     * The total number of job instances that were run on this node/queue since the poller has started.
      */
     long getCumulativeJobInstancesCount();
 
     /**
-     * The number of job instances that ended in the last minute divided by 60. A better method is to call
-     * {@link #getCumulativeJobInstancesCount()} and compute deltas between calls.
+     * The number of job instances that ended in the last minute divided by 60.
      */
     float getJobsFinishedPerSecondLastMinute();
 
+    /**
+     * The number of job instances that ended in the last five minutes divided by 300.
+     */
+    float getJobsFinishedPerSecondLastFiveMinutes();
+
+    /**
+     * The number of job instances that ended in the last fifteen minutes divided by 900.
+     */
+    float getJobsFinishedPerSecondLastFifteenMinutes();
+
+    /**
+     * Average time between the creation of a job instance and the start of its run, for job instances started during the last five
+     * minutes.
+     */
+    long getAverageQueueWaitMilliseconds();
+
+    /**
+     * 95th percentile of the time between the creation of a job instance and the start of its run, for job instances started during the
+     * last five minutes. Approximate: the upper bound of a power of two range.
+     */
+    long getQueueWaitMilliseconds95thPercentile();
+
+    /**
+     * Average run time of the job instances that ended during the last five minutes.
+     */
+    long getAverageRunTimeMilliseconds();
+
+    /**
+     * 95th percentile of the run time of the job instances that ended during the last five minutes. Approximate: the upper bound of a
+     * power of two range.
+     */
+    long getRunTimeMilliseconds95thPercentile();
+
+    /**
+     * Average time between the end of a run and the storage of its results inside the database, during the last five minutes.
+     */
+    long getAverageEndOfRunLatencyMilliseconds();
+
+    /**
+     * 95th percentile of the time between the end of a run and the storage of its results inside the database, during the last five
+     * minutes. Approximate: the upper bound of a power of two range.
+     */
+    long getEndOfRunLatencyMilliseconds95thPercentile();
+
     /**
      * The number of currently running job instances
      */
     long getCurrentlyRunningJobCount();
 
+    /**
+     * The number of threads currently inside the payload thread pool, idle or not.
+     */
+    int getPayloadThreadPoolSize();
+
+    /**
+     * The number of pooled threads currently running a payload. Divide by {@link #getMaxConcurrentJobInstanceCount()} for utilisation.
+     */
+    int getPayloadThreadPoolActiveCount();
+
+    /**
+     * The number of payload threads created since the poller has started. Compare to {@link #getCumulativeJobInstancesCount()} to see
+     * thread reuse.
+     */
+    long getPayloadThreadCreatedCount();
+
+    /**
+     * The average time between a job instance being handed to the payload thread pool and the start of its run by a thread.
+     */
+    long getAveragePayloadHandoffLatencyMicroseconds();
+
     /**
      * True if the last time the poller looped was less than a period ago.
      */
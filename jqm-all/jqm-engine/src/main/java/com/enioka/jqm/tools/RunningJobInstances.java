@@ -0,0 +1,123 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.tools;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+
+/**
+ * The job instances running inside an engine, in a concurrent map. This is the single JMX bean for all of them: registering a bean per job
+ * instance is costly at high job rates, so per job instance beans can be disabled (<code>disableJmxJobInstances</code>) or created on
+ * demand.
+ */
+class RunningJobInstances implements RunningJobInstancesMBean
+{
+    private static final String[] COLUMNS = { "id", "applicationName", "queue", "user", "module", "sessionId", "keyword1", "keyword2",
+            "keyword3", "enqueueDate", "runTimeSeconds" };
+    private static final OpenType<?>[] TYPES = { SimpleType.INTEGER, SimpleType.STRING, SimpleType.STRING, SimpleType.STRING,
+            SimpleType.STRING, SimpleType.STRING, SimpleType.STRING, SimpleType.STRING, SimpleType.STRING, SimpleType.DATE, SimpleType.LONG };
+    private static final CompositeType ROW_TYPE;
+    private static final TabularType TABLE_TYPE;
+
+    static
+    {
+        try
+        {
+            ROW_TYPE = new CompositeType("RunningJobInstance", "A job instance running inside the engine", COLUMNS, COLUMNS, TYPES);
+            TABLE_TYPE = new TabularType("RunningJobInstances", "The job instances running inside the engine", ROW_TYPE,
+                    new String[] { "id" });
+        }
+        catch (OpenDataException e)
+        {
+            throw new JqmInitError("Could not create JMX types", e);
+        }
+    }
+
+    private final ConcurrentMap<Integer, Loader> loaders = new ConcurrentHashMap<Integer, Loader>();
+
+    void add(Loader l)
+    {
+        loaders.put(l.getId(), l);
+    }
+
+    void remove(Loader l)
+    {
+        loaders.remove(l.getId());
+    }
+
+    @Override
+    public TabularData getRunningJobInstances()
+    {
+        TabularDataSupport res = new TabularDataSupport(TABLE_TYPE);
+        long now = System.currentTimeMillis();
+        for (Loader l : loaders.values())
+        {
+            Calendar start = l.getExecutionDate();
+            Calendar enqueue = l.getEnqueueDate();
+            Object[] values = { l.getId(), l.getApplicationName(), l.getQueueName(), l.getUser(), l.getModule(), l.getSessionId(),
+                    l.getKeyword1(), l.getKeyword2(), l.getKeyword3(), enqueue == null ? null : new Date(enqueue.getTimeInMillis()),
+                    start == null ? 0L : (now - start.getTimeInMillis()) / 1000 };
+            try
+            {
+                res.put(new CompositeDataSupport(ROW_TYPE, COLUMNS, values));
+            }
+            catch (OpenDataException e)
+            {
+                throw new JqmRuntimeException("Could not describe running job instance " + l.getId(), e);
+            }
+        }
+        return res;
+    }
+
+    @Override
+    public int getRunningJobInstanceCount()
+    {
+        return loaders.size();
+    }
+
+    @Override
+    public void kill(int jobInstanceId)
+    {
+        Loader l = loaders.get(jobInstanceId);
+        if (l == null)
+        {
+            throw new IllegalArgumentException("Job instance " + jobInstanceId + " is not running inside this engine");
+        }
+        l.kill();
+    }
+
+    @Override
+    public void registerJobInstanceBean(int jobInstanceId)
+    {
+        Loader l = loaders.get(jobInstanceId);
+        if (l == null)
+        {
+            throw new IllegalArgumentException("Job instance " + jobInstanceId + " is not running inside this engine");
+        }
+        l.registerMBean();
+    }
+}
@@ -0,0 +1,47 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.tools;
+
+import javax.management.openmbean.TabularData;
+
+/**
+ * Monitoring interface for all the job instances running inside an engine. It is always available (when JMX is enabled), even when the
+ * per job instance beans are disabled.
+ */
+public interface RunningJobInstancesMBean
+{
+    /**
+     * One line per running job instance, with columns id, applicationName, queue, user, module, sessionId, keyword1, keyword2, keyword3,
+     * enqueueDate and runTimeSeconds. Does not use the database.
+     */
+    TabularData getRunningJobInstances();
+
+    /**
+     * The number of currently running job instances.
+     */
+    int getRunningJobInstanceCount();
+
+    /**
+     * Tries to kill the given job instance, if it is running inside this engine.
+     */
+    void kill(int jobInstanceId);
+
+    /**
+     * Creates the dedicated bean (type=Node.Queue.JobInstance) of a running job instance, even when per job instance beans are disabled. It
+     * is removed when the job instance ends.
+     */
+    void registerJobInstanceBean(int jobInstanceId);
+}
@@ -0,0 +1,311 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.tools;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.enioka.jqm.model.Cl;
+import com.enioka.jqm.model.JobDef;
+import com.enioka.jqm.model.JobInstance;
+
+/**
+ * The warm pools of class loaders of an engine, one per job definition with a {@link JobDef#getWarmPoolSize()}. A pooled class loader is
+ * ready to run a job instance: class path built, payload class loaded and initialised (static initialisers, which may build Spring
+ * contexts or Hibernate session factories, have run) and runner resolved. Each pooled class loader is given to a single job instance,
+ * exactly as the new isolated class loader it replaces, so nothing is shared between job instances.<br>
+ * A pool is filled after each use of its job definition - the first instance is always a cold start - by its own background thread, so
+ * that a payload hanging inside its static initialisers only stalls its own pool. This thread ends when the pool is full. A pool is
+ * dropped once its job definition has not been used for <code>warmPoolIdleSeconds</code> (a global parameter), or has changed.
+ */
+class WarmClassLoaderPool
+{
+    private static Logger jqmlogger = LoggerFactory.getLogger(WarmClassLoaderPool.class);
+    private static final long EVICTION_PERIOD_MS = 10000;
+    private static final long PREPARER_KEEP_ALIVE_MS = 10000;
+
+    private final ClassloaderManager clm;
+    private final ConcurrentMap<Integer, Pool> pools = new ConcurrentHashMap<Integer, Pool>();
+    private final AtomicLong warmStarts = new AtomicLong(0);
+    private final AtomicLong coldStarts = new AtomicLong(0);
+    private volatile long idleMs = 600000;
+    private ScheduledExecutorService evictor = null;
+
+    WarmClassLoaderPool(ClassloaderManager clm)
+    {
+        this.clm = clm;
+    }
+
+    void setIdleSeconds(int seconds)
+    {
+        this.idleMs = seconds * 1000L;
+    }
+
+    /**
+     * Takes a ready class loader for the job definition of the given job instance, and has the pool refilled in the background.
+     *
+     * @return null if none is ready (cold start): the caller must then create the class loader itself.
+     */
+    JarClassLoader take(JobInstance ji)
+    {
+        JobDef jd = ji.getJD();
+        String signature = getSignature(jd);
+        Pool pool = pools.get(jd.getId());
+        if (pool != null && !pool.signature.equals(signature))
+        {
+            // The job definition has changed: its class loaders are stale.
+            drop(jd.getId(), pool);
+            pool = null;
+        }
+        if (pool == null)
+        {
+            Pool newPool = new Pool(jd.getId(), signature);
+            pool = pools.putIfAbsent(jd.getId(), newPool);
+            pool = pool == null ? newPool : pool;
+        }
+        pool.lastUsed = System.currentTimeMillis();
+        pool.template = ji;
+
+        JarClassLoader res = pool.ready.poll();
+        if (res != null)
+        {
+            jqmlogger.debug("Using a warm class loader for job definition " + jd.getApplicationName());
+            warmStarts.incrementAndGet();
+        }
+        else
+        {
+            coldStarts.incrementAndGet();
+        }
+        refill(jd.getId(), pool, jd.getWarmPoolSize());
+        return res;
+    }
+
+    private synchronized void refill(final int jdId, final Pool pool, int size)
+    {
+        if (evictor == null)
+        {
+            evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, "WARM_CLASSLOADER_POOL;eviction;");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            evictor.scheduleWithFixedDelay(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    evictIdle();
+                }
+            }, EVICTION_PERIOD_MS, EVICTION_PERIOD_MS, TimeUnit.MILLISECONDS);
+        }
+
+        while (pool.ready.size() + pool.pending.get() < size)
+        {
+            pool.pending.incrementAndGet();
+            try
+            {
+                pool.preparer.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        prepare(jdId, pool);
+                    }
+                });
+            }
+            catch (RejectedExecutionException e)
+            {
+                // Pool dropped meanwhile.
+                pool.pending.decrementAndGet();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Pool thread only. Creates and prepares a class loader for the pool, from the job instance which has last used it.
+     */
+    private void prepare(int jdId, Pool pool)
+    {
+        try
+        {
+            if (pool.dropped)
+            {
+                return;
+            }
+            JobInstance template = pool.template;
+            JarClassLoader cl = clm.createIsolatedClassloader(template);
+            cl.prepare(template.getJD(), clm);
+            synchronized (pool)
+            {
+                if (!pool.dropped)
+                {
+                    pool.ready.add(cl);
+                    jqmlogger.debug("A warm class loader is ready for job definition " + template.getJD().getApplicationName());
+                    return;
+                }
+            }
+            ClassLoaderLeakCleaner.clean(cl);
+        }
+        catch (Exception e)
+        {
+            // If the error is not transient, the job instances will meet it again on their cold start and crash with it.
+            jqmlogger.warn("Could not prepare a warm class loader for job definition " + jdId + " - its instances will start cold", e);
+        }
+        finally
+        {
+            pool.pending.decrementAndGet();
+        }
+    }
+
+    private void evictIdle()
+    {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Integer, Pool> e : pools.entrySet())
+        {
+            if (now - e.getValue().lastUsed > idleMs)
+            {
+                jqmlogger.debug("Warm class loaders of job definition " + e.getKey() + " are evicted as it was not used recently");
+                drop(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    private void drop(int jdId, Pool pool)
+    {
+        pools.remove(jdId, pool);
+        synchronized (pool)
+        {
+            pool.dropped = true;
+            pool.preparer.shutdownNow();
+            JarClassLoader cl;
+            while ((cl = pool.ready.poll()) != null)
+            {
+                ClassLoaderLeakCleaner.clean(cl);
+            }
+        }
+    }
+
+    /**
+     * Drops all the pools and stops the background threads. The pools start again on next use.
+     */
+    synchronized void stop()
+    {
+        if (evictor != null)
+        {
+            evictor.shutdownNow();
+            evictor = null;
+        }
+        for (Map.Entry<Integer, Pool> e : pools.entrySet())
+        {
+            drop(e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * Everything inside the job definition which is used to build its class loaders.
+     */
+    private static String getSignature(JobDef jd)
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append(jd.getJarPath()).append(';').append(jd.getJavaClassName()).append(';').append(jd.getPathType());
+        Cl cldef = jd.getClassLoader();
+        if (cldef != null)
+        {
+            sb.append(';').append(cldef.getId()).append(';').append(cldef.isChildFirst()).append(';').append(cldef.getHiddenClasses())
+                    .append(';').append(cldef.isTracingEnabled()).append(';').append(cldef.getAllowedRunners());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The number of job instances which have started with a class loader taken from a pool.
+     */
+    long getWarmStartCount()
+    {
+        return warmStarts.get();
+    }
+
+    /**
+     * The number of job instances of job definitions with a pool which have found it empty, and have built their own class loader.
+     */
+    long getColdStartCount()
+    {
+        return coldStarts.get();
+    }
+
+    /**
+     * The number of class loaders currently ready, all job definitions together.
+     */
+    int getReadyCount()
+    {
+        int res = 0;
+        for (Pool pool : pools.values())
+        {
+            res += pool.ready.size();
+        }
+        return res;
+    }
+
+    private static class Pool
+    {
+        private final String signature;
+        private final ThreadPoolExecutor preparer;
+        private final ConcurrentLinkedQueue<JarClassLoader> ready = new ConcurrentLinkedQueue<JarClassLoader>();
+        private final AtomicInteger pending = new AtomicInteger(0);
+        private volatile long lastUsed;
+        private volatile JobInstance template;
+        private volatile boolean dropped = false;
+
+        private Pool(final int jdId, String signature)
+        {
+            this.signature = signature;
+
+            // A single thread, only alive while the pool is being filled. The queue holds at most the pool size.
+            this.preparer = new ThreadPoolExecutor(1, 1, PREPARER_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory()
+                    {
+                        @Override
+                        public Thread newThread(Runnable r)
+                        {
+                            Thread t = new Thread(r, "WARM_CLASSLOADER_POOL;" + jdId + ";");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            this.preparer.allowCoreThreadTimeOut(true);
+        }
+    }
+}
@@ -0,0 +1,536 @@
+package com.enioka.jqm.tools;
+
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.enioka.jqm.jdbc.DbConn;
+import com.enioka.jqm.model.Instruction;
+import com.enioka.jqm.model.JobDef;
+import com.enioka.jqm.model.JobInstance;
+import com.enioka.jqm.model.MetadataCache;
+import com.enioka.jqm.model.Node;
+import com.enioka.jqm.model.Queue;
+import com.enioka.jqm.model.RunningCounter;
+import com.enioka.jqm.model.State;
+import com.enioka.jqm.test.helpers.CreationTools;
+import com.enioka.jqm.test.helpers.TestHelpers;
+
+/**
+ * Tests of the atomic job instance claim used by the queue pollers. Pollers here are simple threads calling the claim in a loop, as
+ * different nodes would - no engine is started.
+ */
+public class ClaimTest extends JqmBaseTest
+{
+    private static final int NB_JI = 1000;
+    private static final int SLOTS = 10;
+
+    @Test
+    public void testClaimOnePoller() throws Exception
+    {
+        claimWithCompetingPollers(1);
+    }
+
+    @Test
+    public void testClaimFourPollers() throws Exception
+    {
+        claimWithCompetingPollers(4);
+    }
+
+    @Test
+    public void testClaimSixteenPollers() throws Exception
+    {
+        claimWithCompetingPollers(16);
+    }
+
+    @Test
+    public void testSelectWithMetadataCache() throws Exception
+    {
+        int qId = Queue.create(cnx, "testqueue", "", false);
+        int jdId = CreationTools.createJobDef(null, true, "pyl.Nothing", null, "jqm-tests/jqm-test-pyl/target/test.jar", qId, 42,
+                "jqm-test-cache", null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        for (int i = 0; i < 3; i++)
+        {
+            JobInstance.enqueue(cnx, State.SUBMITTED, qId, jdId, null, null, null, null, null, null, null, null, null, false, false, null,
+                    0, Instruction.RUN, null);
+        }
+        cnx.commit();
+        List<Integer> claimed = JobInstance.claim(cnx, TestHelpers.node.getId(), qId, SLOTS);
+        cnx.commit();
+        Assert.assertEquals(3, claimed.size());
+
+        // Referenced objects are loaded once and shared.
+        List<JobInstance> jis = JobInstance.select(cnx, "ji_select_by_id_list", claimed);
+        long hits = MetadataCache.getCacheHits(db);
+        jis.addAll(JobInstance.select(cnx, "ji_select_by_id_list", claimed));
+        Assert.assertEquals(hits + 9, MetadataCache.getCacheHits(db));
+        Assert.assertEquals(6, jis.size());
+        for (JobInstance ji : jis)
+        {
+            Assert.assertSame(jis.get(0).getJD(), ji.getJD());
+            Assert.assertSame(jis.get(0).getQ(), ji.getQ());
+            Assert.assertSame(jis.get(0).getNode(), ji.getNode());
+        }
+        Assert.assertEquals("jqm-test-cache", jis.get(0).getJD().getApplicationName());
+        Assert.assertTrue(jis.get(0).getJD().isEnabled());
+        Assert.assertEquals("testqueue", jis.get(0).getQ().getName());
+        Assert.assertEquals(TestHelpers.node.getName(), jis.get(0).getNode().getName());
+
+        // A committed modification is seen at once.
+        cnx.runUpdate("jd_update_set_enabled_by_id", false, jdId);
+        cnx.commit();
+        JobInstance ji = JobInstance.select_id(cnx, claimed.get(0));
+        Assert.assertNotSame(jis.get(0).getJD(), ji.getJD());
+        Assert.assertFalse(ji.getJD().isEnabled());
+    }
+
+    @Test
+    public void testClaimHighlander() throws Exception
+    {
+        int qId = Queue.create(cnx, "testqueue", "", false);
+        int jdId = CreationTools.createJobDef(null, true, "pyl.Nothing", null, "jqm-tests/jqm-test-pyl/target/test.jar", qId, 42,
+                "jqm-test-highlander", null, "Franquin", "ModuleMachin", "other", "other", true, cnx);
+        JobInstance.enqueue(cnx, State.SUBMITTED, qId, jdId, null, null, null, null, null, null, null, null, null, true, false, null, 0,
+                Instruction.RUN, null);
+        cnx.commit();
+        Assert.assertEquals(1, JobInstance.claim(cnx, TestHelpers.node.getId(), qId, SLOTS).size());
+        cnx.commit();
+
+        // A new highlander instance can be submitted once the first one has left the queue, but it cannot run at the same time.
+        JobInstance.enqueue(cnx, State.SUBMITTED, qId, jdId, null, null, null, null, null, null, null, null, null, true, false, null, 0,
+                Instruction.RUN, null);
+        cnx.commit();
+        Assert.assertEquals(0, JobInstance.claim(cnx, TestHelpers.node2.getId(), qId, SLOTS).size());
+        cnx.commit();
+    }
+
+    @Test
+    public void testClaimHighlanderLockReleased() throws Exception
+    {
+        int qId = Queue.create(cnx, "testqueue", "", false);
+        int jdId = CreationTools.createJobDef(null, true, "pyl.Nothing", null, "jqm-tests/jqm-test-pyl/target/test.jar", qId, 42,
+                "jqm-test-highlander", null, "Franquin", "ModuleMachin", "other", "other", true, cnx);
+        JobInstance.enqueue(cnx, State.SUBMITTED, qId, jdId, null, null, null, null, null, null, null, null, null, true, false, null, 0,
+                Instruction.RUN, null);
+        cnx.commit();
+        List<Integer> first = JobInstance.claim(cnx, TestHelpers.node.getId(), qId, SLOTS);
+        Assert.assertEquals(1, first.size());
+        cnx.commit();
+        Assert.assertEquals(1, (int) cnx.runSelectSingle("hl_select_count_all", Integer.class));
+
+        JobInstance.enqueue(cnx, State.SUBMITTED, qId, jdId, null, null, null, null, null, null, null, null, null, true, false, null, 0,
+                Instruction.RUN, null);
+        cnx.commit();
+        Assert.assertEquals(0, JobInstance.claim(cnx, TestHelpers.node2.getId(), qId, SLOTS).size());
+        cnx.commit();
+
+        // End of the first instance, as done by the engine: the lock goes with it.
+        cnx.runUpdate("hl_delete_by_ji", first.get(0));
+        cnx.runUpdate("ji_delete_by_id", first.get(0));
+        cnx.commit();
+        Assert.assertEquals(1, JobInstance.claim(cnx, TestHelpers.node2.getId(), qId, SLOTS).size());
+        cnx.commit();
+    }
+
+    @Test
+    public void testClaimHighlanderLockCollision() throws Exception
+    {
+        int qId = Queue.create(cnx, "testqueue", "", false);
+        int jdId = CreationTools.createJobDef(null, true, "pyl.Nothing", null, "jqm-tests/jqm-test-pyl/target/test.jar", qId, 42,
+                "jqm-test-highlander", null, "Franquin", "ModuleMachin", "other", "other", true, cnx);
+        int jiId = JobInstance.enqueue(cnx, State.SUBMITTED, qId, jdId, null, null, null, null, null, null, null, null, null, true, false,
+                null, 0, Instruction.RUN, null);
+        cnx.commit();
+
+        // Another node took the lock between the candidate selection and the lock insert: the instance loses, the transaction goes on.
+        cnx.runUpdate("hl_insert", jdId, jiId + 1000);
+        Assert.assertEquals(Arrays.asList(jiId), cnx.lockHighlanders(Arrays.asList(jiId)));
+        Assert.assertEquals(1, (int) cnx.runSelectSingle("hl_select_count_all", Integer.class));
+        cnx.commit();
+
+        cnx.runUpdate("hl_delete_all");
+        cnx.commit();
+        Assert.assertEquals(1, JobInstance.claim(cnx, TestHelpers.node.getId(), qId, SLOTS).size());
+        cnx.commit();
+    }
+
+    @Test
+    public void testClaimMultipleQueues() throws Exception
+    {
+        Map<Integer, Integer> slotsByQueue = new HashMap<Integer, Integer>();
+        Map<Integer, Integer> enqueuedByQueue = new HashMap<Integer, Integer>();
+        for (int i = 0; i < 3; i++)
+        {
+            int qId = Queue.create(cnx, "testqueue" + i, "", false);
+            int jdId = CreationTools.createJobDef(null, true, "pyl.Nothing", null, "jqm-tests/jqm-test-pyl/target/test.jar", qId, 42,
+                    "jqm-test-claim" + i, null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+            for (int j = 0; j < 5; j++)
+            {
+                JobInstance.enqueue(cnx, State.SUBMITTED, qId, jdId, null, null, null, null, null, null, null, null, null, false, false, null,
+                        0, Instruction.RUN, null);
+            }
+            slotsByQueue.put(qId, 2 + i * 2); // 2, 4, 6 (more than enqueued)
+            enqueuedByQueue.put(qId, 5);
+        }
+        cnx.commit();
+
+        List<Integer> claimed = JobInstance.claim(cnx, TestHelpers.node.getId(), slotsByQueue);
+        cnx.commit();
+        Assert.assertEquals(2 + 4 + 5, claimed.size());
+        Assert.assertEquals(claimed.size(), new HashSet<Integer>(claimed).size());
+
+        Map<Integer, Integer> claimedByQueue = new HashMap<Integer, Integer>();
+        for (JobInstance ji : JobInstance.select(cnx, "ji_select_by_id_list", claimed))
+        {
+            Assert.assertEquals(State.ATTRIBUTED, ji.getState());
+            claimedByQueue.put(ji.getQueue(), (claimedByQueue.containsKey(ji.getQueue()) ? claimedByQueue.get(ji.getQueue()) : 0) + 1);
+        }
+        for (Map.Entry<Integer, Integer> e : slotsByQueue.entrySet())
+        {
+            Assert.assertEquals(Math.min(e.getValue(), enqueuedByQueue.get(e.getKey())), (int) claimedByQueue.get(e.getKey()));
+        }
+
+        // Only the leftovers of the first two queues remain (3 and 1), still limited by the slots.
+        Assert.assertEquals(2 + 1, JobInstance.claim(cnx, TestHelpers.node.getId(), slotsByQueue).size());
+        cnx.commit();
+    }
+
+    @Test
+    public void testClaimWarmHeadStart() throws Exception
+    {
+        int qId = Queue.create(cnx, "testqueue", "", false);
+        int qId2 = Queue.create(cnx, "testqueue2", "", false);
+        int jdId = CreationTools.createJobDef(null, true, "pyl.Nothing", null, "jqm-tests/jqm-test-pyl/target/test.jar", qId, 42,
+                "jqm-test-warm", null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        for (int i = 0; i < 3; i++)
+        {
+            JobInstance.enqueue(cnx, State.SUBMITTED, qId, jdId, null, null, null, null, null, null, null, null, null, false, false, null,
+                    0, Instruction.RUN, null);
+        }
+        cnx.runUpdate("warm_insert", TestHelpers.node2.getId(), jdId);
+        cnx.commit();
+
+        Map<Integer, Integer> oneQueue = new HashMap<Integer, Integer>();
+        oneQueue.put(qId, 1);
+        Map<Integer, Integer> twoQueues = new HashMap<Integer, Integer>();
+        twoQueues.put(qId, 1);
+        twoQueues.put(qId2, 1);
+
+        // Warm on another node: left to it during the head start, whatever the claim path.
+        Assert.assertEquals(0, JobInstance.claim(cnx, TestHelpers.node.getId(), oneQueue, 3600).size());
+        Assert.assertEquals(0, JobInstance.claim(cnx, TestHelpers.node.getId(), twoQueues, 3600).size());
+        Assert.assertEquals(1, JobInstance.claim(cnx, TestHelpers.node.getId(), oneQueue, 0).size());
+        Assert.assertEquals(1, JobInstance.claim(cnx, TestHelpers.node2.getId(), oneQueue, 3600).size());
+        cnx.commit();
+
+        // Head start is over.
+        Thread.sleep(2100);
+        Assert.assertEquals(1, JobInstance.claim(cnx, TestHelpers.node.getId(), oneQueue, 2).size());
+        cnx.commit();
+
+        // Warm on both nodes: no head start between them.
+        JobInstance.enqueue(cnx, State.SUBMITTED, qId, jdId, null, null, null, null, null, null, null, null, null, false, false, null, 0,
+                Instruction.RUN, null);
+        cnx.runUpdate("warm_insert", TestHelpers.node.getId(), jdId);
+        cnx.commit();
+        Assert.assertEquals(1, JobInstance.claim(cnx, TestHelpers.node.getId(), twoQueues, 3600).size());
+        cnx.commit();
+    }
+
+    @Test
+    public void testWarmJobDefsOfDeadNodesPurged() throws Exception
+    {
+        int qId = Queue.create(cnx, "testqueue", "", false);
+        int jdId = CreationTools.createJobDef(null, true, "pyl.Nothing", null, "jqm-tests/jqm-test-pyl/target/test.jar", qId, 42,
+                "jqm-test-warm", null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        Helpers.setSingleParam("internalPollingPeriodMs", "100", cnx);
+
+        // localhost2 has never been seen alive: its head start must not outlive it.
+        cnx.runUpdate("warm_insert", TestHelpers.node2.getId(), jdId);
+        cnx.commit();
+        Assert.assertEquals(1, countWarmJobDefs(TestHelpers.node2.getId()));
+
+        addAndStartEngine();
+        for (int i = 0; i < 50 && countWarmJobDefs(TestHelpers.node2.getId()) > 0; i++)
+        {
+            sleepms(100);
+        }
+        Assert.assertEquals(0, countWarmJobDefs(TestHelpers.node2.getId()));
+    }
+
+    @Test
+    public void testClaimConcurrencyLimits() throws Exception
+    {
+        int qId = Queue.create(cnx, "testqueue", "", false, false, 3);
+        int jdId = CreationTools.createJobDef(null, true, "pyl.Nothing", null, "jqm-tests/jqm-test-pyl/target/test.jar", qId, 42,
+                "jqm-test-limit", null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        int jdId2 = CreationTools.createJobDef(null, true, "pyl.Nothing", null, "jqm-tests/jqm-test-pyl/target/test.jar", qId, 42,
+                "jqm-test-limit2", null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        JobDef jd = JobDef.select_key(cnx, "jqm-test-limit");
+        jd.setMaxRunning(2);
+        jd.update(cnx, new HashMap<String, String>());
+        for (int i = 0; i < 5; i++)
+        {
+            JobInstance.enqueue(cnx, State.SUBMITTED, qId, jdId, null, null, null, null, null, null, null, null, null, false, false, null,
+                    0, Instruction.RUN, null);
+        }
+        cnx.commit();
+        Assert.assertEquals(2, countRunningCounters());
+
+        // Only two instances of the limited job definition, even with free slots on two nodes.
+        List<Integer> claimed = JobInstance.claim(cnx, TestHelpers.node.getId(), qId, SLOTS);
+        cnx.commit();
+        Assert.assertEquals(2, claimed.size());
+        Assert.assertEquals(0, JobInstance.claim(cnx, TestHelpers.node2.getId(), qId, SLOTS).size());
+        cnx.commit();
+
+        // The queue limit applies to all job definitions.
+        for (int i = 0; i < 5; i++)
+        {
+            JobInstance.enqueue(cnx, State.SUBMITTED, qId, jdId2, null, null, null, null, null, null, null, null, null, false, false, null,
+                    0, Instruction.RUN, null);
+        }
+        cnx.commit();
+        Assert.assertEquals(1, JobInstance.claim(cnx, TestHelpers.node2.getId(), qId, SLOTS).size());
+        cnx.commit();
+        Assert.assertEquals(0, JobInstance.claim(cnx, TestHelpers.node.getId(), qId, SLOTS).size());
+        cnx.commit();
+
+        // End of an instance, as done by the engine: its place is given to the next one.
+        JobInstance ended = JobInstance.select_id(cnx, claimed.get(0));
+        cnx.runUpdate("ji_delete_by_id", ended.getId());
+        RunningCounter.release(cnx, Collections.singletonList(new int[] { ended.getJdId(), ended.getQueue() }));
+        cnx.commit();
+        List<Integer> next = JobInstance.claim(cnx, TestHelpers.node2.getId(), qId, SLOTS);
+        cnx.commit();
+        Assert.assertEquals(1, next.size());
+        Assert.assertEquals(jdId, (int) JobInstance.select_id(cnx, next.get(0)).getJdId());
+
+        // Removing the limits removes the counters.
+        jd.setMaxRunning(null);
+        jd.update(cnx, new HashMap<String, String>());
+        Queue q = Queue.select(cnx, "q_select_by_id", qId).get(0);
+        q.setMaxRunning(null);
+        q.update(cnx);
+        cnx.commit();
+        Assert.assertEquals(0, countRunningCounters());
+        Assert.assertEquals(2 + 4, JobInstance.claim(cnx, TestHelpers.node.getId(), qId, SLOTS).size());
+        cnx.commit();
+    }
+
+    @Test
+    public void testClaimRateLimit() throws Exception
+    {
+        int qId = Queue.create(cnx, "testqueue", "", false, false, null, 2d);
+        int qId2 = Queue.create(cnx, "testqueue2", "", false);
+        int jdId = CreationTools.createJobDef(null, true, "pyl.Nothing", null, "jqm-tests/jqm-test-pyl/target/test.jar", qId, 42,
+                "jqm-test-rate", null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        for (int i = 0; i < 10; i++)
+        {
+            JobInstance.enqueue(cnx, State.SUBMITTED, qId, jdId, null, null, null, null, null, null, null, null, null, false, false, null,
+                    0, Instruction.RUN, null);
+            JobInstance.enqueue(cnx, State.SUBMITTED, qId2, jdId, null, null, null, null, null, null, null, null, null, false, false, null,
+                    0, Instruction.RUN, null);
+        }
+        cnx.commit();
+
+        Map<Integer, Integer> twoQueues = new HashMap<Integer, Integer>();
+        twoQueues.put(qId, SLOTS);
+        twoQueues.put(qId2, 3);
+
+        // The bucket starts full (one second of starts), whatever the free slots and nodes. Other queues are not limited.
+        Assert.assertEquals(2 + 3, JobInstance.claim(cnx, TestHelpers.node.getId(), twoQueues).size());
+        cnx.commit();
+        Assert.assertEquals(0, JobInstance.claim(cnx, TestHelpers.node2.getId(), qId, SLOTS).size());
+        cnx.commit();
+
+        // Refilled with time.
+        Thread.sleep(1100);
+        Assert.assertEquals(2, JobInstance.claim(cnx, TestHelpers.node2.getId(), qId, SLOTS).size());
+        cnx.commit();
+
+        // Removing the limit removes the bucket.
+        Queue q = Queue.select(cnx, "q_select_by_id", qId).get(0);
+        q.setMaxRate(null);
+        q.update(cnx);
+        cnx.commit();
+        Assert.assertEquals(10 - 4, JobInstance.claim(cnx, TestHelpers.node.getId(), qId, SLOTS).size());
+        cnx.commit();
+    }
+
+    @Test
+    public void testClaimBatch() throws Exception
+    {
+        int qId = Queue.create(cnx, "testqueue", "", false);
+        int jdId = CreationTools.createJobDef(null, true, "pyl.Nothing", null, "jqm-tests/jqm-test-pyl/target/test.jar", qId, 42,
+                "jqm-test-batch", null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        int jdId2 = CreationTools.createJobDef(null, true, "pyl.Nothing", null, "jqm-tests/jqm-test-pyl/target/test.jar", qId, 42,
+                "jqm-test-batch2", null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        int jdIdHl = CreationTools.createJobDef(null, true, "pyl.Nothing", null, "jqm-tests/jqm-test-pyl/target/test.jar", qId, 42,
+                "jqm-test-batch-hl", null, "Franquin", "ModuleMachin", "other", "other", true, cnx);
+        for (int i = 0; i < 5; i++)
+        {
+            JobInstance.enqueue(cnx, State.SUBMITTED, qId, jdId2, null, null, null, null, null, null, null, null, null, false, false, null,
+                    0, Instruction.RUN, null);
+            JobInstance.enqueue(cnx, State.SUBMITTED, qId, jdId, null, null, null, null, null, null, null, null, null, false, false, null,
+                    0, Instruction.RUN, null);
+        }
+        JobInstance.enqueue(cnx, State.SUBMITTED, qId, jdIdHl, null, null, null, null, null, null, null, null, null, true, false, null, 0,
+                Instruction.RUN, null);
+        cnx.commit();
+
+        // Only instances of the given job definition, at most the given count.
+        List<Integer> claimed = JobInstance.claimBatch(cnx, TestHelpers.node.getId(), qId, jdId, 3);
+        cnx.commit();
+        Assert.assertEquals(3, claimed.size());
+        for (Integer id : claimed)
+        {
+            JobInstance ji = JobInstance.select_id(cnx, id);
+            Assert.assertEquals(jdId, (int) ji.getJdId());
+            Assert.assertEquals(State.ATTRIBUTED, ji.getState());
+        }
+        Assert.assertEquals(2, JobInstance.claimBatch(cnx, TestHelpers.node2.getId(), qId, jdId, SLOTS).size());
+        cnx.commit();
+        Assert.assertEquals(0, JobInstance.claimBatch(cnx, TestHelpers.node.getId(), qId, jdId, SLOTS).size());
+        cnx.commit();
+
+        // Highlander instances are never batched.
+        Assert.assertEquals(0, JobInstance.claimBatch(cnx, TestHelpers.node.getId(), qId, jdIdHl, SLOTS).size());
+        cnx.commit();
+        Assert.assertEquals(5 + 1, JobInstance.claim(cnx, TestHelpers.node.getId(), qId, SLOTS).size());
+        cnx.commit();
+    }
+
+    private int countRunningCounters() throws Exception
+    {
+        int res = 0;
+        ResultSet rs = cnx.runSelect("rc_select_all");
+        while (rs.next())
+        {
+            res++;
+        }
+        rs.close();
+        return res;
+    }
+
+    private int countWarmJobDefs(int nodeId) throws Exception
+    {
+        DbConn cnx2 = getNewDbSession();
+        try
+        {
+            int res = 0;
+            ResultSet rs = cnx2.runSelect("warm_select_jd_for_node", nodeId);
+            while (rs.next())
+            {
+                res++;
+            }
+            rs.close();
+            return res;
+        }
+        finally
+        {
+            cnx2.close();
+        }
+    }
+
+    private void claimWithCompetingPollers(int nbPollers) throws Exception
+    {
+        int qId = Queue.create(cnx, "testqueue", "", false);
+        int jdId = CreationTools.createJobDef(null, true, "pyl.Nothing", null, "jqm-tests/jqm-test-pyl/target/test.jar", qId, 42,
+                "jqm-test-claim", null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        for (int i = 0; i < NB_JI; i++)
+        {
+            JobInstance.enqueue(cnx, State.SUBMITTED, qId, jdId, null, null, null, null, null, null, null, null, null, false, false, null, 0,
+                    Instruction.RUN, null);
+        }
+        final List<Integer> nodes = new ArrayList<Integer>(nbPollers);
+        for (int i = 0; i < nbPollers; i++)
+        {
+            nodes.add(Node.create(cnx, "claimnode" + i, 0, "./target/outputfiles/", "./../", "./target/tmp", "localhost", "INFO").getId());
+        }
+        cnx.commit();
+
+        final int queueId = qId;
+        final List<List<Integer>> claimedByPoller = new ArrayList<List<Integer>>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch end = new CountDownLatch(nbPollers);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        for (int i = 0; i < nbPollers; i++)
+        {
+            final int nodeId = nodes.get(i);
+            final List<Integer> claimed = new ArrayList<Integer>();
+            claimedByPoller.add(claimed);
+            final DbConn pollerCnx = getNewDbSession();
+
+            new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        while (true)
+                        {
+                            List<Integer> res = JobInstance.claim(pollerCnx, nodeId, queueId, SLOTS);
+                            pollerCnx.commit();
+                            if (res.isEmpty())
+                            {
+                                break;
+                            }
+                            claimed.addAll(res);
+                        }
+                    }
+                    catch (Throwable e)
+                    {
+                        failure.set(e);
+                    }
+                    finally
+                    {
+                        end.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        long startTime = System.currentTimeMillis();
+        start.countDown();
+        end.await();
+        long duration = Math.max(1, System.currentTimeMillis() - startTime);
+
+        if (failure.get() != null)
+        {
+            throw new AssertionError(failure.get());
+        }
+
+        // Each instance must have been claimed exactly once.
+        Set<Integer> all = new HashSet<Integer>();
+        int total = 0;
+        for (List<Integer> claimed : claimedByPoller)
+        {
+            total += claimed.size();
+            all.addAll(claimed);
+        }
+        Assert.assertEquals(NB_JI, total);
+        Assert.assertEquals(NB_JI, all.size());
+        List<JobInstance> jis = JobInstance.select(cnx, "ji_select_by_queue", qId);
+        Assert.assertEquals(NB_JI, jis.size());
+        for (JobInstance ji : jis)
+        {
+            Assert.assertEquals(State.ATTRIBUTED, ji.getState());
+        }
+
+        jqmlogger.info("{} pollers have claimed {} job instances in {} ms ({} JI/s)", nbPollers, NB_JI, duration, NB_JI * 1000 / duration);
+    }
+}
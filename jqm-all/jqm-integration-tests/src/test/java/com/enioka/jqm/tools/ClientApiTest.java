@@ -116,6 +116,33 @@ public class ClientApiTest extends JqmBaseTest
         Assert.assertEquals(State.CRASHED, res.get(0).getState());
     }
 
+    @Test
+    public void testKillSeveralRunningJobs() throws Exception
+    {
+        // Instructions of all running job instances are read by a single node-level query.
+        CreationTools.createJobDef(null, true, "pyl.KillMe", null, "jqm-tests/jqm-test-pyl/target/test.jar", TestHelpers.qVip, 42,
+                "KillApp", null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        int i1 = JobRequest.create("KillApp", "TestUser").submit();
+        int i2 = JobRequest.create("KillApp", "TestUser").submit();
+        int i3 = JobRequest.create("KillApp", "TestUser").submit();
+
+        addAndStartEngine();
+        TestHelpers.waitForRunning(3, 10000, cnx);
+        this.sleep(1);
+
+        JqmClientFactory.getClient().killJob(i1);
+        JqmClientFactory.getClient().killJob(i3);
+        TestHelpers.waitFor(2, 5000, cnx);
+
+        Assert.assertEquals(2, TestHelpers.getHistoryAllCount(cnx));
+        Assert.assertEquals(2, TestHelpers.getNonOkCount(cnx));
+        Assert.assertEquals(State.RUNNING, JqmClientFactory.getClient().getJob(i2).getState());
+
+        JqmClientFactory.getClient().killJob(i2);
+        TestHelpers.waitFor(3, 5000, cnx);
+        Assert.assertEquals(3, TestHelpers.getNonOkCount(cnx));
+    }
+
     @Test
     public void testGetMsg() throws Exception
     {
@@ -313,7 +340,12 @@ public class ClientApiTest extends JqmBaseTest
         JqmClientFactory.getClient().pauseRunningJob(i);
         addAndStartEngine();
         TestHelpers.waitForRunning(1, 10000, cnx);
-        Thread.sleep(2000);
+        // RUNNING is set by the engine before the payload class loader is created - wait for the payload to actually reach its pause.
+        for (int j = 0; j < 20 && JqmClientFactory.getClient().getJobMessages(i).isEmpty(); j++)
+        {
+            Thread.sleep(500);
+        }
+        Thread.sleep(1000);
         Assert.assertEquals(0, TestHelpers.getHistoryAllCount(cnx)); // Still running.
 
         // Pause should leave a message.
@@ -347,12 +379,15 @@ public class ClientApiTest extends JqmBaseTest
             }
         }
 
+        // Parameter changes are detected by the internal poller.
+        Helpers.setSingleParam("internalPollingPeriodMs", "100", cnx);
+
         JobRequest.create("MarsuApplication", "TestUser").submit();
         addAndStartEngine();
         TestHelpers.waitFor(1, 10000, cnx);
 
         JqmClientFactory.getClient().pauseQueue(qV);
-        this.sleep(1); // This sleep is because: parameters are refreshed on poller loop start, so let the loop end.
+        this.sleep(1); // This sleep is because: parameters are refreshed on internal poller loop, so let the loop run.
         JobRequest.create("MarsuApplication", "TestUser").submit();
         this.sleep(1);
         Assert.assertEquals(1, TestHelpers.getOkCount(cnx));
@@ -16,15 +16,22 @@
 package com.enioka.jqm.tools;
 
 import java.util.Calendar;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.junit.Assert;
 import org.junit.Test;
 
 import com.enioka.jqm.api.JobInstance;
+import com.enioka.jqm.api.JobRequest;
+import com.enioka.jqm.api.JqmClientFactory;
 import com.enioka.jqm.api.Query;
 import com.enioka.jqm.api.Query.Sort;
 import com.enioka.jqm.api.State;
+import com.enioka.jqm.model.GlobalParameter;
+import com.enioka.jqm.test.helpers.CreationTools;
+import com.enioka.jqm.test.helpers.TestHelpers;
 
 public class EngineApiTest extends JqmBaseTest
 {
@@ -59,6 +66,33 @@ public class EngineApiTest extends JqmBaseTest
         Assert.assertEquals(true, success3);
     }
 
+    @Test
+    public void testSendMsgNotBuffered() throws Exception
+    {
+        // A zero period disables the node buffer: each message is written at once.
+        GlobalParameter.setParameter(cnx, "messageFlushPeriodMs", "0");
+        cnx.commit();
+
+        int i = JqmSimpleTest.create(cnx, "pyl.EngineApiSend3Msg").run(this);
+
+        List<String> messages = Query.create().setJobInstanceId(i).run().get(0).getMessages();
+        Assert.assertEquals(3, messages.size());
+        Assert.assertTrue(messages.contains("Les marsus sont nos amis, il faut les aimer aussi!"));
+        Assert.assertTrue(messages.contains("Les marsus sont nos amis, il faut les aimer aussi!2"));
+        Assert.assertTrue(messages.contains("Les marsus sont nos amis, il faut les aimer aussi!3"));
+    }
+
+    @Test
+    public void testSendMsgTooLong() throws Exception
+    {
+        // Messages are written later by the node, but an invalid message is refused at once.
+        int i = JqmSimpleTest.create(cnx, "pyl.EngineApiSendLongMsg").run(this);
+
+        List<String> messages = Query.create().setJobInstanceId(i).run().get(0).getMessages();
+        Assert.assertEquals(1, messages.size());
+        Assert.assertEquals("Message was refused", messages.get(0));
+    }
+
     @Test
     public void testSendProgress() throws Exception
     {
@@ -93,6 +127,101 @@ public class EngineApiTest extends JqmBaseTest
         }
     }
 
+    /**
+     * A payload waiting for a job instance which ends inside the same JVM is woken up at once: the instruction watcher would only wake it up
+     * after a minute.
+     */
+    @Test
+    public void testWaitChildWakeUpInJvm() throws Exception
+    {
+        waitWakeUpInJvm("one");
+    }
+
+    @Test
+    public void testWaitChildrenWakeUpInJvm() throws Exception
+    {
+        waitWakeUpInJvm("all");
+    }
+
+    /**
+     * A payload waiting for a job instance which ends outside its JVM is woken up by the instruction watcher of its node.
+     */
+    @Test
+    public void testWaitChildWakeUpRemote() throws Exception
+    {
+        waitWakeUpRemote("one");
+    }
+
+    @Test
+    public void testWaitChildrenWakeUpRemote() throws Exception
+    {
+        waitWakeUpRemote("all");
+    }
+
+    private void waitWakeUpInJvm(String waitMode)
+    {
+        GlobalParameter.setParameter(cnx, "instructionPeriodMs", "60000");
+        cnx.commit();
+        createWaitJobDefs(waitMode, TestHelpers.qVip);
+        addAndStartEngine();
+
+        int parentId = JobRequest.create("WaitParent", "TestUser").submit();
+        TestHelpers.waitFor(2, 20000, cnx);
+        Assert.assertEquals(2, TestHelpers.getHistoryAllCount(cnx));
+
+        JobInstance parent = Query.create().setJobInstanceId(parentId).run().get(0);
+        JobInstance child = Query.create().setParentId(parentId).run().get(0);
+        Assert.assertEquals(State.ENDED, parent.getState());
+        Assert.assertEquals(State.ENDED, child.getState());
+        long latency = parent.getEndDate().getTimeInMillis() - child.getEndDate().getTimeInMillis();
+        Assert.assertTrue("parent was woken up " + latency + "ms after the end of its child", latency < 3000);
+    }
+
+    private void waitWakeUpRemote(String waitMode) throws Exception
+    {
+        // The child queue is only polled by node2, which is not started: the child is ended by a client cancellation, without the engine.
+        GlobalParameter.setParameter(cnx, "instructionPeriodMs", "500");
+        cnx.commit();
+        createWaitJobDefs(waitMode, TestHelpers.qVip2);
+        addAndStartEngine();
+
+        int parentId = JobRequest.create("WaitParent", "TestUser").submit();
+        List<com.enioka.jqm.model.JobInstance> children = com.enioka.jqm.model.JobInstance.select(cnx, "ji_select_by_queue",
+                TestHelpers.qVip2);
+        for (int i = 0; i < 100 && children.isEmpty(); i++)
+        {
+            Thread.sleep(100);
+            children = com.enioka.jqm.model.JobInstance.select(cnx, "ji_select_by_queue", TestHelpers.qVip2);
+        }
+        cnx.commit();
+        Assert.assertEquals(1, children.size());
+        Thread.sleep(1000); // Let the parent wait.
+
+        long cancelled = System.currentTimeMillis();
+        JqmClientFactory.getClient().cancelJob(children.get(0).getId());
+        TestHelpers.waitFor(2, 10000, cnx);
+        Assert.assertEquals(2, TestHelpers.getHistoryAllCount(cnx));
+
+        JobInstance parent = Query.create().setJobInstanceId(parentId).run().get(0);
+        Assert.assertEquals(State.ENDED, parent.getState());
+        long latency = parent.getEndDate().getTimeInMillis() - cancelled;
+        Assert.assertTrue("parent was woken up " + latency + "ms after the cancellation of its child", latency < 3000);
+    }
+
+    private void createWaitJobDefs(String waitMode, Integer childQueue)
+    {
+        Map<String, String> prms = new HashMap<String, String>();
+        prms.put("childApp", "WaitChild");
+        prms.put("waitMode", waitMode);
+        CreationTools.createJobDef(null, true, "pyl.EngineApiWaitChild", prms, "jqm-tests/jqm-test-pyl/target/test.jar", TestHelpers.qVip,
+                42, "WaitParent", null, null, null, null, null, false, cnx);
+
+        Map<String, String> childPrms = new HashMap<String, String>();
+        childPrms.put("sleepMs", "2000");
+        CreationTools.createJobDef(null, true, "pyl.EngineApiWaitChild", childPrms, "jqm-tests/jqm-test-pyl/target/test.jar", childQueue,
+                42, "WaitChild", null, null, null, null, null, false, cnx);
+    }
+
     @Test
     public void testGetChildrenStatus() throws Exception
     {
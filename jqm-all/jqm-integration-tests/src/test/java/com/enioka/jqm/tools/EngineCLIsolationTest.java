@@ -1,9 +1,12 @@
 package com.enioka.jqm.tools;
 
+import java.util.HashMap;
+
 import org.junit.Assert;
 import org.junit.Test;
 
 import com.enioka.jqm.api.JobRequest;
+import com.enioka.jqm.model.JobDef;
 import com.enioka.jqm.test.helpers.CreationTools;
 import com.enioka.jqm.test.helpers.TestHelpers;
 
@@ -247,4 +250,43 @@ public class EngineCLIsolationTest extends JqmBaseTest
         Assert.assertEquals(1, TestHelpers.getOkCount(cnx));
         Assert.assertEquals(0, TestHelpers.getNonOkCount(cnx));
     }
+
+    /**
+     * Job definitions with a warm pool: all but the first launch use a class loader prepared in advance, which must be as isolated as a
+     * new one.
+     * 
+     * Expected : isolation
+     */
+    @Test
+    public void testWarmPool() throws Exception
+    {
+        JqmEngine engine = (JqmEngine) addAndStartEngine();
+
+        createSubmitSetJob(null);
+        TestHelpers.waitFor(1, 10000, cnx);
+        createSubmitGetJob(null);
+        TestHelpers.waitFor(2, 10000, cnx);
+        for (String key : new String[] { "TestSet", "TestGet" })
+        {
+            JobDef jd = JobDef.select_key(cnx, key);
+            jd.setWarmPoolSize(1);
+            jd.update(cnx, new HashMap<String, String>());
+        }
+        cnx.commit();
+
+        for (int i = 0; i < 3; i++)
+        {
+            JobRequest.create("TestSet", null).submit();
+            TestHelpers.waitFor(3 + 2 * i, 10000, cnx);
+            Thread.sleep(500); // Let the pools be refilled.
+            JobRequest.create("TestGet", null).submit();
+            TestHelpers.waitFor(4 + 2 * i, 10000, cnx);
+            Thread.sleep(500);
+        }
+
+        Assert.assertEquals(8, TestHelpers.getOkCount(cnx));
+        Assert.assertEquals(0, TestHelpers.getNonOkCount(cnx));
+        Assert.assertEquals(2, engine.getWarmPoolColdStarts());
+        Assert.assertEquals(4, engine.getWarmPoolWarmStarts());
+    }
 }
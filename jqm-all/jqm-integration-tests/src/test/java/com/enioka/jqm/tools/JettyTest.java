@@ -30,6 +30,8 @@ import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.conn.ssl.SSLContexts;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.apache.shiro.codec.Base64;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -160,4 +162,76 @@ public class JettyTest extends JqmBaseTest
         rs.close();
         cl.close();
     }
+
+    @Test
+    public void testMetrics() throws Exception
+    {
+        Helpers.setSingleParam("enableWsApiSsl", "false", cnx);
+        Helpers.setSingleParam("disableWsApi", "false", cnx);
+        Helpers.setSingleParam("enableWsApiAuth", "false", cnx);
+
+        addAndStartEngine();
+
+        // One ended job instance so as to have per-state values.
+        CreationTools.createJobDef(null, true, "pyl.Nothing", null, "jqm-tests/jqm-test-pyl-nodep/target/test.jar", TestHelpers.qVip, 42,
+                "MarsuApplication", null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        JqmClientFactory.getClient().enqueue(new JobRequest("MarsuApplication", "TestUser"));
+        TestHelpers.waitFor(1, 10000, cnx);
+
+        CloseableHttpClient cl = HttpClients.createDefault();
+        int port = Node.select_single(cnx, "node_select_by_id", TestHelpers.node.getId()).getPort();
+        CloseableHttpResponse rs = cl.execute(new HttpGet("http://" + TestHelpers.node.getDns() + ":" + port + "/metrics"));
+        Assert.assertEquals(200, rs.getStatusLine().getStatusCode());
+        Assert.assertTrue(rs.getFirstHeader("Content-Type").getValue().startsWith("text/plain"));
+        String body = EntityUtils.toString(rs.getEntity());
+        jqmlogger.debug(body);
+
+        Assert.assertTrue(body.contains("jqm_queue_running_job_instances{node=\"" + TestHelpers.node.getName() + "\",queue=\"VIPQueue\"} 0"));
+        Assert.assertTrue(body.contains("jqm_queue_free_slots{node=\"" + TestHelpers.node.getName() + "\",queue=\"VIPQueue\"} 40"));
+        Assert.assertTrue(body.contains(
+                "jqm_queue_job_instances_ended_total{node=\"" + TestHelpers.node.getName() + "\",queue=\"VIPQueue\",state=\"ENDED\"} 1"));
+        Assert.assertTrue(body.contains("jqm_claim_latency_seconds_count"));
+        Assert.assertTrue(body.contains("jqm_db_session_acquisition_seconds_count"));
+        Assert.assertTrue(body.contains("jqm_classloader_cache_entries"));
+        Assert.assertTrue(body.contains("jvm_memory_bytes_used{area=\"heap\"}"));
+
+        rs.close();
+        cl.close();
+    }
+
+    @Test
+    public void testMetricsAuth() throws Exception
+    {
+        Helpers.setSingleParam("enableWsApiSsl", "false", cnx);
+        Helpers.setSingleParam("disableWsApi", "false", cnx);
+        Helpers.setSingleParam("enableWsApiAuth", "true", cnx);
+        Helpers.createUserIfMissing(cnx, "scraper", "scraperpwd", "can read metrics", "client power user");
+        Helpers.createUserIfMissing(cnx, "reader", "readerpwd", "cannot read metrics", "client read only");
+        cnx.commit();
+
+        addAndStartEngine();
+        int port = Node.select_single(cnx, "node_select_by_id", TestHelpers.node.getId()).getPort();
+        String url = "http://" + TestHelpers.node.getDns() + ":" + port + "/metrics";
+
+        Assert.assertEquals(401, getMetricsStatus(url, null));
+        Assert.assertEquals(401, getMetricsStatus(url, "scraper:wrongpwd"));
+        Assert.assertEquals(401, getMetricsStatus(url, "nobody:scraperpwd"));
+        Assert.assertEquals(403, getMetricsStatus(url, "reader:readerpwd"));
+        Assert.assertEquals(200, getMetricsStatus(url, "scraper:scraperpwd"));
+    }
+
+    private int getMetricsStatus(String url, String credentials) throws Exception
+    {
+        CloseableHttpClient cl = HttpClients.createDefault();
+        HttpGet get = new HttpGet(url);
+        if (credentials != null)
+        {
+            get.setHeader("Authorization", "Basic " + Base64.encodeToString(credentials.getBytes("UTF-8")));
+        }
+        CloseableHttpResponse rs = cl.execute(get);
+        int res = rs.getStatusLine().getStatusCode();
+        rs.close();
+        cl.close();
+        return res;
+    }
 }
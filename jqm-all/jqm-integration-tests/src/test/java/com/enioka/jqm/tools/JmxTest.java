@@ -15,14 +15,18 @@
  */
 package com.enioka.jqm.tools;
 
+import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.util.Set;
 
 import javax.management.JMX;
+import javax.management.MBeanServer;
 import javax.management.MBeanServerConnection;
 import javax.management.ObjectInstance;
 import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
 import javax.management.remote.JMXConnector;
 import javax.management.remote.JMXConnectorFactory;
 import javax.management.remote.JMXServiceURL;
@@ -31,6 +35,7 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import com.enioka.jqm.api.JobRequest;
+import com.enioka.jqm.model.GlobalParameter;
 import com.enioka.jqm.test.helpers.CreationTools;
 import com.enioka.jqm.test.helpers.TestHelpers;
 
@@ -79,8 +84,21 @@ public class JmxTest extends JqmBaseTest
         {
             System.out.println(oi.getObjectName());
         }
-        Assert.assertEquals(5, mbeans.size());
-        // 1 node, 3 pollers, 1 running instance, 1 JDBC pool. The pool is not visible due to a call to resetSingletons.
+        Assert.assertEquals(6, mbeans.size());
+        // 1 node, 1 running instances list, 3 pollers, 1 running instance, 1 JDBC pool. The pool is not visible due to a call to
+        // resetSingletons.
+
+        // /////////////////
+        // Running instances bean
+        ObjectName runningBean = new ObjectName("com.enioka.jqm:type=Node.RunningJobInstances,name=" + TestHelpers.node.getName());
+        RunningJobInstancesMBean proxyRunning = JMX.newMBeanProxy(mbsc, runningBean, RunningJobInstancesMBean.class);
+        Assert.assertEquals(1, proxyRunning.getRunningJobInstanceCount());
+        TabularData running = proxyRunning.getRunningJobInstances();
+        Assert.assertEquals(1, running.size());
+        CompositeData row = running.get(new Object[] { i });
+        Assert.assertEquals("KillApp", row.get("applicationName"));
+        Assert.assertEquals("VIPQueue", row.get("queue"));
+        Assert.assertEquals("TestUser", row.get("user"));
 
         // /////////////////
         // Loader beans
@@ -110,6 +128,8 @@ public class JmxTest extends JqmBaseTest
         // Kill it though JMX
         proxy.kill();
         Thread.sleep(4000);
+        Assert.assertEquals(0, proxyRunning.getRunningJobInstanceCount());
+        Assert.assertTrue(mbsc.queryMBeans(killBean, null).isEmpty());
 
         // //////////////////
         // Engine bean
@@ -130,9 +150,31 @@ public class JmxTest extends JqmBaseTest
         proxyPoller.getJobsFinishedPerSecondLastMinute();
         Assert.assertEquals((Integer) 40, proxyPoller.getMaxConcurrentJobInstanceCount());
         Assert.assertEquals((Integer) 1, proxyPoller.getPollingIntervalMilliseconds());
+        Assert.assertEquals((Integer) 1, proxyPoller.getEffectivePollingIntervalMilliseconds()); // never above the configured interval
+        Assert.assertTrue(proxyPoller.getPollHitRatio() > 0);
+        Assert.assertTrue(proxyPoller.getPollHitRatio() <= 1);
 
         Assert.assertTrue(proxyPoller.isActuallyPolling());
         Assert.assertTrue(!proxyPoller.isFull());
+        Assert.assertEquals(1, proxyPoller.getPayloadThreadCreatedCount());
+        Assert.assertTrue(proxyPoller.getPayloadThreadPoolSize() <= 1);
+        Assert.assertEquals(0, proxyPoller.getPayloadThreadPoolActiveCount());
+        Assert.assertTrue(proxyPoller.getAveragePayloadHandoffLatencyMicroseconds() >= 0);
+
+        // In-memory metrics (the killed job instance has ended).
+        Assert.assertEquals(1, proxyPoller.getCumulativeJobInstancesCount());
+        Assert.assertTrue(proxyPoller.getJobsFinishedPerSecondLastMinute() > 0);
+        Assert.assertTrue(proxyPoller.getJobsFinishedPerSecondLastFiveMinutes() > 0);
+        Assert.assertTrue(proxyPoller.getJobsFinishedPerSecondLastFifteenMinutes() > 0);
+        Assert.assertTrue(proxyPoller.getAverageRunTimeMilliseconds() > 0);
+        Assert.assertEquals(proxyPoller.getAverageRunTimeMilliseconds(), proxyPoller.getRunTimeMilliseconds95thPercentile());
+        Assert.assertTrue(proxyPoller.getAverageQueueWaitMilliseconds() >= 0);
+        Assert.assertTrue(proxyPoller.getQueueWaitMilliseconds95thPercentile() >= 0);
+        Assert.assertTrue(proxyPoller.getAverageEndOfRunLatencyMilliseconds() >= 0);
+        Assert.assertTrue(proxyPoller.getEndOfRunLatencyMilliseconds95thPercentile() >= 0);
+        Assert.assertEquals(1, proxyEngine.getCumulativeJobInstancesCount());
+        Assert.assertEquals(proxyPoller.getJobsFinishedPerSecondLastMinute(), proxyEngine.getJobsFinishedPerSecondLastMinute(), 0.0001);
+        Assert.assertEquals(proxyPoller.getAverageRunTimeMilliseconds(), proxyEngine.getAverageRunTimeMilliseconds());
 
         proxyPoller.stop();
 
@@ -140,4 +182,40 @@ public class JmxTest extends JqmBaseTest
         cntor.close();
     }
 
+    @Test
+    public void jmxNoJobInstanceBeansTest() throws Exception
+    {
+        GlobalParameter.setParameter(cnx, "disableJmxJobInstances", "true");
+        CreationTools.createJobDef(null, true, "pyl.KillMe", null, "jqm-tests/jqm-test-pyl/target/test.jar", TestHelpers.qVip, 42,
+                "KillApp", null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        int i = JobRequest.create("KillApp", "TestUser").submit();
+        cnx.runUpdate("node_update_jmx_by_id", 0, 12345, TestHelpers.node.getId()); // Beans without remote listener.
+        cnx.commit();
+
+        addAndStartEngine();
+        TestHelpers.waitForRunning(1, 10000, cnx);
+        this.sleep(1);
+
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        ObjectName jiBean = new ObjectName(
+                "com.enioka.jqm:type=Node.Queue.JobInstance,Node=" + TestHelpers.node.getName() + ",Queue=VIPQueue,name=" + i);
+        Assert.assertTrue(mbs.queryNames(jiBean, null).isEmpty());
+
+        ObjectName runningBean = new ObjectName("com.enioka.jqm:type=Node.RunningJobInstances,name=" + TestHelpers.node.getName());
+        RunningJobInstancesMBean proxyRunning = JMX.newMBeanProxy(mbs, runningBean, RunningJobInstancesMBean.class);
+        Assert.assertEquals(1, proxyRunning.getRunningJobInstanceCount());
+
+        // Bean on demand
+        proxyRunning.registerJobInstanceBean(i);
+        Assert.assertEquals(1, mbs.queryNames(jiBean, null).size());
+        Assert.assertEquals("KillApp", JMX.newMBeanProxy(mbs, jiBean, LoaderMBean.class).getApplicationName());
+
+        // Kill through the list
+        proxyRunning.kill(i);
+        TestHelpers.waitFor(1, 10000, cnx);
+        Assert.assertEquals(1, TestHelpers.getNonOkCount(cnx));
+        Assert.assertEquals(0, proxyRunning.getRunningJobInstanceCount());
+        Assert.assertTrue(mbs.queryNames(jiBean, null).isEmpty());
+    }
+
 }
@@ -36,6 +36,7 @@ import com.enioka.api.admin.JndiObjectResourceDto;
 import com.enioka.jqm.api.JobRequest;
 import com.enioka.jqm.api.JqmClientFactory;
 import com.enioka.jqm.api.Query;
+import com.enioka.jqm.model.GlobalParameter;
 import com.enioka.jqm.model.JobDef.PathType;
 import com.enioka.jqm.test.helpers.CreationTools;
 import com.enioka.jqm.test.helpers.TestHelpers;
@@ -212,19 +213,20 @@ public class MiscTest extends JqmBaseTest
     @Test
     public void testStartupCleanupAttr() throws Exception
     {
-        CreationTools.createJobDef(null, true, "App", null, "jqm-tests/jqm-test-em/target/test.jar", TestHelpers.qVip, 42, "jqm-test-em",
-                null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        CreationTools.createJobDef(null, true, "pyl.Nothing", null, "jqm-tests/jqm-test-pyl-nodep/target/test.jar", TestHelpers.qVip, 42,
+                "jqm-test-nothing", null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
 
-        // Create a running job that should be cleaned at startup
-        JqmClientFactory.getClient().enqueue("jqm-test-em", "test");
+        // Create an attributed (never started) job that should be given back to the queue at startup - and then run normally.
+        JqmClientFactory.getClient().enqueue("jqm-test-nothing", "test");
         cnx.runUpdate("ji_update_poll", TestHelpers.node.getId(), TestHelpers.qVip, 10);
         cnx.commit();
 
         addAndStartEngine();
+        TestHelpers.waitFor(1, 10000, cnx);
 
         Assert.assertEquals(0, TestHelpers.getQueueAllCount(cnx));
         Assert.assertEquals(1, TestHelpers.getHistoryAllCount(cnx));
-        Assert.assertEquals(1, TestHelpers.getNonOkCount(cnx));
+        Assert.assertEquals(1, TestHelpers.getOkCount(cnx));
     }
 
     @Test
@@ -337,4 +339,30 @@ public class MiscTest extends JqmBaseTest
 
         cnx.commit();
     }
+
+    @Test
+    public void testGlobalParameterCache()
+    {
+        GlobalParameter.setParameter(cnx, "cachedPrm", "val1");
+        cnx.commit();
+
+        Assert.assertEquals("val1", GlobalParameter.getParameter(cnx, "cachedPrm", "default"));
+        long hits = GlobalParameter.getCacheHits(db);
+        Assert.assertEquals("val1", GlobalParameter.getParameter(cnx, "cachedPrm", "default"));
+        Assert.assertEquals(hits + 1, GlobalParameter.getCacheHits(db));
+
+        // Missing parameters are cached too.
+        Assert.assertEquals(12, GlobalParameter.getParameter(cnx, "missingPrm", 12));
+        Assert.assertEquals(13, GlobalParameter.getParameter(cnx, "missingPrm", 13));
+        Assert.assertEquals(hits + 2, GlobalParameter.getCacheHits(db));
+
+        // Committed modifications are seen at once.
+        GlobalParameter.setParameter(cnx, "cachedPrm", "val2");
+        Assert.assertEquals("val1", GlobalParameter.getParameter(cnx, "cachedPrm", "default"));
+        cnx.commit();
+        Assert.assertEquals("val2", GlobalParameter.getParameter(cnx, "cachedPrm", "default"));
+        GlobalParameter.setParameter(cnx, "missingPrm", "14");
+        cnx.commit();
+        Assert.assertEquals(14, GlobalParameter.getParameter(cnx, "missingPrm", 12));
+    }
 }
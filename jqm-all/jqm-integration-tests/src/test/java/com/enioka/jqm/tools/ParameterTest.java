@@ -18,8 +18,15 @@
 
 package com.enioka.jqm.tools;
 
+import org.junit.Assert;
 import org.junit.Test;
 
+import com.enioka.jqm.api.JobRequest;
+import com.enioka.jqm.model.DeploymentParameter;
+import com.enioka.jqm.model.Queue;
+import com.enioka.jqm.test.helpers.CreationTools;
+import com.enioka.jqm.test.helpers.TestHelpers;
+
 public class ParameterTest extends JqmBaseTest
 {
     // Sanity check test
@@ -50,4 +57,30 @@ public class ParameterTest extends JqmBaseTest
                 .addRuntimeParameter("arg1", "argument1").addRuntimeParameter("arg2", "argument2").run(this);
     }
 
+    @Test
+    public void testParametersOfInstancesClaimedTogether() throws Exception
+    {
+        // All instances are claimed by the same poll, so their parameters are loaded by a single query: each must get its own.
+        int qId = Queue.create(cnx, "testqueue", "", false);
+        DeploymentParameter.create(cnx, TestHelpers.node.getId(), 10, 3600000, qId);
+        CreationTools.createJobDef(null, true, "pyl.JobBaseGetParam", null, "jqm-tests/jqm-test-pyl/target/test.jar", qId, 42,
+                "jqm-test-param", null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        cnx.commit();
+
+        for (int i = 0; i < 6; i++)
+        {
+            JobRequest jr = JobRequest.create("jqm-test-param", "test").addParameter("arg1", "argument1");
+            if (i % 2 == 0)
+            {
+                jr.addParameter("arg2", "argument2");
+            }
+            jr.submit();
+        }
+        addAndStartEngine();
+
+        TestHelpers.waitFor(6, 10000, cnx);
+        Assert.assertEquals(3, TestHelpers.getOkCount(cnx));
+        Assert.assertEquals(3, TestHelpers.getNonOkCount(cnx));
+    }
+
 }
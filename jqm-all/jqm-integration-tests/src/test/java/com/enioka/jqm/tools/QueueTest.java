@@ -1,5 +1,8 @@
 package com.enioka.jqm.tools;
 
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 
 import org.junit.Assert;
@@ -11,6 +14,8 @@ import com.enioka.jqm.api.JqmClientFactory;
 import com.enioka.jqm.api.JqmInvalidRequestException;
 import com.enioka.jqm.api.Query;
 import com.enioka.jqm.model.DeploymentParameter;
+import com.enioka.jqm.model.GlobalParameter;
+import com.enioka.jqm.model.JobDef;
 import com.enioka.jqm.model.Queue;
 import com.enioka.jqm.test.helpers.CreationTools;
 import com.enioka.jqm.test.helpers.TestHelpers;
@@ -155,6 +160,55 @@ public class QueueTest extends JqmBaseTest
         Assert.assertTrue(ji1.getBeganRunningDate().compareTo(ji2.getEndDate()) >= 0);
     }
 
+    @Test
+    public void testBatchSize() throws Exception
+    {
+        // Single thread available, but instances are run by three.
+        int qId = Queue.create(cnx, "testqueue", "", false);
+        DeploymentParameter.create(cnx, TestHelpers.node.getId(), 1, 1, qId);
+
+        CreationTools.createJobDef(null, true, "pyl.Wait", null, "jqm-tests/jqm-test-pyl-nodep/target/test.jar", qId, 42, "jqm-test-wait",
+                null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        JobDef jd = JobDef.select_key(cnx, "jqm-test-wait");
+        jd.setBatchSize(3);
+        jd.update(cnx, new HashMap<String, String>());
+        cnx.commit();
+
+        for (int i = 0; i < 4; i++)
+        {
+            JobRequest.create("jqm-test-wait", "test").addParameter("ms", "1000").submit();
+        }
+
+        addAndStartEngine();
+
+        // The whole batch is attributed from the start, but its members are running one after the other. The fourth instance waits for
+        // the slot.
+        TestHelpers.waitForRunning(1, 10000, cnx);
+        Assert.assertEquals(1, Query.create().setQueryLiveInstances(true).setQueryHistoryInstances(false)
+                .addStatusFilter(com.enioka.jqm.api.State.RUNNING).run().size());
+        Assert.assertEquals(2, Query.create().setQueryLiveInstances(true).setQueryHistoryInstances(false)
+                .addStatusFilter(com.enioka.jqm.api.State.ATTRIBUTED).run().size());
+
+        // Each instance has its own history, and its own run dates.
+        TestHelpers.waitFor(4, 60000, cnx);
+        Assert.assertEquals(4, TestHelpers.getOkCount(cnx));
+        Assert.assertEquals(0, TestHelpers.getNonOkCount(cnx));
+
+        List<JobInstance> res = Query.create().setQueryLiveInstances(false).setQueryHistoryInstances(true).run();
+        Collections.sort(res, new Comparator<JobInstance>()
+        {
+            @Override
+            public int compare(JobInstance o1, JobInstance o2)
+            {
+                return o1.getId().compareTo(o2.getId());
+            }
+        });
+        for (int i = 1; i < 3; i++)
+        {
+            Assert.assertTrue(res.get(i).getBeganRunningDate().compareTo(res.get(i - 1).getEndDate()) >= 0);
+        }
+    }
+
     @Test(expected = JqmInvalidRequestException.class)
     public void testPriorityLimits()
     {
@@ -198,4 +252,221 @@ public class QueueTest extends JqmBaseTest
         Assert.assertTrue(ji1.getBeganRunningDate().compareTo(ji2.getEndDate()) <= 0);
     }
 
+    // New job instances must not wait for the end of the polling interval.
+    @Test
+    public void testEnqueueWakesUpPoller() throws Exception
+    {
+        // One poll every hour
+        int qId = Queue.create(cnx, "testqueue", "", false);
+        DeploymentParameter.create(cnx, TestHelpers.node.getId(), 1, 3600000, qId);
+
+        CreationTools.createJobDef(null, true, "pyl.Wait", null, "jqm-tests/jqm-test-pyl-nodep/target/test.jar", qId, 42, "jqm-test-wait",
+                null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        cnx.commit();
+
+        addAndStartEngine();
+        Thread.sleep(1000); // The first poll is done on startup - wait for the poller to sleep.
+
+        JobRequest.create("jqm-test-wait", "test").addParameter("ms", "100").submit();
+        TestHelpers.waitFor(1, 10000, cnx);
+        Assert.assertEquals(1, TestHelpers.getOkCount(cnx));
+
+        JobRequest.create("jqm-test-wait", "test").addParameter("ms", "100").submit();
+        TestHelpers.waitFor(2, 10000, cnx);
+        Assert.assertEquals(2, TestHelpers.getOkCount(cnx));
+    }
+
+    // Virtual threads are used if the JVM allows it - otherwise usual threads. The result must be the same.
+    @Test
+    public void testVirtualThreadQueue() throws Exception
+    {
+        int qId = Queue.create(cnx, "testqueue", "", false, true);
+        DeploymentParameter.create(cnx, TestHelpers.node.getId(), 20, 100, qId);
+
+        CreationTools.createJobDef(null, true, "pyl.Wait", null, "jqm-tests/jqm-test-pyl-nodep/target/test.jar", qId, 42, "jqm-test-wait",
+                null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        cnx.commit();
+        Assert.assertTrue(Queue.select(cnx, "q_select_by_id", qId).get(0).isVirtualThreads());
+
+        for (int i = 0; i < 10; i++)
+        {
+            JobRequest.create("jqm-test-wait", "test").addParameter("ms", "500").submit();
+        }
+        addAndStartEngine();
+
+        TestHelpers.waitFor(10, 20000, cnx);
+        Assert.assertEquals(10, TestHelpers.getOkCount(cnx));
+        Assert.assertEquals(0, TestHelpers.getNonOkCount(cnx));
+    }
+
+    @Test
+    public void testDispatchManyQueues() throws Exception
+    {
+        // 5 queues of 2 slots, polled once an hour: after the first poll, only job ends trigger the claims of the shared dispatcher.
+        for (int i = 0; i < 5; i++)
+        {
+            int qId = Queue.create(cnx, "testqueue" + i, "", false);
+            DeploymentParameter.create(cnx, TestHelpers.node.getId(), 2, 3600000, qId);
+            CreationTools.createJobDef(null, true, "pyl.Wait", null, "jqm-tests/jqm-test-pyl-nodep/target/test.jar", qId, 42,
+                    "jqm-test-wait" + i, null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        }
+        cnx.commit();
+
+        for (int i = 0; i < 5; i++)
+        {
+            for (int j = 0; j < 4; j++)
+            {
+                JobRequest.create("jqm-test-wait" + i, "test").addParameter("ms", "500").submit();
+            }
+        }
+        addAndStartEngine();
+
+        // Never more than 2 per queue.
+        TestHelpers.waitForRunning(10, 5000, cnx);
+        Assert.assertEquals(10, TestHelpers.getQueueRunningCount(cnx));
+
+        TestHelpers.waitFor(20, 20000, cnx);
+        Assert.assertEquals(20, TestHelpers.getOkCount(cnx));
+        Assert.assertEquals(0, TestHelpers.getNonOkCount(cnx));
+    }
+
+    @Test
+    public void testPrefetch() throws Exception
+    {
+        // One slot, three instances waiting in the node prefetch buffer: they are started when the running one ends, not on the next poll.
+        int qId = Queue.create(cnx, "testqueue", "", false);
+        DeploymentParameter.create(cnx, TestHelpers.node.getId(), 1, 3600000, qId, 3);
+        CreationTools.createJobDef(null, true, "pyl.Wait", null, "jqm-tests/jqm-test-pyl-nodep/target/test.jar", qId, 42, "jqm-test-wait",
+                null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        cnx.commit();
+
+        for (int i = 0; i < 8; i++)
+        {
+            JobRequest.create("jqm-test-wait", "test").addParameter("ms", "200").submit();
+        }
+        addAndStartEngine();
+
+        TestHelpers.waitFor(8, 20000, cnx);
+        Assert.assertEquals(8, TestHelpers.getOkCount(cnx));
+        Assert.assertEquals(0, TestHelpers.getNonOkCount(cnx));
+    }
+
+    @Test
+    public void testPrefetchedGivenBackOnRestart() throws Exception
+    {
+        // An instance attributed to the node but never started (i.e. prefetched when the node died) must run, not crash.
+        int qId = Queue.create(cnx, "testqueue", "", false);
+        DeploymentParameter.create(cnx, TestHelpers.node.getId(), 1, 100, qId, 1);
+        CreationTools.createJobDef(null, true, "pyl.Wait", null, "jqm-tests/jqm-test-pyl-nodep/target/test.jar", qId, 42, "jqm-test-wait",
+                null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        cnx.commit();
+
+        JobRequest.create("jqm-test-wait", "test").addParameter("ms", "10").submit();
+        Assert.assertEquals(1, com.enioka.jqm.model.JobInstance.claim(cnx, TestHelpers.node.getId(), qId, 1).size());
+        cnx.commit();
+
+        addAndStartEngine();
+
+        TestHelpers.waitFor(1, 10000, cnx);
+        Assert.assertEquals(1, TestHelpers.getOkCount(cnx));
+        Assert.assertEquals(0, TestHelpers.getNonOkCount(cnx));
+    }
+
+    @Test
+    public void testPrefetchedOfDeadNodeGivenBack() throws Exception
+    {
+        // An instance attributed to a node which never comes back must be given back by the live nodes once its lease has ended.
+        int qId = Queue.create(cnx, "testqueue", "", false);
+        DeploymentParameter.create(cnx, TestHelpers.node.getId(), 1, 100, qId);
+        CreationTools.createJobDef(null, true, "pyl.Wait", null, "jqm-tests/jqm-test-pyl-nodep/target/test.jar", qId, 42, "jqm-test-wait",
+                null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        Helpers.setSingleParam("internalPollingPeriodMs", "100", cnx);
+        Helpers.setSingleParam("prefetchLeaseMs", "1000", cnx);
+        cnx.commit();
+
+        JobRequest.create("jqm-test-wait", "test").addParameter("ms", "10").submit();
+        Assert.assertEquals(1, com.enioka.jqm.model.JobInstance.claim(cnx, TestHelpers.node2.getId(), qId, 1).size());
+        cnx.commit();
+
+        addAndStartEngine();
+
+        TestHelpers.waitFor(1, 10000, cnx);
+        Assert.assertEquals(1, TestHelpers.getOkCount(cnx));
+        Assert.assertEquals(0, TestHelpers.getNonOkCount(cnx));
+    }
+
+    @Test
+    public void testRunningCrashedOnRestart() throws Exception
+    {
+        // Instances running when the node died must be marked as crashed (with a message) and removed from the queue at restart.
+        int qId = Queue.create(cnx, "testqueue", "", false);
+        DeploymentParameter.create(cnx, TestHelpers.node.getId(), 1, 100, qId, 1);
+        CreationTools.createJobDef(null, true, "pyl.Wait", null, "jqm-tests/jqm-test-pyl-nodep/target/test.jar", qId, 42, "jqm-test-wait",
+                null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        cnx.commit();
+
+        for (int i = 0; i < 5; i++)
+        {
+            JobRequest.create("jqm-test-wait", "test").addParameter("ms", "10").submit();
+        }
+        List<Integer> ids = com.enioka.jqm.model.JobInstance.claim(cnx, TestHelpers.node.getId(), qId, 5);
+        Assert.assertEquals(5, ids.size());
+        cnx.runUpdate("jj_update_run_by_id_list", ids);
+        cnx.commit();
+
+        addAndStartEngine();
+
+        List<JobInstance> res = Query.create().addStatusFilter(com.enioka.jqm.api.State.CRASHED).run();
+        Assert.assertEquals(5, res.size());
+        for (JobInstance ji : res)
+        {
+            Assert.assertEquals(1, ji.getMessages().size());
+            Assert.assertEquals("jqm-test-wait", ji.getApplicationName());
+            Assert.assertEquals("testqueue", ji.getQueueName());
+        }
+        Assert.assertEquals(0, TestHelpers.getQueueAllCount(cnx));
+    }
+
+    @Test
+    public void testEndOfRunBatched() throws Exception
+    {
+        // Many short job instances ending together: their results are stored by the node writer, a few per transaction.
+        cnx.runUpdate("dp_update_threads_by_id", 20, TestHelpers.dpVip.getId());
+        CreationTools.createJobDef(null, true, "pyl.Nothing", null, "jqm-tests/jqm-test-pyl-nodep/target/test.jar", TestHelpers.qVip, -1,
+                "jqm-test-nothing", null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        cnx.commit();
+
+        for (int i = 0; i < 100; i++)
+        {
+            JobRequest.create("jqm-test-nothing", "test").submit();
+        }
+        addAndStartEngine();
+
+        TestHelpers.waitFor(100, 30000, cnx);
+        Assert.assertEquals(100, TestHelpers.getOkCount(cnx));
+        Assert.assertEquals(0, TestHelpers.getNonOkCount(cnx));
+        Assert.assertEquals(0, TestHelpers.getQueueAllCount(cnx));
+    }
+
+    @Test
+    public void testEndOfRunNotBatched() throws Exception
+    {
+        // A batch size of one disables the node writer: each job instance stores its own results.
+        GlobalParameter.setParameter(cnx, "endOfRunBatchSize", "1");
+        cnx.runUpdate("dp_update_threads_by_id", 20, TestHelpers.dpVip.getId());
+        CreationTools.createJobDef(null, true, "pyl.Nothing", null, "jqm-tests/jqm-test-pyl-nodep/target/test.jar", TestHelpers.qVip, -1,
+                "jqm-test-nothing", null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        cnx.commit();
+
+        for (int i = 0; i < 20; i++)
+        {
+            JobRequest.create("jqm-test-nothing", "test").submit();
+        }
+        addAndStartEngine();
+
+        TestHelpers.waitFor(20, 30000, cnx);
+        Assert.assertEquals(20, TestHelpers.getOkCount(cnx));
+        Assert.assertEquals(0, TestHelpers.getNonOkCount(cnx));
+        Assert.assertEquals(0, TestHelpers.getQueueAllCount(cnx));
+    }
 }
@@ -3,6 +3,8 @@ package com.enioka.jqm.tools;
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.enioka.jqm.api.JobRequest;
+import com.enioka.jqm.test.helpers.CreationTools;
 import com.enioka.jqm.test.helpers.TestHelpers;
 
 public class RefreshTest extends JqmBaseTest
@@ -21,4 +23,52 @@ public class RefreshTest extends JqmBaseTest
         TestHelpers.waitFor(1, 5000, cnx);
         Assert.assertEquals(1, TestHelpers.getOkCount(cnx));
     }
+
+    @Test
+    public void testConfigurationChangeDetected() throws Exception
+    {
+        // Node configuration changes made directly inside the database must be detected by the engine, without any refresh call.
+        Helpers.setSingleParam("internalPollingPeriodMs", "100", cnx);
+        CreationTools.createJobDef(null, true, "pyl.Nothing", null, "jqm-tests/jqm-test-pyl-nodep/target/test.jar", TestHelpers.qVip, -1,
+                "jqm-test-nothing", null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        cnx.commit();
+        addAndStartEngine();
+
+        cnx.runUpdate("node_update_enabled_by_id", false, TestHelpers.node.getId());
+        cnx.commit();
+        this.sleepms(1000);
+
+        JobRequest.create("jqm-test-nothing", "test").submit();
+        this.sleepms(2000);
+        Assert.assertEquals(0, TestHelpers.getOkCount(cnx));
+
+        cnx.runUpdate("node_update_enabled_by_id", true, TestHelpers.node.getId());
+        cnx.commit();
+        TestHelpers.waitFor(1, 5000, cnx);
+        Assert.assertEquals(1, TestHelpers.getOkCount(cnx));
+    }
+
+    @Test
+    public void testConfigurationVersion() throws Exception
+    {
+        int v0 = cnx.runSelectSingle("config_select_version", Integer.class);
+
+        // One increment per transaction, whatever the number of modified rows.
+        cnx.runUpdate("globalprm_insert", "someParameter", "someValue");
+        cnx.runUpdate("node_update_port_by_id", 1789, TestHelpers.node.getId());
+        cnx.commit();
+        Assert.assertEquals(v0 + 1, (int) cnx.runSelectSingle("config_select_version", Integer.class));
+
+        // Deletions are changes too.
+        cnx.runUpdate("globalprm_delete_all");
+        cnx.commit();
+        Assert.assertEquals(v0 + 2, (int) cnx.runSelectSingle("config_select_version", Integer.class));
+
+        // Neither rolled back changes nor node liveness.
+        cnx.runUpdate("node_update_port_by_id", 1790, TestHelpers.node.getId());
+        cnx.rollback();
+        cnx.runUpdate("node_update_alive_by_id", TestHelpers.node.getId());
+        cnx.commit();
+        Assert.assertEquals(v0 + 2, (int) cnx.runSelectSingle("config_select_version", Integer.class));
+    }
 }
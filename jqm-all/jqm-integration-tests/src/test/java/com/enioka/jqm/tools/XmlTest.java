@@ -302,6 +302,8 @@ public class XmlTest extends JqmBaseTest
             Assert.assertEquals("XmlQueue", jd1.getQueue(cnx).getName());
             Assert.assertEquals("XmlQueue", jd2.getQueue(cnx).getName());
             Assert.assertEquals("XmlQueue2", jd3.getQueue(cnx).getName());
+            Assert.assertFalse(jd1.getQueue(cnx).isVirtualThreads());
+            Assert.assertTrue(jd3.getQueue(cnx).isVirtualThreads());
         }
         catch (NoResultException e)
         {
@@ -6,9 +6,13 @@ import java.io.InputStream;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
@@ -28,12 +32,12 @@ public class Db
     /**
      * The version of the schema as it described in the current Maven artifact
      */
-    private static final int SCHEMA_VERSION = 1;
+    private static final int SCHEMA_VERSION = 2;
 
     /**
      * The SCHEMA_VERSION version is backward compatible until this version
      */
-    private static final int SCHEMA_COMPATIBLE_VERSION = 1;
+    private static final int SCHEMA_COMPATIBLE_VERSION = 2;
 
     /**
      * The list of different database adapters. We are using reflection for loading them for future extensibility.
@@ -41,10 +45,16 @@ public class Db
     private static String[] ADAPTERS = new String[] { "com.enioka.jqm.jdbc.DbImplPg", "com.enioka.jqm.jdbc.DbImplHsql",
             "com.enioka.jqm.jdbc.DbImplOracle", "com.enioka.jqm.jdbc.DbImplMySql", "com.enioka.jqm.jdbc.DbImplDb2" };
 
+    /**
+     * Listeners notified of job instances enqueued by transactions committed inside this JVM, whatever the Db instance used.
+     */
+    private static List<EnqueueListener> enqueueListeners = new CopyOnWriteArrayList<EnqueueListener>();
+
     private DataSource _ds;
     private DbAdapter adapter = null;
     private String product;
     private Properties p = null;
+    private final ConcurrentMap<String, VersionedCache<?, ?>> caches = new ConcurrentHashMap<String, VersionedCache<?, ?>>();
 
     /**
      * Connects to the database by retrieving a DataDource from JNDI (with every parameter set to default, including the JNDI alias for the
@@ -481,6 +491,111 @@ public class Db
         return this.product;
     }
 
+    /**
+     * Registers a listener which will be called each time a transaction committed inside this JVM makes new job instances available in a
+     * queue.
+     * 
+     * @param listener
+     *            the listener to add.
+     */
+    public static void addEnqueueListener(EnqueueListener listener)
+    {
+        enqueueListeners.add(listener);
+    }
+
+    /**
+     * The opposite of {@link #addEnqueueListener(EnqueueListener)}. Does nothing if the listener was not registered.
+     * 
+     * @param listener
+     *            the listener to remove.
+     */
+    public static void removeEnqueueListener(EnqueueListener listener)
+    {
+        enqueueListeners.remove(listener);
+    }
+
+    /**
+     * The configuration cache of the given name for this Db, created on first use. Caches are not shared between Db instances, as they may
+     * not use the same database. See {@link VersionedCache} for when they are emptied.
+     */
+    @SuppressWarnings("unchecked")
+    public <K, V> VersionedCache<K, V> getCache(String name)
+    {
+        VersionedCache<?, ?> res = caches.get(name);
+        if (res == null)
+        {
+            VersionedCache<K, V> newCache = new VersionedCache<K, V>();
+            res = caches.putIfAbsent(name, newCache);
+            res = res == null ? newCache : res;
+        }
+        return (VersionedCache<K, V>) res;
+    }
+
+    /**
+     * Checks with a single query if the configuration was modified (by any process) since the previous call, and if so empties all the
+     * caches of this Db. Should be called periodically by all processes using the caches.
+     */
+    public void refreshCaches(DbConn cnx)
+    {
+        String version = String.valueOf(cnx.runSelectSingle("config_select_version", Integer.class));
+        for (VersionedCache<?, ?> cache : caches.values())
+        {
+            cache.refresh(version);
+        }
+    }
+
+    /**
+     * Called when a transaction modifying the configuration was committed through this Db.
+     */
+    void invalidateCaches()
+    {
+        for (VersionedCache<?, ?> cache : caches.values())
+        {
+            cache.invalidate();
+        }
+    }
+
+    /**
+     * True if the given query modifies the tables cached by the metadata cache. Node liveness updates are not metadata.
+     */
+    static boolean isMetadataUpdate(String query_key)
+    {
+        if (query_key.startsWith("node_"))
+        {
+            return !query_key.equals("node_update_alive_by_id") && !query_key.equals("node_update_has_stopped_by_id")
+                    && !query_key.equals("node_update_stop_by_id");
+        }
+        return query_key.startsWith("jd_") || query_key.startsWith("q_") || query_key.startsWith("cl_") || query_key.startsWith("cleh");
+    }
+
+    /**
+     * True if the given query modifies the configuration whose version is given by <code>config_select_version</code>: the metadata (see
+     * {@link #isMetadataUpdate(String)}), the deployment parameters and the global parameters.
+     */
+    static boolean isConfigUpdate(String query_key)
+    {
+        return query_key.startsWith("globalprm_") || query_key.startsWith("dp_") || isMetadataUpdate(query_key);
+    }
+
+    static void signalEnqueue(Collection<Integer> queueIds)
+    {
+        for (EnqueueListener l : enqueueListeners)
+        {
+            for (Integer queueId : queueIds)
+            {
+                try
+                {
+                    l.onEnqueue(queueId);
+                }
+                catch (Exception e)
+                {
+                    // A notification is only a hint - never fail the transaction because of it.
+                    jqmlogger.warn("Enqueue listener has failed", e);
+                }
+            }
+        }
+    }
+
     /**
      * Close utility method.
      * 
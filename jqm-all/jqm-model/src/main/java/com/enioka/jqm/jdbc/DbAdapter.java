@@ -4,6 +4,7 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 /**
@@ -98,4 +99,93 @@ public interface DbAdapter
      * @return the ready to use SQL query for this database.
      */
     public String paginateQuery(String sql, int start, int stopBefore, List<Object> prms);
+
+    /**
+     * Atomically attributes waiting (SUBMITTED) job instances of a queue to a node, and returns the IDs of the claimed instances. This
+     * should be done with as few round trips as the database allows, and must never return an instance claimed by another node. Concurrent
+     * callers should not block each other (use SKIP LOCKED or equivalent when available). The transaction is neither committed nor rolled
+     * back.
+     * 
+     * @param cnx
+     *            an open and ready to use connection to the database. Please return it without any open statement/result set.
+     * @param nodeId
+     *            the node claiming the instances.
+     * @param queueId
+     *            the queue to poll.
+     * @param maxResults
+     *            the maximum count of instances to claim. Strictly positive.
+     * @param warmHeadStart
+     *            if strictly positive, instances of a job definition which is warm on other nodes (but not on this one) are only claimed
+     *            when they have been waiting for more than this number of seconds - see the <code>ji_select_poll_candidates_warm</code>
+     *            query and {@link DbHelper#setCandidateParameters(java.sql.PreparedStatement, int, int, int, int)}.
+     * @return the IDs of the claimed instances. Empty list if none.
+     */
+    public List<Integer> claimJobInstances(Connection cnx, int nodeId, int queueId, int maxResults, int warmHeadStart) throws SQLException;
+
+    /**
+     * Same as {@link #claimJobInstances(Connection, int, int, int, int)} but for multiple queues at once, in as few round trips as possible
+     * (ideally one, whatever the number of queues). Used by engines polling many queues.
+     * 
+     * @param cnx
+     *            an open and ready to use connection to the database. Please return it without any open statement/result set.
+     * @param nodeId
+     *            the node claiming the instances.
+     * @param slotsByQueue
+     *            for each queue to poll (key: queue ID), the maximum count of instances to claim. Strictly positive values. Not empty.
+     * @param warmHeadStart
+     *            see {@link #claimJobInstances(Connection, int, int, int, int)}.
+     * @return the IDs of the claimed instances, all queues mixed. Empty list if none.
+     */
+    public List<Integer> claimJobInstances(Connection cnx, int nodeId, Map<Integer, Integer> slotsByQueue, int warmHeadStart)
+            throws SQLException;
+
+    /**
+     * Same as {@link #claimJobInstances(Connection, int, int, int, int)} but only for the instances of a single job definition, except
+     * highlander instances (the <code>ji_select_batch_candidates</code> query). Used to fill micro-job batches.
+     * 
+     * @param cnx
+     *            an open and ready to use connection to the database. Please return it without any open statement/result set.
+     * @param nodeId
+     *            the node claiming the instances.
+     * @param queueId
+     *            the queue to poll.
+     * @param jobDefId
+     *            the job definition of the instances to claim.
+     * @param maxResults
+     *            the maximum count of instances to claim. Strictly positive.
+     * @return the IDs of the claimed instances. Empty list if none.
+     */
+    public List<Integer> claimBatchJobInstances(Connection cnx, int nodeId, int queueId, int jobDefId, int maxResults) throws SQLException;
+
+    /**
+     * Called inside a transaction which makes job instances available inside a queue. Adapters for databases having an asynchronous
+     * notification system (such as PostgreSQL NOTIFY) should use it here, so that engines on other JVMs are notified when the transaction is
+     * committed. Others should do nothing.
+     * 
+     * @param cnx
+     *            an open and ready to use connection to the database. Please return it without any open statement/result set.
+     * @param queueId
+     *            the queue in which job instances were enqueued.
+     */
+    public void notifyEnqueue(Connection cnx, int queueId) throws SQLException;
+
+    /**
+     * Subscribes the connection to the notifications sent by {@link #notifyEnqueue(Connection, int)}.
+     * 
+     * @param cnx
+     *            a connection which will only be used for listening from now on.
+     * @return false if the database has no notification system. (engines will then rely on polling)
+     */
+    public boolean listenEnqueueNotifications(Connection cnx) throws SQLException;
+
+    /**
+     * Waits for notifications on a connection previously given to {@link #listenEnqueueNotifications(Connection)}.
+     * 
+     * @param cnx
+     *            the listening connection.
+     * @param timeoutMs
+     *            maximum wait. Implementations may return sooner.
+     * @return the IDs of the notified queues. Empty list if none.
+     */
+    public List<Integer> readEnqueueNotifications(Connection cnx, int timeoutMs) throws SQLException;
 }
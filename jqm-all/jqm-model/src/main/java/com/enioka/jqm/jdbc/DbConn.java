@@ -8,6 +8,8 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.Savepoint;
 import java.sql.Statement;
 import java.sql.Time;
 import java.sql.Timestamp;
@@ -15,8 +17,10 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,6 +39,9 @@ public class DbConn implements Closeable
     private boolean transac_open = false;
     private boolean rollbackOnly = false;
     private List<Statement> toClose = new ArrayList<Statement>();
+    private Set<Integer> enqueuedQueues = new LinkedHashSet<Integer>();
+    private boolean configChanged = false;
+    private boolean configVersionIncremented = false;
 
     DbConn(Db parent, Connection cnx)
     {
@@ -48,15 +55,30 @@ public class DbConn implements Closeable
         {
             throw new IllegalStateException("cannot commit a rollback only session. Use rollback first.");
         }
+
         try
         {
             _cnx.commit();
             transac_open = false;
+            configVersionIncremented = false;
         }
         catch (SQLException e)
         {
             throw new DatabaseException(e);
         }
+
+        if (!enqueuedQueues.isEmpty())
+        {
+            List<Integer> queueIds = new ArrayList<Integer>(enqueuedQueues);
+            enqueuedQueues.clear();
+            Db.signalEnqueue(queueIds);
+        }
+
+        if (configChanged)
+        {
+            configChanged = false;
+            parent.invalidateCaches();
+        }
     }
 
     public void rollback()
@@ -66,6 +88,9 @@ public class DbConn implements Closeable
             _cnx.rollback();
             transac_open = false;
             rollbackOnly = false;
+            enqueuedQueues.clear();
+            configChanged = false;
+            configVersionIncremented = false;
         }
         catch (SQLException e)
         {
@@ -73,11 +98,42 @@ public class DbConn implements Closeable
         }
     }
 
+    /**
+     * Increments the configuration version (see {@link Db#isConfigUpdate(String)}) once per transaction, before its first configuration
+     * update. The version row stays locked until the end of the transaction, so concurrent configuration changes are serialized and the
+     * versions are in the same order as the commits: a process reading a version sees all the changes up to it. As the version row is the
+     * first configuration row locked by any transaction, this cannot deadlock.
+     */
+    private void incrementConfigVersion(String query_key)
+    {
+        if (!configVersionIncremented && Db.isConfigUpdate(query_key))
+        {
+            configVersionIncremented = true;
+            runUpdate("config_update_increment");
+        }
+    }
+
     public void setRollbackOnly()
     {
         rollbackOnly = true;
     }
 
+    /**
+     * The configuration cache of the given name of the Db this session comes from. See {@link Db#getCache(String)}.
+     */
+    public <K, V> VersionedCache<K, V> getCache(String name)
+    {
+        return parent.getCache(name);
+    }
+
+    /**
+     * Same as {@link Db#refreshCaches(DbConn)} for the Db this session comes from.
+     */
+    public void refreshCaches()
+    {
+        parent.refreshCaches(this);
+    }
+
     private QueryPreparation adapterPreparation(String query_key, boolean forUpdate, Object... params)
     {
         QueryPreparation qp = new QueryPreparation();
@@ -93,6 +149,8 @@ public class DbConn implements Closeable
     public QueryResult runUpdate(String query_key, Object... params)
     {
         transac_open = true;
+        configChanged |= Db.isConfigUpdate(query_key);
+        incrementConfigVersion(query_key);
         PreparedStatement ps = null;
         QueryPreparation qp = adapterPreparation(query_key, false, params);
         try
@@ -128,6 +186,298 @@ public class DbConn implements Closeable
         }
     }
 
+    /**
+     * Runs the same update query once per parameter set, using JDBC batches so as to limit round trips. The transaction is left open.
+     * Generated keys are not retrieved.
+     *
+     * @return the total count of updated rows, when the driver reports it.
+     */
+    public int runBatchUpdate(String query_key, List<Object[]> paramSets)
+    {
+        transac_open = true;
+        configChanged |= Db.isConfigUpdate(query_key);
+        incrementConfigVersion(query_key);
+        PreparedStatement ps = null;
+        String sqlText = null;
+        int res = 0;
+        try
+        {
+            for (Object[] params : paramSets)
+            {
+                QueryPreparation qp = adapterPreparation(query_key, false, params);
+                if (ps == null || !qp.sqlText.equals(sqlText))
+                {
+                    // Adapters may rewrite the query depending on the parameters - a batch can only contain a single SQL text.
+                    res += executeBatch(ps);
+                    closeQuietly(ps);
+                    ps = prepare(qp);
+                    sqlText = qp.sqlText;
+                }
+                else
+                {
+                    int i = 0;
+                    for (Object prm : qp.parameters)
+                    {
+                        addParameter(prm, ++i, ps);
+                    }
+                }
+                ps.addBatch();
+            }
+            res += executeBatch(ps);
+
+            jqmlogger.debug("Updated rows: {}", res);
+            return res;
+        }
+        catch (SQLException e)
+        {
+            throw new DatabaseException(sqlText, e);
+        }
+        finally
+        {
+            closeQuietly(ps);
+        }
+    }
+
+    private int executeBatch(PreparedStatement ps) throws SQLException
+    {
+        int res = 0;
+        if (ps != null)
+        {
+            for (int i : ps.executeBatch())
+            {
+                res += i > 0 ? i : 0;
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Atomically attributes at most <code>maxResults</code> waiting job instances of a queue to a node. No concurrency, rate or highlander
+     * limit is applied here: this is only the database part of {@link com.enioka.jqm.model.JobInstance#claim(DbConn, int, int, int)}. The
+     * transaction is left open.
+     * 
+     * @return the IDs of the attributed job instances. May be empty, never null.
+     */
+    public List<Integer> attributeJobInstances(int nodeId, int queueId, int maxResults)
+    {
+        transac_open = true;
+        try
+        {
+            List<Integer> res = this.parent.getAdapter().claimJobInstances(_cnx, nodeId, queueId, maxResults, 0);
+            jqmlogger.debug("Claimed job instances: {}", res);
+            return res;
+        }
+        catch (SQLException e)
+        {
+            throw new DatabaseException(e);
+        }
+    }
+
+    /**
+     * Same as {@link #attributeJobInstances(int, int, int)}, but for multiple queues in a single claim, and with a head start for the nodes
+     * on which job definitions are warm (see <code>NODE_WARM_JOBDEF</code>): as long as they have been waiting for less than
+     * <code>warmHeadStart</code> seconds, instances of a job definition warm on other nodes are left to these nodes. 0 means no head start.
+     * 
+     * @param slotsByQueue
+     *            the maximum count of instances to attribute for each queue (key is the queue ID).
+     * @return the IDs of the attributed instances.
+     */
+    public List<Integer> attributeJobInstances(int nodeId, Map<Integer, Integer> slotsByQueue, int warmHeadStart)
+    {
+        transac_open = true;
+        try
+        {
+            List<Integer> res = this.parent.getAdapter().claimJobInstances(_cnx, nodeId, slotsByQueue, warmHeadStart);
+            jqmlogger.debug("Claimed job instances: {}", res);
+            return res;
+        }
+        catch (SQLException e)
+        {
+            throw new DatabaseException(e);
+        }
+    }
+
+    /**
+     * Atomically attributes to a node at most <code>maxResults</code> waiting instances of a single job definition inside a queue, except
+     * highlander instances. This is only the database part of
+     * {@link com.enioka.jqm.model.JobInstance#claimBatch(DbConn, int, int, int, int)}. The transaction is left open.
+     *
+     * @return the IDs of the attributed job instances. May be empty, never null.
+     */
+    public List<Integer> attributeBatchJobInstances(int nodeId, int queueId, int jobDefId, int maxResults)
+    {
+        transac_open = true;
+        try
+        {
+            List<Integer> res = this.parent.getAdapter().claimBatchJobInstances(_cnx, nodeId, queueId, jobDefId, maxResults);
+            jqmlogger.debug("Claimed job instances for batch: {}", res);
+            return res;
+        }
+        catch (SQLException e)
+        {
+            throw new DatabaseException(e);
+        }
+    }
+
+    /**
+     * Takes the highlander lock of the job definitions of newly claimed instances, inside the claim transaction. The claim queries skip the
+     * highlander instances of job definitions having a lock, so this is a single indexed probe instead of a count of running instances.<br>
+     * A concurrent claim on another node may have taken the same lock between its candidate selection and this call: this is an expected
+     * outcome, not an error. The insert of each lock is done under a savepoint, so that such a unique key violation only undoes this
+     * insert and leaves the rest of the claim transaction usable.
+     *
+     * @return the claimed instances which did not get their lock (lock already taken, or another instance of the same job definition
+     *         inside this claim). The caller must give them back to their queue. May be empty, never null.
+     */
+    public List<Integer> lockHighlanders(List<Integer> claimed)
+    {
+        List<Integer> lost = new ArrayList<Integer>();
+        if (claimed.isEmpty())
+        {
+            return lost;
+        }
+
+        Map<Integer, Integer> toLock = new HashMap<Integer, Integer>();
+        ResultSet rs = runSelect("hl_select_to_lock_by_ji_list", claimed);
+        try
+        {
+            while (rs.next())
+            {
+                if (!toLock.containsKey(rs.getInt(1)))
+                {
+                    toLock.put(rs.getInt(1), rs.getInt(2));
+                }
+                else
+                {
+                    lost.add(rs.getInt(2));
+                }
+            }
+        }
+        catch (SQLException e)
+        {
+            throw new DatabaseException(e);
+        }
+        finally
+        {
+            closeQuietly(rs);
+        }
+
+        for (Map.Entry<Integer, Integer> e : toLock.entrySet())
+        {
+            if (!insertHighlanderLock(e.getKey(), e.getValue()))
+            {
+                lost.add(e.getValue());
+            }
+        }
+        return lost;
+    }
+
+    /**
+     * @return false if the lock of the job definition was already taken inside another transaction.
+     */
+    private boolean insertHighlanderLock(int jobDefId, int jobInstanceId)
+    {
+        Savepoint sp;
+        try
+        {
+            sp = _cnx.setSavepoint();
+        }
+        catch (SQLException e)
+        {
+            throw new DatabaseException(e);
+        }
+
+        try
+        {
+            runUpdate("hl_insert", jobDefId, jobInstanceId);
+            // The savepoint is not released: not all drivers support it, and it ends with the transaction anyway.
+            return true;
+        }
+        catch (DatabaseException e)
+        {
+            if (!isUniqueViolation(e.getCause()))
+            {
+                throw e;
+            }
+            try
+            {
+                _cnx.rollback(sp);
+            }
+            catch (SQLException e2)
+            {
+                throw new DatabaseException(e2);
+            }
+            jqmlogger.debug("Highlander lock of job definition {} was taken by another node - job instance {} is given back", jobDefId,
+                    jobInstanceId);
+            return false;
+        }
+    }
+
+    private static boolean isUniqueViolation(Throwable e)
+    {
+        // Not all drivers use the dedicated exception class, but all use the SQL standard integrity constraint violation class.
+        if (e instanceof SQLIntegrityConstraintViolationException)
+        {
+            return true;
+        }
+        return e instanceof SQLException && ((SQLException) e).getSQLState() != null && ((SQLException) e).getSQLState().startsWith("23");
+    }
+
+    /**
+     * Signals that the current transaction has made job instances available inside the given queue. Engines will be notified after the
+     * commit, either in-process (if running inside the same JVM) or through the database notification system when the database has one.
+     */
+    public void notifyEnqueue(int queueId)
+    {
+        transac_open = true;
+        try
+        {
+            this.parent.getAdapter().notifyEnqueue(_cnx, queueId);
+        }
+        catch (SQLException e)
+        {
+            throw new DatabaseException(e);
+        }
+        enqueuedQueues.add(queueId);
+    }
+
+    /**
+     * Subscribes this session to the enqueue notifications sent by other sessions (on any JVM). The session should then be dedicated to
+     * listening, through {@link #readEnqueueNotifications(int)}.
+     * 
+     * @return false if the database does not support notifications.
+     */
+    public boolean listenEnqueueNotifications()
+    {
+        try
+        {
+            return this.parent.getAdapter().listenEnqueueNotifications(_cnx);
+        }
+        catch (SQLException e)
+        {
+            throw new DatabaseException(e);
+        }
+    }
+
+    /**
+     * Waits for enqueue notifications. Only meaningful after {@link #listenEnqueueNotifications()} has returned true.
+     * 
+     * @param timeoutMs
+     *            maximum wait
+     * @return the IDs of the queues in which job instances were enqueued. May be empty.
+     */
+    public List<Integer> readEnqueueNotifications(int timeoutMs)
+    {
+        try
+        {
+            return this.parent.getAdapter().readEnqueueNotifications(_cnx, timeoutMs);
+        }
+        catch (SQLException e)
+        {
+            throw new DatabaseException(e);
+        }
+    }
+
     void runRawUpdate(String query_sql)
     {
         transac_open = true;
@@ -463,6 +813,8 @@ public class DbConn implements Closeable
                 s.setInt(position, (Integer) value);
             else if (Long.class == value.getClass())
                 s.setLong(position, (Long) value);
+            else if (Double.class == value.getClass())
+                s.setDouble(position, (Double) value);
             else if (String.class == value.getClass())
                 s.setString(position, (String) value);
             else if (Timestamp.class == value.getClass())
@@ -2,11 +2,216 @@ package com.enioka.jqm.jdbc;
 
 import java.io.Closeable;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 public class DbHelper
 {
+    /**
+     * Second step of a job instance claim for databases which cannot update and return rows in a single statement: attributes the given
+     * candidates to the node. If some candidates were taken by someone else in between, only the instances really attributed to the node are
+     * returned. (no retry - they will simply be polled on next loop)
+     * 
+     * @param cnx
+     *            an open connection, inside the transaction which has selected the candidates.
+     * @param adapter
+     *            the adapter giving the SQL texts.
+     * @param nodeId
+     *            the node claiming the instances.
+     * @param candidates
+     *            IDs of SUBMITTED job instances.
+     * @return the IDs of the claimed instances.
+     */
+    static List<Integer> attributeJobInstances(Connection cnx, DbAdapter adapter, int nodeId, List<Integer> candidates) throws SQLException
+    {
+        if (candidates.isEmpty())
+        {
+            return candidates;
+        }
+
+        PreparedStatement ps = null;
+        int nbUpdated;
+        try
+        {
+            ps = cnx.prepareStatement(expandInList(adapter.getSqlText("ji_update_attribute_by_id_list"), candidates.size()));
+            ps.setInt(1, nodeId);
+            setIds(ps, 2, candidates);
+            nbUpdated = ps.executeUpdate();
+        }
+        finally
+        {
+            closeQuietly(ps);
+        }
+        if (nbUpdated == candidates.size())
+        {
+            return candidates;
+        }
+
+        ResultSet rs = null;
+        try
+        {
+            ps = cnx.prepareStatement(expandInList(adapter.getSqlText("ji_select_attributed_by_id_list"), candidates.size()));
+            ps.setInt(1, nodeId);
+            setIds(ps, 2, candidates);
+            rs = ps.executeQuery();
+            return readIds(rs, candidates.size());
+        }
+        finally
+        {
+            closeQuietly(rs);
+            closeQuietly(ps);
+        }
+    }
+
+    /**
+     * Multi-queue claim for databases which cannot update and return rows in a single statement nor lock the candidates: all the candidates
+     * are selected in a single query (a UNION ALL of one limited candidate query per queue) then attributed to the node. The attribution
+     * only takes those still SUBMITTED. Databases which lock the candidates of their single queue claim must not use this, as locking
+     * clauses are usually not allowed inside a UNION. A single queue claim is delegated to the adapter single queue method, which may be
+     * able to do better.
+     * 
+     * @param cnx
+     *            an open connection.
+     * @param adapter
+     *            the adapter giving the SQL texts.
+     * @param nodeId
+     *            the node claiming the instances.
+     * @param slotsByQueue
+     *            for each queue ID, the maximum count of instances to claim.
+     * @param warmHeadStart
+     *            see {@link DbAdapter#claimJobInstances(Connection, int, int, int, int)}.
+     * @param limitFormat
+     *            how to limit the row count of a query on this database. A format string with the query (%s) then the limit (%d).
+     * @return the IDs of the claimed instances.
+     */
+    static List<Integer> claimJobInstances(Connection cnx, DbAdapter adapter, int nodeId, Map<Integer, Integer> slotsByQueue,
+            int warmHeadStart, String limitFormat) throws SQLException
+    {
+        if (slotsByQueue.size() == 1)
+        {
+            Map.Entry<Integer, Integer> e = slotsByQueue.entrySet().iterator().next();
+            return adapter.claimJobInstances(cnx, nodeId, e.getKey(), e.getValue(), warmHeadStart);
+        }
+
+        String candidates = adapter.getSqlText(getCandidateQueryKey(warmHeadStart));
+        StringBuilder sql = new StringBuilder();
+        int total = 0;
+        for (Map.Entry<Integer, Integer> e : slotsByQueue.entrySet())
+        {
+            sql.append(sql.length() == 0 ? "(" : " UNION ALL (").append(String.format(limitFormat, candidates, e.getValue())).append(")");
+            total += e.getValue();
+        }
+
+        List<Integer> res;
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try
+        {
+            ps = cnx.prepareStatement(sql.toString());
+            int i = 1;
+            for (Integer queueId : slotsByQueue.keySet())
+            {
+                i = setCandidateParameters(ps, i, nodeId, queueId, warmHeadStart);
+            }
+            rs = ps.executeQuery();
+            res = readIds(rs, total);
+        }
+        finally
+        {
+            closeQuietly(rs);
+            closeQuietly(ps);
+        }
+        return attributeJobInstances(cnx, adapter, nodeId, res);
+    }
+
+    /**
+     * The query selecting the claim candidates of a queue: <code>ji_select_poll_candidates</code> or, with a head start for warm nodes,
+     * <code>ji_select_poll_candidates_warm</code>, which only selects the instances of job definitions warm on other nodes (and not on
+     * the claiming node) when they have been waiting for more than the head start.
+     */
+    static String getCandidateQueryKey(int warmHeadStart)
+    {
+        return warmHeadStart > 0 ? "ji_select_poll_candidates_warm" : "ji_select_poll_candidates";
+    }
+
+    /**
+     * Sets the parameters of the query given by {@link #getCandidateQueryKey(int)}, starting at the given position.
+     * 
+     * @return the position of the next parameter.
+     */
+    static int setCandidateParameters(PreparedStatement ps, int position, int nodeId, int queueId, int warmHeadStart) throws SQLException
+    {
+        return setParameters(ps, position, getCandidateParameters(nodeId, queueId, warmHeadStart));
+    }
+
+    /**
+     * The parameters of the query given by {@link #getCandidateQueryKey(int)}.
+     */
+    static int[] getCandidateParameters(int nodeId, int queueId, int warmHeadStart)
+    {
+        return warmHeadStart > 0 ? new int[] { queueId, warmHeadStart, nodeId } : new int[] { queueId };
+    }
+
+    /**
+     * The parameters of the <code>ji_select_batch_candidates</code> query, which selects the claim candidates of a micro-job batch.
+     */
+    static int[] getBatchCandidateParameters(int queueId, int jobDefId)
+    {
+        return new int[] { queueId, jobDefId };
+    }
+
+    /**
+     * Sets integer parameters, starting at the given position.
+     * 
+     * @return the position of the next parameter.
+     */
+    static int setParameters(PreparedStatement ps, int position, int[] prms) throws SQLException
+    {
+        int i = position;
+        for (int prm : prms)
+        {
+            ps.setInt(i++, prm);
+        }
+        return i;
+    }
+
+    /**
+     * Reads at most max integers from the first column of a result set.
+     */
+    static List<Integer> readIds(ResultSet rs, int max) throws SQLException
+    {
+        List<Integer> res = new ArrayList<Integer>(max);
+        while (res.size() < max && rs.next())
+        {
+            res.add(rs.getInt(1));
+        }
+        return res;
+    }
+
+    private static String expandInList(String sql, int size)
+    {
+        StringBuilder sb = new StringBuilder(size * 2);
+        for (int i = 0; i < size; i++)
+        {
+            sb.append(i == 0 ? "?" : ",?");
+        }
+        return sql.replace("IN(?)", "IN(" + sb.toString() + ")");
+    }
+
+    private static void setIds(PreparedStatement ps, int startPosition, List<Integer> ids) throws SQLException
+    {
+        int i = startPosition;
+        for (Integer id : ids)
+        {
+            ps.setInt(i++, id);
+        }
+    }
+
     /**
      * Close utility method.
      * 
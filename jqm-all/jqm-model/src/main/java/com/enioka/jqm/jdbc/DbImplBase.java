@@ -19,24 +19,28 @@ public class DbImplBase
         queries.put("version_insert", "INSERT INTO __T__VERSION(ID, COMPONENT, VERSION_D1, COMPAT_D1, INSTALL_DATE) VALUES(JQM_PK.nextval, 'SCHEMA', ?, ?, CURRENT_TIMESTAMP)");
         queries.put("version_select_latest", "SELECT v1.VERSION_D1, v1.COMPAT_D1 FROM __T__VERSION v1 WHERE v1.ID = (SELECT MAX(v2.ID) AS OID FROM __T__VERSION v2 WHERE v2.COMPONENT='SCHEMA')");
         
+        // CONFIGURATION VERSION
+        queries.put("config_update_increment", "UPDATE __T__CONFIG_VERSION SET VERSION=VERSION+1 WHERE ID=1");
+        queries.put("config_select_version", "SELECT VERSION FROM __T__CONFIG_VERSION WHERE ID=1");
+        
         // NODE
         queries.put("node_insert", "INSERT INTO __T__NODE(ID, REPO_DELIVERABLE, DNS, ENABLED, JMX_REGISTRY_PORT, JMX_SERVER_PORT, "
-                + "LOAD_API_ADMIN, LOAD_API_CLIENT, LOAD_API_SIMPLE, NAME, PORT, REPO_JOB_DEF, ROOT_LOG_LEVEL, STOP, REPO_TMP) "
-                + "VALUES(JQM_PK.nextval, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+                + "LOAD_API_ADMIN, LOAD_API_CLIENT, LOAD_API_SIMPLE, NAME, PORT, REPO_JOB_DEF, ROOT_LOG_LEVEL, STOP, REPO_TMP, LAST_MODIFIED) "
+                + "VALUES(JQM_PK.nextval, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, CURRENT_TIMESTAMP)");
         queries.put("node_delete_all", "DELETE FROM __T__NODE");
         queries.put("node_delete_by_id", "DELETE __T__NODE WHERE ID=?");
-        queries.put("node_update_all_enable_ws", "UPDATE __T__NODE SET LOAD_API_SIMPLE=true, LOAD_API_CLIENT=true, LOAD_API_ADMIN=true, DNS='0.0.0.0'");
-        queries.put("node_update_enable_ws_by_id", "UPDATE __T__NODE SET LOAD_API_SIMPLE=true, LOAD_API_CLIENT=true, LOAD_API_ADMIN=true, DNS='0.0.0.0' WHERE ID=?");
-        queries.put("node_update_all_disable_ws", "UPDATE __T__NODE SET LOAD_API_CLIENT=false, LOAD_API_ADMIN=false");
-        queries.put("node_update_all_disable_all_ws", "UPDATE __T__NODE SET LOAD_API_SIMPLE=false, LOAD_API_CLIENT=false, LOAD_API_ADMIN=false");
-        queries.put("node_update_enabled_by_id", "UPDATE __T__NODE SET ENABLED=? WHERE ID=?");
-        queries.put("node_update_port_by_id", "UPDATE __T__NODE SET PORT=? WHERE ID=?");
-        queries.put("node_update_jmx_by_id", "UPDATE __T__NODE SET JMX_REGISTRY_PORT=?, JMX_SERVER_PORT=? WHERE ID=?");
+        queries.put("node_update_all_enable_ws", "UPDATE __T__NODE SET LAST_MODIFIED=CURRENT_TIMESTAMP, LOAD_API_SIMPLE=true, LOAD_API_CLIENT=true, LOAD_API_ADMIN=true, DNS='0.0.0.0'");
+        queries.put("node_update_enable_ws_by_id", "UPDATE __T__NODE SET LAST_MODIFIED=CURRENT_TIMESTAMP, LOAD_API_SIMPLE=true, LOAD_API_CLIENT=true, LOAD_API_ADMIN=true, DNS='0.0.0.0' WHERE ID=?");
+        queries.put("node_update_all_disable_ws", "UPDATE __T__NODE SET LAST_MODIFIED=CURRENT_TIMESTAMP, LOAD_API_CLIENT=false, LOAD_API_ADMIN=false");
+        queries.put("node_update_all_disable_all_ws", "UPDATE __T__NODE SET LAST_MODIFIED=CURRENT_TIMESTAMP, LOAD_API_SIMPLE=false, LOAD_API_CLIENT=false, LOAD_API_ADMIN=false");
+        queries.put("node_update_enabled_by_id", "UPDATE __T__NODE SET LAST_MODIFIED=CURRENT_TIMESTAMP, ENABLED=? WHERE ID=?");
+        queries.put("node_update_port_by_id", "UPDATE __T__NODE SET LAST_MODIFIED=CURRENT_TIMESTAMP, PORT=? WHERE ID=?");
+        queries.put("node_update_jmx_by_id", "UPDATE __T__NODE SET LAST_MODIFIED=CURRENT_TIMESTAMP, JMX_REGISTRY_PORT=?, JMX_SERVER_PORT=? WHERE ID=?");
         queries.put("node_update_alive_by_id", "UPDATE __T__NODE SET LAST_SEEN_ALIVE=CURRENT_TIMESTAMP WHERE ID=?");
         queries.put("node_update_has_stopped_by_id", "UPDATE __T__NODE SET LAST_SEEN_ALIVE=NULL, STOP=false WHERE ID=?");
         queries.put("node_update_stop_by_id", "UPDATE __T__NODE SET STOP=true WHERE ID=?");
-        queries.put("node_update_all_log_level", "UPDATE __T__NODE SET ROOT_LOG_LEVEL=?");
-        queries.put("node_update_changed_by_id", "UPDATE __T__NODE SET REPO_DELIVERABLE=?, DNS=?, ENABLED=?, JMX_REGISTRY_PORT=?, JMX_SERVER_PORT=?, "
+        queries.put("node_update_all_log_level", "UPDATE __T__NODE SET LAST_MODIFIED=CURRENT_TIMESTAMP, ROOT_LOG_LEVEL=?");
+        queries.put("node_update_changed_by_id", "UPDATE __T__NODE SET LAST_MODIFIED=CURRENT_TIMESTAMP, REPO_DELIVERABLE=?, DNS=?, ENABLED=?, JMX_REGISTRY_PORT=?, JMX_SERVER_PORT=?, "
                 + "LOAD_API_ADMIN=?, LOAD_API_CLIENT=?, LOAD_API_SIMPLE=?, NAME=?, PORT=?, REPO_JOB_DEF=?, ROOT_LOG_LEVEL=?, STOP=?, REPO_TMP=? "
                 + "WHERE ID=? AND NOT (REPO_DELIVERABLE=? AND DNS=? AND ENABLED=? AND JMX_REGISTRY_PORT=? AND JMX_SERVER_PORT=? AND "
                 + "LOAD_API_ADMIN=? AND LOAD_API_CLIENT=? AND LOAD_API_SIMPLE=? AND NAME=? AND PORT=? AND REPO_JOB_DEF=? AND ROOT_LOG_LEVEL=? AND STOP=? AND REPO_TMP=?)");
@@ -45,45 +49,47 @@ public class DbImplBase
                 + "FROM __T__NODE");
         queries.put("node_select_by_key", queries.get("node_select_all") + " WHERE NAME=?");
         queries.put("node_select_by_id", queries.get("node_select_all") + " WHERE ID=?");
+        queries.put("node_select_config_version", "SELECT n.STOP, (SELECT VERSION FROM __T__CONFIG_VERSION WHERE ID=1) FROM __T__NODE n WHERE n.ID=?");
         queries.put("node_select_connectdata_by_key", "SELECT DNS, PORT FROM __T__NODE WHERE NAME=?");
         
         // QUEUE
-        queries.put("q_insert", "INSERT INTO __T__QUEUE(ID, DEFAULT_QUEUE, DESCRIPTION, NAME) VALUES(JQM_PK.nextval, ?, ?, ?)");
+        queries.put("q_insert", "INSERT INTO __T__QUEUE(ID, DEFAULT_QUEUE, DESCRIPTION, NAME, VIRTUAL_THREADS, MAX_RUNNING, MAX_RATE, LAST_MODIFIED) VALUES(JQM_PK.nextval, ?, ?, ?, ?, ?, ?, CURRENT_TIMESTAMP)");
         queries.put("q_delete_all", "DELETE FROM __T__QUEUE");
         queries.put("q_delete_by_id", "DELETE FROM __T__QUEUE WHERE ID=?");
-        queries.put("q_update_default_none", "UPDATE __T__QUEUE SET DEFAULT_QUEUE=false");
-        queries.put("q_update_default_by_id", "UPDATE __T__QUEUE SET DEFAULT_QUEUE=true WHERE ID=?");
-        queries.put("q_update_all_fields_by_id", "UPDATE __T__QUEUE SET DEFAULT_QUEUE=?, DESCRIPTION=?, NAME=? WHERE ID=?");
-        queries.put("q_update_changed_by_id", "UPDATE __T__QUEUE SET DEFAULT_QUEUE=?, DESCRIPTION=?, NAME=? WHERE ID=? AND NOT (DEFAULT_QUEUE=? AND DESCRIPTION=? AND NAME=?)");
+        queries.put("q_update_default_none", "UPDATE __T__QUEUE SET LAST_MODIFIED=CURRENT_TIMESTAMP, DEFAULT_QUEUE=false");
+        queries.put("q_update_default_by_id", "UPDATE __T__QUEUE SET LAST_MODIFIED=CURRENT_TIMESTAMP, DEFAULT_QUEUE=true WHERE ID=?");
+        queries.put("q_update_all_fields_by_id", "UPDATE __T__QUEUE SET LAST_MODIFIED=CURRENT_TIMESTAMP, DEFAULT_QUEUE=?, DESCRIPTION=?, NAME=?, VIRTUAL_THREADS=?, MAX_RUNNING=?, MAX_RATE=? WHERE ID=?");
+        queries.put("q_update_changed_by_id", "UPDATE __T__QUEUE SET LAST_MODIFIED=CURRENT_TIMESTAMP, DEFAULT_QUEUE=?, DESCRIPTION=?, NAME=?, VIRTUAL_THREADS=?, MAX_RUNNING=?, MAX_RATE=? WHERE ID=? AND NOT (DEFAULT_QUEUE=? AND DESCRIPTION=? AND NAME=? AND VIRTUAL_THREADS=? AND COALESCE(MAX_RUNNING, 0)=? AND COALESCE(MAX_RATE, 0)=?)");
         queries.put("q_select_count_all", "SELECT COUNT(1) FROM __T__QUEUE");
-        queries.put("q_select_all", "SELECT ID, DEFAULT_QUEUE, DESCRIPTION, NAME FROM __T__QUEUE");
-        queries.put("q_select_default", "SELECT ID, DEFAULT_QUEUE, DESCRIPTION, NAME FROM __T__QUEUE WHERE DEFAULT_QUEUE=true");
-        queries.put("q_select_by_key", "SELECT ID, DEFAULT_QUEUE, DESCRIPTION, NAME FROM __T__QUEUE WHERE NAME=?");
-        queries.put("q_select_by_id", "SELECT ID, DEFAULT_QUEUE, DESCRIPTION, NAME FROM __T__QUEUE WHERE ID=?");
+        queries.put("q_select_all", "SELECT ID, DEFAULT_QUEUE, DESCRIPTION, NAME, VIRTUAL_THREADS, MAX_RUNNING, MAX_RATE FROM __T__QUEUE");
+        queries.put("q_select_default", "SELECT ID, DEFAULT_QUEUE, DESCRIPTION, NAME, VIRTUAL_THREADS, MAX_RUNNING, MAX_RATE FROM __T__QUEUE WHERE DEFAULT_QUEUE=true");
+        queries.put("q_select_by_key", "SELECT ID, DEFAULT_QUEUE, DESCRIPTION, NAME, VIRTUAL_THREADS, MAX_RUNNING, MAX_RATE FROM __T__QUEUE WHERE NAME=?");
+        queries.put("q_select_by_id", "SELECT ID, DEFAULT_QUEUE, DESCRIPTION, NAME, VIRTUAL_THREADS, MAX_RUNNING, MAX_RATE FROM __T__QUEUE WHERE ID=?");
         
         // DEPLOYMENT
-        queries.put("dp_insert", "INSERT INTO __T__QUEUE_NODE_MAPPING(ID, ENABLED, LAST_MODIFIED, MAX_THREAD, POLLING_INTERVAL, NODE, QUEUE) VALUES(JQM_PK.nextval, ?, CURRENT_TIMESTAMP, ?, ?, ?, ?)");
+        queries.put("dp_insert", "INSERT INTO __T__QUEUE_NODE_MAPPING(ID, ENABLED, LAST_MODIFIED, MAX_THREAD, POLLING_INTERVAL, NODE, QUEUE, PREFETCH) VALUES(JQM_PK.nextval, ?, CURRENT_TIMESTAMP, ?, ?, ?, ?, ?)");
         queries.put("dp_delete_all", "DELETE FROM __T__QUEUE_NODE_MAPPING");
         queries.put("dp_delete_for_node", "DELETE FROM __T__QUEUE_NODE_MAPPING WHERE NODE=?");
         queries.put("dp_delete_for_queue", "DELETE FROM __T__QUEUE_NODE_MAPPING WHERE QUEUE=?");
         queries.put("dp_delete_by_id", "DELETE FROM __T__QUEUE_NODE_MAPPING WHERE ID=?");
-        queries.put("dp_update_interval_by_id", "UPDATE __T__QUEUE_NODE_MAPPING SET POLLING_INTERVAL=? WHERE ID=?");
-        queries.put("dp_update_enable_by_queue_id", "UPDATE __T__QUEUE_NODE_MAPPING SET ENABLED=? WHERE QUEUE=?");
-        queries.put("dp_update_threads_by_id", "UPDATE __T__QUEUE_NODE_MAPPING SET MAX_THREAD=? WHERE ID=?");
-        queries.put("dp_update_changed_by_id", "UPDATE __T__QUEUE_NODE_MAPPING SET ENABLED=?, LAST_MODIFIED=CURRENT_TIMESTAMP, MAX_THREAD=?, POLLING_INTERVAL=?, NODE=?, QUEUE=? WHERE ID=? AND NOT "
-                + "(ENABLED=? AND MAX_THREAD=? AND POLLING_INTERVAL=? AND NODE=? AND QUEUE=?)");
-        queries.put("dp_select_by_id", "SELECT ID, ENABLED, LAST_MODIFIED, MAX_THREAD, POLLING_INTERVAL, NODE, QUEUE FROM __T__QUEUE_NODE_MAPPING WHERE ID=?");
-        queries.put("dp_select_for_node", "SELECT ID, ENABLED, LAST_MODIFIED, MAX_THREAD, POLLING_INTERVAL, NODE, QUEUE FROM __T__QUEUE_NODE_MAPPING WHERE NODE=?");
+        queries.put("dp_update_interval_by_id", "UPDATE __T__QUEUE_NODE_MAPPING SET LAST_MODIFIED=CURRENT_TIMESTAMP, POLLING_INTERVAL=? WHERE ID=?");
+        queries.put("dp_update_enable_by_queue_id", "UPDATE __T__QUEUE_NODE_MAPPING SET LAST_MODIFIED=CURRENT_TIMESTAMP, ENABLED=? WHERE QUEUE=?");
+        queries.put("dp_update_threads_by_id", "UPDATE __T__QUEUE_NODE_MAPPING SET LAST_MODIFIED=CURRENT_TIMESTAMP, MAX_THREAD=? WHERE ID=?");
+        queries.put("dp_update_prefetch_by_id", "UPDATE __T__QUEUE_NODE_MAPPING SET LAST_MODIFIED=CURRENT_TIMESTAMP, PREFETCH=? WHERE ID=?");
+        queries.put("dp_update_changed_by_id", "UPDATE __T__QUEUE_NODE_MAPPING SET ENABLED=?, LAST_MODIFIED=CURRENT_TIMESTAMP, MAX_THREAD=?, POLLING_INTERVAL=?, NODE=?, QUEUE=?, PREFETCH=? WHERE ID=? AND NOT "
+                + "(ENABLED=? AND MAX_THREAD=? AND POLLING_INTERVAL=? AND NODE=? AND QUEUE=? AND PREFETCH=?)");
+        queries.put("dp_select_by_id", "SELECT ID, ENABLED, LAST_MODIFIED, MAX_THREAD, POLLING_INTERVAL, NODE, QUEUE, PREFETCH FROM __T__QUEUE_NODE_MAPPING WHERE ID=?");
+        queries.put("dp_select_for_node", "SELECT ID, ENABLED, LAST_MODIFIED, MAX_THREAD, POLLING_INTERVAL, NODE, QUEUE, PREFETCH FROM __T__QUEUE_NODE_MAPPING WHERE NODE=?");
         queries.put("dp_select_count_for_node", "SELECT COUNT(1) FROM __T__QUEUE_NODE_MAPPING WHERE NODE=?");
         queries.put("dp_select_enabled_for_queue", "SELECT ENABLED, MAX_THREAD FROM __T__QUEUE_NODE_MAPPING WHERE QUEUE=?");
-        queries.put("dp_select_all_with_names", "SELECT dp.ID, dp.ENABLED, dp.LAST_MODIFIED, dp.MAX_THREAD, dp.POLLING_INTERVAL, dp.NODE, dp.QUEUE, n.NAME, q.NAME FROM __T__QUEUE_NODE_MAPPING dp LEFT JOIN __T__NODE n ON n.ID=dp.NODE LEFT JOIN __T__QUEUE q ON q.ID=dp.QUEUE ");
+        queries.put("dp_select_all_with_names", "SELECT dp.ID, dp.ENABLED, dp.LAST_MODIFIED, dp.MAX_THREAD, dp.POLLING_INTERVAL, dp.NODE, dp.QUEUE, n.NAME, q.NAME, dp.PREFETCH FROM __T__QUEUE_NODE_MAPPING dp LEFT JOIN __T__NODE n ON n.ID=dp.NODE LEFT JOIN __T__QUEUE q ON q.ID=dp.QUEUE ");
         queries.put("dp_select_with_names_by_id", queries.get("dp_select_all_with_names") + " WHERE ID=?");
         
         // CL
-        queries.put("cl_insert", "INSERT INTO __T__CL(ID, NAME, CHILD_FIRST, HIDDEN_CLASSES, TRACING, PERSISTENT, ALLOWED_RUNNERS) VALUES(JQM_PK.nextval, ?, ?, ?, ?, ?, ?)");
+        queries.put("cl_insert", "INSERT INTO __T__CL(ID, NAME, CHILD_FIRST, HIDDEN_CLASSES, TRACING, PERSISTENT, ALLOWED_RUNNERS, LAST_MODIFIED) VALUES(JQM_PK.nextval, ?, ?, ?, ?, ?, ?, CURRENT_TIMESTAMP)");
         queries.put("cl_delete_all", "DELETE FROM __T__CL");
         queries.put("cl_delete_by_id", "DELETE FROM __T__CL WHERE ID=?");
-        queries.put("cl_update_all_fields_by_id", "UPDATE __T__CL SET NAME=?, CHILD_FIRST=?, HIDDEN_CLASSES=?, TRACING=?, PERSISTENT=?, ALLOWED_RUNNERS=? WHERE ID=?");
+        queries.put("cl_update_all_fields_by_id", "UPDATE __T__CL SET LAST_MODIFIED=CURRENT_TIMESTAMP, NAME=?, CHILD_FIRST=?, HIDDEN_CLASSES=?, TRACING=?, PERSISTENT=?, ALLOWED_RUNNERS=? WHERE ID=?");
         queries.put("cl_select_all", "SELECT ID, NAME, CHILD_FIRST, HIDDEN_CLASSES, TRACING, PERSISTENT, ALLOWED_RUNNERS FROM __T__CL ");
         queries.put("cl_select_by_id", queries.get("cl_select_all") + " WHERE ID=?");
         queries.put("cl_select_by_key", queries.get("cl_select_all") + " WHERE NAME=?");
@@ -107,22 +113,22 @@ public class DbImplBase
         queries.put("jd_insert", "INSERT INTO __T__JOB_DEFINITION(ID, APPLICATION, JD_KEY, CL, "
                 + "DESCRIPTION, ENABLED, EXTERNAL, HIGHLANDER, "
                 + "PATH, CLASS_NAME, JAVA_OPTS, KEYWORD1, KEYWORD2, KEYWORD3, ALERT_AFTER_SECONDS, "
-                + "MODULE, PATH_TYPE, QUEUE) "
-                + "VALUES(JQM_PK.nextval, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+                + "MODULE, PATH_TYPE, QUEUE, MAX_RUNNING, BATCH_SIZE, WARM_POOL_SIZE, LAST_MODIFIED) "
+                + "VALUES(JQM_PK.nextval, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, CURRENT_TIMESTAMP)");
         queries.put("jd_delete_all", "DELETE FROM __T__JOB_DEFINITION");
         queries.put("jd_delete_by_id", "DELETE FROM __T__JOB_DEFINITION WHERE ID=?");
-        queries.put("jd_update_all_fields_by_id", "UPDATE __T__JOB_DEFINITION SET APPLICATION=?, JD_KEY=?, "
+        queries.put("jd_update_all_fields_by_id", "UPDATE __T__JOB_DEFINITION SET LAST_MODIFIED=CURRENT_TIMESTAMP, APPLICATION=?, JD_KEY=?, "
                 + "DESCRIPTION=?, ENABLED=?, EXTERNAL=?, HIGHLANDER=?, "
                 + "PATH=?, CLASS_NAME=?, JAVA_OPTS=?, KEYWORD1=?, KEYWORD2=?, KEYWORD3=?, ALERT_AFTER_SECONDS=?, "
-                + "MODULE=?, PATH_TYPE=?, CL=?, QUEUE=? "
+                + "MODULE=?, PATH_TYPE=?, CL=?, QUEUE=?, MAX_RUNNING=?, BATCH_SIZE=?, WARM_POOL_SIZE=? "
                 + "WHERE ID=?");
-        queries.put("jd_update_set_external_by_id", "UPDATE __T__JOB_DEFINITION SET EXTERNAL=true WHERE ID=?");
-        queries.put("jd_update_set_enabled_by_id", "UPDATE __T__JOB_DEFINITION SET ENABLED=? WHERE ID=?");
-        queries.put("jd_update_set_queue_by_key", "UPDATE __T__JOB_DEFINITION SET QUEUE=? WHERE JD_KEY=?");
+        queries.put("jd_update_set_external_by_id", "UPDATE __T__JOB_DEFINITION SET LAST_MODIFIED=CURRENT_TIMESTAMP, EXTERNAL=true WHERE ID=?");
+        queries.put("jd_update_set_enabled_by_id", "UPDATE __T__JOB_DEFINITION SET LAST_MODIFIED=CURRENT_TIMESTAMP, ENABLED=? WHERE ID=?");
+        queries.put("jd_update_set_queue_by_key", "UPDATE __T__JOB_DEFINITION SET LAST_MODIFIED=CURRENT_TIMESTAMP, QUEUE=? WHERE JD_KEY=?");
         queries.put("jd_select_all", "SELECT ID, APPLICATION, JD_KEY, CL, "
                 + "DESCRIPTION, ENABLED, EXTERNAL, HIGHLANDER, "
                 + "PATH, CLASS_NAME, JAVA_OPTS, KEYWORD1, KEYWORD2, KEYWORD3, ALERT_AFTER_SECONDS, "
-                + "MODULE, PATH_TYPE, QUEUE, PRIORITY FROM __T__JOB_DEFINITION");
+                + "MODULE, PATH_TYPE, QUEUE, PRIORITY, MAX_RUNNING, BATCH_SIZE, WARM_POOL_SIZE FROM __T__JOB_DEFINITION");
         queries.put("jd_select_by_id", queries.get("jd_select_all") + " WHERE ID=?");
         queries.put("jd_select_by_key", queries.get("jd_select_all") + " WHERE JD_KEY=?");
         queries.put("jd_select_by_tag_app", queries.get("jd_select_all") + " WHERE APPLICATION=?");
@@ -166,6 +172,7 @@ public class DbImplBase
                 + "VALUES(JQM_PK.nextval, CURRENT_TIMESTAMP, ?, ?, ?, ?, ?, ?, UNIX_MILLIS(), ?, 0, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
         queries.put("ji_delete_all", "DELETE FROM __T__JOB_INSTANCE");
         queries.put("ji_delete_by_id", "DELETE FROM __T__JOB_INSTANCE WHERE ID = ?");
+        queries.put("ji_delete_by_id_list", "DELETE FROM __T__JOB_INSTANCE WHERE ID IN(UNNEST(?))");
         queries.put("ji_delete_waiting_in_queue_id", "DELETE FROM __T__JOB_INSTANCE WHERE QUEUE = ? AND STATUS IN ('HOLDED', 'SUBMITTED', 'SCHEDULED')");
         queries.put("jj_update_cancel_by_id", "UPDATE __T__JOB_INSTANCE SET STATUS='CANCELLED' WHERE ID=? AND (STATUS='SUBMITTED' OR STATUS='SCHEDULED' OR STATUS='HOLDED')");
         queries.put("jj_update_kill_by_id", "UPDATE __T__JOB_INSTANCE SET INSTRUCTION='KILL' WHERE ID=?");
@@ -179,6 +186,7 @@ public class DbImplBase
         queries.put("jj_update_rank_by_id", "UPDATE __T__JOB_INSTANCE SET INTERNAL_POSITION=? WHERE ID=? AND STATUS='SUBMITTED'");
         queries.put("jj_update_progress_by_id", "UPDATE __T__JOB_INSTANCE SET PROGRESS=? WHERE ID=?");
         queries.put("jj_update_run_by_id", "UPDATE __T__JOB_INSTANCE SET DATE_START=CURRENT_TIMESTAMP, STATUS='RUNNING' WHERE ID=? AND STATUS='ATTRIBUTED'");
+        queries.put("jj_update_run_by_id_list", "UPDATE __T__JOB_INSTANCE SET DATE_START=CURRENT_TIMESTAMP, STATUS='RUNNING' WHERE ID IN(UNNEST(?)) AND STATUS='ATTRIBUTED'");
         queries.put("debug_jj_update_node_by_id", "UPDATE __T__JOB_INSTANCE SET NODE=? WHERE ID=?");
         queries.put("debug_jj_update_status_by_id", "UPDATE __T__JOB_INSTANCE SET STATUS=? WHERE ID=?");
         queries.put("ji_select_current_pos", "SELECT COUNT(ji) FROM __T__JOB_INSTANCE ji WHERE ji.INTERNAL_POSITION < ? AND ji.status = 'SUBMITTED' AND QUEUE=?");
@@ -187,31 +195,97 @@ public class DbImplBase
         queries.put("ji_select_count_by_jd", "SELECT COUNT(1) FROM __T__JOB_INSTANCE WHERE JOBDEF=?");
         queries.put("ji_select_count_by_node", "SELECT COUNT(1) FROM __T__JOB_INSTANCE WHERE NODE=?");
         queries.put("ji_select_count_by_queue", "SELECT COUNT(1) FROM __T__JOB_INSTANCE WHERE QUEUE=?");
+        queries.put("ji_select_count_by_parent", "SELECT COUNT(1) FROM __T__JOB_INSTANCE WHERE PARENT=?");
         queries.put("ji_select_all", "SELECT ji.ID, ji.DATE_ATTRIBUTION, ji.DATE_ENQUEUE, ji.EMAIL, ji.DATE_START, ji.APPLICATION, ji.KEYWORD1, ji.KEYWORD2, "
-                + "ji.KEYWORD3, ji.MODULE, ji.INTERNAL_POSITION, ji.PARENT, ji.PROGRESS, ji.SESSION_KEY, ji.STATUS, ji.USERNAME, ji.JOBDEF, ji.NODE, ji.QUEUE, ji.HIGHLANDER, ji.FROM_SCHEDULE, ji.PRIORITY, ji.INSTRUCTION, ji.DATE_NOT_BEFORE, "
-                + "q.ID, q.DEFAULT_QUEUE, q.DESCRIPTION, q.NAME, "
-                + "jd.ID, jd.APPLICATION, jd.JD_KEY, jd.CL, "
-                + "jd.DESCRIPTION, jd.ENABLED, jd.EXTERNAL, jd.HIGHLANDER, "
-                + "jd.PATH, jd.CLASS_NAME, jd.JAVA_OPTS, jd.KEYWORD1, jd.KEYWORD2, jd.KEYWORD3, jd.ALERT_AFTER_SECONDS, "
-                + "jd.MODULE, jd.PATH_TYPE, jd.QUEUE, "
-                + "n.ID, n.REPO_DELIVERABLE, n.DNS, n.ENABLED, n.JMX_REGISTRY_PORT, n.JMX_SERVER_PORT, "
-                + "n.LOAD_API_ADMIN, n.LOAD_API_CLIENT, n.LOAD_API_SIMPLE, n.NAME, n.PORT, n.REPO_JOB_DEF, n.ROOT_LOG_LEVEL, n.STOP, n.REPO_TMP, n.LAST_SEEN_ALIVE "
-                + "FROM __T__JOB_INSTANCE ji LEFT JOIN __T__QUEUE q ON ji.QUEUE=q.ID LEFT JOIN __T__JOB_DEFINITION jd ON ji.JOBDEF=jd.ID LEFT JOIN __T__NODE n ON ji.NODE=n.ID ");
+                + "ji.KEYWORD3, ji.MODULE, ji.INTERNAL_POSITION, ji.PARENT, ji.PROGRESS, ji.SESSION_KEY, ji.STATUS, ji.USERNAME, ji.JOBDEF, ji.NODE, ji.QUEUE, ji.HIGHLANDER, ji.FROM_SCHEDULE, ji.PRIORITY, ji.INSTRUCTION, ji.DATE_NOT_BEFORE "
+                + "FROM __T__JOB_INSTANCE ji "); // JD, queue and node come from MetadataCache.
         queries.put("ji_select_by_id", queries.get("ji_select_all") + " WHERE ji.ID=?");
         queries.put("ji_select_by_queue", queries.get("ji_select_all") + " WHERE ji.QUEUE=? ORDER BY INTERNAL_POSITION");
         queries.put("ji_select_by_node", queries.get("ji_select_all") + " WHERE ji.NODE=?");
         queries.put("ji_select_existing_highlander", "SELECT ID FROM __T__JOB_INSTANCE WHERE JOBDEF=? AND STATUS='SUBMITTED'");
         queries.put("ji_select_changequeuepos_by_id", "SELECT QUEUE, INTERNAL_POSITION FROM __T__JOB_INSTANCE WHERE ID=? AND STATUS='SUBMITTED'");
         queries.put("ji_select_instruction_by_id", "SELECT INSTRUCTION FROM __T__JOB_INSTANCE WHERE ID=?");
+        queries.put("ji_select_id_by_id_list", "SELECT ID FROM __T__JOB_INSTANCE WHERE ID IN(UNNEST(?))");
+        queries.put("ji_select_parent_by_parent_list", "SELECT DISTINCT PARENT FROM __T__JOB_INSTANCE WHERE PARENT IN(UNNEST(?))");
+        queries.put("ji_select_instructions_for_node", "SELECT ID, INSTRUCTION FROM __T__JOB_INSTANCE WHERE NODE=? AND STATUS='RUNNING' AND INSTRUCTION<>'RUN'");
+        queries.put("ji_select_id_history_by_node", "SELECT ji.ID, h.ID FROM __T__JOB_INSTANCE ji LEFT JOIN __T__HISTORY h ON h.ID=ji.ID WHERE ji.NODE=?");
         queries.put("ji_select_execution_date_by_id", "SELECT DATE_START FROM __T__JOB_INSTANCE WHERE ID=?");
         queries.put("ji_select_cnx_data_by_id", "SELECT DNS||':'||PORT AS HOST FROM __T__JOB_INSTANCE ji LEFT JOIN __T__NODE n ON ji.NODE = n.ID WHERE ji.ID=?");
         
         queries.put("ji_update_poll", "UPDATE __T__JOB_INSTANCE j1 SET NODE=?, STATUS='ATTRIBUTED', DATE_ATTRIBUTION=CURRENT_TIMESTAMP WHERE j1.STATUS='SUBMITTED' AND j1.ID IN "
                 + "(SELECT j2.ID FROM __T__JOB_INSTANCE j2 WHERE j2.STATUS='SUBMITTED' AND j2.QUEUE=? "
-                + "AND (j2.HIGHLANDER=false OR (j2.HIGHLANDER=true AND (SELECT COUNT(1) FROM __T__JOB_INSTANCE j3 WHERE j3.STATUS IN('ATTRIBUTED', 'RUNNING') AND j3.JOBDEF=j2.JOBDEF)=0 )) ORDER BY PRIORITY DESC, INTERNAL_POSITION FOR UPDATE LIMIT ?)");
-        queries.put("ji_select_to_run", queries.get("ji_select_all") + " WHERE ji.NODE = ? AND ji.QUEUE = ? AND ji.STATUS='ATTRIBUTED'");
+                + "AND (j2.HIGHLANDER=false OR NOT EXISTS (SELECT 1 FROM __T__HIGHLANDER_LOCK hl WHERE hl.JOBDEF=j2.JOBDEF)) ORDER BY PRIORITY DESC, INTERNAL_POSITION FOR UPDATE LIMIT ?)");
+        queries.put("ji_select_by_id_list", queries.get("ji_select_all") + " WHERE ji.ID IN(UNNEST(?)) ORDER BY ji.PRIORITY DESC, ji.INTERNAL_POSITION");
+        queries.put("ji_select_poll_candidates", "SELECT j2.ID FROM __T__JOB_INSTANCE j2 WHERE j2.STATUS='SUBMITTED' AND j2.QUEUE=? "
+                + "AND (j2.HIGHLANDER=false OR NOT EXISTS (SELECT 1 FROM __T__HIGHLANDER_LOCK hl WHERE hl.JOBDEF=j2.JOBDEF)) "
+                + "AND NOT EXISTS (SELECT 1 FROM __T__RUNNING_COUNTER rc WHERE rc.JOBDEF=j2.JOBDEF AND rc.QUEUE=0 AND rc.RUNNING >= rc.MAX_RUNNING) "
+                + "AND NOT EXISTS (SELECT 1 FROM __T__RUNNING_COUNTER rq WHERE rq.JOBDEF=0 AND rq.QUEUE=j2.QUEUE AND rq.RUNNING >= rq.MAX_RUNNING) "
+                + "ORDER BY PRIORITY DESC, INTERNAL_POSITION");
+        queries.put("ji_select_poll_candidates_warm", queries.get("ji_select_poll_candidates").replace(" ORDER BY ", " AND (j2.DATE_ENQUEUE <= CURRENT_TIMESTAMP - ? SECOND "
+                + "OR NOT EXISTS (SELECT 1 FROM __T__NODE_WARM_JOBDEF w WHERE w.JOBDEF=j2.JOBDEF) "
+                + "OR EXISTS (SELECT 1 FROM __T__NODE_WARM_JOBDEF w WHERE w.JOBDEF=j2.JOBDEF AND w.NODE=?)) ORDER BY "));
+        queries.put("ji_select_batch_candidates", queries.get("ji_select_poll_candidates").replace(" ORDER BY ", " AND j2.JOBDEF=? AND j2.HIGHLANDER=false ORDER BY "));
+        queries.put("ji_update_attribute_by_id_list", "UPDATE __T__JOB_INSTANCE SET NODE=?, STATUS='ATTRIBUTED', DATE_ATTRIBUTION=CURRENT_TIMESTAMP WHERE STATUS='SUBMITTED' AND ID IN(?)");
+        queries.put("ji_select_jd_queue_by_id_list", "SELECT JOBDEF, QUEUE FROM __T__JOB_INSTANCE WHERE ID IN(UNNEST(?))");
+        queries.put("ji_update_release_by_id_list", "UPDATE __T__JOB_INSTANCE SET NODE=NULL, STATUS='SUBMITTED', DATE_ATTRIBUTION=NULL WHERE STATUS='ATTRIBUTED' AND NODE=? AND ID IN(UNNEST(?))");
+        queries.put("ji_update_release_for_node", "UPDATE __T__JOB_INSTANCE SET NODE=NULL, STATUS='SUBMITTED', DATE_ATTRIBUTION=NULL WHERE STATUS='ATTRIBUTED' AND NODE=?");
+        queries.put("ji_select_attributed_on_dead_nodes", "SELECT ji.ID, ji.JOBDEF, ji.QUEUE, ji.NODE FROM __T__JOB_INSTANCE ji WHERE ji.STATUS='ATTRIBUTED' "
+                + "AND ji.DATE_ATTRIBUTION < CURRENT_TIMESTAMP - ? SECOND AND ji.NODE IN (SELECT n.ID FROM __T__NODE n "
+                + "WHERE n.LAST_SEEN_ALIVE IS NULL OR n.LAST_SEEN_ALIVE < CURRENT_TIMESTAMP - ? SECOND)");
+        queries.put("ji_select_attributed_by_id_list", "SELECT ID FROM __T__JOB_INSTANCE WHERE NODE=? AND STATUS='ATTRIBUTED' AND ID IN(?)");
         queries.put("ji_update_delayed", "UPDATE __T__JOB_INSTANCE SET STATUS='SUBMITTED' WHERE STATUS='SCHEDULED' AND DATE_NOT_BEFORE <= CURRENT_TIMESTAMP");
         
+        // HIGHLANDER LOCK
+        queries.put("hl_insert", "INSERT INTO __T__HIGHLANDER_LOCK(ID, JOBDEF, JOB_INSTANCE) VALUES(JQM_PK.nextval, ?, ?)");
+        queries.put("hl_delete_all", "DELETE FROM __T__HIGHLANDER_LOCK");
+        queries.put("hl_delete_by_ji", "DELETE FROM __T__HIGHLANDER_LOCK WHERE JOB_INSTANCE=?");
+        queries.put("hl_delete_by_ji_list", "DELETE FROM __T__HIGHLANDER_LOCK WHERE JOB_INSTANCE IN(UNNEST(?))");
+        queries.put("hl_delete_attributed_for_node", "DELETE FROM __T__HIGHLANDER_LOCK WHERE JOB_INSTANCE IN(SELECT ID FROM __T__JOB_INSTANCE WHERE STATUS='ATTRIBUTED' AND NODE=?)");
+        queries.put("hl_delete_orphans", "DELETE FROM __T__HIGHLANDER_LOCK WHERE JOB_INSTANCE NOT IN(SELECT ID FROM __T__JOB_INSTANCE WHERE STATUS IN('ATTRIBUTED', 'RUNNING'))");
+        queries.put("hl_select_count_all", "SELECT COUNT(1) FROM __T__HIGHLANDER_LOCK");
+        queries.put("hl_select_to_lock_by_ji_list", "SELECT JOBDEF, ID FROM __T__JOB_INSTANCE WHERE HIGHLANDER=true AND ID IN(UNNEST(?))");
+        queries.put("hl_select_missing", "SELECT ji.JOBDEF, MIN(ji.ID) FROM __T__JOB_INSTANCE ji WHERE ji.HIGHLANDER=true AND ji.STATUS IN('ATTRIBUTED', 'RUNNING') "
+                + "AND NOT EXISTS (SELECT 1 FROM __T__HIGHLANDER_LOCK hl WHERE hl.JOBDEF=ji.JOBDEF) GROUP BY ji.JOBDEF");
+        
+        // RUNNING COUNTERS (concurrency limits). A counter is either for a job definition (QUEUE=0) or for a queue (JOBDEF=0).
+        queries.put("rc_insert", "INSERT INTO __T__RUNNING_COUNTER(ID, JOBDEF, QUEUE, RUNNING, MAX_RUNNING) VALUES(JQM_PK.nextval, ?, ?, ?, ?)");
+        queries.put("rc_delete_all", "DELETE FROM __T__RUNNING_COUNTER");
+        queries.put("rc_delete_stale", "DELETE FROM __T__RUNNING_COUNTER WHERE "
+                + "NOT EXISTS (SELECT 1 FROM __T__JOB_DEFINITION jd WHERE jd.ID=__T__RUNNING_COUNTER.JOBDEF AND jd.MAX_RUNNING=__T__RUNNING_COUNTER.MAX_RUNNING) "
+                + "AND NOT EXISTS (SELECT 1 FROM __T__QUEUE q WHERE q.ID=__T__RUNNING_COUNTER.QUEUE AND q.MAX_RUNNING=__T__RUNNING_COUNTER.MAX_RUNNING)");
+        queries.put("rc_update_reset_all", "UPDATE __T__RUNNING_COUNTER SET RUNNING=0");
+        queries.put("rc_update_increment_by_id", "UPDATE __T__RUNNING_COUNTER SET RUNNING=RUNNING+? WHERE ID=? AND RUNNING+? <= MAX_RUNNING");
+        queries.put("rc_update_decrement_by_id", "UPDATE __T__RUNNING_COUNTER SET RUNNING=CASE WHEN RUNNING > ? THEN RUNNING-? ELSE 0 END WHERE ID=?");
+        queries.put("rc_select_all", "SELECT ID, JOBDEF, QUEUE, RUNNING, MAX_RUNNING FROM __T__RUNNING_COUNTER");
+        queries.put("rc_select_by_ji_list", "SELECT ji.ID, rc.ID, rc.RUNNING, rc.MAX_RUNNING FROM __T__JOB_INSTANCE ji INNER JOIN __T__RUNNING_COUNTER rc "
+                + "ON (rc.JOBDEF=ji.JOBDEF AND rc.QUEUE=0) OR (rc.JOBDEF=0 AND rc.QUEUE=ji.QUEUE) WHERE ji.ID IN(UNNEST(?)) "
+                + "ORDER BY ji.PRIORITY DESC, ji.INTERNAL_POSITION, rc.ID");
+        queries.put("rc_select_held_for_node", "SELECT JOBDEF, QUEUE FROM __T__JOB_INSTANCE WHERE NODE=? AND STATUS=?");
+        queries.put("rc_select_missing", "SELECT jd.ID, 0, (SELECT COUNT(1) FROM __T__JOB_INSTANCE ji WHERE ji.JOBDEF=jd.ID AND ji.STATUS IN('ATTRIBUTED', 'RUNNING')), jd.MAX_RUNNING "
+                + "FROM __T__JOB_DEFINITION jd WHERE jd.MAX_RUNNING > 0 AND NOT EXISTS (SELECT 1 FROM __T__RUNNING_COUNTER rc WHERE rc.JOBDEF=jd.ID AND rc.QUEUE=0) "
+                + "UNION ALL SELECT 0, q.ID, (SELECT COUNT(1) FROM __T__JOB_INSTANCE ji WHERE ji.QUEUE=q.ID AND ji.STATUS IN('ATTRIBUTED', 'RUNNING')), q.MAX_RUNNING "
+                + "FROM __T__QUEUE q WHERE q.MAX_RUNNING > 0 AND NOT EXISTS (SELECT 1 FROM __T__RUNNING_COUNTER rc WHERE rc.JOBDEF=0 AND rc.QUEUE=q.ID)");
+
+        // RATE BUCKETS (token buckets of the queues with a start rate limit)
+        queries.put("rb_insert", "INSERT INTO __T__RATE_BUCKET(ID, QUEUE, RATE, TOKENS, LAST_REFILL) VALUES(JQM_PK.nextval, ?, ?, ?, CURRENT_TIMESTAMP)");
+        queries.put("rb_delete_all", "DELETE FROM __T__RATE_BUCKET");
+        queries.put("rb_delete_stale", "DELETE FROM __T__RATE_BUCKET WHERE "
+                + "NOT EXISTS (SELECT 1 FROM __T__QUEUE q WHERE q.ID=__T__RATE_BUCKET.QUEUE AND q.MAX_RATE=__T__RATE_BUCKET.RATE)");
+        queries.put("rb_update_lock_by_queue_list", "UPDATE __T__RATE_BUCKET SET TOKENS=TOKENS WHERE QUEUE IN(UNNEST(?))");
+        queries.put("rb_update_by_id", "UPDATE __T__RATE_BUCKET SET TOKENS=?, LAST_REFILL=CURRENT_TIMESTAMP WHERE ID=?");
+        queries.put("rb_select_by_queue_list", "SELECT ID, QUEUE, RATE, TOKENS, LAST_REFILL, CURRENT_TIMESTAMP FROM __T__RATE_BUCKET WHERE QUEUE IN(UNNEST(?))");
+        queries.put("rb_select_count_by_ji_list", "SELECT QUEUE, COUNT(1) FROM __T__JOB_INSTANCE WHERE ID IN(UNNEST(?)) GROUP BY QUEUE");
+        queries.put("rb_select_missing", "SELECT q.ID, q.MAX_RATE FROM __T__QUEUE q WHERE q.MAX_RATE > 0 AND NOT EXISTS (SELECT 1 FROM __T__RATE_BUCKET rb WHERE rb.QUEUE=q.ID)");
+        
+        // WARM JOB DEFINITIONS
+        queries.put("warm_insert", "INSERT INTO __T__NODE_WARM_JOBDEF(ID, NODE, JOBDEF) VALUES(JQM_PK.nextval, ?, ?)");
+        queries.put("warm_delete_all", "DELETE FROM __T__NODE_WARM_JOBDEF");
+        queries.put("warm_delete_for_node", "DELETE FROM __T__NODE_WARM_JOBDEF WHERE NODE=?");
+        queries.put("warm_delete_for_jd", "DELETE FROM __T__NODE_WARM_JOBDEF WHERE JOBDEF=?");
+        queries.put("warm_delete_for_dead_nodes", "DELETE FROM __T__NODE_WARM_JOBDEF WHERE NODE IN (SELECT ID FROM __T__NODE "
+                + "WHERE LAST_SEEN_ALIVE IS NULL OR LAST_SEEN_ALIVE < CURRENT_TIMESTAMP - ? SECOND)");
+        queries.put("warm_select_jd_for_node", "SELECT JOBDEF FROM __T__NODE_WARM_JOBDEF WHERE NODE=?");
+        
         // HISTORY
         queries.put("history_insert_with_end_date", "INSERT INTO __T__HISTORY(ID, JD_APPLICATION, JD_KEY, DATE_ATTRIBUTION, EMAIL, "
                 + "DATE_END, DATE_ENQUEUE, DATE_START, HIGHLANDER, INSTANCE_APPLICATION, INSTANCE_KEYWORD1, "
@@ -220,12 +294,17 @@ public class DbImplBase
                 + "NODE, QUEUE, FROM_SCHEDULE, PRIORITY) "
                 + "VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
         queries.put("history_insert", queries.get("history_insert_with_end_date").replace("(?, ?, ?, ?, ?, ?",  "(?, ?, ?, ?, ?, CURRENT_TIMESTAMP"));
+        queries.put("history_insert_crashed_by_ji_list", queries.get("history_insert_with_end_date").replaceFirst("VALUES\\(.*", "")
+                + "SELECT ji.ID, jd.APPLICATION, jd.JD_KEY, ji.DATE_ATTRIBUTION, ji.EMAIL, CURRENT_TIMESTAMP, ji.DATE_ENQUEUE, ji.DATE_START, jd.HIGHLANDER, ji.APPLICATION, ji.KEYWORD1, "
+                + "ji.KEYWORD2, ji.KEYWORD3, ji.MODULE, jd.KEYWORD1, jd.KEYWORD2, jd.KEYWORD3, jd.MODULE, "
+                + "n.NAME, ji.PARENT, ji.PROGRESS, q.NAME, 0, ji.SESSION_KEY, 'CRASHED', ji.USERNAME, ji.JOBDEF, "
+                + "n.ID, ji.QUEUE, ji.FROM_SCHEDULE, ji.PRIORITY "
+                + "FROM __T__JOB_INSTANCE ji LEFT JOIN __T__QUEUE q ON ji.QUEUE=q.ID LEFT JOIN __T__JOB_DEFINITION jd ON ji.JOBDEF=jd.ID LEFT JOIN __T__NODE n ON ji.NODE=n.ID "
+                + "WHERE ji.ID IN(UNNEST(?))");
         
         queries.put("history_delete_all", "DELETE FROM __T__HISTORY");
         queries.put("history_delete_by_id", "DELETE FROM __T__HISTORY WHERE ID=?");
         queries.put("history_select_count_all", "SELECT COUNT(1) FROM __T__HISTORY");
-        queries.put("history_select_count_for_poller", "SELECT COUNT(1) FROM __T__HISTORY WHERE QUEUE=? AND NODE=?");
-        queries.put("history_select_count_last_mn_for_poller", "SELECT COUNT(1)/60 FROM __T__HISTORY WHERE QUEUE=? AND NODE=? AND DATE_END > (CURRENT_TIMESTAMP - 1 MINUTE)");
         queries.put("history_select_count_ended", "SELECT COUNT(1) FROM __T__HISTORY WHERE STATUS='ENDED'");
         queries.put("history_select_count_notended", "SELECT COUNT(1) FROM __T__HISTORY WHERE STATUS<>'ENDED'");
         queries.put("history_select_reenqueue_by_id", "SELECT JD_APPLICATION, JD_KEY, EMAIL, INSTANCE_KEYWORD1, INSTANCE_KEYWORD2, INSTANCE_KEYWORD3, INSTANCE_MODULE, PARENT, SESSION_KEY, USERNAME, STATUS FROM __T__HISTORY WHERE ID=?");
@@ -320,13 +399,13 @@ public class DbImplBase
         
         // GLOBAL PRM
         queries.put("globalprm_insert", "INSERT INTO __T__GLOBAL_PARAMETER(ID, KEYNAME, VALUE, LAST_MODIFIED) VALUES(JQM_PK.nextval, ?, ?, CURRENT_TIMESTAMP)");
-        queries.put("globalprm_update_value_by_key", "UPDATE __T__GLOBAL_PARAMETER SET VALUE=? WHERE KEYNAME=?");
+        queries.put("globalprm_update_value_by_key", "UPDATE __T__GLOBAL_PARAMETER SET VALUE=?, LAST_MODIFIED=CURRENT_TIMESTAMP WHERE KEYNAME=?");
         queries.put("globalprm_delete_all", "DELETE FROM __T__GLOBAL_PARAMETER");
         queries.put("globalprm_delete_by_id", "DELETE FROM __T__GLOBAL_PARAMETER WHERE ID=?");
         queries.put("globalprm_select_all", "SELECT ID, KEYNAME, VALUE, LAST_MODIFIED FROM __T__GLOBAL_PARAMETER");
         queries.put("globalprm_select_by_key", queries.get("globalprm_select_all") + " WHERE KEYNAME=?");
         queries.put("globalprm_select_by_id", queries.get("globalprm_select_all") + " WHERE ID=?");
-        queries.put("globalprm_select_count_modified_jetty", "SELECT COUNT(1) FROM __T__GLOBAL_PARAMETER WHERE LAST_MODIFIED > ? AND KEYNAME IN('disableWsApi', 'enableWsApiSsl', 'enableInternalPki', 'pfxPassword', 'enableWsApiAuth')");
+        queries.put("globalprm_select_count_modified_jetty", "SELECT COUNT(1) FROM __T__GLOBAL_PARAMETER WHERE LAST_MODIFIED > ? AND KEYNAME IN('disableWsApi', 'enableWsApiSsl', 'enableInternalPki', 'pfxPassword', 'enableWsApiAuth', 'disableWsApiMetrics')");
         
         // WITNESS
         queries.put("w_insert", "INSERT INTO __T__WITNESS(ID, KEYNAME, NODE, LATEST_CONTACT) VALUES(JQM_PK.nextval, 'SCHEDULER', ?, CURRENT_TIMESTAMP)");
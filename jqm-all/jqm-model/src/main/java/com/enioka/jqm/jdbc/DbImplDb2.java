@@ -2,6 +2,7 @@ package com.enioka.jqm.jdbc;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -31,7 +32,7 @@ public class DbImplDb2 implements DbAdapter
         queries.put("ji_update_poll", this.adaptSql(
                 "UPDATE __T__JOB_INSTANCE j1 SET NODE=?, STATUS='ATTRIBUTED', DATE_ATTRIBUTION=CURRENT_TIMESTAMP WHERE j1.STATUS='SUBMITTED' AND j1.ID IN "
                         + "(SELECT j2.ID FROM __T__JOB_INSTANCE j2 WHERE j2.STATUS='SUBMITTED' AND j2.QUEUE=? "
-                        + "AND (j2.HIGHLANDER=0 OR (j2.HIGHLANDER=1 AND (SELECT COUNT(1) FROM __T__JOB_INSTANCE j3 WHERE j3.STATUS IN('ATTRIBUTED', 'RUNNING') AND j3.JOBDEF=j2.JOBDEF)=0 )) ORDER BY PRIORITY DESC, INTERNAL_POSITION FETCH FIRST ? ROWS ONLY)"));
+                        + "AND (j2.HIGHLANDER=0 OR NOT EXISTS (SELECT 1 FROM __T__HIGHLANDER_LOCK hl WHERE hl.JOBDEF=j2.JOBDEF)) ORDER BY PRIORITY DESC, INTERNAL_POSITION FETCH FIRST ? ROWS ONLY)"));
     }
 
     @Override
@@ -155,4 +156,64 @@ public class DbImplDb2 implements DbAdapter
 
         return sql;
     }
+
+    @Override
+    public List<Integer> claimJobInstances(Connection cnx, int nodeId, int queueId, int maxResults, int warmHeadStart) throws SQLException
+    {
+        return claim(cnx, nodeId, DbHelper.getCandidateQueryKey(warmHeadStart),
+                DbHelper.getCandidateParameters(nodeId, queueId, warmHeadStart), maxResults);
+    }
+
+    @Override
+    public List<Integer> claimBatchJobInstances(Connection cnx, int nodeId, int queueId, int jobDefId, int maxResults) throws SQLException
+    {
+        return claim(cnx, nodeId, "ji_select_batch_candidates", DbHelper.getBatchCandidateParameters(queueId, jobDefId), maxResults);
+    }
+
+    private List<Integer> claim(Connection cnx, int nodeId, String candidatesKey, int[] candidatesPrms, int maxResults) throws SQLException
+    {
+        // Same weird locking model as for ji_update_poll: no lock on candidates, the attribution only takes those still SUBMITTED.
+        List<Integer> candidates;
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try
+        {
+            ps = cnx.prepareStatement(queries.get(candidatesKey) + " FETCH FIRST " + maxResults + " ROWS ONLY");
+            DbHelper.setParameters(ps, 1, candidatesPrms);
+            rs = ps.executeQuery();
+            candidates = DbHelper.readIds(rs, maxResults);
+        }
+        finally
+        {
+            DbHelper.closeQuietly(rs);
+            DbHelper.closeQuietly(ps);
+        }
+        return DbHelper.attributeJobInstances(cnx, this, nodeId, candidates);
+    }
+
+    @Override
+    public List<Integer> claimJobInstances(Connection cnx, int nodeId, Map<Integer, Integer> slotsByQueue, int warmHeadStart)
+            throws SQLException
+    {
+        return DbHelper.claimJobInstances(cnx, this, nodeId, slotsByQueue, warmHeadStart, "%s FETCH FIRST %d ROWS ONLY");
+    }
+
+    @Override
+    public void notifyEnqueue(Connection cnx, int queueId)
+    {
+        // No notification system - engines poll.
+        return;
+    }
+
+    @Override
+    public boolean listenEnqueueNotifications(Connection cnx)
+    {
+        return false;
+    }
+
+    @Override
+    public List<Integer> readEnqueueNotifications(Connection cnx, int timeoutMs)
+    {
+        return new ArrayList<Integer>();
+    }
 }
@@ -2,6 +2,7 @@ package com.enioka.jqm.jdbc;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -80,4 +81,64 @@ public class DbImplHsql implements DbAdapter
         prms.add(start);
         return sql;
     }
+
+    @Override
+    public List<Integer> claimJobInstances(Connection cnx, int nodeId, int queueId, int maxResults, int warmHeadStart) throws SQLException
+    {
+        return claim(cnx, nodeId, DbHelper.getCandidateQueryKey(warmHeadStart),
+                DbHelper.getCandidateParameters(nodeId, queueId, warmHeadStart), maxResults);
+    }
+
+    @Override
+    public List<Integer> claimBatchJobInstances(Connection cnx, int nodeId, int queueId, int jobDefId, int maxResults) throws SQLException
+    {
+        return claim(cnx, nodeId, "ji_select_batch_candidates", DbHelper.getBatchCandidateParameters(queueId, jobDefId), maxResults);
+    }
+
+    private List<Integer> claim(Connection cnx, int nodeId, String candidatesKey, int[] candidatesPrms, int maxResults) throws SQLException
+    {
+        // No SKIP LOCKED nor UPDATE RETURNING: select candidates, then attribute them.
+        List<Integer> candidates;
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try
+        {
+            ps = cnx.prepareStatement(queries.get(candidatesKey) + " LIMIT ?");
+            ps.setInt(DbHelper.setParameters(ps, 1, candidatesPrms), maxResults);
+            rs = ps.executeQuery();
+            candidates = DbHelper.readIds(rs, maxResults);
+        }
+        finally
+        {
+            DbHelper.closeQuietly(rs);
+            DbHelper.closeQuietly(ps);
+        }
+        return DbHelper.attributeJobInstances(cnx, this, nodeId, candidates);
+    }
+
+    @Override
+    public List<Integer> claimJobInstances(Connection cnx, int nodeId, Map<Integer, Integer> slotsByQueue, int warmHeadStart)
+            throws SQLException
+    {
+        return DbHelper.claimJobInstances(cnx, this, nodeId, slotsByQueue, warmHeadStart, "%s LIMIT %d");
+    }
+
+    @Override
+    public void notifyEnqueue(Connection cnx, int queueId)
+    {
+        // No notification system - engines poll.
+        return;
+    }
+
+    @Override
+    public boolean listenEnqueueNotifications(Connection cnx)
+    {
+        return false;
+    }
+
+    @Override
+    public List<Integer> readEnqueueNotifications(Connection cnx, int timeoutMs)
+    {
+        return new ArrayList<Integer>();
+    }
 }
@@ -3,6 +3,7 @@ package com.enioka.jqm.jdbc;
 import java.sql.CallableStatement;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Types;
 import java.util.ArrayList;
@@ -10,6 +11,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.TreeMap;
 
 public class DbImplMySql implements DbAdapter
 {
@@ -17,6 +19,7 @@ public class DbImplMySql implements DbAdapter
 
     private Map<String, String> queries = new HashMap<String, String>();
     private String tablePrefix = null;
+    private boolean skipLocked = false;
 
     @Override
     public void prepare(Properties p, Connection cnx)
@@ -33,9 +36,18 @@ public class DbImplMySql implements DbAdapter
         queries.put("ji_update_poll",
                 this.adaptSql("UPDATE __T__JOB_INSTANCE j1 FORCE INDEX (`PRIMARY`) RIGHT JOIN "
                         + "(SELECT j3.ID FROM __T__JOB_INSTANCE j3 FORCE INDEX(`IDX_JOB_INSTANCE_1`) WHERE j3.STATUS = 'SUBMITTED' AND j3.QUEUE = ? AND "
-                        + "(j3.HIGHLANDER = FALSE OR (j3.HIGHLANDER = TRUE AND (SELECT COUNT(1) FROM __T__JOB_INSTANCE j4 FORCE INDEX(`IDX_JOB_INSTANCE_2`) "
-                        + "WHERE j4.STATUS IN ('ATTRIBUTED' , 'RUNNING') AND j4.JOBDEF = j3.JOBDEF) = 0)) ORDER BY PRIORITY DESC, INTERNAL_POSITION LIMIT ? FOR UPDATE) j2 "
+                        + "(j3.HIGHLANDER = FALSE OR NOT EXISTS (SELECT 1 FROM __T__HIGHLANDER_LOCK hl WHERE hl.JOBDEF = j3.JOBDEF)) ORDER BY PRIORITY DESC, INTERNAL_POSITION LIMIT ? FOR UPDATE) j2 "
                         + "ON j2.ID = j1.ID SET j1.NODE = ?, j1.STATUS = 'ATTRIBUTED', j1.DATE_ATTRIBUTION = CURRENT_TIMESTAMP"));
+
+        // SKIP LOCKED only exists since MySQL 8.
+        try
+        {
+            this.skipLocked = cnx.getMetaData().getDatabaseMajorVersion() >= 8;
+        }
+        catch (SQLException e)
+        {
+            this.skipLocked = false;
+        }
     }
 
     @Override
@@ -192,4 +204,71 @@ public class DbImplMySql implements DbAdapter
         prms.add(start);
         return sql;
     }
+
+    @Override
+    public List<Integer> claimJobInstances(Connection cnx, int nodeId, int queueId, int maxResults, int warmHeadStart) throws SQLException
+    {
+        // No UPDATE RETURNING: lock the candidates (skipping those locked by other nodes), then attribute them.
+        return DbHelper.attributeJobInstances(cnx, this, nodeId, lockCandidates(cnx, DbHelper.getCandidateQueryKey(warmHeadStart),
+                DbHelper.getCandidateParameters(nodeId, queueId, warmHeadStart), maxResults));
+    }
+
+    @Override
+    public List<Integer> claimBatchJobInstances(Connection cnx, int nodeId, int queueId, int jobDefId, int maxResults) throws SQLException
+    {
+        return DbHelper.attributeJobInstances(cnx, this, nodeId,
+                lockCandidates(cnx, "ji_select_batch_candidates", DbHelper.getBatchCandidateParameters(queueId, jobDefId), maxResults));
+    }
+
+    @Override
+    public List<Integer> claimJobInstances(Connection cnx, int nodeId, Map<Integer, Integer> slotsByQueue, int warmHeadStart)
+            throws SQLException
+    {
+        // Locking clauses are not allowed inside a UNION: one locking query per queue, but a single attribution. Queues are always locked
+        // in the same order, as without SKIP LOCKED concurrent claims wait for each other.
+        List<Integer> candidates = new ArrayList<Integer>();
+        for (Map.Entry<Integer, Integer> e : new TreeMap<Integer, Integer>(slotsByQueue).entrySet())
+        {
+            candidates.addAll(lockCandidates(cnx, DbHelper.getCandidateQueryKey(warmHeadStart),
+                    DbHelper.getCandidateParameters(nodeId, e.getKey(), warmHeadStart), e.getValue()));
+        }
+        return DbHelper.attributeJobInstances(cnx, this, nodeId, candidates);
+    }
+
+    private List<Integer> lockCandidates(Connection cnx, String candidatesKey, int[] candidatesPrms, int maxResults) throws SQLException
+    {
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try
+        {
+            ps = cnx.prepareStatement(queries.get(candidatesKey) + " LIMIT ? FOR UPDATE" + (skipLocked ? " SKIP LOCKED" : ""));
+            ps.setInt(DbHelper.setParameters(ps, 1, candidatesPrms), maxResults);
+            rs = ps.executeQuery();
+            return DbHelper.readIds(rs, maxResults);
+        }
+        finally
+        {
+            DbHelper.closeQuietly(rs);
+            DbHelper.closeQuietly(ps);
+        }
+    }
+
+    @Override
+    public void notifyEnqueue(Connection cnx, int queueId)
+    {
+        // No notification system - engines poll.
+        return;
+    }
+
+    @Override
+    public boolean listenEnqueueNotifications(Connection cnx)
+    {
+        return false;
+    }
+
+    @Override
+    public List<Integer> readEnqueueNotifications(Connection cnx, int timeoutMs)
+    {
+        return new ArrayList<Integer>();
+    }
 }
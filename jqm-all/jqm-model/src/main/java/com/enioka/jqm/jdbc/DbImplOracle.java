@@ -2,6 +2,7 @@ package com.enioka.jqm.jdbc;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -33,7 +34,7 @@ public class DbImplOracle implements DbAdapter
         }
 
         queries.put("ji_update_poll",
-                "UPDATE tmpjqm.JOB_INSTANCE j1 SET NODE=?, STATUS='ATTRIBUTED', DATE_ATTRIBUTION=CURRENT_TIMESTAMP WHERE rowid IN (SELECT rid FROM (SELECT rowid as rid FROM tmpjqm.JOB_INSTANCE j2 WHERE j2.STATUS='SUBMITTED' AND j2.QUEUE=? AND (j2.HIGHLANDER=0 OR (j2.HIGHLANDER=1 AND (SELECT COUNT(1) FROM tmpjqm.JOB_INSTANCE j3 WHERE j3.STATUS IN('ATTRIBUTED', 'RUNNING') AND j3.JOBDEF=j2.JOBDEF)=0)) ORDER BY INTERNAL_POSITION) WHERE rownum < ?)");
+                "UPDATE tmpjqm.JOB_INSTANCE j1 SET NODE=?, STATUS='ATTRIBUTED', DATE_ATTRIBUTION=CURRENT_TIMESTAMP WHERE rowid IN (SELECT rid FROM (SELECT rowid as rid FROM tmpjqm.JOB_INSTANCE j2 WHERE j2.STATUS='SUBMITTED' AND j2.QUEUE=? AND (j2.HIGHLANDER=0 OR NOT EXISTS (SELECT 1 FROM tmpjqm.HIGHLANDER_LOCK hl WHERE hl.JOBDEF=j2.JOBDEF)) ORDER BY INTERNAL_POSITION) WHERE rownum < ?)");
     }
 
     @Override
@@ -88,4 +89,75 @@ public class DbImplOracle implements DbAdapter
         prms.add(start + 1);
         return sql;
     }
+
+    @Override
+    public List<Integer> claimJobInstances(Connection cnx, int nodeId, int queueId, int maxResults, int warmHeadStart) throws SQLException
+    {
+        // Oracle has no multi-row UPDATE RETURNING outside PL/SQL: lock the candidates, then attribute them.
+        return DbHelper.attributeJobInstances(cnx, this, nodeId, lockCandidates(cnx, DbHelper.getCandidateQueryKey(warmHeadStart),
+                DbHelper.getCandidateParameters(nodeId, queueId, warmHeadStart), maxResults));
+    }
+
+    @Override
+    public List<Integer> claimBatchJobInstances(Connection cnx, int nodeId, int queueId, int jobDefId, int maxResults) throws SQLException
+    {
+        return DbHelper.attributeJobInstances(cnx, this, nodeId,
+                lockCandidates(cnx, "ji_select_batch_candidates", DbHelper.getBatchCandidateParameters(queueId, jobDefId), maxResults));
+    }
+
+    @Override
+    public List<Integer> claimJobInstances(Connection cnx, int nodeId, Map<Integer, Integer> slotsByQueue, int warmHeadStart)
+            throws SQLException
+    {
+        // FOR UPDATE is not allowed with a UNION nor a ROWNUM limit: one locking query per queue, but a single attribution.
+        List<Integer> candidates = new ArrayList<Integer>();
+        for (Map.Entry<Integer, Integer> e : slotsByQueue.entrySet())
+        {
+            candidates.addAll(lockCandidates(cnx, DbHelper.getCandidateQueryKey(warmHeadStart),
+                    DbHelper.getCandidateParameters(nodeId, e.getKey(), warmHeadStart), e.getValue()));
+        }
+        return DbHelper.attributeJobInstances(cnx, this, nodeId, candidates);
+    }
+
+    /**
+     * With SKIP LOCKED, rows are only locked when fetched, so we fetch only what we need and the rows locked by another node are simply
+     * ignored.
+     */
+    private List<Integer> lockCandidates(Connection cnx, String candidatesKey, int[] candidatesPrms, int maxResults) throws SQLException
+    {
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try
+        {
+            ps = cnx.prepareStatement(queries.get(candidatesKey) + " FOR UPDATE SKIP LOCKED");
+            ps.setFetchSize(maxResults);
+            DbHelper.setParameters(ps, 1, candidatesPrms);
+            rs = ps.executeQuery();
+            return DbHelper.readIds(rs, maxResults);
+        }
+        finally
+        {
+            DbHelper.closeQuietly(rs);
+            DbHelper.closeQuietly(ps);
+        }
+    }
+
+    @Override
+    public void notifyEnqueue(Connection cnx, int queueId)
+    {
+        // No notification system - engines poll.
+        return;
+    }
+
+    @Override
+    public boolean listenEnqueueNotifications(Connection cnx)
+    {
+        return false;
+    }
+
+    @Override
+    public List<Integer> readEnqueueNotifications(Connection cnx, int timeoutMs)
+    {
+        return new ArrayList<Integer>();
+    }
 }
@@ -1,8 +1,13 @@
 package com.enioka.jqm.jdbc;
 
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
 import java.sql.Connection;
+import java.sql.DatabaseMetaData;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -12,19 +17,49 @@ import java.util.Properties;
 public class DbImplPg implements DbAdapter
 {
     private final static String[] IDS = new String[] { "id" };
+    private final static String ENQUEUE_CHANNEL = "jqm_enqueue";
 
     private Map<String, String> queries = new HashMap<String, String>();
     private String tablePrefix = null;
+    private String enqueueChannel = null;
 
     @Override
     public void prepare(Properties p, Connection cnx)
     {
         this.tablePrefix = p.getProperty("com.enioka.jqm.jdbc.tablePrefix", "");
+        this.enqueueChannel = (this.tablePrefix + ENQUEUE_CHANNEL).toLowerCase();
         queries.putAll(DbImplBase.queries);
         for (Map.Entry<String, String> entry : DbImplBase.queries.entrySet())
         {
             queries.put(entry.getKey(), this.adaptSql(entry.getValue()));
         }
+
+        // Claim in a single statement. SKIP LOCKED only exists since 9.5.
+        String lock = " LIMIT ? FOR UPDATE" + (supportsSkipLocked(cnx) ? " SKIP LOCKED" : "");
+        queries.put("ji_select_claim_candidates", queries.get("ji_select_poll_candidates") + lock);
+        queries.put("ji_select_claim_candidates_warm", queries.get("ji_select_poll_candidates_warm") + lock);
+        queries.put("ji_select_claim_candidates_batch", queries.get("ji_select_batch_candidates") + lock);
+        queries.put("ji_update_claim_prefix", "UPDATE " + this.tablePrefix
+                + "JOB_INSTANCE SET NODE=?, STATUS='ATTRIBUTED', DATE_ATTRIBUTION=CURRENT_TIMESTAMP WHERE STATUS='SUBMITTED' AND ");
+        queries.put("ji_update_claim",
+                queries.get("ji_update_claim_prefix") + "ID IN (" + queries.get("ji_select_claim_candidates") + ") RETURNING ID");
+        queries.put("ji_update_claim_warm",
+                queries.get("ji_update_claim_prefix") + "ID IN (" + queries.get("ji_select_claim_candidates_warm") + ") RETURNING ID");
+        queries.put("ji_update_claim_batch",
+                queries.get("ji_update_claim_prefix") + "ID IN (" + queries.get("ji_select_claim_candidates_batch") + ") RETURNING ID");
+    }
+
+    private static boolean supportsSkipLocked(Connection cnx)
+    {
+        try
+        {
+            DatabaseMetaData m = cnx.getMetaData();
+            return m.getDatabaseMajorVersion() > 9 || (m.getDatabaseMajorVersion() == 9 && m.getDatabaseMinorVersion() >= 5);
+        }
+        catch (SQLException e)
+        {
+            return false;
+        }
     }
 
     @Override
@@ -82,4 +117,208 @@ public class DbImplPg implements DbAdapter
         prms.add(start);
         return sql;
     }
+
+    @Override
+    public List<Integer> claimJobInstances(Connection cnx, int nodeId, int queueId, int maxResults, int warmHeadStart) throws SQLException
+    {
+        return claim(cnx, nodeId, warmHeadStart > 0 ? "ji_update_claim_warm" : "ji_update_claim",
+                DbHelper.getCandidateParameters(nodeId, queueId, warmHeadStart), maxResults);
+    }
+
+    @Override
+    public List<Integer> claimBatchJobInstances(Connection cnx, int nodeId, int queueId, int jobDefId, int maxResults) throws SQLException
+    {
+        return claim(cnx, nodeId, "ji_update_claim_batch", DbHelper.getBatchCandidateParameters(queueId, jobDefId), maxResults);
+    }
+
+    private List<Integer> claim(Connection cnx, int nodeId, String claimKey, int[] candidatesPrms, int maxResults) throws SQLException
+    {
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try
+        {
+            ps = cnx.prepareStatement(queries.get(claimKey));
+            ps.setInt(1, nodeId);
+            ps.setInt(DbHelper.setParameters(ps, 2, candidatesPrms), maxResults);
+            rs = ps.executeQuery();
+            return DbHelper.readIds(rs, maxResults);
+        }
+        finally
+        {
+            DbHelper.closeQuietly(rs);
+            DbHelper.closeQuietly(ps);
+        }
+    }
+
+    @Override
+    public List<Integer> claimJobInstances(Connection cnx, int nodeId, Map<Integer, Integer> slotsByQueue, int warmHeadStart)
+            throws SQLException
+    {
+        // Still a single statement: one locking candidate sub query per queue.
+        String candidates = queries.get(warmHeadStart > 0 ? "ji_select_claim_candidates_warm" : "ji_select_claim_candidates");
+        StringBuilder sql = new StringBuilder(queries.get("ji_update_claim_prefix")).append("(");
+        int total = 0;
+        for (int i = 0; i < slotsByQueue.size(); i++)
+        {
+            sql.append(i == 0 ? "" : " OR ").append("ID IN (").append(candidates).append(")");
+        }
+        sql.append(") RETURNING ID");
+
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try
+        {
+            ps = cnx.prepareStatement(sql.toString());
+            ps.setInt(1, nodeId);
+            int i = 2;
+            for (Map.Entry<Integer, Integer> e : slotsByQueue.entrySet())
+            {
+                i = DbHelper.setCandidateParameters(ps, i, nodeId, e.getKey(), warmHeadStart);
+                ps.setInt(i++, e.getValue());
+                total += e.getValue();
+            }
+            rs = ps.executeQuery();
+            return DbHelper.readIds(rs, total);
+        }
+        finally
+        {
+            DbHelper.closeQuietly(rs);
+            DbHelper.closeQuietly(ps);
+        }
+    }
+
+    @Override
+    public void notifyEnqueue(Connection cnx, int queueId) throws SQLException
+    {
+        // NOTIFY is transactional: it is only sent on commit.
+        PreparedStatement ps = null;
+        try
+        {
+            ps = cnx.prepareStatement("SELECT pg_notify(?, ?)");
+            ps.setString(1, enqueueChannel);
+            ps.setString(2, String.valueOf(queueId));
+            ps.execute();
+        }
+        finally
+        {
+            DbHelper.closeQuietly(ps);
+        }
+    }
+
+    @Override
+    public boolean listenEnqueueNotifications(Connection cnx) throws SQLException
+    {
+        if (getPgConnection(cnx) == null)
+        {
+            return false;
+        }
+
+        Statement s = null;
+        try
+        {
+            s = cnx.createStatement();
+            s.execute("LISTEN \"" + enqueueChannel + "\"");
+            cnx.commit();
+        }
+        finally
+        {
+            DbHelper.closeQuietly(s);
+        }
+        return true;
+    }
+
+    @Override
+    public List<Integer> readEnqueueNotifications(Connection cnx, int timeoutMs) throws SQLException
+    {
+        List<Integer> res = new ArrayList<Integer>();
+        Object pgCnx = getPgConnection(cnx);
+        if (pgCnx == null)
+        {
+            return res;
+        }
+
+        // The driver is not a dependency, so it is called through reflection. Recent drivers can block while waiting for notifications,
+        // older ones only read them on the next round trip.
+        Object notifications;
+        try
+        {
+            Method m = null;
+            try
+            {
+                m = Class.forName("org.postgresql.PGConnection").getMethod("getNotifications", int.class);
+            }
+            catch (NoSuchMethodException e)
+            {
+                // Old driver.
+            }
+            if (m != null)
+            {
+                notifications = m.invoke(pgCnx, timeoutMs);
+            }
+            else
+            {
+                Thread.sleep(timeoutMs);
+                Statement s = null;
+                try
+                {
+                    s = cnx.createStatement();
+                    s.execute("SELECT 1");
+                    cnx.commit();
+                }
+                finally
+                {
+                    DbHelper.closeQuietly(s);
+                }
+                notifications = Class.forName("org.postgresql.PGConnection").getMethod("getNotifications").invoke(pgCnx);
+            }
+
+            Method getParameter = Class.forName("org.postgresql.PGNotification").getMethod("getParameter");
+            for (int i = 0; notifications != null && i < Array.getLength(notifications); i++)
+            {
+                String prm = (String) getParameter.invoke(Array.get(notifications, i));
+                try
+                {
+                    res.add(Integer.parseInt(prm));
+                }
+                catch (NumberFormatException e)
+                {
+                    // Not one of ours. Ignore.
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (SQLException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new DatabaseException("Could not read PostgreSQL notifications", e);
+        }
+        return res;
+    }
+
+    /**
+     * The PostgreSQL driver connection (the given connection may be a pool proxy), or null if not available.
+     */
+    private static Object getPgConnection(Connection cnx) throws SQLException
+    {
+        Class<?> pgConnectionClass;
+        try
+        {
+            pgConnectionClass = Class.forName("org.postgresql.PGConnection");
+        }
+        catch (ClassNotFoundException e)
+        {
+            return null;
+        }
+        if (!cnx.isWrapperFor(pgConnectionClass))
+        {
+            return null;
+        }
+        return cnx.unwrap(pgConnectionClass);
+    }
 }
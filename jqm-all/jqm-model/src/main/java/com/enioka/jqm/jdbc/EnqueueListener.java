@@ -0,0 +1,18 @@
+package com.enioka.jqm.jdbc;
+
+/**
+ * Implemented by components which want to know as soon as new job instances are waiting inside a queue (typically, the queue pollers of an
+ * engine). Listeners are registered with {@link Db#addEnqueueListener(EnqueueListener)} and are only notified of transactions committed
+ * inside the same JVM. Notifications are hints: listeners must not rely on them to find work, only to look for it sooner.
+ */
+public interface EnqueueListener
+{
+    /**
+     * Called after the commit of a transaction which has made at least one job instance SUBMITTED inside the queue. Called inside the thread
+     * which did the commit, so it must return quickly.
+     * 
+     * @param queueId
+     *            ID of the queue
+     */
+    public void onEnqueue(int queueId);
+}
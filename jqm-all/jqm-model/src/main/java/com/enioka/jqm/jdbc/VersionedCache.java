@@ -0,0 +1,141 @@
+package com.enioka.jqm.jdbc;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of configuration values read from the database of a {@link Db}, obtained with {@link Db#getCache(String)}. It is emptied:
+ * <ul>
+ * <li>at once when a transaction modifying the configuration (see {@link Db#isConfigUpdate(String)}) is committed through the same
+ * Db</li>
+ * <li>when {@link Db#refreshCaches(DbConn)} (called by each engine on its internal polling period) sees that the configuration was
+ * modified by another process or another Db</li>
+ * <li>when it has not been checked by {@link Db#refreshCaches(DbConn)} for {@link #MAX_AGE_MS}, so that processes without engines (web
+ * applications using the client API...) also see the modifications</li>
+ * </ul>
+ * Null values are not allowed. A value must be read from the database after calling {@link #getGeneration()}, and stored with this
+ * generation, so that a value read before a modification is never cached.
+ */
+public final class VersionedCache<K, V>
+{
+    /**
+     * How long cached values may be used without {@link Db#refreshCaches(DbConn)} having checked them.
+     */
+    public static final long MAX_AGE_MS = 120000;
+
+    private final ConcurrentMap<K, V> values = new ConcurrentHashMap<K, V>();
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+
+    // Modified while holding the lock.
+    private final Object lock = new Object();
+    private volatile long invalidations = 0;
+    private volatile long generation = -1;
+    private volatile long checked = 0;
+    private String version = null;
+
+    VersionedCache()
+    {
+
+    }
+
+    /**
+     * Empties the cache if it is not up to date anyway. Returns the generation of the current cache content.
+     */
+    public long getGeneration()
+    {
+        long now = System.currentTimeMillis();
+        long current = invalidations;
+        if (current == generation && now - checked <= MAX_AGE_MS)
+        {
+            return current;
+        }
+
+        synchronized (lock)
+        {
+            if (now - checked > MAX_AGE_MS)
+            {
+                invalidations++;
+                checked = now;
+            }
+            if (invalidations != generation)
+            {
+                values.clear();
+                generation = invalidations;
+            }
+            return generation;
+        }
+    }
+
+    /**
+     * @return the cached value, or null if it must be read from the database.
+     */
+    public V get(K key)
+    {
+        V res = values.get(key);
+        if (res != null)
+        {
+            hits.incrementAndGet();
+        }
+        else
+        {
+            misses.incrementAndGet();
+        }
+        return res;
+    }
+
+    /**
+     * Caches a value read from the database, unless the cache has changed since the given {@link #getGeneration()}.
+     */
+    public void put(K key, V value, long generation)
+    {
+        synchronized (lock)
+        {
+            if (generation == this.generation && generation == invalidations)
+            {
+                values.put(key, value);
+            }
+        }
+    }
+
+    void invalidate()
+    {
+        synchronized (lock)
+        {
+            invalidations++;
+        }
+    }
+
+    /**
+     * Empties the cache if the given configuration version is not the one of its content.
+     */
+    void refresh(String version)
+    {
+        synchronized (lock)
+        {
+            if (!version.equals(this.version))
+            {
+                this.version = version;
+                invalidations++;
+            }
+            checked = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * The number of values returned from the cache since the creation of its Db.
+     */
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    /**
+     * The number of values which had to be read from the database since the creation of its Db.
+     */
+    public long getMisses()
+    {
+        return misses.get();
+    }
+}
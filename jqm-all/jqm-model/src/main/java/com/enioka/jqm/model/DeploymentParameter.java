@@ -41,6 +41,7 @@ public class DeploymentParameter
     private int nbThread;
     private int pollingInterval;
     private int queue;
+    private int prefetch = 0;
     private boolean enabled = true;
     private Calendar lastModified;
 
@@ -94,6 +95,23 @@ public class DeploymentParameter
         this.nbThread = nbThread;
     }
 
+    /**
+     * The count of {@link JobInstance}s which can be claimed in advance by the {@link Node} beyond {@link #getNbThread()}. They wait in
+     * memory and start as soon as a running instance ends, without waiting for a new poll. 0 (the default) disables prefetch.
+     */
+    public Integer getPrefetch()
+    {
+        return prefetch;
+    }
+
+    /**
+     * See {@link #getPrefetch()}
+     */
+    public void setPrefetch(final Integer prefetch)
+    {
+        this.prefetch = prefetch;
+    }
+
     /**
      * The {@link Node} that will have to poll the {@link Queue} designated by {@link #getQueue()} for new {@link JobInstance}s to run.
      */
@@ -187,13 +205,23 @@ public class DeploymentParameter
      */
     public static DeploymentParameter create(DbConn cnx, Integer nodeId, Integer nbThread, Integer pollingInterval, Integer qId)
     {
-        QueryResult r = cnx.runUpdate("dp_insert", true, nbThread, pollingInterval, nodeId, qId);
+        return create(cnx, nodeId, nbThread, pollingInterval, qId, 0);
+    }
+
+    /**
+     * Create a new entry in the database. No commit performed.
+     */
+    public static DeploymentParameter create(DbConn cnx, Integer nodeId, Integer nbThread, Integer pollingInterval, Integer qId,
+            Integer prefetch)
+    {
+        QueryResult r = cnx.runUpdate("dp_insert", true, nbThread, pollingInterval, nodeId, qId, prefetch);
         DeploymentParameter res = new DeploymentParameter();
         res.id = r.getGeneratedId();
         res.node = nodeId;
         res.nbThread = nbThread;
         res.pollingInterval = pollingInterval;
         res.queue = qId;
+        res.prefetch = prefetch;
 
         return res;
     }
@@ -219,6 +247,7 @@ public class DeploymentParameter
                 tmp.pollingInterval = rs.getInt(5);
                 tmp.node = rs.getInt(6);
                 tmp.queue = rs.getInt(7);
+                tmp.prefetch = rs.getInt(8);
 
                 res.add(tmp);
             }
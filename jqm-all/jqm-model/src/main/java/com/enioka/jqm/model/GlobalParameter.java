@@ -26,20 +26,28 @@ import java.util.Calendar;
 import java.util.List;
 
 import com.enioka.jqm.jdbc.DatabaseException;
+import com.enioka.jqm.jdbc.Db;
 import com.enioka.jqm.jdbc.DbConn;
 import com.enioka.jqm.jdbc.NoResultException;
 import com.enioka.jqm.jdbc.QueryResult;
+import com.enioka.jqm.jdbc.VersionedCache;
 
 /**
  * <strong>Not part of any API - this an internal JQM class and may change without notice.</strong> <br>
  * Persistence class for storing parameters related to the whole JQM cluster (parameters related to a single engine are stored inside
  * {@link Node}).<br>
- * Parameters are simple key/value string pairs.
+ * Parameters are simple key/value string pairs.<br>
+ * <br>
+ * Values read with {@link #getParameter(DbConn, String, String)} are cached for each {@link Db}. See {@link VersionedCache} for when the
+ * cache is emptied.
  */
 public class GlobalParameter implements Serializable
 {
     private static final long serialVersionUID = 2619971486012565203L;
 
+    // Marks a parameter which does not exist (the cache does not allow null values).
+    private static final String NO_VALUE = new String("");
+
     private Integer id;
     private String key;
     private String value;
@@ -145,7 +153,7 @@ public class GlobalParameter implements Serializable
     }
 
     /**
-     * Retrieve the value of a single-valued parameter.
+     * Retrieve the value of a single-valued parameter. Values are cached - see class documentation.
      * 
      * @param key
      * @param defaultValue
@@ -153,14 +161,65 @@ public class GlobalParameter implements Serializable
      */
     public static String getParameter(DbConn cnx, String key, String defaultValue)
     {
+        VersionedCache<String, String> cache = cnx.getCache("globalprm");
+        long generation = cache.getGeneration();
+        String res = cache.get(key);
+        if (res != null)
+        {
+            return res == NO_VALUE ? defaultValue : res;
+        }
+
         try
         {
-            return cnx.runSelectSingle("globalprm_select_by_key", 3, String.class, key);
+            res = cnx.runSelectSingle("globalprm_select_by_key", 3, String.class, key);
         }
         catch (NoResultException e)
         {
-            return defaultValue;
+            res = null;
         }
+
+        cache.put(key, res == null ? NO_VALUE : res, generation);
+        return res == null ? defaultValue : res;
+    }
+
+    /**
+     * Same as {@link #getParameter(DbConn, String, String)}, for integer parameters.
+     */
+    public static int getParameter(DbConn cnx, String key, int defaultValue)
+    {
+        return Integer.parseInt(getParameter(cnx, key, String.valueOf(defaultValue)));
+    }
+
+    /**
+     * Same as {@link #getParameter(DbConn, String, String)}, for long parameters.
+     */
+    public static long getParameter(DbConn cnx, String key, long defaultValue)
+    {
+        return Long.parseLong(getParameter(cnx, key, String.valueOf(defaultValue)));
+    }
+
+    /**
+     * Same as {@link #getParameter(DbConn, String, String)}, for boolean parameters.
+     */
+    public static boolean getParameter(DbConn cnx, String key, boolean defaultValue)
+    {
+        return Boolean.parseBoolean(getParameter(cnx, key, String.valueOf(defaultValue)));
+    }
+
+    /**
+     * The number of {@link #getParameter(DbConn, String, String)} calls answered from the cache of the given Db since its creation.
+     */
+    public static long getCacheHits(Db db)
+    {
+        return db.getCache("globalprm").getHits();
+    }
+
+    /**
+     * The number of {@link #getParameter(DbConn, String, String)} calls which had to query the database through the given Db since its creation.
+     */
+    public static long getCacheMisses(Db db)
+    {
+        return db.getCache("globalprm").getMisses();
     }
 
     public static void setParameter(DbConn cnx, String key, String value)
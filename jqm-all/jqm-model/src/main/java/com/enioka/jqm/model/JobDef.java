@@ -86,6 +86,12 @@ public class JobDef implements Serializable
 
     private Integer classLoader;
 
+    private Integer maxRunning;
+
+    private Integer batchSize;
+
+    private Integer warmPoolSize;
+
     /**
      * A technical ID without any meaning. Generated by the database.
      */
@@ -372,8 +378,7 @@ public class JobDef implements Serializable
 
     public Cl getClassLoader(DbConn cnx)
     {
-        List<Cl> cls = Cl.select(cnx, "cl_select_by_id", this.classLoader);
-        clCache = cls.size() > 0 ? cls.get(0) : null;
+        clCache = this.classLoader == null ? null : MetadataCache.getCl(cnx, this.classLoader);
         return clCache;
     }
 
@@ -382,6 +387,23 @@ public class JobDef implements Serializable
         this.classLoader = id;
     }
 
+    /**
+     * The ID of the class loader definition (see {@link #getClassLoader()}). Null if the default class loader should be used.
+     */
+    public Integer getClassLoaderId()
+    {
+        return this.classLoader;
+    }
+
+    /**
+     * Sets the class loader definition returned by {@link #getClassLoader()} without querying the database - for when it was loaded for
+     * many job definitions at once.
+     */
+    public void setClassLoaderCache(Cl cl)
+    {
+        this.clCache = cl;
+    }
+
     /**
      * If true, the instances created from this JobDef will be run inside a dedicated JVM instead of simply being a thread inside an engine.
      * Default is <code>false</code>.<br>
@@ -443,6 +465,62 @@ public class JobDef implements Serializable
         this.priority = priority;
     }
 
+    /**
+     * The maximum number of instances of this job definition which may be attributed or running at the same time on the whole cluster
+     * (whatever their queue). Unlike {@link #isHighlander()}, other requests simply wait inside their queue - they are not merged. Null
+     * (the default) or 0 mean no limit.
+     */
+    public Integer getMaxRunning()
+    {
+        return maxRunning;
+    }
+
+    /**
+     * See {@link #getMaxRunning()}
+     */
+    public void setMaxRunning(Integer maxRunning)
+    {
+        this.maxRunning = maxRunning;
+    }
+
+    /**
+     * The maximum number of waiting instances of this job definition which may be claimed together by a poller and run one after the other
+     * inside a single thread slot, with the same class loader. Each instance still has its own history, messages and status. This is meant
+     * for very short jobs, for which preparing a run costs more than the run itself. Ignored for highlander and external job definitions.
+     * Null (the default), 0 and 1 mean no batching.
+     */
+    public Integer getBatchSize()
+    {
+        return batchSize;
+    }
+
+    /**
+     * See {@link #getBatchSize()}
+     */
+    public void setBatchSize(Integer batchSize)
+    {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * The number of class loaders each engine keeps ready for the next instances of this job definition, with the class path built, the
+     * payload class loaded and initialised (static initialisers have run) and its runner resolved. Each class loader is used by a single
+     * job instance, so isolation is the same as without the pool. Only used when the job definition would run inside a new isolated class
+     * loader (no persistent class loader, no shared launch isolation). Null (the default) or 0 mean no pool.
+     */
+    public Integer getWarmPoolSize()
+    {
+        return warmPoolSize;
+    }
+
+    /**
+     * See {@link #getWarmPoolSize()}
+     */
+    public void setWarmPoolSize(Integer warmPoolSize)
+    {
+        this.warmPoolSize = warmPoolSize;
+    }
+
     /**
      * ResultSet is not modified (no rs.next called).
      * 
@@ -475,6 +553,9 @@ public class JobDef implements Serializable
             tmp.pathType = PathType.valueOf(rs.getString(17 + colShift));
             tmp.queue_id = rs.getInt(18 + colShift);
             tmp.priority = rs.getInt(19 + colShift) > 0 ? rs.getInt(19 + colShift) : null;
+            tmp.maxRunning = rs.getInt(20 + colShift) > 0 ? rs.getInt(20 + colShift) : null;
+            tmp.batchSize = rs.getInt(21 + colShift) > 0 ? rs.getInt(21 + colShift) : null;
+            tmp.warmPoolSize = rs.getInt(22 + colShift) > 0 ? rs.getInt(22 + colShift) : null;
         }
         catch (SQLException e)
         {
@@ -504,23 +585,53 @@ public class JobDef implements Serializable
         return res;
     }
 
+    /**
+     * Creates a job definition without the optional fields (concurrency limit, batch size, warm pool...). To set them, use a new
+     * {@link JobDef} as a DTO: call its setters then {@link #update(DbConn, Map)}. No commit performed.
+     *
+     * @return the ID of the new job definition.
+     */
     public static int create(DbConn cnx, String description, String javaClassName, Map<String, String> parameters, String jarPath,
             int queue_id, Integer maxTimeRunning, String applicationName, String application, String module, String keyword1,
             String keyword2, String keyword3, boolean highlander, Integer classLoaderId, PathType pathType)
     {
-        QueryResult r = cnx.runUpdate("jd_insert", application, applicationName, classLoaderId, description, true, false, highlander,
-                jarPath, javaClassName, null, keyword1, keyword2, keyword3, maxTimeRunning, module, pathType.toString(), queue_id);
-        int newId = r.getGeneratedId();
+        JobDef jd = new JobDef();
+        jd.description = description;
+        jd.javaClassName = javaClassName;
+        jd.jarPath = jarPath;
+        jd.queue_id = queue_id;
+        jd.maxTimeRunning = maxTimeRunning;
+        jd.applicationName = applicationName;
+        jd.application = application;
+        jd.module = module;
+        jd.keyword1 = keyword1;
+        jd.keyword2 = keyword2;
+        jd.keyword3 = keyword3;
+        jd.highlander = highlander;
+        jd.classLoader = classLoaderId;
+        jd.pathType = pathType;
+        jd.insert(cnx, parameters);
+        return jd.id;
+    }
+
+    private void insert(DbConn cnx, Map<String, String> parameters)
+    {
+        QueryResult r = cnx.runUpdate("jd_insert", application, applicationName, classLoader, description, true, false, highlander, jarPath,
+                javaClassName, null, keyword1, keyword2, keyword3, maxTimeRunning, module, pathType.toString(), queue_id, maxRunning,
+                batchSize, warmPoolSize);
+        this.id = r.getGeneratedId();
+        if (maxRunning != null)
+        {
+            RunningCounter.sync(cnx);
+        }
 
         if (parameters != null)
         {
             for (Map.Entry<String, String> prm : parameters.entrySet())
             {
-                cnx.runUpdate("jdprm_insert", prm.getKey(), prm.getValue(), newId);
+                cnx.runUpdate("jdprm_insert", prm.getKey(), prm.getValue(), this.id);
             }
         }
-
-        return newId;
     }
 
     public static JobDef select_key(DbConn cnx, String name)
@@ -541,13 +652,14 @@ public class JobDef implements Serializable
     {
         if (id == null)
         {
-            this.id = JobDef.create(cnx, description, javaClassName, parameters, jarPath, queue_id, maxTimeRunning, applicationName,
-                    application, module, keyword1, keyword2, keyword3, highlander, classLoader, pathType);
+            insert(cnx, parameters);
         }
         else
         {
             cnx.runUpdate("jd_update_all_fields_by_id", application, applicationName, description, enabled, external, highlander, jarPath,
-                    javaClassName, javaOpts, keyword1, keyword2, keyword3, maxTimeRunning, module, pathType, classLoader, queue_id, id);
+                    javaClassName, javaOpts, keyword1, keyword2, keyword3, maxTimeRunning, module, pathType, classLoader, queue_id, maxRunning,
+                    batchSize, warmPoolSize, id);
+            RunningCounter.sync(cnx);
             cnx.runUpdate("jdprm_delete_all_for_jd", this.id);
             for (Map.Entry<String, String> prm : parameters.entrySet())
             {
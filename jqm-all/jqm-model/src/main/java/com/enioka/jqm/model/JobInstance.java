@@ -22,7 +22,9 @@ import java.io.Serializable;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -403,6 +405,15 @@ public class JobInstance implements Serializable
         this.attributionDate = attributionDate;
     }
 
+    /**
+     * True if this job instance cannot run at the same time as another instance of the same job definition. It then holds the highlander
+     * lock of its job definition while it is attributed or running.
+     */
+    public boolean isHighlander()
+    {
+        return this.highlander;
+    }
+
     /**
      * True if this job instance was created from a schedule.
      */
@@ -439,6 +450,10 @@ public class JobInstance implements Serializable
         this.notBefore = notBefore;
     }
 
+    /**
+     * Only the job instance columns are selected: {@link #getJD()}, {@link #getQ()} and {@link #getNode()} come from the
+     * {@link MetadataCache} and are shared with other users of the cache, so they must not be modified.
+     */
     public static List<JobInstance> select(DbConn cnx, String query_key, Object... args)
     {
         List<JobInstance> res = new ArrayList<JobInstance>();
@@ -476,10 +491,6 @@ public class JobInstance implements Serializable
                 tmp.instruction = Instruction.valueOf(rs.getString(23));
                 tmp.notBefore = cnx.getCal(rs, 24);
 
-                tmp.q = Queue.map(rs, 24);
-                tmp.jd = JobDef.map(rs, 28);
-                tmp.n = Node.map(cnx, rs, 46);
-
                 res.add(tmp);
             }
         }
@@ -491,6 +502,14 @@ public class JobInstance implements Serializable
         {
             cnx.closeQuietly(rs);
         }
+
+        // Not inside the loop: the cache may need to run queries.
+        for (JobInstance tmp : res)
+        {
+            tmp.q = MetadataCache.getQueue(cnx, tmp.queue_id);
+            tmp.jd = MetadataCache.getJobDef(cnx, tmp.jd_id);
+            tmp.n = tmp.node_id == 0 ? null : MetadataCache.getNode(cnx, tmp.node_id);
+        }
         return res;
     }
 
@@ -535,6 +554,148 @@ public class JobInstance implements Serializable
             }
         }
 
+        if (status == State.SUBMITTED)
+        {
+            // Engines polling this queue will be told about the new instance on commit.
+            cnx.notifyEnqueue(queue_id);
+        }
+
         return newId;
     }
+
+    /**
+     * Atomically attributes at most <code>maxResults</code> waiting job instances of a queue to a node, within the cluster-wide limits:
+     * start rate of the queue ({@link RateBucket}), concurrency limits of the job definitions and queues (running counters) and highlander
+     * locks. The transaction is left open.
+     * 
+     * @return the IDs of the claimed job instances. May be empty, never null.
+     */
+    public static List<Integer> claim(DbConn cnx, int nodeId, int queueId, int maxResults)
+    {
+        Map<Integer, RateBucket> buckets = RateBucket.refill(cnx, Arrays.asList(queueId));
+        if (buckets.containsKey(queueId))
+        {
+            maxResults = Math.min(maxResults, buckets.get(queueId).getAvailableTokens());
+        }
+
+        List<Integer> res = maxResults > 0 ? cnx.attributeJobInstances(nodeId, queueId, maxResults) : new ArrayList<Integer>();
+        return applyClaimLimits(cnx, nodeId, buckets, res, true);
+    }
+
+    /**
+     * Atomically attributes waiting job instances of multiple queues to a node in a single claim. See {@link #claim(DbConn, int, int, int)}.
+     * 
+     * @param slotsByQueue
+     *            the maximum count of instances to claim for each queue (key is the queue ID).
+     * @return the IDs of the claimed instances.
+     */
+    public static List<Integer> claim(DbConn cnx, int nodeId, Map<Integer, Integer> slotsByQueue)
+    {
+        return claim(cnx, nodeId, slotsByQueue, 0);
+    }
+
+    /**
+     * Same as {@link #claim(DbConn, int, Map)}, but with a head start for the nodes on which job definitions are warm (see
+     * {@link DbConn#attributeJobInstances(int, Map, int)}). 0 means no head start.
+     */
+    public static List<Integer> claim(DbConn cnx, int nodeId, Map<Integer, Integer> slotsByQueue, int warmHeadStart)
+    {
+        Map<Integer, RateBucket> buckets = RateBucket.refill(cnx, slotsByQueue.keySet());
+        if (!buckets.isEmpty())
+        {
+            slotsByQueue = new HashMap<Integer, Integer>(slotsByQueue);
+            for (Map.Entry<Integer, RateBucket> e : buckets.entrySet())
+            {
+                int slots = Math.min(slotsByQueue.get(e.getKey()), e.getValue().getAvailableTokens());
+                if (slots > 0)
+                {
+                    slotsByQueue.put(e.getKey(), slots);
+                }
+                else
+                {
+                    slotsByQueue.remove(e.getKey());
+                }
+            }
+        }
+
+        List<Integer> res = slotsByQueue.isEmpty() ? new ArrayList<Integer>()
+                : cnx.attributeJobInstances(nodeId, slotsByQueue, warmHeadStart);
+        return applyClaimLimits(cnx, nodeId, buckets, res, true);
+    }
+
+    /**
+     * Atomically attributes to a node at most <code>maxResults</code> waiting instances of a single job definition inside a queue, so as to
+     * complete a batch of instances already claimed (see {@link JobDef#getBatchSize()}). The same limits as for
+     * {@link #claim(DbConn, int, int, int)} apply, except that highlander instances are never taken. The transaction is left open.
+     *
+     * @return the IDs of the claimed job instances. May be empty, never null.
+     */
+    public static List<Integer> claimBatch(DbConn cnx, int nodeId, int queueId, int jobDefId, int maxResults)
+    {
+        Map<Integer, RateBucket> buckets = RateBucket.refill(cnx, Arrays.asList(queueId));
+        if (buckets.containsKey(queueId))
+        {
+            maxResults = Math.min(maxResults, buckets.get(queueId).getAvailableTokens());
+        }
+
+        List<Integer> res = maxResults > 0 ? cnx.attributeBatchJobInstances(nodeId, queueId, jobDefId, maxResults)
+                : new ArrayList<Integer>();
+        return applyClaimLimits(cnx, nodeId, buckets, res, false);
+    }
+
+    /**
+     * The part of the claim done after the attribution of the instances. Tables are always locked in the same order: rate buckets, job
+     * instances, running counters, highlander locks.
+     * 
+     * @return the instances really claimed.
+     */
+    private static List<Integer> applyClaimLimits(DbConn cnx, int nodeId, Map<Integer, RateBucket> buckets, List<Integer> attributed,
+            boolean highlanders)
+    {
+        List<Integer> res = RunningCounter.take(cnx, nodeId, attributed);
+        if (highlanders)
+        {
+            res = giveBack(cnx, nodeId, res, cnx.lockHighlanders(res));
+        }
+        RateBucket.consume(cnx, buckets, res);
+        return res;
+    }
+
+    /**
+     * Gives back to their queue claimed instances which finally cannot run (for example highlander instances whose lock was taken by
+     * another node meanwhile), with their running counter slots.
+     *
+     * @return the claimed instances which are kept.
+     */
+    private static List<Integer> giveBack(DbConn cnx, int nodeId, List<Integer> claimed, List<Integer> refused)
+    {
+        if (refused.isEmpty())
+        {
+            return claimed;
+        }
+
+        List<int[]> counters = new ArrayList<int[]>(refused.size());
+        ResultSet rs = cnx.runSelect("ji_select_jd_queue_by_id_list", refused);
+        try
+        {
+            while (rs.next())
+            {
+                counters.add(new int[] { rs.getInt(1), rs.getInt(2) });
+            }
+        }
+        catch (SQLException e)
+        {
+            throw new DatabaseException(e);
+        }
+        finally
+        {
+            cnx.closeQuietly(rs);
+        }
+        cnx.runUpdate("ji_update_release_by_id_list", nodeId, refused);
+        RunningCounter.release(cnx, counters);
+
+        List<Integer> res = new ArrayList<Integer>(claimed);
+        res.removeAll(refused);
+        return res;
+    }
 }
@@ -88,11 +88,30 @@ public class Message implements Serializable
         this.ji = ji;
     }
 
+    /**
+     * Checks that a message can be stored.
+     * 
+     * @throws ValidationException
+     *             if the message is null or too long.
+     */
+    public static void validate(String textMessage)
+    {
+        if (textMessage == null)
+        {
+            throw new ValidationException("textMessage", "cannot be null");
+        }
+        if (textMessage.length() > 1000)
+        {
+            throw new ValidationException("textMessage", "must be shorter than 1000 characters");
+        }
+    }
+
     /**
      * Create a new entry in the database. No commit performed.
      */
     public static int create(DbConn cnx, String textMessage, Integer jobId)
     {
+        validate(textMessage);
         QueryResult r = cnx.runUpdate("message_insert", jobId, textMessage);
 
         return r.getGeneratedId();
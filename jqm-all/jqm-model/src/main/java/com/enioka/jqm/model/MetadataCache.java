@@ -0,0 +1,161 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.model;
+
+import java.util.List;
+
+import com.enioka.jqm.jdbc.Db;
+import com.enioka.jqm.jdbc.DbConn;
+import com.enioka.jqm.jdbc.VersionedCache;
+
+/**
+ * <strong>Not part of any API - this an internal JQM class and may change without notice.</strong> <br>
+ * A cache, for each {@link Db}, of the objects referenced by job instances: {@link JobDef}, {@link Queue}, {@link Node} and {@link Cl}, by
+ * ID. This allows {@link JobInstance#select(DbConn, String, Object...)} to only load the job instance columns.<br>
+ * Cached objects are shared between all their users and must not be modified. The job definitions come with their class loader
+ * definition ({@link JobDef#getClassLoader()}). The liveness of cached nodes (last seen alive, stop) is not kept up to date.<br>
+ * See {@link VersionedCache} for when the cache is emptied.<br>
+ * The free queries of the JDBC client do not use this cache, as they filter and sort on the columns of the referenced objects.
+ */
+public final class MetadataCache
+{
+    private MetadataCache()
+    {
+
+    }
+
+    /**
+     * @return the job definition, with its class loader definition, or null if it does not exist.
+     */
+    public static JobDef getJobDef(DbConn cnx, int id)
+    {
+        VersionedCache<Integer, JobDef> cache = cnx.getCache("jd");
+        long generation = cache.getGeneration();
+        JobDef res = cache.get(id);
+        if (res != null)
+        {
+            return res;
+        }
+
+        List<JobDef> jds = JobDef.select(cnx, "jd_select_by_id", id);
+        if (jds.isEmpty())
+        {
+            return null;
+        }
+        res = jds.get(0);
+        if (res.getClassLoaderId() != null)
+        {
+            res.setClassLoaderCache(getCl(cnx, res.getClassLoaderId()));
+        }
+        cache.put(id, res, generation);
+        return res;
+    }
+
+    /**
+     * @return the queue, or null if it does not exist.
+     */
+    public static Queue getQueue(DbConn cnx, int id)
+    {
+        VersionedCache<Integer, Queue> cache = cnx.getCache("q");
+        long generation = cache.getGeneration();
+        Queue res = cache.get(id);
+        if (res != null)
+        {
+            return res;
+        }
+
+        List<Queue> qs = Queue.select(cnx, "q_select_by_id", id);
+        if (qs.isEmpty())
+        {
+            return null;
+        }
+        res = qs.get(0);
+        cache.put(id, res, generation);
+        return res;
+    }
+
+    /**
+     * @return the node, or null if it does not exist.
+     */
+    public static Node getNode(DbConn cnx, int id)
+    {
+        VersionedCache<Integer, Node> cache = cnx.getCache("node");
+        long generation = cache.getGeneration();
+        Node res = cache.get(id);
+        if (res != null)
+        {
+            return res;
+        }
+
+        List<Node> ns = Node.select(cnx, "node_select_by_id", id);
+        if (ns.isEmpty())
+        {
+            return null;
+        }
+        res = ns.get(0);
+        cache.put(id, res, generation);
+        return res;
+    }
+
+    /**
+     * @return the class loader definition, with its handlers, or null if it does not exist.
+     */
+    public static Cl getCl(DbConn cnx, int id)
+    {
+        VersionedCache<Integer, Cl> cache = cnx.getCache("cl");
+        long generation = cache.getGeneration();
+        Cl res = cache.get(id);
+        if (res != null)
+        {
+            return res;
+        }
+
+        List<Cl> c = Cl.select(cnx, "cl_select_by_id", id);
+        if (c.isEmpty())
+        {
+            return null;
+        }
+        res = c.get(0);
+        cache.put(id, res, generation);
+        return res;
+    }
+
+    /**
+     * The number of objects returned from the cache of the given Db since its creation.
+     */
+    public static long getCacheHits(Db db)
+    {
+        long res = 0;
+        for (String name : new String[] { "jd", "q", "node", "cl" })
+        {
+            res += db.getCache(name).getHits();
+        }
+        return res;
+    }
+
+    /**
+     * The number of objects which had to be loaded from the database by the given Db since its creation.
+     */
+    public static long getCacheMisses(Db db)
+    {
+        long res = 0;
+        for (String name : new String[] { "jd", "q", "node", "cl" })
+        {
+            res += db.getCache(name).getMisses();
+        }
+        return res;
+    }
+}
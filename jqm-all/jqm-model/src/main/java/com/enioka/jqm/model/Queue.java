@@ -42,6 +42,12 @@ public class Queue implements Serializable
 
     private boolean defaultQueue;
 
+    private boolean virtualThreads = false;
+
+    private Integer maxRunning;
+
+    private Double maxRate;
+
     /**
      * Functional key. Queues are specified by name inside all APIs. Must be unique.<br>
      * Max length is 50.
@@ -125,17 +131,106 @@ public class Queue implements Serializable
         this.timeToLive = timeToLive;
     }
 
+    /**
+     * If true, the payloads (not external) of this queue run on virtual threads when the engine JVM supports them (Java 21+). This allows
+     * far more concurrent I/O-bound job instances on a node, as the max number of threads of the queue no longer maps to platform
+     * threads. Ignored on older JVMs. Default is false.
+     */
+    public boolean isVirtualThreads()
+    {
+        return virtualThreads;
+    }
+
+    /**
+     * See {@link #isVirtualThreads()}
+     */
+    public void setVirtualThreads(boolean virtualThreads)
+    {
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * The maximum number of instances of this queue which may be attributed or running at the same time on the whole cluster, whatever
+     * the number of nodes polling it. Null (the default) or 0 mean no limit.
+     */
+    public Integer getMaxRunning()
+    {
+        return maxRunning;
+    }
+
+    /**
+     * See {@link #getMaxRunning()}
+     */
+    public void setMaxRunning(Integer maxRunning)
+    {
+        this.maxRunning = maxRunning;
+    }
+
+    /**
+     * The maximum number of instances of this queue which may be started per second on the whole cluster, whatever the number of nodes
+     * polling it. Fractional values are allowed (0.1 means one instance every ten seconds). Null (the default) or 0 mean no limit.
+     */
+    public Double getMaxRate()
+    {
+        return maxRate;
+    }
+
+    /**
+     * See {@link #getMaxRate()}
+     */
+    public void setMaxRate(Double maxRate)
+    {
+        this.maxRate = maxRate;
+    }
+
     /**
      * Create a new entry in the database. No commit performed.
      */
     public static Integer create(DbConn cnx, String name, String description, boolean defaultQ)
     {
-        QueryResult r = cnx.runUpdate("q_insert", defaultQ, description, name);
+        return create(cnx, name, description, defaultQ, false);
+    }
+
+    /**
+     * Create a new entry in the database. No commit performed.
+     */
+    public static Integer create(DbConn cnx, String name, String description, boolean defaultQ, boolean virtualThreads)
+    {
+        return create(cnx, name, description, defaultQ, virtualThreads, null);
+    }
+
+    /**
+     * Create a new entry in the database. No commit performed.
+     */
+    public static Integer create(DbConn cnx, String name, String description, boolean defaultQ, boolean virtualThreads,
+            Integer maxRunning)
+    {
+        return create(cnx, name, description, defaultQ, virtualThreads, maxRunning, null);
+    }
+
+    /**
+     * Create a new entry in the database. No commit performed.
+     */
+    public static Integer create(DbConn cnx, String name, String description, boolean defaultQ, boolean virtualThreads,
+            Integer maxRunning, Double maxRate)
+    {
+        QueryResult r = cnx.runUpdate("q_insert", defaultQ, description, name, virtualThreads, maxRunning, maxRate);
+        if (maxRate != null)
+        {
+            RateBucket.sync(cnx);
+        }
+        if (maxRunning != null)
+        {
+            RunningCounter.sync(cnx);
+        }
         Queue res = new Queue();
         res.id = r.getGeneratedId();
         res.name = name;
         res.description = description;
         res.defaultQueue = defaultQ;
+        res.virtualThreads = virtualThreads;
+        res.maxRunning = maxRunning;
+        res.maxRate = maxRate;
         return res.id;
     }
 
@@ -152,6 +247,9 @@ public class Queue implements Serializable
             tmp.defaultQueue = rs.getBoolean(2 + colShift);
             tmp.description = rs.getString(3 + colShift);
             tmp.name = rs.getString(4 + colShift);
+            tmp.virtualThreads = rs.getBoolean(5 + colShift);
+            tmp.maxRunning = rs.getInt(6 + colShift) > 0 ? rs.getInt(6 + colShift) : null;
+            tmp.maxRate = rs.getDouble(7 + colShift) > 0 ? rs.getDouble(7 + colShift) : null;
             return tmp;
         }
         catch (SQLException e)
@@ -197,11 +295,13 @@ public class Queue implements Serializable
     {
         if (this.id == null)
         {
-            this.id = create(cnx, name, description, defaultQueue);
+            this.id = create(cnx, name, description, defaultQueue, virtualThreads, maxRunning, maxRate);
         }
         else
         {
-            cnx.runUpdate("q_update_all_fields_by_id", defaultQueue, description, name, id);
+            cnx.runUpdate("q_update_all_fields_by_id", defaultQueue, description, name, virtualThreads, maxRunning, maxRate, id);
+            RateBucket.sync(cnx);
+            RunningCounter.sync(cnx);
         }
 
     }
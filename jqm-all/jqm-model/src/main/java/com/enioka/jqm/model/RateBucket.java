@@ -0,0 +1,175 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.model;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.enioka.jqm.jdbc.DatabaseException;
+import com.enioka.jqm.jdbc.DbConn;
+
+/**
+ * <strong>Not part of any API - this an internal JQM class and may change without notice.</strong> <br>
+ * The token bucket of a queue with a cluster-wide start rate limit ({@link Queue#getMaxRate()}), stored inside table
+ * <code>RATE_BUCKET</code>. There is no process refilling the buckets: each claim does it lazily inside its own transaction (see
+ * {@link JobInstance#claim(DbConn, int, Map, int)}), after locking the bucket rows so that concurrent claims of the same queues on other
+ * nodes wait for it. A bucket holds at most one second of starts, and at least one token so that rates below one instance per second can
+ * start anything.<br>
+ * Only the database clock is used, so that nodes with different clocks share the same buckets.
+ */
+public final class RateBucket
+{
+    private int id;
+    private double tokens;
+
+    private RateBucket()
+    {
+
+    }
+
+    /**
+     * The count of instances which may start right now.
+     */
+    int getAvailableTokens()
+    {
+        return (int) tokens;
+    }
+
+    /**
+     * Refills the buckets of the given queues from the time elapsed since their last refill (both database times), inside the claim transaction. Only the queues
+     * which have a rate limit according to the {@link MetadataCache} are locked, so that claims on queues without limit (the usual case)
+     * do not write anything here.
+     *
+     * @return the buckets of the rate limited queues among the given ones, by queue ID. Usually empty.
+     */
+    static Map<Integer, RateBucket> refill(DbConn cnx, Collection<Integer> queueIds)
+    {
+        Map<Integer, RateBucket> res = new HashMap<Integer, RateBucket>();
+        List<Integer> limited = new ArrayList<Integer>();
+        for (Integer queueId : queueIds)
+        {
+            Queue q = MetadataCache.getQueue(cnx, queueId);
+            if (q != null && q.getMaxRate() != null)
+            {
+                limited.add(queueId);
+            }
+        }
+        if (limited.isEmpty() || cnx.runUpdate("rb_update_lock_by_queue_list", limited).nbUpdated == 0)
+        {
+            return res;
+        }
+
+        ResultSet rs = cnx.runSelect("rb_select_by_queue_list", limited);
+        try
+        {
+            while (rs.next())
+            {
+                double rate = rs.getDouble(3);
+                long elapsed = Math.max(0, rs.getTimestamp(6).getTime() - rs.getTimestamp(5).getTime());
+
+                RateBucket bucket = new RateBucket();
+                bucket.id = rs.getInt(1);
+                bucket.tokens = Math.min(Math.max(1, rate), rs.getDouble(4) + rate * elapsed / 1000);
+                res.put(rs.getInt(2), bucket);
+            }
+        }
+        catch (SQLException e)
+        {
+            throw new DatabaseException(e);
+        }
+        finally
+        {
+            cnx.closeQuietly(rs);
+        }
+        return res;
+    }
+
+    /**
+     * Removes one token per claimed instance from the buckets returned by {@link #refill(DbConn, Collection)}, and stores them with the
+     * current database time as their last refill.
+     */
+    static void consume(DbConn cnx, Map<Integer, RateBucket> buckets, List<Integer> claimed)
+    {
+        if (buckets.isEmpty())
+        {
+            return;
+        }
+
+        if (!claimed.isEmpty())
+        {
+            ResultSet rs = cnx.runSelect("rb_select_count_by_ji_list", claimed);
+            try
+            {
+                while (rs.next())
+                {
+                    if (buckets.containsKey(rs.getInt(1)))
+                    {
+                        buckets.get(rs.getInt(1)).tokens -= rs.getInt(2);
+                    }
+                }
+            }
+            catch (SQLException e)
+            {
+                throw new DatabaseException(e);
+            }
+            finally
+            {
+                cnx.closeQuietly(rs);
+            }
+        }
+
+        for (RateBucket bucket : buckets.values())
+        {
+            cnx.runUpdate("rb_update_by_id", Math.max(0, bucket.tokens), bucket.id);
+        }
+    }
+
+    /**
+     * Makes the token buckets match the start rate limits of the queues. Must be called inside the transactions creating, modifying or
+     * removing queues. A new bucket starts full. No commit performed.
+     */
+    public static void sync(DbConn cnx)
+    {
+        cnx.runUpdate("rb_delete_stale");
+
+        List<Object[]> missing = new ArrayList<Object[]>();
+        ResultSet rs = cnx.runSelect("rb_select_missing");
+        try
+        {
+            while (rs.next())
+            {
+                missing.add(new Object[] { rs.getInt(1), rs.getDouble(2), Math.max(1, rs.getDouble(2)) });
+            }
+        }
+        catch (SQLException e)
+        {
+            throw new DatabaseException(e);
+        }
+        finally
+        {
+            cnx.closeQuietly(rs);
+        }
+        for (Object[] prms : missing)
+        {
+            cnx.runUpdate("rb_insert", prms);
+        }
+    }
+}
@@ -0,0 +1,265 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.model;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.enioka.jqm.jdbc.DatabaseException;
+import com.enioka.jqm.jdbc.DbConn;
+
+/**
+ * <strong>Not part of any API - this an internal JQM class and may change without notice.</strong> <br>
+ * The running counters, stored inside table <code>RUNNING_COUNTER</code>, enforce the cluster-wide concurrency limits of the job
+ * definitions and queues ({@link JobDef#getMaxRunning()}, {@link Queue#getMaxRunning()}): one row per limited job definition or queue,
+ * holding the count of its attributed and running instances.<br>
+ * Counters are taken inside the claim transaction (see {@link JobInstance#claim(DbConn, int, Map, int)}) and freed inside the
+ * transactions removing instances from the queues. Both always update the counters by ascending ID, each counter at most once, so that
+ * concurrent claims and releases cannot deadlock.
+ */
+public final class RunningCounter
+{
+    private RunningCounter()
+    {
+
+    }
+
+    /**
+     * Takes a slot in the running counters of the job definitions and queues of newly attributed instances. The claim queries skip the
+     * instances of full counters, but a single claim may still attribute more instances than there are free slots: the instances which get
+     * no slot are given back to their queue at once.<br>
+     * This costs a single query reading the counters of all the instances, then a single conditional update per counter, incremented by the
+     * number of instances granted by this counter. Concurrent claims on other nodes wait for this transaction, so the limits cannot be
+     * exceeded. As the counters are read without lock, a counter filled meanwhile by another node makes its update fail: all its instances
+     * are then given back, and will be claimed again on a next poll.
+     *
+     * @return the instances really claimed.
+     */
+    static List<Integer> take(DbConn cnx, int nodeId, List<Integer> attributed)
+    {
+        if (attributed.isEmpty())
+        {
+            return attributed;
+        }
+
+        // Instance -> its counters, by instance priority. Counter -> its free slots.
+        Map<Integer, List<Integer>> countersByInstance = new LinkedHashMap<Integer, List<Integer>>();
+        Map<Integer, Integer> free = new HashMap<Integer, Integer>();
+        ResultSet rs = cnx.runSelect("rc_select_by_ji_list", attributed);
+        try
+        {
+            while (rs.next())
+            {
+                if (!countersByInstance.containsKey(rs.getInt(1)))
+                {
+                    countersByInstance.put(rs.getInt(1), new ArrayList<Integer>());
+                }
+                countersByInstance.get(rs.getInt(1)).add(rs.getInt(2));
+                free.put(rs.getInt(2), rs.getInt(4) - rs.getInt(3));
+            }
+        }
+        catch (SQLException e)
+        {
+            throw new DatabaseException(e);
+        }
+        finally
+        {
+            cnx.closeQuietly(rs);
+        }
+        if (countersByInstance.isEmpty())
+        {
+            return attributed;
+        }
+
+        // An instance needs a free slot in all its counters.
+        Map<Integer, Integer> granted = new TreeMap<Integer, Integer>();
+        Set<Integer> refused = new LinkedHashSet<Integer>();
+        for (Map.Entry<Integer, List<Integer>> e : countersByInstance.entrySet())
+        {
+            boolean room = true;
+            for (Integer counterId : e.getValue())
+            {
+                room &= free.get(counterId) > 0;
+            }
+            if (!room)
+            {
+                refused.add(e.getKey());
+                continue;
+            }
+            for (Integer counterId : e.getValue())
+            {
+                free.put(counterId, free.get(counterId) - 1);
+                granted.put(counterId, (granted.containsKey(counterId) ? granted.get(counterId) : 0) + 1);
+            }
+        }
+
+        Set<Integer> full = new HashSet<Integer>();
+        for (Map.Entry<Integer, Integer> e : granted.entrySet())
+        {
+            if (cnx.runUpdate("rc_update_increment_by_id", e.getValue(), e.getKey(), e.getValue()).nbUpdated == 0)
+            {
+                full.add(e.getKey());
+            }
+        }
+        if (!full.isEmpty())
+        {
+            // Give back the slots the refused instances hold in the other counters (already locked by this transaction).
+            Map<Integer, Integer> giveBack = new TreeMap<Integer, Integer>();
+            for (Map.Entry<Integer, List<Integer>> e : countersByInstance.entrySet())
+            {
+                if (refused.contains(e.getKey()) || Collections.disjoint(e.getValue(), full))
+                {
+                    continue;
+                }
+                refused.add(e.getKey());
+                for (Integer counterId : e.getValue())
+                {
+                    if (!full.contains(counterId))
+                    {
+                        giveBack.put(counterId, (giveBack.containsKey(counterId) ? giveBack.get(counterId) : 0) + 1);
+                    }
+                }
+            }
+            decrement(cnx, giveBack);
+        }
+        if (refused.isEmpty())
+        {
+            return attributed;
+        }
+
+        cnx.runUpdate("ji_update_release_by_id_list", nodeId, new ArrayList<Integer>(refused));
+        List<Integer> res = new ArrayList<Integer>(attributed);
+        res.removeAll(refused);
+        return res;
+    }
+
+    /**
+     * Frees the slots of job instances which have ended or were given back to their queue, inside the transaction removing them from the
+     * queue. Nothing is written when there are no counters at all.
+     *
+     * @param instances
+     *            for each instance, its job definition ID then its queue ID. Instances may be given in any order.
+     */
+    public static void release(DbConn cnx, List<int[]> instances)
+    {
+        if (instances.isEmpty())
+        {
+            return;
+        }
+
+        Map<Integer, Integer> jdCounters = new HashMap<Integer, Integer>();
+        Map<Integer, Integer> queueCounters = new HashMap<Integer, Integer>();
+        ResultSet rs = cnx.runSelect("rc_select_all");
+        try
+        {
+            while (rs.next())
+            {
+                if (rs.getInt(3) == 0)
+                {
+                    jdCounters.put(rs.getInt(2), rs.getInt(1));
+                }
+                else
+                {
+                    queueCounters.put(rs.getInt(3), rs.getInt(1));
+                }
+            }
+        }
+        catch (SQLException e)
+        {
+            throw new DatabaseException(e);
+        }
+        finally
+        {
+            cnx.closeQuietly(rs);
+        }
+        if (jdCounters.isEmpty() && queueCounters.isEmpty())
+        {
+            return;
+        }
+
+        Map<Integer, Integer> released = new TreeMap<Integer, Integer>();
+        for (int[] instance : instances)
+        {
+            for (Integer counterId : new Integer[] { jdCounters.get(instance[0]), queueCounters.get(instance[1]) })
+            {
+                if (counterId != null)
+                {
+                    released.put(counterId, (released.containsKey(counterId) ? released.get(counterId) : 0) + 1);
+                }
+            }
+        }
+        decrement(cnx, released);
+    }
+
+    /**
+     * One update per counter, in ascending ID order (the given map must be sorted).
+     */
+    private static void decrement(DbConn cnx, Map<Integer, Integer> countByCounter)
+    {
+        if (countByCounter.isEmpty())
+        {
+            return;
+        }
+        List<Object[]> prms = new ArrayList<Object[]>(countByCounter.size());
+        for (Map.Entry<Integer, Integer> e : countByCounter.entrySet())
+        {
+            prms.add(new Object[] { e.getValue(), e.getValue(), e.getKey() });
+        }
+        cnx.runBatchUpdate("rc_update_decrement_by_id", prms);
+    }
+
+    /**
+     * Makes the running counters match the concurrency limits of the job definitions and queues. Must be called inside the transactions
+     * creating, modifying or removing job definitions or queues. A new counter starts with the count of the attributed and running
+     * instances it limits. No commit performed.
+     */
+    public static void sync(DbConn cnx)
+    {
+        cnx.runUpdate("rc_delete_stale");
+
+        List<Object[]> missing = new ArrayList<Object[]>();
+        ResultSet rs = cnx.runSelect("rc_select_missing");
+        try
+        {
+            while (rs.next())
+            {
+                missing.add(new Object[] { rs.getInt(1), rs.getInt(2), rs.getInt(3), rs.getInt(4) });
+            }
+        }
+        catch (SQLException e)
+        {
+            throw new DatabaseException(e);
+        }
+        finally
+        {
+            cnx.closeQuietly(rs);
+        }
+        for (Object[] prms : missing)
+        {
+            cnx.runUpdate("rc_insert", prms);
+        }
+    }
+}
@@ -124,6 +124,39 @@ public class RuntimeParameter implements Serializable
         return res;
     }
 
+    /**
+     * Same as {@link #select_map(DbConn, String, Object...)} but for the parameters of multiple job instances at once.
+     * 
+     * @return for each job instance ID, its parameters. Job instances without parameters are absent.
+     */
+    public static Map<Integer, Map<String, String>> select_maps(DbConn cnx, String query_key, Object... args)
+    {
+        Map<Integer, Map<String, String>> res = new HashMap<Integer, Map<String, String>>();
+        ResultSet rs = cnx.runSelect(query_key, args);
+        try
+        {
+            while (rs.next())
+            {
+                Map<String, String> prms = res.get(rs.getInt(2));
+                if (prms == null)
+                {
+                    prms = new HashMap<String, String>();
+                    res.put(rs.getInt(2), prms);
+                }
+                prms.put(rs.getString(3), rs.getString(4));
+            }
+        }
+        catch (SQLException e)
+        {
+            throw new DatabaseException(e);
+        }
+        finally
+        {
+            cnx.closeQuietly(rs);
+        }
+        return res;
+    }
+
     public static void create(DbConn cnx, int jobInstanceId, String keyName, String value)
     {
         cnx.runUpdate("jiprm_insert", jobInstanceId, keyName, value);
@@ -0,0 +1,90 @@
+/* Upgrade script from schema version 1. Designed for HSQLDB. JQM will adapt it to other compatible databases. */
+
+/* Queue execution options */
+ALTER TABLE __T__QUEUE ADD VIRTUAL_THREADS BOOLEAN DEFAULT false NOT NULL;
+
+/* Job instance prefetch */
+ALTER TABLE __T__QUEUE_NODE_MAPPING ADD PREFETCH INTEGER DEFAULT 0 NOT NULL;
+
+/* Highlander locks: one row per job definition having an attributed or running highlander instance */
+CREATE MEMORY TABLE __T__HIGHLANDER_LOCK
+(
+	ID INTEGER NOT NULL,
+	JOBDEF INTEGER NOT NULL,
+	JOB_INSTANCE INTEGER NOT NULL,
+	
+	CONSTRAINT PK_HIGHLANDER_LOCK PRIMARY KEY(ID),
+	CONSTRAINT UK_HIGHLANDER_LOCK_1 UNIQUE(JOBDEF)
+);
+CREATE INDEX IDX_HIGHLANDER_LOCK_1 ON __T__HIGHLANDER_LOCK(JOB_INSTANCE);
+
+/* Node configuration change detection (deployment parameters already have this column) */
+ALTER TABLE __T__NODE ADD LAST_MODIFIED TIMESTAMP NULL;
+
+/* Configuration version: a single row, incremented by each transaction modifying nodes, deployment parameters, queues, job definitions,
+   class loaders or global parameters. Its lock orders the versions as the commits, so that a reader never misses a change. */
+CREATE MEMORY TABLE __T__CONFIG_VERSION
+(
+	ID INTEGER NOT NULL,
+	VERSION INTEGER NOT NULL,
+	
+	CONSTRAINT PK_CONFIG_VERSION PRIMARY KEY(ID)
+);
+INSERT INTO __T__CONFIG_VERSION(ID, VERSION) VALUES(1, 0);
+
+/* Metadata cache invalidation (see MetadataCache) */
+ALTER TABLE __T__JOB_DEFINITION ADD LAST_MODIFIED TIMESTAMP NULL;
+ALTER TABLE __T__QUEUE ADD LAST_MODIFIED TIMESTAMP NULL;
+ALTER TABLE __T__CL ADD LAST_MODIFIED TIMESTAMP NULL;
+
+/* Locality-aware claim: the job definitions each node can start without building their class path from scratch */
+CREATE MEMORY TABLE __T__NODE_WARM_JOBDEF
+(
+	ID INTEGER NOT NULL,
+	NODE INTEGER NOT NULL,
+	JOBDEF INTEGER NOT NULL,
+	
+	CONSTRAINT PK_NODE_WARM_JOBDEF PRIMARY KEY(ID),
+	CONSTRAINT UK_NODE_WARM_JOBDEF_1 UNIQUE(JOBDEF, NODE)
+);
+CREATE INDEX IDX_NODE_WARM_JOBDEF_1 ON __T__NODE_WARM_JOBDEF(NODE);
+
+/* Cluster-wide concurrency limits (NULL: no limit) */
+ALTER TABLE __T__JOB_DEFINITION ADD MAX_RUNNING INTEGER NULL;
+ALTER TABLE __T__QUEUE ADD MAX_RUNNING INTEGER NULL;
+
+/* Running counters: one row per limited job definition (QUEUE is 0) or limited queue (JOBDEF is 0) */
+CREATE MEMORY TABLE __T__RUNNING_COUNTER
+(
+	ID INTEGER NOT NULL,
+	JOBDEF INTEGER NOT NULL,
+	QUEUE INTEGER NOT NULL,
+	RUNNING INTEGER NOT NULL,
+	MAX_RUNNING INTEGER NOT NULL,
+	
+	CONSTRAINT PK_RUNNING_COUNTER PRIMARY KEY(ID),
+	CONSTRAINT UK_RUNNING_COUNTER_1 UNIQUE(JOBDEF, QUEUE)
+);
+CREATE INDEX IDX_RUNNING_COUNTER_1 ON __T__RUNNING_COUNTER(QUEUE);
+
+/* Cluster-wide start rate limit of queues, in job instances per second (NULL: no limit) */
+ALTER TABLE __T__QUEUE ADD MAX_RATE DOUBLE NULL;
+
+/* Token buckets: one row per rate limited queue, refilled by the claims themselves from the time elapsed since LAST_REFILL */
+CREATE MEMORY TABLE __T__RATE_BUCKET
+(
+	ID INTEGER NOT NULL,
+	QUEUE INTEGER NOT NULL,
+	RATE DOUBLE NOT NULL,
+	TOKENS DOUBLE NOT NULL,
+	LAST_REFILL TIMESTAMP NOT NULL,
+	
+	CONSTRAINT PK_RATE_BUCKET PRIMARY KEY(ID),
+	CONSTRAINT UK_RATE_BUCKET_1 UNIQUE(QUEUE)
+);
+
+/* Micro-job batching: how many waiting instances of a job definition may run one after the other in a single slot (NULL: no batching) */
+ALTER TABLE __T__JOB_DEFINITION ADD BATCH_SIZE INTEGER NULL;
+
+/* Warm class loader pools: how many ready class loaders each engine keeps for a job definition (NULL: no pool) */
+ALTER TABLE __T__JOB_DEFINITION ADD WARM_POOL_SIZE INTEGER NULL;
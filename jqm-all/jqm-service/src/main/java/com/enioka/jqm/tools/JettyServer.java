@@ -28,6 +28,8 @@ import org.eclipse.jetty.annotations.AnnotationConfiguration;
 import org.eclipse.jetty.server.Connector;
 import org.eclipse.jetty.server.Handler;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.ContextHandler;
+import org.eclipse.jetty.server.handler.ContextHandlerCollection;
 import org.eclipse.jetty.server.handler.HandlerCollection;
 import org.eclipse.jetty.server.nio.SelectChannelConnector;
 import org.eclipse.jetty.server.ssl.SslSocketConnector;
@@ -45,14 +47,15 @@ import com.enioka.jqm.model.Node;
 import com.enioka.jqm.pki.JdbcCa;
 
 /**
- * Every engine has an embedded Jetty engine that serves the different web service APIs.
+ * Every engine has an embedded Jetty engine that serves the different web service APIs, as well as the node metrics (for Prometheus) on
+ * <code>/metrics</code>.
  */
 class JettyServer
 {
     private static Logger jqmlogger = Logger.getLogger(JettyServer.class);
 
     private Server server = null;
-    private HandlerCollection h = new HandlerCollection();
+    private HandlerCollection h = new ContextHandlerCollection();
     private Node node;
     WebAppContext webAppContext = null;
 
@@ -62,7 +65,7 @@ class JettyServer
         this.stop();
 
         // Only load Jetty if web APIs are allowed in the cluster
-        boolean startJetty = !Boolean.parseBoolean(GlobalParameter.getParameter(cnx, "disableWsApi", "false"));
+        boolean startJetty = !GlobalParameter.getParameter(cnx, "disableWsApi", false);
         if (!startJetty)
         {
             jqmlogger.info("Jetty will not start - parameter disableWsApi is set to true");
@@ -85,8 +88,8 @@ class JettyServer
         }
 
         this.node = node;
-        boolean useSsl = Boolean.parseBoolean(GlobalParameter.getParameter(cnx, "enableWsApiSsl", "true"));
-        boolean useInternalPki = Boolean.parseBoolean(GlobalParameter.getParameter(cnx, "enableInternalPki", "true"));
+        boolean useSsl = GlobalParameter.getParameter(cnx, "enableWsApiSsl", true);
+        boolean useInternalPki = GlobalParameter.getParameter(cnx, "enableInternalPki", true);
         String pfxPassword = GlobalParameter.getParameter(cnx, "pfxPassword", "SuperPassword");
 
         server = new Server();
@@ -168,6 +171,12 @@ class JettyServer
         // Load the webapp context
         loadWar();
 
+        // Metrics endpoint (same authentication as the web services)
+        if (!GlobalParameter.getParameter(cnx, "disableWsApiMetrics", false))
+        {
+            loadMetrics(GlobalParameter.getParameter(cnx, "enableWsApiAuth", true));
+        }
+
         // Start the server
         jqmlogger.trace("Starting Jetty (port " + node.getPort() + ")");
         try
@@ -275,4 +284,15 @@ class JettyServer
 
         h.addHandler(webAppContext);
     }
+
+    private void loadMetrics(boolean useAuth)
+    {
+        jqmlogger.info("Jetty will serve the node metrics on /metrics" + (useAuth ? " to users with permission node:read" : ""));
+
+        ContextHandler metricsContext = new ContextHandler("/metrics");
+        metricsContext.setDisplayName("JqmMetrics");
+        metricsContext.setHandler(new MetricsHandler(node.getName(), useAuth));
+
+        h.addHandler(metricsContext);
+    }
 }
@@ -0,0 +1,184 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.tools;
+
+import java.io.IOException;
+import java.security.cert.X509Certificate;
+import java.util.Calendar;
+
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.log4j.Logger;
+import org.apache.shiro.authz.permission.WildcardPermission;
+import org.apache.shiro.codec.Base64;
+import org.apache.shiro.codec.Hex;
+import org.apache.shiro.crypto.hash.Sha512Hash;
+import org.apache.shiro.util.ByteSource;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+
+import com.enioka.jqm.jdbc.DbConn;
+import com.enioka.jqm.jdbc.NoResultException;
+import com.enioka.jqm.model.RPermission;
+import com.enioka.jqm.model.RRole;
+import com.enioka.jqm.model.RUser;
+
+/**
+ * Serves the node metrics (see {@link MetricsExporter}). When the web services use authentication (global parameter
+ * <code>enableWsApiAuth</code>), so does this endpoint, with the same users and the same means: HTTP basic authentication or client
+ * certificate. The user must have the <code>node:read</code> permission.
+ */
+class MetricsHandler extends AbstractHandler
+{
+    private static Logger jqmlogger = Logger.getLogger(MetricsHandler.class);
+    private static final WildcardPermission REQUIRED_PERMISSION = new WildcardPermission("node:read");
+
+    private final String nodeName;
+    private final boolean useAuth;
+
+    MetricsHandler(String nodeName, boolean useAuth)
+    {
+        this.nodeName = nodeName;
+        this.useAuth = useAuth;
+    }
+
+    @Override
+    public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+            throws IOException, ServletException
+    {
+        baseRequest.setHandled(true);
+        if (useAuth)
+        {
+            int status = authorize(request);
+            if (status != HttpServletResponse.SC_OK)
+            {
+                if (status == HttpServletResponse.SC_UNAUTHORIZED)
+                {
+                    response.setHeader("WWW-Authenticate", "Basic realm=\"jqm\"");
+                }
+                response.setStatus(status);
+                return;
+            }
+        }
+
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(MetricsExporter.CONTENT_TYPE);
+        response.getWriter().write(MetricsExporter.export(nodeName));
+    }
+
+    /**
+     * @return SC_OK, SC_UNAUTHORIZED if the caller could not be authenticated, or SC_FORBIDDEN if it has not the required permission.
+     */
+    private int authorize(HttpServletRequest request)
+    {
+        String login;
+        String password = null;
+        X509Certificate[] certificates = (X509Certificate[]) request.getAttribute("javax.servlet.request.X509Certificate");
+        if (certificates != null && certificates.length > 0)
+        {
+            // The certificate was already validated against the trust store by the connector.
+            login = getCommonName(certificates[0]);
+        }
+        else
+        {
+            String header = request.getHeader("Authorization");
+            if (header == null || !header.regionMatches(true, 0, "Basic ", 0, 6))
+            {
+                return HttpServletResponse.SC_UNAUTHORIZED;
+            }
+            String decoded = Base64.decodeToString(header.substring(6).trim());
+            int sep = decoded.indexOf(':');
+            if (sep < 0)
+            {
+                return HttpServletResponse.SC_UNAUTHORIZED;
+            }
+            login = decoded.substring(0, sep);
+            password = decoded.substring(sep + 1);
+        }
+        if (login == null)
+        {
+            return HttpServletResponse.SC_UNAUTHORIZED;
+        }
+
+        DbConn cnx = null;
+        try
+        {
+            cnx = Helpers.getNewDbSession();
+            RUser user = RUser.selectlogin(cnx, login);
+            if (Boolean.TRUE.equals(user.getLocked())
+                    || (user.getExpirationDate() != null && user.getExpirationDate().before(Calendar.getInstance())))
+            {
+                jqmlogger.debug("Metrics were requested by locked or expired user " + login);
+                return HttpServletResponse.SC_UNAUTHORIZED;
+            }
+            if (password != null)
+            {
+                ByteSource salt = user.getHashSalt() == null ? null : ByteSource.Util.bytes(Hex.decode(user.getHashSalt()));
+                if (!new Sha512Hash(password, salt, 100000).toHex().equals(user.getPassword()))
+                {
+                    jqmlogger.debug("Metrics were requested with a wrong password for user " + login);
+                    return HttpServletResponse.SC_UNAUTHORIZED;
+                }
+            }
+
+            for (RRole role : user.getRoles(cnx))
+            {
+                for (RPermission permission : role.getPermissions(cnx))
+                {
+                    if (new WildcardPermission(permission.getName()).implies(REQUIRED_PERMISSION))
+                    {
+                        return HttpServletResponse.SC_OK;
+                    }
+                }
+            }
+            jqmlogger.debug("Metrics were requested by user " + login + " who has no node:read permission");
+            return HttpServletResponse.SC_FORBIDDEN;
+        }
+        catch (NoResultException e)
+        {
+            jqmlogger.debug("Metrics were requested by unknown user " + login);
+            return HttpServletResponse.SC_UNAUTHORIZED;
+        }
+        finally
+        {
+            Helpers.closeQuietly(cnx);
+        }
+    }
+
+    private static String getCommonName(X509Certificate certificate)
+    {
+        try
+        {
+            for (Rdn rdn : new LdapName(certificate.getSubjectX500Principal().getName()).getRdns())
+            {
+                if ("CN".equalsIgnoreCase(rdn.getType()))
+                {
+                    return rdn.getValue().toString();
+                }
+            }
+        }
+        catch (InvalidNameException e)
+        {
+            jqmlogger.debug("Could not read the subject of a client certificate", e);
+        }
+        return null;
+    }
+}
@@ -91,6 +91,12 @@ if (! (Test-Path env:/JAVA_OPTS))
 {
     $env:JAVA_OPTS = "-Xms128m -Xmx512m -XX:MaxPermSize=128m"
 }
+# Java 9+: allow the engine to reset the thread locals of the reused payload threads
+$javaVersion = cmd /c "`"$java`" -version 2>&1"
+if ("$javaVersion" -match 'version "(\d+)' -and [int]$Matches[1] -ge 9)
+{
+    $env:JAVA_OPTS += " --add-opens=java.base/java.lang=ALL-UNNAMED"
+}
 $JAVA_OOM_ACTION="-XX:OnOutOfMemoryError=powershell.exe -NonInteractive -Command Stop-Process -Force  -Id (gwmi -Class Win32_Process -Filter `"processid=`$pid`").parentprocessid"
 $JAVA_HOME=Resolve-Path $java/../..
 
@@ -56,6 +56,12 @@ then
         echo "No java found. Please define JAVA_HOME or put java inside PATH"
         exit 1
 fi
+# Java 9+: allow the engine to reset the thread locals of the reused payload threads
+JAVA_VERSION=$($JAVA -version 2>&1 | head -1 | sed -e 's/.*version "\([0-9]*\).*/\1/')
+if [ "${JAVA_VERSION}" -ge 9 ] 2>/dev/null
+then
+ JAVA_OPTS="${JAVA_OPTS} --add-opens=java.base/java.lang=ALL-UNNAMED"
+fi
 JAVA="$JAVA $JAVA_OPTS "
 
 OOM=${JAVA_OOM_ACTION:-""}
@@ -124,7 +124,11 @@ public class TestHelpers
         cnx.runUpdate("sj_delete_all");
         cnx.runUpdate("jdprm_delete_all");
         cnx.runUpdate("jiprm_delete_all");
+        cnx.runUpdate("hl_delete_all");
+        cnx.runUpdate("rc_delete_all");
+        cnx.runUpdate("rb_delete_all");
         cnx.runUpdate("ji_delete_all");
+        cnx.runUpdate("warm_delete_all");
         cnx.runUpdate("node_delete_all");
         cnx.runUpdate("jd_delete_all");
         cnx.runUpdate("q_delete_all");
@@ -0,0 +1,29 @@
+package pyl;
+
+import com.enioka.jqm.api.JobManager;
+
+public class EngineApiSendLongMsg implements Runnable
+{
+    JobManager jm;
+
+    @Override
+    public void run()
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1001; i++)
+        {
+            sb.append('a');
+        }
+
+        try
+        {
+            jm.sendMsg(sb.toString());
+        }
+        catch (Exception e)
+        {
+            jm.sendMsg("Message was refused");
+            return;
+        }
+        jm.sendMsg("Message was accepted");
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pyl;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.enioka.jqm.api.JobManager;
+
+/**
+ * Enqueues one instance of the job definition named by parameter childApp, then waits for it with waitChild (parameter waitMode "one")
+ * or waitChildren (otherwise). The children only sleep for parameter sleepMs, if any.
+ */
+public class EngineApiWaitChild implements Runnable
+{
+    JobManager jm;
+
+    @Override
+    public void run()
+    {
+        if (jm.parameters().get("child") != null)
+        {
+            if (jm.parameters().get("sleepMs") != null)
+            {
+                try
+                {
+                    Thread.sleep(Long.parseLong(jm.parameters().get("sleepMs")));
+                }
+                catch (InterruptedException e)
+                {
+                    // Do nothing. Just a test.
+                }
+            }
+            return;
+        }
+
+        Map<String, String> p = new HashMap<String, String>();
+        p.put("child", "yep");
+        int child = jm.enqueue(jm.parameters().get("childApp"), jm.userName(), null, jm.sessionID(), jm.application(), jm.module(),
+                jm.keyword1(), jm.keyword2(), jm.keyword3(), p);
+
+        if ("one".equals(jm.parameters().get("waitMode")))
+        {
+            jm.waitChild(child);
+        }
+        else
+        {
+            jm.waitChildren();
+        }
+    }
+}
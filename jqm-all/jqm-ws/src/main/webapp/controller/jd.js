@@ -155,6 +155,21 @@ jqmControllers
 									displayName : 'AlertMn',
 									type : 'number',
 								},
+								{
+									field : 'maxRunning',
+									displayName : 'MaxRun',
+									type : 'number',
+								},
+								{
+									field : 'batchSize',
+									displayName : 'Batch',
+									type : 'number',
+								},
+								{
+									field : 'warmPoolSize',
+									displayName : 'Warm',
+									type : 'number',
+								},
 								{
 									field : 'schedules.length',
 									displayName : 'S',
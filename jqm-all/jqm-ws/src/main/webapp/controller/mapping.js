@@ -19,6 +19,7 @@ jqmControllers
 							queueId : $scope.queues[0].id,
 							nbThread : 10,
 							pollingInterval : 60000,
+							prefetch : 0,
 						});
 						$scope.mappings.push(t);
 						$scope.gridApi.selection.selectRow(t);
@@ -119,6 +120,11 @@ jqmControllers
 									field : 'nbThread',
 									displayName : 'Max concurrent running instances',
 									editableCellTemplate: '<div><form name="inputForm"><input type="number" min="1" max="1000" ng-required="true" ng-class="\'colt\' + col.uid" ui-grid-editor ng-model="MODEL_COL_FIELD" /></form></div>',
+								},
+								{
+									field : 'prefetch',
+									displayName : 'Prefetched instances',
+									editableCellTemplate: '<div><form name="inputForm"><input type="number" min="0" max="1000" ng-required="true" ng-class="\'colt\' + col.uid" ui-grid-editor ng-model="MODEL_COL_FIELD" /></form></div>',
 								}, {
 									field : 'enabled',
 									displayName : 'Enabled',
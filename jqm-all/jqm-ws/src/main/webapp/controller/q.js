@@ -10,7 +10,8 @@ jqmControllers.controller('µQueueListCtrl', function($scope, $http, µQueueDto,
 		var t = new µQueueDto({
 			name : 'new queue',
 			description : 'enter description',
-			defaultQueue : false
+			defaultQueue : false,
+			virtualThreads : false
 		});
 		$scope.queues.push(t);
 		$scope.gridApi.selection.selectRow(t);
@@ -95,6 +96,22 @@ jqmControllers.controller('µQueueListCtrl', function($scope, $http, µQueueDto,
 			cellTemplate : jqmCellTemplateBoolean,
 			editableCellTemplate : jqmCellEditorTemplateBoolean,
 			width : '*',
+		}, {
+			field : 'virtualThreads',
+			displayName : 'Virtual threads',
+			cellTemplate : jqmCellTemplateBoolean,
+			editableCellTemplate : jqmCellEditorTemplateBoolean,
+			width : '*',
+		}, {
+			field : 'maxRunning',
+			displayName : 'Max running (cluster)',
+			type : 'number',
+			width : '*',
+		}, {
+			field : 'maxRate',
+			displayName : 'Max starts per second (cluster)',
+			type : 'number',
+			width : '*',
 		} ]
 	};
 
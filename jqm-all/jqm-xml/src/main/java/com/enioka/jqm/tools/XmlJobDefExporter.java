@@ -145,6 +145,12 @@ class XmlJobDefExporter
         if (j.getMaxTimeRunning() != null)
             addTextElementToParentElement(jobDefinition, "reasonableRuntimeLimitMinute", j.getMaxTimeRunning() + "");
         addTextElementToParentElement(jobDefinition, "highlander", j.isHighlander() ? "true" : "false");
+        if (j.getMaxRunning() != null)
+            addTextElementToParentElement(jobDefinition, "maxRunning", j.getMaxRunning() + "");
+        if (j.getBatchSize() != null)
+            addTextElementToParentElement(jobDefinition, "batchSize", j.getBatchSize() + "");
+        if (j.getWarmPoolSize() != null)
+            addTextElementToParentElement(jobDefinition, "warmPoolSize", j.getWarmPoolSize() + "");
 
         if (j.getClassLoader(cnx) != null)
         {
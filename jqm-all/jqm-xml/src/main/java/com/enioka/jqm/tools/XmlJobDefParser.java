@@ -372,6 +372,37 @@ class XmlJobDefParser
                         jd.setMaxTimeRunning(null);
                     }
 
+                    // Cluster-wide concurrency limit
+                    if (jdElement.getElementsByTagName("maxRunning").getLength() > 0)
+                    {
+                        jd.setMaxRunning(Integer.parseInt(jdElement.getElementsByTagName("maxRunning").item(0).getTextContent().trim()));
+                    }
+                    else
+                    {
+                        jd.setMaxRunning(null);
+                    }
+
+                    // Micro-job batching
+                    if (jdElement.getElementsByTagName("batchSize").getLength() > 0)
+                    {
+                        jd.setBatchSize(Integer.parseInt(jdElement.getElementsByTagName("batchSize").item(0).getTextContent().trim()));
+                    }
+                    else
+                    {
+                        jd.setBatchSize(null);
+                    }
+
+                    // Warm class loader pool
+                    if (jdElement.getElementsByTagName("warmPoolSize").getLength() > 0)
+                    {
+                        jd.setWarmPoolSize(
+                                Integer.parseInt(jdElement.getElementsByTagName("warmPoolSize").item(0).getTextContent().trim()));
+                    }
+                    else
+                    {
+                        jd.setWarmPoolSize(null);
+                    }
+
                     // Parameters
                     Map<String, String> parameters = new HashMap<String, String>();
                     NodeList prmList = jdElement.getElementsByTagName("parameter");
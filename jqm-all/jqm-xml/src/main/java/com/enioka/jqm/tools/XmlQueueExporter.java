@@ -151,10 +151,25 @@ class XmlQueueExporter
         description.setText(q.getDescription());
         Element timeToLive = new Element("timeToLive");
         timeToLive.setText(q.getTimeToLive() + "");
+        Element virtualThreads = new Element("virtualThreads");
+        virtualThreads.setText(q.isVirtualThreads() + "");
 
         queue.addContent(name);
         queue.addContent(description);
         queue.addContent(timeToLive);
+        queue.addContent(virtualThreads);
+        if (q.getMaxRunning() != null)
+        {
+            Element maxRunning = new Element("maxRunning");
+            maxRunning.setText(q.getMaxRunning() + "");
+            queue.addContent(maxRunning);
+        }
+        if (q.getMaxRate() != null)
+        {
+            Element maxRate = new Element("maxRate");
+            maxRate.setText(q.getMaxRate() + "");
+            queue.addContent(maxRate);
+        }
 
         Element jobs = new Element("jobs");
         queue.addContent(jobs);
@@ -92,6 +92,18 @@ class XmlQueueParser
                 {
                     q.setTimeToLive(Integer.parseInt(qElement.getElementsByTagName("timeToLive").item(0).getTextContent()));
                 }
+                if (qElement.getElementsByTagName("virtualThreads").getLength() == 1)
+                {
+                    q.setVirtualThreads(Boolean.parseBoolean(qElement.getElementsByTagName("virtualThreads").item(0).getTextContent()));
+                }
+                if (qElement.getElementsByTagName("maxRunning").getLength() == 1)
+                {
+                    q.setMaxRunning(Integer.parseInt(qElement.getElementsByTagName("maxRunning").item(0).getTextContent().trim()));
+                }
+                if (qElement.getElementsByTagName("maxRate").getLength() == 1)
+                {
+                    q.setMaxRate(Double.parseDouble(qElement.getElementsByTagName("maxRate").item(0).getTextContent().trim()));
+                }
 
                 // We now merge & commit - we will need to reference the queue in the next paragraph.
                 q.update(cnx);